@@ -0,0 +1,48 @@
+package com.gwill.foreign_trade.service;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * 基于Vector API（jdk.incubator.vector）的批量计算实现，只实现标准合同公式
+ * 位于单独的源码目录，只在以 -Pvector 构建时编译（编译孵化模块时javac必然输出警告，默认构建因此不含此类）；
+ * 只能在启动参数含 --add-modules jdk.incubator.vector 时加载，由 ColumnarInvoiceKernel 按类名查找后调用
+ */
+final class VectorizedInvoiceKernel {
+
+    private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+
+    private VectorizedInvoiceKernel() {
+    }
+
+    /**
+     * 按 SPECIES 的通道数成组计算，不足一组的尾部交给标量实现
+     */
+    static void calculate( double[] salesAmounts, double[] taxRebateRates, double[] actualPurchaseAmounts,
+                           double[] taxPoints, double exchangeRate, double agentRelativeRatio, int rowCount,
+                           double[] invoiceAmounts, double[] taxRebateAmounts, double[] agentProfits,
+                           double[] overpriceTaxes ) {
+        int upperBound = SPECIES.loopBound( rowCount );
+        int i = 0;
+        for ( ; i < upperBound; i += SPECIES.length() ) {
+            DoubleVector sales = DoubleVector.fromArray( SPECIES, salesAmounts, i );
+            DoubleVector rate = DoubleVector.fromArray( SPECIES, taxRebateRates, i );
+            DoubleVector actual = DoubleVector.fromArray( SPECIES, actualPurchaseAmounts, i );
+            DoubleVector taxPoint = DoubleVector.fromArray( SPECIES, taxPoints, i );
+
+            // X = S × E × (1+R) ÷ (1 + R × A)
+            DoubleVector onePlusRate = rate.add( 1.0 );
+            DoubleVector invoice = sales.mul( exchangeRate ).mul( onePlusRate ).div( rate.fma( agentRelativeRatio, 1.0 ) );
+            // T = X × R ÷ (1+R)
+            DoubleVector rebate = invoice.mul( rate ).div( onePlusRate );
+
+            invoice.intoArray( invoiceAmounts, i );
+            rebate.intoArray( taxRebateAmounts, i );
+            rebate.mul( agentRelativeRatio ).intoArray( agentProfits, i );
+            invoice.sub( actual ).mul( taxPoint ).intoArray( overpriceTaxes, i );
+        }
+        ColumnarInvoiceKernel.calculateScalar( salesAmounts, taxRebateRates, actualPurchaseAmounts, taxPoints,
+                exchangeRate, agentRelativeRatio, i, rowCount,
+                invoiceAmounts, taxRebateAmounts, agentProfits, overpriceTaxes );
+    }
+}
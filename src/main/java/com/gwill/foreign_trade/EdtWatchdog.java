@@ -0,0 +1,307 @@
+package com.gwill.foreign_trade;
+
+import java.awt.EventQueue;
+import java.awt.Window;
+import java.lang.reflect.InvocationTargetException;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * 事件分发线程（EDT）监视器
+ * 有窗口显示时，后台线程每隔 PROBE_INTERVAL_MILLIS 毫秒向事件队列投递一个探测事件，探测事件超过阈值仍未执行即认为界面已卡住，
+ * 把事件分发线程当时的调用栈输出到标准错误；仍未恢复时每隔 STALL_RESAMPLE_MILLIS 毫秒再输出一次，恢复后输出总阻塞时长。
+ * 启动时先确定事件分发线程，第一次阻塞也能输出调用栈；事件分发线程重建后由探测事件更新。
+ * 阈值默认500毫秒，可用 -Dedt.watchdog.thresholdMillis=毫秒数 调整。
+ *
+ * 各窗口用 begin 包住加载、计算、导出、切换显示模式等操作，耗时按操作分别计入最近 HISTOGRAM_WINDOW 次的滚动直方图，
+ * 并通知状态栏；程序退出时把各操作的耗时分布输出到标准错误。只需在事件分发线程调用 begin 和 Operation.close
+ */
+public final class EdtWatchdog {
+
+    // 单例实例
+    private static EdtWatchdog instance;
+
+    private static final long DEFAULT_THRESHOLD_MILLIS = 500;
+    private static final long PROBE_INTERVAL_MILLIS = 100;
+    private static final long STALL_RESAMPLE_MILLIS = 5_000;
+    // 每个操作保留最近多少次的耗时
+    private static final int HISTOGRAM_WINDOW = 512;
+    // 直方图各档的上限（毫秒），最后一档不设上限
+    private static final long[] BUCKET_UPPER_MILLIS = {1, 2, 4, 8, 16, 32, 64, 128, 256, 512, 1024, 2048, 4096, 8192};
+    private static final DateTimeFormatter LOG_TIME_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS");
+
+    /**
+     * 计入耗时统计的界面操作
+     */
+    public enum UiAction {
+        LOAD("加载数据"),
+        CALCULATE("计算"),
+        // 输入变化后在后台自动重算，单独统计，不与点击按钮的计算混在一起
+        LIVE_CALCULATE("实时计算"),
+        EXPORT("导出"),
+        TOGGLE_MODE("切换显示模式");
+
+        private final String displayName;
+
+        UiAction(String displayName) {
+            this.displayName = displayName;
+        }
+
+        public String getDisplayName() {
+            return displayName;
+        }
+
+        @Override
+        public String toString() {
+            return displayName;
+        }
+    }
+
+    /**
+     * 一次操作的耗时
+     */
+    public record OperationSample(UiAction action, long elapsedMillis) {}
+
+    /**
+     * 某个操作最近若干次耗时的统计
+     */
+    public record LatencyStats(
+            UiAction action,
+            int count,                  // 统计的次数（最多 HISTOGRAM_WINDOW 次）
+            long medianMillis,          // 中位数
+            long p95Millis,             // 95分位数
+            long maxMillis,             // 最长耗时
+            int[] bucketCounts          // 各档次数，各档上限见 BUCKET_UPPER_MILLIS，最后一档不设上限
+    ) {
+
+        /**
+         * 单行描述，只列出有记录的档位
+         */
+        public String describe() {
+            StringBuilder text = new StringBuilder(String.format("%s：最近%d次 中位数%dms P95 %dms 最长%dms 分布",
+                    action, count, medianMillis, p95Millis, maxMillis));
+            for (int bucket = 0; bucket < bucketCounts.length; bucket++) {
+                if (bucketCounts[bucket] > 0) {
+                    text.append(bucket < BUCKET_UPPER_MILLIS.length ?
+                            String.format(" ≤%dms:%d", BUCKET_UPPER_MILLIS[bucket], bucketCounts[bucket]) :
+                            String.format(" >%dms:%d", BUCKET_UPPER_MILLIS[BUCKET_UPPER_MILLIS.length - 1],
+                                    bucketCounts[bucket]));
+                }
+            }
+            return text.toString();
+        }
+    }
+
+    /**
+     * 正在进行的一次操作，close时记录耗时（重复调用只记录一次）
+     * 操作完成后还要弹出提示框时，应在弹出前先调用close，使等待用户关闭提示框的时间不计入
+     */
+    public final class Operation implements AutoCloseable {
+
+        private final UiAction action;
+        private final long startNanos;
+        private boolean finished;
+
+        private Operation(UiAction action) {
+            this.action = action;
+            this.startNanos = System.nanoTime();
+        }
+
+        @Override
+        public void close() {
+            if (finished) {
+                return;
+            }
+            finished = true;
+            currentAction = null;
+            record(action, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+        }
+    }
+
+    private final long thresholdMillis;
+    private final Map<UiAction, RollingLatencyHistogram> histograms = new EnumMap<>(UiAction.class);
+    private final List<Consumer<OperationSample>> listeners = new CopyOnWriteArrayList<>();
+    private volatile Thread dispatchThread;
+    private volatile UiAction currentAction;
+    private volatile OperationSample lastSample;
+
+    private EdtWatchdog(long thresholdMillis) {
+        this.thresholdMillis = thresholdMillis;
+        for (UiAction action : UiAction.values()) {
+            histograms.put(action, new RollingLatencyHistogram());
+        }
+        // 通常在事件分发线程上首次调用（如创建状态栏时），此时直接记下；否则由监视线程启动时向事件队列询问
+        if (EventQueue.isDispatchThread()) {
+            dispatchThread = Thread.currentThread();
+        }
+        Thread.ofPlatform().daemon().name("edt-watchdog").start(this::monitor);
+        Runtime.getRuntime().addShutdownHook(new Thread(this::logSummary, "edt-watchdog-summary"));
+    }
+
+    /**
+     * 获取单例实例（首次调用时启动监视线程）
+     */
+    public static synchronized EdtWatchdog getInstance() {
+        if (instance == null) {
+            instance = new EdtWatchdog(Long.getLong("edt.watchdog.thresholdMillis", DEFAULT_THRESHOLD_MILLIS));
+        }
+        return instance;
+    }
+
+    /**
+     * 开始一次操作，用 try-with-resources 包住操作本身
+     */
+    public Operation begin(UiAction action) {
+        currentAction = action;
+        return new Operation(action);
+    }
+
+    /**
+     * 直接记录一次操作的耗时（如从事件分发线程出发、在后台线程完成的导出）
+     */
+    public void record(UiAction action, long elapsedMillis) {
+        histograms.get(action).add(elapsedMillis);
+        OperationSample sample = new OperationSample(action, elapsedMillis);
+        lastSample = sample;
+        for (Consumer<OperationSample> listener : listeners) {
+            listener.accept(sample);
+        }
+    }
+
+    /**
+     * 每次记录操作耗时后通知（在记录操作的线程上调用）
+     */
+    public void addListener(Consumer<OperationSample> listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * 最近一次操作，尚无操作时为null
+     */
+    public OperationSample lastSample() {
+        return lastSample;
+    }
+
+    /**
+     * 某个操作最近若干次耗时的统计，尚无记录时为null
+     */
+    public LatencyStats stats(UiAction action) {
+        return histograms.get(action).snapshot(action);
+    }
+
+    private void monitor() {
+        if (dispatchThread == null) {
+            try {
+                EventQueue.invokeAndWait(() -> dispatchThread = Thread.currentThread());
+            } catch (InterruptedException e) {
+                return;
+            } catch (InvocationTargetException e) {
+                // 只做赋值，不会抛出异常；万一发生，仍由之后的探测事件确定
+            }
+        }
+        while (true) {
+            try {
+                // 没有显示中的窗口时不投递探测事件，以免事件队列一直不空、AWT无法自动退出
+                if (!hasDisplayableWindow()) {
+                    Thread.sleep(PROBE_INTERVAL_MILLIS);
+                    continue;
+                }
+                long sentNanos = System.nanoTime();
+                CountDownLatch answered = new CountDownLatch(1);
+                EventQueue.invokeLater(() -> {
+                    dispatchThread = Thread.currentThread();
+                    answered.countDown();
+                });
+                if (!answered.await(thresholdMillis, TimeUnit.MILLISECONDS)) {
+                    UiAction action = currentAction;
+                    logStall(sentNanos, action, "事件分发线程已阻塞");
+                    while (!answered.await(STALL_RESAMPLE_MILLIS, TimeUnit.MILLISECONDS)) {
+                        logStall(sentNanos, action, "事件分发线程仍在阻塞");
+                    }
+                    System.err.printf("[EDT监视] %s 事件分发线程恢复响应，共阻塞 %d ms%n",
+                            LocalDateTime.now().format(LOG_TIME_FORMAT),
+                            TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - sentNanos));
+                }
+                Thread.sleep(PROBE_INTERVAL_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private static boolean hasDisplayableWindow() {
+        for (Window window : Window.getWindows()) {
+            if (window.isDisplayable()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void logStall(long sentNanos, UiAction action, String message) {
+        StringBuilder text = new StringBuilder(String.format("[EDT监视] %s %s %d ms（阈值 %d ms%s）",
+                LocalDateTime.now().format(LOG_TIME_FORMAT), message,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - sentNanos), thresholdMillis,
+                action == null ? "" : "，正在进行：" + action));
+        Thread thread = dispatchThread;
+        if (thread != null) {
+            text.append(System.lineSeparator()).append("  线程 ").append(thread.getName()).append(" 状态 ")
+                    .append(thread.getState());
+            for (StackTraceElement element : thread.getStackTrace()) {
+                text.append(System.lineSeparator()).append("\tat ").append(element);
+            }
+        }
+        System.err.println(text);
+    }
+
+    private void logSummary() {
+        for (UiAction action : UiAction.values()) {
+            LatencyStats stats = stats(action);
+            if (stats != null) {
+                System.err.println("[EDT监视] " + stats.describe());
+            }
+        }
+    }
+
+    /**
+     * 最近 HISTOGRAM_WINDOW 次耗时的环形缓冲，统计时再排序，不必维护各档计数
+     */
+    static final class RollingLatencyHistogram {
+
+        private final long[] samples = new long[HISTOGRAM_WINDOW];
+        private int count;
+        private int next;
+
+        synchronized void add(long elapsedMillis) {
+            samples[next] = elapsedMillis;
+            next = (next + 1) % samples.length;
+            count = Math.min(count + 1, samples.length);
+        }
+
+        synchronized LatencyStats snapshot(UiAction action) {
+            if (count == 0) {
+                return null;
+            }
+            long[] sorted = Arrays.copyOf(samples, count);
+            Arrays.sort(sorted);
+            int[] bucketCounts = new int[BUCKET_UPPER_MILLIS.length + 1];
+            for (long elapsedMillis : sorted) {
+                int bucket = 0;
+                while (bucket < BUCKET_UPPER_MILLIS.length && elapsedMillis > BUCKET_UPPER_MILLIS[bucket]) {
+                    bucket++;
+                }
+                bucketCounts[bucket]++;
+            }
+            return new LatencyStats(action, count, sorted[(count - 1) / 2],
+                    sorted[(int) Math.ceil(count * 0.95) - 1], sorted[count - 1], bucketCounts);
+        }
+    }
+}
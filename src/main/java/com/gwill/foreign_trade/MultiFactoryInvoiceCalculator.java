@@ -1,37 +1,52 @@
 package com.gwill.foreign_trade;
 
+import com.gwill.foreign_trade.io.AgentContractLoader;
+import com.gwill.foreign_trade.io.CalculationResultExporter;
+import com.gwill.foreign_trade.io.CsvFormatException;
+import com.gwill.foreign_trade.io.DataValidationException;
+import com.gwill.foreign_trade.io.ProductSituationValidator;
+import com.gwill.foreign_trade.io.ProductSituationWorkbookLoader;
 import com.gwill.foreign_trade.model.CalculationParams;
-import com.gwill.foreign_trade.model.CalculationResult;
 import com.gwill.foreign_trade.model.MultiProductCalculationResult;
 import com.gwill.foreign_trade.model.ProductCalculationDetail;
 import com.gwill.foreign_trade.model.ProductSituation;
+import com.gwill.foreign_trade.model.SourcedProductSituation;
+import com.gwill.foreign_trade.model.ValidationProblem;
+import com.gwill.foreign_trade.service.AllocationMode;
+import com.gwill.foreign_trade.service.ContractFormula;
+import com.gwill.foreign_trade.service.IncrementalMultiFactoryCalculation;
 import com.gwill.foreign_trade.service.MultiFactoryInvoiceCalculationService;
 
 import javax.swing.*;
 import javax.swing.border.TitledBorder;
 import javax.swing.filechooser.FileNameExtensionFilter;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+import javax.swing.event.TableModelEvent;
+import javax.swing.table.DefaultTableCellRenderer;
 import javax.swing.table.DefaultTableModel;
 import java.awt.*;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.BufferedWriter;
-import java.io.FileWriter;
-import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
 
-import com.gwill.io.excel.ExcelIO;
 import com.gwill.io.excel.ExcelIOException;
-import com.gwill.io.excel.AlternatingRowsWriter;
-import com.gwill.io.excel.util.ResourceUtil;
 import java.math.BigDecimal;
 import java.math.RoundingMode;
 import java.text.DecimalFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
+import java.util.Set;
+import java.util.Vector;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
-import static java.util.stream.Collectors.groupingBy;
 
 /**
  * 多工厂分配计算器
@@ -46,8 +61,6 @@ public class MultiFactoryInvoiceCalculator extends JFrame {
     private static MultiFactoryInvoiceCalculator instance;
     
     // 资源文件路径常量
-    private static final String INPUT_FILE_METADATA_RELATIVE_PATH = "data_types/multi_factory_situations_data_types.xlsx";
-    private static final String RESULT_TEMPLATE_FILE_RELATIVE_PATH = "formatted_templates/multi_factory_calculation_results_alternating_rows_template.xlsx";
     
     // 精度设置（使用服务类的常量）
     private static final int CALCULATION_PRECISION = MultiFactoryInvoiceCalculationService.CALCULATION_PRECISION;
@@ -55,6 +68,14 @@ public class MultiFactoryInvoiceCalculator extends JFrame {
 
     // 货币选项
     private static final String[] CURRENCIES = {"USD", "EUR", "GBP", "JPY", "CNY", "RUB"};
+
+    // 结果表格中的列
+    private static final int COLUMN_FACTORY_NAME = 0;
+    private static final int COLUMN_PRODUCT_NAME = 1;
+    private static final int COLUMN_TAX_REBATE_RATE = 2;
+    private static final int COLUMN_ACTUAL_PURCHASE_AMOUNT = 3;
+    private static final int COLUMN_PREPAID_AMOUNT = 4;
+    private static final int COLUMN_TAX_POINT = 5;
     private static final String[] CURRENCY_NAMES = {
             "美元 (USD)", "欧元 (EUR)", "英镑 (GBP)",
             "日元 (JPY)", "人民币 (CNY)", "俄罗斯卢布 (RUB)"
@@ -65,6 +86,8 @@ public class MultiFactoryInvoiceCalculator extends JFrame {
     private JComboBox<String> currencyComboBox;
     private JTextField exchangeRateField;
     private JTextField agentRelativeRatioField;      // 相对分配率字段
+    private JComboBox<AllocationMode> allocationModeComboBox;   // 超额开票金额分配方式
+    private JComboBox<ContractFormula> contractFormulaComboBox;   // 合同公式
 
     // 文件选择组件
     private JTextField excelFilePathField;
@@ -74,6 +97,8 @@ public class MultiFactoryInvoiceCalculator extends JFrame {
     // 数据显示组件
     private JTable detailedResultTable;
     private DefaultTableModel tableModel;
+    private ResultTableRowSorter tableRowSorter;
+    private JTextField tableFilterField;
     private JTextArea calculationResultArea;
     private JTextArea cashFlowResultArea;
 
@@ -85,9 +110,12 @@ public class MultiFactoryInvoiceCalculator extends JFrame {
 
     // 工厂数据
     private List<ProductSituation> productSituationList;
+    private List<SourcedProductSituation> productSituationSources = List.of();     // 与productSituationList一一对应的来源信息
     
     // 计算结果数据（用于导出）
     private MultiProductCalculationResult lastCalculationResult;
+    private CalculationParams lastCalculationParams;     // 上次计算的总体参数（退税率不使用）
+    private IncrementalMultiFactoryCalculation incrementalCalculation;     // 修改表格单元格后增量重算
 
     // 格式化器（使用服务类的方法）
     private DecimalFormat currencyFormat = MultiFactoryInvoiceCalculationService.CURRENCY_FORMAT;
@@ -148,6 +176,9 @@ public class MultiFactoryInvoiceCalculator extends JFrame {
 
         add(mainPanel, BorderLayout.CENTER);
 
+        // 状态栏：上次操作耗时和堆内存
+        add(new OperationStatusBar(), BorderLayout.SOUTH);
+
         // 设置默认值
         setDefaultValues();
 
@@ -209,8 +240,25 @@ public class MultiFactoryInvoiceCalculator extends JFrame {
         gbc.gridx = 2; gbc.fill = GridBagConstraints.NONE; gbc.weightx = 0.0;
         panel.add(new JLabel("%"), gbc);
 
+        // 超额开票金额分配方式行
+        gbc.gridx = 0; gbc.gridy = 1;
+        panel.add(new JLabel("超额开票分配方式:"), gbc);
+        gbc.gridx = 1; gbc.fill = GridBagConstraints.HORIZONTAL; gbc.weightx = 1.0;
+        allocationModeComboBox = new JComboBox<>(AllocationMode.values());
+        panel.add(allocationModeComboBox, gbc);
+
+        // 合同公式行
+        gbc.gridx = 0; gbc.gridy = 2; gbc.fill = GridBagConstraints.NONE; gbc.weightx = 0.0;
+        panel.add(new JLabel("合同公式:"), gbc);
+        gbc.gridx = 1; gbc.fill = GridBagConstraints.HORIZONTAL; gbc.weightx = 1.0;
+        // 合同定义文件有误时提示并只保留标准合同
+        contractFormulaComboBox = new JComboBox<>(AgentContractLoader.loadAvailableFormulas(message ->
+                JOptionPane.showMessageDialog(this, message, "警告", JOptionPane.WARNING_MESSAGE))
+                .toArray(new ContractFormula[0]));
+        panel.add(contractFormulaComboBox, gbc);
+
         // 添加说明标签
-        gbc.gridx = 0; gbc.gridy = 1; gbc.gridwidth = 3;
+        gbc.gridx = 0; gbc.gridy = 3; gbc.gridwidth = 3;
         gbc.fill = GridBagConstraints.HORIZONTAL;
         JLabel helpLabel = new JLabel("<html><small>" +
                 "如输入50，表示代理获得退税金额的50%" +
@@ -248,11 +296,24 @@ public class MultiFactoryInvoiceCalculator extends JFrame {
         panel.add(loadDataButton, gbc);
 
         // 数据表格
-        String[] columns = {"工厂名称", "产品名称", "退税率", "实际货值(元)", "开票金额(元)", "退税金额(元)", "代理利润(元)", "工厂对公应退金额(元)", "工厂对私应退金额(元)"};
+        String[] columns = {"工厂名称", "产品名称", "退税率", "实际货值(元)", "已预付金额(元)", "税点", "开票金额(元)", "退税金额(元)", "代理利润(元)", "工厂对公应退金额(元)", "工厂对私应退金额(元)"};
         tableModel = new DefaultTableModel(columns, 0) {
             @Override
             public boolean isCellEditable(int row, int column) {
-                return false; // 表格只读
+                // 计算后可直接修改实际货值、已预付金额和税点，其余列只读
+                return incrementalCalculation != null && (column == COLUMN_ACTUAL_PURCHASE_AMOUNT
+                        || column == COLUMN_PREPAID_AMOUNT || column == COLUMN_TAX_POINT);
+            }
+
+            @Override
+            public Class<?> getColumnClass(int column) {
+                // 名称列为字符串，其余列保存BigDecimal原值，由渲染器负责格式化
+                return column == COLUMN_FACTORY_NAME || column == COLUMN_PRODUCT_NAME ? String.class : BigDecimal.class;
+            }
+
+            @Override
+            public void setValueAt(Object value, int row, int column) {
+                applyCellEdit(row, column, String.valueOf(value));
             }
         };
 
@@ -260,10 +321,47 @@ public class MultiFactoryInvoiceCalculator extends JFrame {
         detailedResultTable.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
         detailedResultTable.getTableHeader().setReorderingAllowed(false);
 
+        // 金额列按千分位两位小数显示，比例列按百分比显示
+        DefaultTableCellRenderer currencyRenderer = new FormattedNumberRenderer(currencyFormat);
+        DefaultTableCellRenderer percentRenderer = new FormattedNumberRenderer(percentFormat);
+        for (int column = COLUMN_TAX_REBATE_RATE; column < columns.length; column++) {
+            boolean isRatio = column == COLUMN_TAX_REBATE_RATE || column == COLUMN_TAX_POINT;
+            detailedResultTable.getColumnModel().getColumn(column).setCellRenderer(isRatio ? percentRenderer : currencyRenderer);
+            detailedResultTable.getColumnModel().getColumn(column).setCellEditor(new FormattedNumberEditor(isRatio));
+        }
+
+        // 点击表头按数值排序，按工厂或产品名称前缀筛选
+        tableRowSorter = new ResultTableRowSorter(tableModel, COLUMN_FACTORY_NAME, COLUMN_PRODUCT_NAME);
+        detailedResultTable.setRowSorter(tableRowSorter);
+
+        gbc.gridx = 0; gbc.gridy = 1; gbc.fill = GridBagConstraints.NONE;
+        panel.add(new JLabel("筛选:"), gbc);
+
+        gbc.gridx = 1; gbc.gridy = 1; gbc.gridwidth = 3; gbc.fill = GridBagConstraints.HORIZONTAL; gbc.weightx = 1.0;
+        tableFilterField = new JTextField();
+        tableFilterField.setToolTipText("输入工厂名称或产品名称的开头部分");
+        tableFilterField.getDocument().addDocumentListener(new DocumentListener() {
+            @Override
+            public void insertUpdate(DocumentEvent e) {
+                tableRowSorter.setNamePrefixFilter(tableFilterField.getText());
+            }
+
+            @Override
+            public void removeUpdate(DocumentEvent e) {
+                tableRowSorter.setNamePrefixFilter(tableFilterField.getText());
+            }
+
+            @Override
+            public void changedUpdate(DocumentEvent e) {
+                tableRowSorter.setNamePrefixFilter(tableFilterField.getText());
+            }
+        });
+        panel.add(tableFilterField, gbc);
+
         JScrollPane tableScrollPane = new JScrollPane(detailedResultTable);
         tableScrollPane.setPreferredSize(new Dimension(0, 200));
         
-        gbc.gridx = 0; gbc.gridy = 1; gbc.gridwidth = 4; gbc.fill = GridBagConstraints.BOTH; 
+        gbc.gridx = 0; gbc.gridy = 2; gbc.gridwidth = 4; gbc.fill = GridBagConstraints.BOTH; 
         gbc.weightx = 1.0; gbc.weighty = 1.0;
         panel.add(tableScrollPane, gbc);
 
@@ -324,59 +422,143 @@ public class MultiFactoryInvoiceCalculator extends JFrame {
 
     private void browseExcelFile() {
         JFileChooser fileChooser = new JFileChooser();
+        fileChooser.setMultiSelectionEnabled(true); // 支持同时选择多个供应商文件
         fileChooser.setFileFilter(new FileNameExtensionFilter("Excel文件 (*.xlsx)", "xlsx"));
+        fileChooser.addChoosableFileFilter(new FileNameExtensionFilter("CSV文件 (*.csv, *.csv.gz)", "csv", "gz"));
 
         if (fileChooser.showOpenDialog(this) == JFileChooser.APPROVE_OPTION) {
-            excelFilePathField.setText(fileChooser.getSelectedFile().getAbsolutePath());
+            StringBuilder filePaths = new StringBuilder();
+            for (java.io.File selectedFile : fileChooser.getSelectedFiles()) {
+                if (!filePaths.isEmpty()) {
+                    filePaths.append(java.io.File.pathSeparator);
+                }
+                filePaths.append(selectedFile.getAbsolutePath());
+            }
+            excelFilePathField.setText(filePaths.toString());
         }
     }
 
     private void loadFactoryData() {
-        String filePath = excelFilePathField.getText().trim();
-        if (filePath.isEmpty()) {
+        String filePathsText = excelFilePathField.getText().trim();
+        if (filePathsText.isEmpty()) {
             JOptionPane.showMessageDialog(this, "请先选择Excel文件！", "提示", JOptionPane.WARNING_MESSAGE);
             return;
         }
 
-        try {
+        List<Path> inputFiles = new ArrayList<>();
+        for (String filePath : filePathsText.split(java.util.regex.Pattern.quote(java.io.File.pathSeparator))) {
+            if (!filePath.isBlank()) {
+                inputFiles.add(Path.of(filePath.trim()));
+            }
+        }
+
+        try (EdtWatchdog.Operation operation = EdtWatchdog.getInstance().begin(EdtWatchdog.UiAction.LOAD)) {
             productSituationList.clear();
+            productSituationSources = List.of();
+            incrementalCalculation = null;
             tableModel.setRowCount(0);
 
-            // 使用ResourceUtil读取元数据文件以获取数据类型
-            try (InputStream metadataStream = ResourceUtil.getInputStream(INPUT_FILE_METADATA_RELATIVE_PATH)) {
-                
-                if (metadataStream == null) {
-                    throw new ExcelIOException("找不到元数据文件: " + INPUT_FILE_METADATA_RELATIVE_PATH);
-                }
-
-                // 使用ExcelIO读取Excel文件
-                var dataList = ExcelIO.read(filePath)
-                        .withMetadata(metadataStream)
-                        .sheet(0) // 使用第一个sheet
-                        .asMaps();
-
-                // 转换为ProductSituation对象
-                for (var dataMap : dataList) {
-                    ProductSituation prodSituation = ProductSituation.fromExcelRow(dataMap);
-                    productSituationList.add(prodSituation);
-                }
+            // 并发读取全部文件的全部工作表（CSV走内存映射加载器），合并为一个列表
+            List<SourcedProductSituation> sourcedSituations = ProductSituationWorkbookLoader.load(inputFiles);
+            for (SourcedProductSituation sourced : sourcedSituations) {
+                productSituationList.add(sourced.productSituation());
             }
-
+            productSituationSources = sourcedSituations;
+
+            long sheetCount = sourcedSituations.stream()
+                    .map(sourced -> sourced.sourceFile() + "|" + sourced.sheetName())
+                    .distinct()
+                    .count();
+            // 等待用户关闭提示框的时间不计入加载耗时
+            operation.close();
             JOptionPane.showMessageDialog(this,
-                    String.format("成功加载 %d 家工厂数据！", productSituationList.size()),
+                    String.format("成功从 %d 个文件（%d 个工作表）加载 %d 家工厂数据！",
+                            inputFiles.size(), sheetCount, productSituationList.size()),
                     "加载成功", JOptionPane.INFORMATION_MESSAGE);
 
         } catch (ExcelIOException | IOException e) {
+            productSituationList.clear();
             JOptionPane.showMessageDialog(this,
                     "Excel文件读取失败：" + e.getMessage(),
                     "错误", JOptionPane.ERROR_MESSAGE);
+        } catch (DataValidationException e) {
+            productSituationList.clear();
+            showValidationProblems(e);
+        } catch (CsvFormatException e) {
+            productSituationList.clear();
+            JOptionPane.showMessageDialog(this,
+                    "CSV文件格式错误：" + e.getMessage(),
+                    "错误", JOptionPane.ERROR_MESSAGE);
+        } catch (IllegalArgumentException e) {
+            productSituationList.clear();
+            JOptionPane.showMessageDialog(this,
+                    "数据格式错误：" + e.getMessage(),
+                    "错误", JOptionPane.ERROR_MESSAGE);
+        }
+    }
+
+    /**
+     * 在可滚动的文本框中列出加载时发现的全部数据问题
+     */
+    private void showValidationProblems(DataValidationException e) {
+        StringBuilder text = new StringBuilder();
+        for (ValidationProblem problem : e.getProblems()) {
+            text.append(problem.describe()).append('\n');
+        }
+        JTextArea problemArea = new JTextArea(text.toString(), 15, 60);
+        problemArea.setEditable(false);
+        problemArea.setCaretPosition(0);
+        JPanel panel = new JPanel(new BorderLayout(0, 8));
+        panel.add(new JLabel(String.format("共发现 %d 处数据问题，请全部修改后重新加载：", e.getProblems().size())),
+                BorderLayout.NORTH);
+        panel.add(new JScrollPane(problemArea), BorderLayout.CENTER);
+        JOptionPane.showMessageDialog(this, panel, "数据校验未通过", JOptionPane.ERROR_MESSAGE);
+    }
+
+    /**
+     * 按给定格式显示BigDecimal的单元格渲染器（右对齐）
+     */
+    private static class FormattedNumberRenderer extends DefaultTableCellRenderer {
+        private final DecimalFormat format;
+
+        FormattedNumberRenderer(DecimalFormat format) {
+            this.format = format;
+            setHorizontalAlignment(SwingConstants.RIGHT);
+        }
+
+        @Override
+        protected void setValue(Object value) {
+            setText(value instanceof BigDecimal decimal ? format.format(decimal) : "");
+        }
+    }
+
+    /**
+     * 编辑数值单元格时显示完整精度的原值（比例列显示为百分数），提交的文本由applyCellEdit解析
+     */
+    private static class FormattedNumberEditor extends DefaultCellEditor {
+        private final boolean isRatio;
+
+        FormattedNumberEditor(boolean isRatio) {
+            super(new JTextField());
+            this.isRatio = isRatio;
+            ((JTextField) getComponent()).setHorizontalAlignment(JTextField.RIGHT);
+        }
+
+        @Override
+        public Component getTableCellEditorComponent(JTable table, Object value, boolean isSelected, int row, int column) {
+            String text = "";
+            if (value instanceof BigDecimal decimal) {
+                text = isRatio ? decimal.movePointRight(2).stripTrailingZeros().toPlainString() + "%"
+                        : decimal.stripTrailingZeros().toPlainString();
+            }
+            return super.getTableCellEditorComponent(table, text, isSelected, row, column);
         }
     }
 
     private class CalculateButtonListener implements ActionListener {
         @Override
         public void actionPerformed( ActionEvent e ) {
-            try {
+            try (EdtWatchdog.Operation operation = EdtWatchdog.getInstance().begin(EdtWatchdog.UiAction.CALCULATE)) {
                 calculateDistribution();
             } catch (Exception ex) {
                 JOptionPane.showMessageDialog(MultiFactoryInvoiceCalculator.this,
@@ -404,23 +586,11 @@ public class MultiFactoryInvoiceCalculator extends JFrame {
         if (agentRelativeRatio.compareTo(BigDecimal.ZERO) < 0 || agentRelativeRatio.compareTo(BigDecimal.ONE) > 0) {
             throw new IllegalArgumentException("相对分配率必须在0-100%之间");
         }
-        // 按产品分别计算开票金额并汇总
-        BigDecimal totalInvoiceAmount = BigDecimal.ZERO;
-        BigDecimal totalClientPaymentInRMB = salesAmount.multiply(exchangeRate);
-        
-        for (ProductSituation prodSituation : productSituationList) {
-//            if (prodSituation.agreeToInvoiceToAgent()) {
-//            }
-            var productParams = new CalculationParams(
-                    prodSituation.salesAmountInForeignCurrency(),
-                    exchangeRate,
-                    prodSituation.taxRebateRate(),
-                    agentRelativeRatio
-            );
-            CalculationResult productResult = MultiFactoryInvoiceCalculationService.calculateInvoiceAmount(productParams);
-            totalInvoiceAmount = totalInvoiceAmount.add(productResult.invoiceAmount());
-        }
-        
+        // 按产品分别计算开票金额并汇总（各行数据在加载时已校验）
+        ContractFormula formula = (ContractFormula) contractFormulaComboBox.getSelectedItem();
+        BigDecimal totalInvoiceAmount = MultiFactoryInvoiceCalculationService.calculateTotalInvoiceAmount(
+                productSituationList, exchangeRate, agentRelativeRatio, formula);
+
 
         // 计算参与工厂的总货值
         BigDecimal factoryInvoicingToAgentTotalActualPurchaseAmount = productSituationList.stream()
@@ -432,12 +602,15 @@ public class MultiFactoryInvoiceCalculator extends JFrame {
             throw new IllegalArgumentException("没有参与的工厂！");
         }
 
-        // 调用多产品计算方法获得详细结果
-        MultiProductCalculationResult multiResult = MultiFactoryInvoiceCalculationService.calculateMultiProductsData(
-                totalInvoiceAmount, productSituationList, exchangeRate, agentRelativeRatio );
+        // 调用多产品计算方法获得详细结果，并保留累计值供修改单元格后增量重算
+        incrementalCalculation = new IncrementalMultiFactoryCalculation(
+                totalInvoiceAmount, productSituationList, exchangeRate, agentRelativeRatio,
+                (AllocationMode) allocationModeComboBox.getSelectedItem(), formula );
+        MultiProductCalculationResult multiResult = incrementalCalculation.result();
 
         // 保存计算结果用于导出
         lastCalculationResult = multiResult;
+        lastCalculationParams = new CalculationParams(salesAmount, exchangeRate, BigDecimal.ZERO, agentRelativeRatio);
 
         // 更新表格显示
         updateTableDisplay( multiResult.productCalculationDetails() );
@@ -454,27 +627,214 @@ public class MultiFactoryInvoiceCalculator extends JFrame {
     }
 
 
+    /**
+     * 按（工厂名称, 产品名称）比对新旧显示内容：同一工厂产品的行内容有变化才发出更新事件，
+     * 新出现的工厂产品在其位置插入，已不存在的在其位置删除，其余行不受影响；连续的同类事件合并为一次。
+     * 反复调整参数重算或增删几行数据后重算时不再清空重建表格，选中行、滚动位置和排序状态得以保留，也不会整表重新布局
+     */
+    @SuppressWarnings("unchecked")
     private void updateTableDisplay( List<ProductCalculationDetail> productCalculationDetails ) {
-        // 清空现有数据并重新填充
-        tableModel.setRowCount(0);
-        
+        Vector<Vector> data = tableModel.getDataVector();
+        Set<RowKey> oldKeys = new HashSet<>(data.size() * 2);
+        for (Vector rowData : data) {
+            oldKeys.add(RowKey.of(rowData));
+        }
+        Set<RowKey> newKeys = new HashSet<>(productCalculationDetails.size() * 2);
+        for (ProductCalculationDetail detail : productCalculationDetails) {
+            newKeys.add(new RowKey(detail.factoryName(), detail.productName()));
+        }
+
+        TableEventRun events = new TableEventRun(tableModel);
+        int position = 0;
         for (int i = 0; i < productCalculationDetails.size(); i++) {
             ProductCalculationDetail detail = productCalculationDetails.get(i);
-            ProductSituation prodSituation = productSituationList.get(i);
-            
-            // 列：工厂名称, 产品名称, 退税率, 实际货值, 开票金额, 退税金额, 代理利润, 工厂对公应退金额, 工厂对私应退金额
-            Object[] row = {
-                    detail.factoryName(),
-                    detail.productName(),
-                    MultiFactoryInvoiceCalculationService.formatPercentage(prodSituation.taxRebateRate()),
-                    MultiFactoryInvoiceCalculationService.formatCurrency(detail.actualPurchaseAmount()),
-                    MultiFactoryInvoiceCalculationService.formatCurrency(detail.invoiceAmount()),
-                    MultiFactoryInvoiceCalculationService.formatCurrency(detail.taxRebateAmount()),
-                    MultiFactoryInvoiceCalculationService.formatCurrency(detail.agentProfit()),
-                    MultiFactoryInvoiceCalculationService.formatCurrency(detail.prepaymentRefundAmount()),
-                    MultiFactoryInvoiceCalculationService.formatCurrency(detail.overpriceRefundFromFactory())
-            };
-            tableModel.addRow(row);
+            RowKey key = new RowKey(detail.factoryName(), detail.productName());
+            // 先删除已不存在的工厂产品
+            while (position < data.size() && !newKeys.contains(RowKey.of(data.get(position)))) {
+                int row = position;
+                events.apply(TableModelEvent.DELETE, row, () -> data.remove(row));
+            }
+
+            Object[] values = tableRow(detail, productSituationList.get(i));
+            int row = position;
+            if (row == data.size() || !oldKeys.contains(key)) {
+                events.apply(TableModelEvent.INSERT, row, () -> data.add(row, new Vector<>(Arrays.asList(values))));
+            } else if (!Arrays.equals(data.get(row).toArray(), values)) {
+                // 同一工厂产品内容有变化；顺序调整过时原地改写
+                Vector<Object> rowData = data.get(row);
+                events.apply(TableModelEvent.UPDATE, row, () -> {
+                    for (int column = 0; column < values.length; column++) {
+                        rowData.set(column, values[column]);
+                    }
+                });
+            }
+            position++;
+        }
+        while (position < data.size()) {
+            int row = position;
+            events.apply(TableModelEvent.DELETE, row, () -> data.remove(row));
+        }
+        events.flush();
+    }
+
+    /**
+     * 表格行的标识：工厂名称和产品名称
+     */
+    private record RowKey(Object factoryName, Object productName) {
+        static RowKey of(Vector<?> rowData) {
+            return new RowKey(rowData.get(COLUMN_FACTORY_NAME), rowData.get(COLUMN_PRODUCT_NAME));
+        }
+    }
+
+    /**
+     * 把连续的同类行变更合并为一次表格事件：类型不同或行号不连续时先发出已合并的事件，再修改数据，
+     * 保证每个事件发出时数据模型恰好反映到该事件为止的修改
+     */
+    private static final class TableEventRun {
+        private final DefaultTableModel model;
+        private int type;
+        private int firstRow = -1;
+        private int lastRow = -1;
+
+        TableEventRun(DefaultTableModel model) {
+            this.model = model;
+        }
+
+        void apply(int changeType, int row, Runnable change) {
+            // 删除总在同一位置连续发生，插入和更新依次向后
+            boolean continues = firstRow >= 0 && changeType == type
+                    && row == (changeType == TableModelEvent.DELETE ? firstRow : lastRow + 1);
+            if (!continues) {
+                flush();
+                type = changeType;
+                firstRow = row;
+                lastRow = row - 1;
+            }
+            change.run();
+            lastRow++;
+        }
+
+        void flush() {
+            if (firstRow < 0) {
+                return;
+            }
+            switch (type) {
+                case TableModelEvent.INSERT -> model.fireTableRowsInserted(firstRow, lastRow);
+                case TableModelEvent.DELETE -> model.fireTableRowsDeleted(firstRow, lastRow);
+                default -> model.fireTableRowsUpdated(firstRow, lastRow);
+            }
+            firstRow = -1;
+        }
+    }
+
+    /**
+     * 表格中一行的数据（数值列为BigDecimal原值）
+     * 列：工厂名称, 产品名称, 退税率, 实际货值, 已预付金额, 税点, 开票金额, 退税金额, 代理利润, 工厂对公应退金额, 工厂对私应退金额
+     */
+    private Object[] tableRow(ProductCalculationDetail detail, ProductSituation prodSituation) {
+        return new Object[] {
+                detail.factoryName(),
+                detail.productName(),
+                prodSituation.taxRebateRate(),
+                detail.actualPurchaseAmount(),
+                prodSituation.prepaidAmount(),
+                prodSituation.taxPoint(),
+                detail.invoiceAmount(),
+                detail.taxRebateAmount(),
+                detail.agentProfit(),
+                detail.prepaymentRefundAmount(),
+                detail.overpriceRefundFromFactory()
+        };
+    }
+
+    /**
+     * 只刷新指定的行（行号升序）
+     */
+    @SuppressWarnings("unchecked")
+    private void refreshTableRows(int[] rows) {
+        List<ProductCalculationDetail> details = lastCalculationResult.productCalculationDetails();
+        for (int row : rows) {
+            Object[] values = tableRow(details.get(row), productSituationList.get(row));
+            Vector<Object> rowData = (Vector<Object>) tableModel.getDataVector().get(row);
+            for (int column = 0; column < values.length; column++) {
+                rowData.set(column, values[column]);
+            }
+        }
+        fireRowRangesUpdated(rows);
+    }
+
+    /**
+     * 对已修改的行（行号升序）发出更新事件，相邻的行合并为一次事件
+     */
+    private void fireRowRangesUpdated(int[] rows) {
+        int rangeStart = -1;
+        int rangeEnd = -1;
+        for (int row : rows) {
+            if (rangeStart < 0 || row != rangeEnd + 1) {
+                if (rangeStart >= 0) {
+                    tableModel.fireTableRowsUpdated(rangeStart, rangeEnd);
+                }
+                rangeStart = row;
+            }
+            rangeEnd = row;
+        }
+        if (rangeStart >= 0) {
+            tableModel.fireTableRowsUpdated(rangeStart, rangeEnd);
+        }
+    }
+
+    /**
+     * 修改实际货值、已预付金额或税点后增量重算，只刷新结果有变化的行
+     */
+    private void applyCellEdit(int row, int column, String text) {
+        ProductSituation prodSituation = productSituationList.get(row);
+        try {
+            BigDecimal actualPurchaseAmount = prodSituation.actualPurchaseAmount();
+            BigDecimal prepaidAmount = prodSituation.prepaidAmount();
+            BigDecimal taxPoint = prodSituation.taxPoint();
+            switch (column) {
+                case COLUMN_ACTUAL_PURCHASE_AMOUNT ->
+                        actualPurchaseAmount = MultiFactoryInvoiceCalculationService.parseBigDecimal(text, "实际货值");
+                case COLUMN_PREPAID_AMOUNT ->
+                        prepaidAmount = MultiFactoryInvoiceCalculationService.parseBigDecimal(text, "已预付金额");
+                case COLUMN_TAX_POINT ->
+                        taxPoint = MultiFactoryInvoiceCalculationService.percentageToDecimal(text.replace("%", ""), "税点");
+                default -> {
+                    return;
+                }
+            }
+            // 与加载时相同的规则校验修改后的行（负数金额、已预付金额大于实际货值、税点范围等）
+            ProductSituation updated = prodSituation.withAmounts(actualPurchaseAmount, prepaidAmount, taxPoint);
+            ProductSituationValidator validator = new ProductSituationValidator(excelFilePathField.getText(), null);
+            if (!validator.check(updated, row + 1)) {
+                throw new IllegalArgumentException(validator.problems().stream()
+                        .map(ValidationProblem::message)
+                        .collect(Collectors.joining("；")));
+            }
+
+            int[] changedRows = incrementalCalculation.updateRow(row, updated);
+            productSituationList.set(row, updated);
+            lastCalculationResult = incrementalCalculation.result();
+
+            // 被修改的行即使计算结果不变也要刷新，以统一显示格式
+            if (Arrays.binarySearch(changedRows, row) < 0) {
+                changedRows = IntStream.concat(Arrays.stream(changedRows),
+                        IntStream.of(row)).sorted().toArray();
+            }
+            refreshTableRows(changedRows);
+
+            displayCalculationResults(lastCalculationParams.salesAmount(), lastCalculationParams.exchangeRate(),
+                    lastCalculationParams.agentRelativeRatio(),
+                    lastCalculationParams.agentRelativeRatio().multiply(BigDecimal.valueOf(100)),
+                    lastCalculationResult.totalInvoiceAmount(),
+                    incrementalCalculation.factoryInvoicingToAgentTotalActualPurchaseAmount(), lastCalculationResult);
+            displayCashFlowDetails(lastCalculationResult.productCalculationDetails());
+        } catch (Exception e) {
+            // 恢复原值
+            refreshTableRows(new int[] {row});
+            JOptionPane.showMessageDialog(this,
+                    prodSituation.factoryName() + " - " + prodSituation.productName() + "修改失败：" + e.getMessage(),
+                    "错误", JOptionPane.ERROR_MESSAGE);
         }
     }
 
@@ -644,10 +1004,14 @@ public class MultiFactoryInvoiceCalculator extends JFrame {
         exchangeRateField.setText("7.1000");
         agentRelativeRatioField.setText("50");
         currencyComboBox.setSelectedIndex(0);
+        allocationModeComboBox.setSelectedItem(AllocationMode.PROPORTIONAL);
+        contractFormulaComboBox.setSelectedIndex(0);
     }
 
     private void clearAllData() {
         productSituationList.clear();
+        productSituationSources = List.of();
+        incrementalCalculation = null;
         tableModel.setRowCount(0);
         excelFilePathField.setText("");
         calculationResultArea.setText("");
@@ -657,7 +1021,7 @@ public class MultiFactoryInvoiceCalculator extends JFrame {
     }
     
     /**
-     * 导出计算结果到Excel文件
+     * 导出计算结果：一次遍历同时写出Excel和CSV（可选NDJSON运行记录），在后台线程中完成
      */
     private void exportCalculationResults() {
         if (lastCalculationResult == null) {
@@ -667,191 +1031,64 @@ public class MultiFactoryInvoiceCalculator extends JFrame {
         
         JFileChooser fileChooser = new JFileChooser();
         fileChooser.setDialogTitle("导出计算结果");
-        fileChooser.setFileFilter(new FileNameExtensionFilter("Excel文件 (*.xlsx)", "xlsx"));
+        fileChooser.setFileFilter(new FileNameExtensionFilter("Excel文件 (*.xlsx)，同时生成同名CSV文件", "xlsx"));
         fileChooser.setSelectedFile(new java.io.File("multi_factory_calculation_results.xlsx"));
+        JCheckBox ndjsonCheckBox = new JCheckBox("同时导出NDJSON运行记录");
+        JCheckBox gzipCheckBox = new JCheckBox("CSV/NDJSON压缩为.gz");
+        JPanel exportOptionPanel = new JPanel(new GridLayout(2, 1));
+        exportOptionPanel.add(ndjsonCheckBox);
+        exportOptionPanel.add(gzipCheckBox);
+        fileChooser.setAccessory(exportOptionPanel);
         
         if (fileChooser.showSaveDialog(this) == JFileChooser.APPROVE_OPTION) {
-            java.io.File selectedFile = fileChooser.getSelectedFile();
-            String filePath = selectedFile.getAbsolutePath();
-            if (!filePath.toLowerCase().endsWith(".xlsx")) {
-                filePath += ".xlsx";
-            }
-            
-            try {
-                exportToExcel(filePath);
-                JOptionPane.showMessageDialog(this, 
-                    "计算结果已成功导出到：\n" + filePath, 
-                    "导出成功", JOptionPane.INFORMATION_MESSAGE);
-            } catch (ExcelIOException | IOException e) {
-                JOptionPane.showMessageDialog(this, 
-                    "导出失败：" + e.getMessage(), 
-                    "错误", JOptionPane.ERROR_MESSAGE);
+            String filePath = fileChooser.getSelectedFile().getAbsolutePath();
+            if (filePath.toLowerCase().endsWith(".xlsx")) {
+                filePath = filePath.substring(0, filePath.length() - ".xlsx".length());
             }
-        }
-    }
-    
-    /**
-     * 将计算结果写入CSV文件
-     */
-    private void exportToCSV(String filePath) throws IOException {
-        try (BufferedWriter writer = new BufferedWriter(new FileWriter(filePath, java.nio.charset.StandardCharsets.UTF_8))) {
-            // Adding the BOM character that Excel needs for UTF-8
-            writer.write( '\uFEFF' );
-
-            // 写入CSV头部
-            writer.write("工厂名称,产品名称,退税率,实际货值,已预付金额,税点,同意开票给代理公司,可超额开票,");
-            writer.write("开票金额,退税金额,发货前代理公司须向工厂支付的金额,代理公司收到退税后应向工厂支付的余款金额,");
-            writer.write("扣税金额,对公退款金额,对私退款金额");
-            writer.newLine();
-
-            Map<String, Map<String, List<ProductSituation>>> prodSituationFactoryProductMap =
-                    productSituationList.stream().collect(
-                            groupingBy( ProductSituation::factoryName,
-                                    groupingBy( ProductSituation::productName )
-                            )
-                    );
-            
-            // 写入数据行
-            List<ProductCalculationDetail> details = lastCalculationResult.productCalculationDetails();
-//            for (int i = 0; i < details.size(); i++) {
-            for ( ProductCalculationDetail detail : details ) {
-//                ProductCalculationDetail detail = details.get(i);
-//                ProductSituation prodSituation = productSituationList.get(i);
-
-                // 按照实际业务逻辑，如下Map中每一个List中应该有且仅有1个ProductSituation对象element
-                String factoryName = detail.factoryName();
-                String productName = detail.productName();
-                ProductSituation prodSituation = prodSituationFactoryProductMap.get( factoryName ).get( productName ).getFirst();
-                
-                StringBuilder row = new StringBuilder();
-                row.append(escapeCSVField(factoryName)).append(",");
-                row.append(escapeCSVField(productName)).append(",");
-                row.append(formatCSVPercentage(prodSituation.taxRebateRate())).append(",");
-                row.append(formatCSVNumber(detail.actualPurchaseAmount())).append(",");
-                row.append(formatCSVNumber(prodSituation.prepaidAmount())).append(",");
-                row.append(formatCSVPercentage(prodSituation.taxPoint())).append(",");
-                row.append(prodSituation.agreeToInvoiceToAgent() ? "是" : "否").append(",");
-                row.append(prodSituation.ableToInvoiceWithOverprice() ? "是" : "否").append(",");
-                row.append(formatCSVNumber(detail.invoiceAmount())).append(",");
-                row.append(formatCSVNumber(detail.taxRebateAmount())).append(",");
-                row.append(formatCSVNumber(detail.agentBalanceToFactoryBeforeShipment())).append(",");
-                row.append(formatCSVNumber(detail.agentBalanceToFactoryAfterRebating())).append(",");
-                row.append(formatCSVNumber(detail.overpriceTax())).append(",");
-                row.append(formatCSVNumber(detail.prepaymentRefundAmount())).append(",");
-                row.append(formatCSVNumber(detail.overpriceRefundFromFactory()));
-                
-                writer.write(row.toString());
-                writer.newLine();
-            }
-        }
-    }
-    
-    /**
-     * 转义CSV字段中的特殊字符
-     */
-    private String escapeCSVField(String field) {
-        if (field == null) return "";
-        if (field.contains(",") || field.contains("\"") || field.contains("\n")) {
-            return "\"" + field.replace("\"", "\"\"") + "\"";
-        }
-        return field;
-    }
-    
-    /**
-     * 格式化CSV中的数字（去掉千位分隔符）
-     */
-    private String formatCSVNumber(BigDecimal number) {
-        if (number == null) return "0";
-        return number.setScale(2, RoundingMode.HALF_UP).toString();
-    }
-    
-    /**
-     * 格式化CSV中的百分比数字
-     */
-    private String formatCSVPercentage(BigDecimal percentage) {
-        if (percentage == null) return "0";
-        return percentage.multiply(BigDecimal.valueOf(100))
-                .setScale(2, RoundingMode.HALF_UP).toString() + "%";
-    }
-    
-    /**
-     * 将计算结果写入Excel文件（使用模板格式）
-     */
-    private void exportToExcel(String filePath) throws ExcelIOException, IOException {
-        // 使用ResourceUtil加载输出模板
-        try (InputStream templateStream = ResourceUtil.getInputStream(RESULT_TEMPLATE_FILE_RELATIVE_PATH)) {
-            
-            if (templateStream == null) {
-                throw new ExcelIOException("找不到输出模板文件: " + RESULT_TEMPLATE_FILE_RELATIVE_PATH);
-            }
-
-            // 创建构建数据集合的对象映射
-            Map<String, Map<String, List<ProductSituation>>> prodSituationFactoryProductMap =
-                    productSituationList.stream().collect(
-                            groupingBy(ProductSituation::factoryName,
-                                    groupingBy(ProductSituation::productName)
-                            )
-                    );
-
-            // 使用AlternatingRowsWriter写入数据
-            AlternatingRowsWriter writer = ExcelIO.alternatingRows(templateStream)
-//                    .encoding("UTF-8");
-                    .encoding( StandardCharsets.UTF_8 );
-
-            // 设置Sheet名称和表头
-            writer.sheet("多工厂分配结果")
-                    .header(
-                            ProductCalculationDetail.HEADER_FACTORY_NAME,
-                            ProductCalculationDetail.HEADER_PRODUCT_NAME,
-                            ProductCalculationDetail.HEADER_TAX_REBATE_RATE,
-                            ProductCalculationDetail.HEADER_ACTUAL_PURCHASE_AMOUNT,
-                            ProductCalculationDetail.HEADER_PREPAID_AMOUNT,
-                            ProductCalculationDetail.HEADER_TAX_POINT,
-                            ProductCalculationDetail.HEADER_AGREE_TO_INVOICE_AGENT,
-                            ProductCalculationDetail.HEADER_ABLE_TO_INVOICE_OVERPRICE,
-                            ProductCalculationDetail.HEADER_INVOICE_AMOUNT,
-                            ProductCalculationDetail.HEADER_TAX_REBATE_AMOUNT,
-                            ProductCalculationDetail.HEADER_AGENT_BALANCE_BEFORE_SHIPMENT,
-                            ProductCalculationDetail.HEADER_AGENT_BALANCE_AFTER_REBATING,
-                            ProductCalculationDetail.HEADER_OVERPRICE_TAX,
-                            ProductCalculationDetail.HEADER_PREPAYMENT_REFUND,
-                            ProductCalculationDetail.HEADER_OVERPRICE_REFUND
-                    );
-
-            // 填入数据行
-            List<ProductCalculationDetail> details = lastCalculationResult.productCalculationDetails();
-            for (ProductCalculationDetail detail : details) {
-                // 获取对应的ProductSituation数据
-                String factoryName = detail.factoryName();
-                String productName = detail.productName();
-                ProductSituation prodSituation = prodSituationFactoryProductMap
-                        .get(factoryName)
-                        .get(productName)
-                        .getFirst();
-
-                writer.row(
-                        factoryName,
-                        productName,
-//                        MultiFactoryInvoiceCalculationService.formatPercentage(prodSituation.taxRebateRate()),
-                        prodSituation.taxRebateRate(),
-                        detail.actualPurchaseAmount(),
-                        prodSituation.prepaidAmount(),
-//                        MultiFactoryInvoiceCalculationService.formatPercentage(prodSituation.taxPoint()),
-                        prodSituation.taxPoint(),
-                        prodSituation.agreeToInvoiceToAgent() ? "是" : "否",
-                        prodSituation.ableToInvoiceWithOverprice() ? "是" : "否",
-                        detail.invoiceAmount(),
-                        detail.taxRebateAmount(),
-                        detail.agentBalanceToFactoryBeforeShipment(),
-                        detail.agentBalanceToFactoryAfterRebating(),
-                        detail.overpriceTax(),
-                        detail.prepaymentRefundAmount(),
-                        detail.overpriceRefundFromFactory()
-                );
+            Path basePath = Path.of(filePath);
+            Set<CalculationResultExporter.Format> formats = EnumSet.of(
+                    CalculationResultExporter.Format.XLSX, CalculationResultExporter.Format.CSV);
+            if (ndjsonCheckBox.isSelected()) {
+                formats.add(CalculationResultExporter.Format.NDJSON);
             }
+            boolean gzipTextFormats = gzipCheckBox.isSelected();
+
+            // 导出期间表格仍可修改，按当前结果做快照
+            List<ProductSituation> situationsSnapshot = List.copyOf(productSituationList);
+            MultiProductCalculationResult resultSnapshot = lastCalculationResult;
+            exportButton.setEnabled(false);
+            long exportStartNanos = System.nanoTime();
+
+            new SwingWorker<List<Path>, Void>() {
+                @Override
+                protected List<Path> doInBackground() throws Exception {
+                    return CalculationResultExporter.export(basePath, formats, gzipTextFormats,
+                            situationsSnapshot, resultSnapshot);
+                }
 
-            // 保存文件
-            writer.saveAs(filePath);
+                @Override
+                protected void done() {
+                    // 导出耗时从确认导出算起，到后台写完为止
+                    EdtWatchdog.getInstance().record(EdtWatchdog.UiAction.EXPORT,
+                            TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - exportStartNanos));
+                    exportButton.setEnabled(lastCalculationResult != null);
+                    try {
+                        StringBuilder files = new StringBuilder();
+                        for (Path exportedFile : get()) {
+                            files.append("\n").append(exportedFile);
+                        }
+                        JOptionPane.showMessageDialog(MultiFactoryInvoiceCalculator.this,
+                                "计算结果已成功导出到：" + files,
+                                "导出成功", JOptionPane.INFORMATION_MESSAGE);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } catch (ExecutionException e) {
+                        JOptionPane.showMessageDialog(MultiFactoryInvoiceCalculator.this,
+                                "导出失败：" + e.getCause().getMessage(),
+                                "错误", JOptionPane.ERROR_MESSAGE);
+                    }
+                }
+            }.execute();
         }
     }
     
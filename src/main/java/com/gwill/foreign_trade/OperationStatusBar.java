@@ -0,0 +1,69 @@
+package com.gwill.foreign_trade;
+
+import javax.swing.*;
+import javax.swing.border.MatteBorder;
+import java.awt.*;
+import java.awt.event.MouseEvent;
+
+/**
+ * 窗口底部的状态栏：左侧显示上一次操作及耗时，右侧显示堆内存占用（每秒刷新）
+ * 鼠标停在状态栏上时显示各操作最近若干次耗时的分布
+ */
+public class OperationStatusBar extends JPanel {
+
+    private static final int HEAP_REFRESH_MILLIS = 1000;
+    private static final long BYTES_PER_MB = 1024 * 1024;
+
+    private final JLabel operationLabel = new JLabel("就绪");
+    private final JLabel heapLabel = new JLabel();
+
+    public OperationStatusBar() {
+        super(new BorderLayout());
+        setBorder(BorderFactory.createCompoundBorder(new MatteBorder(1, 0, 0, 0, Color.LIGHT_GRAY),
+                BorderFactory.createEmptyBorder(2, 8, 2, 8)));
+        operationLabel.setForeground(Color.DARK_GRAY);
+        heapLabel.setForeground(Color.DARK_GRAY);
+        add(operationLabel, BorderLayout.WEST);
+        add(heapLabel, BorderLayout.EAST);
+        // 提示文字在鼠标停留时由getToolTipText生成
+        setToolTipText("");
+
+        EdtWatchdog watchdog = EdtWatchdog.getInstance();
+        showOperation(watchdog.lastSample());
+        watchdog.addListener(sample -> {
+            if (SwingUtilities.isEventDispatchThread()) {
+                showOperation(sample);
+            } else {
+                SwingUtilities.invokeLater(() -> showOperation(sample));
+            }
+        });
+
+        refreshHeap();
+        new Timer(HEAP_REFRESH_MILLIS, _ -> refreshHeap()).start();
+    }
+
+    @Override
+    public String getToolTipText(MouseEvent event) {
+        StringBuilder text = new StringBuilder("<html>");
+        EdtWatchdog watchdog = EdtWatchdog.getInstance();
+        for (EdtWatchdog.UiAction action : EdtWatchdog.UiAction.values()) {
+            EdtWatchdog.LatencyStats stats = watchdog.stats(action);
+            if (stats != null) {
+                text.append(stats.describe()).append("<br>");
+            }
+        }
+        return text.length() == "<html>".length() ? "尚无操作耗时记录" : text.toString();
+    }
+
+    private void showOperation(EdtWatchdog.OperationSample sample) {
+        if (sample != null) {
+            operationLabel.setText(String.format("上次操作：%s  %,d ms", sample.action(), sample.elapsedMillis()));
+        }
+    }
+
+    private void refreshHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        long usedMb = (runtime.totalMemory() - runtime.freeMemory()) / BYTES_PER_MB;
+        heapLabel.setText(String.format("堆内存：%,d / %,d MB", usedMb, runtime.maxMemory() / BYTES_PER_MB));
+    }
+}
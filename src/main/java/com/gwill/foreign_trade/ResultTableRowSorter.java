@@ -0,0 +1,378 @@
+package com.gwill.foreign_trade;
+
+import javax.swing.RowFilter;
+import javax.swing.table.TableModel;
+import javax.swing.table.TableRowSorter;
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+
+/**
+ * 结果表格的排序及筛选器
+ * 数值列按预先建好的排名索引排序（每列一次排序得到各行名次，之后比较的都是整数名次），
+ * 工厂名称和产品名称建有前缀索引（名称排序后二分查找），按名称前缀筛选时不必逐行扫描字符串。
+ * 少量行被修改时就地更新这些行的名次和名称位置（二分查找新位置，只调整移动经过的一段）；
+ * 增删行、结构变化或大批行同时修改后，索引在下一次排序或筛选时重建
+ */
+class ResultTableRowSorter extends TableRowSorter<TableModel> {
+
+    // 一次更新超过此行数时不逐行调整，直接重建索引
+    private static final int INCREMENTAL_UPDATE_MAX_ROWS = 64;
+
+    private final int[] nameColumns;
+    private Index index;
+    private String namePrefix = "";
+
+    /**
+     * @param model 表格数据，数值列须为BigDecimal类型
+     * @param nameColumns 建前缀索引的名称列
+     */
+    ResultTableRowSorter(TableModel model, int... nameColumns) {
+        super(model);
+        this.nameColumns = nameColumns;
+        setModelWrapper(new RankedModelWrapper(getModelWrapper()));
+    }
+
+    /**
+     * 只显示工厂名称或产品名称以指定前缀开头的行，前缀为空时显示全部
+     */
+    void setNamePrefixFilter(String prefix) {
+        namePrefix = prefix == null ? "" : prefix.trim();
+        if (namePrefix.isEmpty()) {
+            setRowFilter(null);
+        } else {
+            setRowFilter(new RowFilter<TableModel, Integer>() {
+                @Override
+                public boolean include(Entry<? extends TableModel, ? extends Integer> entry) {
+                    return index().rowsWithNamePrefix(namePrefix).get(entry.getIdentifier());
+                }
+            });
+        }
+    }
+
+    @Override
+    public void modelStructureChanged() {
+        index = null;
+        super.modelStructureChanged();
+    }
+
+    @Override
+    public void allRowsChanged() {
+        index = null;
+        super.allRowsChanged();
+    }
+
+    @Override
+    public void rowsInserted(int firstRow, int endRow) {
+        index = null;
+        super.rowsInserted(firstRow, endRow);
+    }
+
+    @Override
+    public void rowsDeleted(int firstRow, int endRow) {
+        index = null;
+        super.rowsDeleted(firstRow, endRow);
+    }
+
+    @Override
+    public void rowsUpdated(int firstRow, int endRow) {
+        updateIndex(firstRow, endRow, -1);
+        super.rowsUpdated(firstRow, endRow);
+    }
+
+    @Override
+    public void rowsUpdated(int firstRow, int endRow, int column) {
+        updateIndex(firstRow, endRow, column);
+        super.rowsUpdated(firstRow, endRow, column);
+    }
+
+    /**
+     * 在排序器重新排序之前更新索引
+     * @param column 被修改的列，-1表示整行
+     */
+    private void updateIndex(int firstRow, int endRow, int column) {
+        if (index == null) {
+            return;
+        }
+        if (endRow - firstRow >= INCREMENTAL_UPDATE_MAX_ROWS || endRow >= getModel().getRowCount()) {
+            index = null;
+            return;
+        }
+        for (int row = firstRow; row <= endRow; row++) {
+            index.updateRow(getModel(), row, column);
+        }
+    }
+
+    private Index index() {
+        if (index == null) {
+            index = new Index(getModel(), nameColumns);
+        }
+        return index;
+    }
+
+    /**
+     * 排序时数值列取名次而不是原值
+     */
+    private class RankedModelWrapper extends ModelWrapper<TableModel, Integer> {
+
+        private final ModelWrapper<TableModel, Integer> delegate;
+
+        RankedModelWrapper(ModelWrapper<TableModel, Integer> delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public TableModel getModel() {
+            return delegate.getModel();
+        }
+
+        @Override
+        public int getColumnCount() {
+            return delegate.getColumnCount();
+        }
+
+        @Override
+        public int getRowCount() {
+            return delegate.getRowCount();
+        }
+
+        @Override
+        public Object getValueAt(int row, int column) {
+            if (getModel().getColumnClass(column) == BigDecimal.class) {
+                return index().rank(column, row);
+            }
+            return delegate.getValueAt(row, column);
+        }
+
+        @Override
+        public String getStringValueAt(int row, int column) {
+            return delegate.getStringValueAt(row, column);
+        }
+
+        @Override
+        public Integer getIdentifier(int row) {
+            return delegate.getIdentifier(row);
+        }
+    }
+
+    /**
+     * 排名索引和名称前缀索引
+     */
+    private static final class Index {
+
+        private final BigDecimal[][] values;    // values[列][行] = 建索引时（或上次更新后）的数值，非数值列为null
+        private final int[][] sortedRows;       // sortedRows[列] = 按该列数值升序排列的行号
+        private final int[][] positions;        // positions[列][行] = 该行在sortedRows[列]中的位置
+        private final int[][] ranks;            // ranks[列][行] = 该行在该列中的名次（数值相等的行名次相同）
+        private final int[] nameColumns;
+        private final String[][] names;         // names[k][行] = 第k个名称列的值
+        private final String[] sortedNames;     // 全部名称列的值，按字典序排列
+        private final int[] sortedNameRows;     // 与sortedNames一一对应的行号
+        private String lastPrefix;
+        private BitSet lastPrefixRows;
+
+        Index(TableModel model, int[] nameColumns) {
+            int rowCount = model.getRowCount();
+            int columnCount = model.getColumnCount();
+            values = new BigDecimal[columnCount][];
+            sortedRows = new int[columnCount][];
+            positions = new int[columnCount][];
+            ranks = new int[columnCount][];
+            for (int column = 0; column < columnCount; column++) {
+                if (model.getColumnClass(column) == BigDecimal.class) {
+                    rankColumn(model, column, rowCount);
+                }
+            }
+
+            this.nameColumns = nameColumns;
+            names = new String[nameColumns.length][rowCount];
+            Integer[] entries = new Integer[rowCount * nameColumns.length];
+            for (int k = 0; k < nameColumns.length; k++) {
+                for (int row = 0; row < rowCount; row++) {
+                    names[k][row] = nameAt(model, row, nameColumns[k]);
+                    entries[k * rowCount + row] = k * rowCount + row;
+                }
+            }
+            Arrays.sort(entries, Comparator.comparing(entry -> names[entry / rowCount][entry % rowCount]));
+            sortedNames = new String[entries.length];
+            sortedNameRows = new int[entries.length];
+            for (int i = 0; i < entries.length; i++) {
+                sortedNames[i] = names[entries[i] / rowCount][entries[i] % rowCount];
+                sortedNameRows[i] = entries[i] % rowCount;
+            }
+        }
+
+        private void rankColumn(TableModel model, int column, int rowCount) {
+            BigDecimal[] columnValues = new BigDecimal[rowCount];
+            Integer[] rows = new Integer[rowCount];
+            for (int row = 0; row < rowCount; row++) {
+                columnValues[row] = (BigDecimal) model.getValueAt(row, column);
+                rows[row] = row;
+            }
+            // 空值排在最前
+            Arrays.sort(rows, (a, b) -> compare(columnValues[a], columnValues[b]));
+            values[column] = columnValues;
+            sortedRows[column] = new int[rowCount];
+            positions[column] = new int[rowCount];
+            ranks[column] = new int[rowCount];
+            for (int i = 0; i < rowCount; i++) {
+                sortedRows[column][i] = rows[i];
+                positions[column][rows[i]] = i;
+            }
+            rerank(column, 0, rowCount - 1);
+        }
+
+        private static String nameAt(TableModel model, int row, int column) {
+            Object value = model.getValueAt(row, column);
+            return value == null ? "" : value.toString();
+        }
+
+        private static int compare(BigDecimal a, BigDecimal b) {
+            if (a == null || b == null) {
+                return Boolean.compare(a != null, b != null);
+            }
+            return a.compareTo(b);
+        }
+
+        int rank(int column, int row) {
+            return ranks[column][row];
+        }
+
+        /**
+         * 一行被修改后调整该行在各索引中的位置
+         * @param column 被修改的列，-1表示整行
+         */
+        void updateRow(TableModel model, int row, int column) {
+            for (int c = 0; c < values.length; c++) {
+                if (values[c] != null && (column < 0 || column == c)) {
+                    BigDecimal value = (BigDecimal) model.getValueAt(row, c);
+                    if (compare(value, values[c][row]) != 0) {
+                        moveRow(c, row, value);
+                    } else {
+                        values[c][row] = value;
+                    }
+                }
+            }
+            for (int k = 0; k < nameColumns.length; k++) {
+                if (column < 0 || column == nameColumns[k]) {
+                    String name = nameAt(model, row, nameColumns[k]);
+                    if (!name.equals(names[k][row])) {
+                        moveName(k, row, name);
+                    }
+                }
+            }
+        }
+
+        /**
+         * 把一行移到该列有序行号中的新位置，只重排移动经过的一段的位置和名次
+         */
+        private void moveRow(int column, int row, BigDecimal value) {
+            int[] sorted = sortedRows[column];
+            int[] columnPositions = positions[column];
+            BigDecimal[] columnValues = values[column];
+            int from = columnPositions[row];
+            System.arraycopy(sorted, from + 1, sorted, from, sorted.length - from - 1);
+
+            // 在其余行中二分查找第一个不小于新值的位置
+            int low = 0;
+            int high = sorted.length - 1;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (compare(columnValues[sorted[mid]], value) < 0) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            System.arraycopy(sorted, low, sorted, low + 1, sorted.length - low - 1);
+            sorted[low] = row;
+            columnValues[row] = value;
+
+            int first = Math.min(from, low);
+            int last = Math.max(from, low);
+            for (int i = first; i <= last; i++) {
+                columnPositions[sorted[i]] = i;
+            }
+            rerank(column, first, last);
+        }
+
+        /**
+         * 重新计算位置 first 至 last 之间各行的名次，两端连同与之数值相等的行一并处理
+         * 名次为数值相同的一组行中第一行的位置；移走的行原是某组第一行时，
+         * 该组在 last 之后的行名次也要改，一直处理到某组第一行的名次已等于其位置为止
+         */
+        private void rerank(int column, int first, int last) {
+            int[] sorted = sortedRows[column];
+            BigDecimal[] columnValues = values[column];
+            int[] columnRanks = ranks[column];
+            while (first > 0 && compare(columnValues[sorted[first - 1]], columnValues[sorted[first]]) == 0) {
+                first--;
+            }
+            for (int i = first; i < sorted.length; i++) {
+                boolean tied = i > first && compare(columnValues[sorted[i]], columnValues[sorted[i - 1]]) == 0;
+                int rank = tied ? columnRanks[sorted[i - 1]] : i;
+                if (i > last && !tied && columnRanks[sorted[i]] == rank) {
+                    break;
+                }
+                columnRanks[sorted[i]] = rank;
+            }
+        }
+
+        /**
+         * 把一行的名称从原位置移到字典序中的新位置
+         */
+        private void moveName(int k, int row, String name) {
+            String oldName = names[k][row];
+            int from = lowerBound(sortedNames, sortedNames.length, oldName);
+            while (sortedNameRows[from] != row) {
+                from++;
+            }
+            int length = sortedNames.length;
+            System.arraycopy(sortedNames, from + 1, sortedNames, from, length - from - 1);
+            System.arraycopy(sortedNameRows, from + 1, sortedNameRows, from, length - from - 1);
+            int to = lowerBound(sortedNames, length - 1, name);
+            System.arraycopy(sortedNames, to, sortedNames, to + 1, length - to - 1);
+            System.arraycopy(sortedNameRows, to, sortedNameRows, to + 1, length - to - 1);
+            sortedNames[to] = name;
+            sortedNameRows[to] = row;
+            names[k][row] = name;
+            lastPrefix = null;
+            lastPrefixRows = null;
+        }
+
+        /**
+         * 有序数组前 length 个元素中第一个不小于 key 的位置
+         */
+        private static int lowerBound(String[] sorted, int length, String key) {
+            int low = 0;
+            int high = length;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (sorted[mid].compareTo(key) < 0) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+
+        /**
+         * 名称以指定前缀开头的行：二分查找前缀在有序名称中的起点，向后取到不再匹配为止
+         */
+        BitSet rowsWithNamePrefix(String prefix) {
+            if (prefix.equals(lastPrefix)) {
+                return lastPrefixRows;
+            }
+            BitSet rows = new BitSet();
+            for (int i = lowerBound(sortedNames, sortedNames.length, prefix);
+                 i < sortedNames.length && sortedNames[i].startsWith(prefix); i++) {
+                rows.set(sortedNameRows[i]);
+            }
+            lastPrefix = prefix;
+            lastPrefixRows = rows;
+            return rows;
+        }
+    }
+}
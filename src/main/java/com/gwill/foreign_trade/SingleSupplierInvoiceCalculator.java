@@ -1,15 +1,29 @@
 package com.gwill.foreign_trade;
 
+import com.gwill.foreign_trade.io.AgentContractLoader;
+import com.gwill.foreign_trade.model.CalculationParams;
+import com.gwill.foreign_trade.model.CalculationResult;
+import com.gwill.foreign_trade.service.ContractFormula;
+import com.gwill.foreign_trade.service.MultiFactoryInvoiceCalculationService;
+
 import javax.swing.*;
 import javax.swing.border.TitledBorder;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
 import java.awt.*;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.FocusAdapter;
 import java.awt.event.FocusEvent;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
 import java.math.BigDecimal;
 import java.math.RoundingMode;
 import java.text.DecimalFormat;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * 外贸代理开票金额计算器
@@ -19,6 +33,8 @@ import java.text.DecimalFormat;
  * 简写为：X = (S × E) × (1+R) ÷ (1 + R × A)
  * 退税公式: T = X × R/(1+R)
  * 其中: S=销售金额(美元), E=汇率, R=退税率, A=代理分成比例, X=开票金额
+ * 公式由 MultiFactoryInvoiceCalculationService.calculateInvoiceAmount 按所选的合同公式统一计算。
+ * 勾选"实时计算"时，输入停顿片刻后即在后台线程重算，不必点击计算按钮
  */
 public class SingleSupplierInvoiceCalculator extends JFrame {
 
@@ -40,6 +56,9 @@ public class SingleSupplierInvoiceCalculator extends JFrame {
     private static final String DETAILED_RESULT_PANEL_KEY = "detailed";
     private static final String CONCISE_RESULT_PANEL_KEY = "concise";
 
+    // 实时计算：最后一次输入后等待的毫秒数
+    private static final int LIVE_CALCULATION_DELAY_MILLIS = 150;
+
     // GUI组件
     private JTextField purchaseAmountField;  // 采购金额
     private JTextField salesAmountField;     // 销售金额
@@ -58,6 +77,7 @@ public class SingleSupplierInvoiceCalculator extends JFrame {
     private JRadioButton relativeRatioRadioBtn;  // 相对分配率
     private JRadioButton absoluteRateRadioBtn;  // 绝对分配率
     private ButtonGroup rateTypeGroup;
+    private JComboBox<ContractFormula> contractFormulaComboBox;   // 合同公式
 
     // 显示模式控制
     private JPanel purchaseAmountPanel;              // 采购金额面板
@@ -71,6 +91,23 @@ public class SingleSupplierInvoiceCalculator extends JFrame {
     private JButton clearButton;
     private JButton multiFactoryButton;
 
+    // 实时计算
+    private JCheckBox liveCalculationCheckBox;
+    private JLabel liveCalculationStatusLabel;
+    private Timer liveCalculationTimer;
+    private final ExecutorService liveCalculationExecutor = Executors.newSingleThreadExecutor(
+            Thread.ofPlatform().daemon().name("live-calculation").factory());
+    // 每次输入变化时加一（只在scheduleLiveCalculation中），后台算完时编号已变的结果直接丢弃
+    private final AtomicLong liveCalculationGeneration = new AtomicLong();
+
+    // 各输入字段的解析器（字段名称和换算方式预先绑定，文本未变时不重复解析）
+    private final NumericInput purchaseAmountInput = new NumericInput("采购金额", false);
+    private final NumericInput salesAmountInput = new NumericInput("销售金额", false);
+    private final NumericInput exchangeRateInput = new NumericInput("汇率", false);
+    private final NumericInput taxRebateRateInput = new NumericInput("退税率", true);
+    private final NumericInput agentRelativeRatioInput = new NumericInput("相对分配率", false);
+    private final NumericInput agentAbsoluteRateInput = new NumericInput("绝对分配率", false);
+
     // 数字格式化器
     private DecimalFormat currencyFormat = new DecimalFormat("#,##0.00");
     private DecimalFormat percentFormat = new DecimalFormat("0.00%");
@@ -130,6 +167,12 @@ public class SingleSupplierInvoiceCalculator extends JFrame {
 
         add(mainPanel, BorderLayout.CENTER);
 
+        // 状态栏：上次操作耗时和堆内存
+        add(new OperationStatusBar(), BorderLayout.SOUTH);
+
+        // 输入变化时触发实时计算
+        registerLiveCalculationListeners();
+
         // 设置默认值
         setDefaultValues();
 
@@ -154,8 +197,8 @@ public class SingleSupplierInvoiceCalculator extends JFrame {
         modeGroup.add(detailedModeRadioBtn);
 
         // 添加事件监听器
-        conciseModeRadioBtn.addActionListener(_ -> toggleDisplayMode());
-        detailedModeRadioBtn.addActionListener(_ -> toggleDisplayMode());
+        conciseModeRadioBtn.addActionListener(_ -> onDisplayModeSelected());
+        detailedModeRadioBtn.addActionListener(_ -> onDisplayModeSelected());
 
         panel.add(conciseModeRadioBtn);
         panel.add(detailedModeRadioBtn);
@@ -256,8 +299,19 @@ public class SingleSupplierInvoiceCalculator extends JFrame {
         gbc.gridx = 2; gbc.fill = GridBagConstraints.NONE; gbc.weightx = 0.0;
         panel.add(new JLabel("%"), gbc);
 
+        // 合同公式行
+        gbc.gridx = 0; gbc.gridy = 2;
+        panel.add(new JLabel("合同公式:"), gbc);
+        gbc.gridx = 1; gbc.fill = GridBagConstraints.HORIZONTAL; gbc.weightx = 1.0;
+        // 合同定义文件有误时提示并只保留标准合同
+        contractFormulaComboBox = new JComboBox<>(AgentContractLoader.loadAvailableFormulas(message ->
+                JOptionPane.showMessageDialog(this, message, "警告", JOptionPane.WARNING_MESSAGE))
+                .toArray(new ContractFormula[0]));
+        panel.add(contractFormulaComboBox, gbc);
+        gbc.fill = GridBagConstraints.NONE; gbc.weightx = 0.0;
+
         // 添加说明标签
-        gbc.gridx = 0; gbc.gridy = 2; gbc.gridwidth = 3;
+        gbc.gridx = 0; gbc.gridy = 3; gbc.gridwidth = 3;
         gbc.fill = GridBagConstraints.HORIZONTAL;
         JLabel helpLabel = new JLabel("<html><small>" +
                 "• 相对分配率: 如输入50，表示代理获得退税金额的50%<br>" +
@@ -329,13 +383,58 @@ public class SingleSupplierInvoiceCalculator extends JFrame {
         multiFactoryButton.setPreferredSize(new Dimension(140, 30));
         multiFactoryButton.addActionListener( e -> switchToMultiFactoryCalculator() );
 
+        liveCalculationCheckBox = new JCheckBox("实时计算", true);
+        liveCalculationCheckBox.addActionListener(_ -> scheduleLiveCalculation());
+        liveCalculationStatusLabel = new JLabel();
+        liveCalculationStatusLabel.setForeground(Color.GRAY);
+
+        liveCalculationTimer = new Timer(LIVE_CALCULATION_DELAY_MILLIS, _ -> runLiveCalculation());
+        liveCalculationTimer.setRepeats(false);
+        // 关闭窗口时停止待执行的实时计算并关闭后台线程
+        addWindowListener(new WindowAdapter() {
+            @Override
+            public void windowClosing(WindowEvent e) {
+                liveCalculationTimer.stop();
+                liveCalculationExecutor.shutdownNow();
+            }
+        });
+
         panel.add(calculateButton);
         panel.add(clearButton);
         panel.add(multiFactoryButton);
+        panel.add(liveCalculationCheckBox);
+        panel.add(liveCalculationStatusLabel);
 
         return panel;
     }
 
+    private void registerLiveCalculationListeners () {
+        DocumentListener documentListener = new DocumentListener() {
+            @Override
+            public void insertUpdate(DocumentEvent e) {
+                scheduleLiveCalculation();
+            }
+
+            @Override
+            public void removeUpdate(DocumentEvent e) {
+                scheduleLiveCalculation();
+            }
+
+            @Override
+            public void changedUpdate(DocumentEvent e) {
+                scheduleLiveCalculation();
+            }
+        };
+        for (JTextField field : new JTextField[] {purchaseAmountField, salesAmountField, exchangeRateField,
+                taxRebateRateField, agentRelativeRatioField, agentAbsoluteRateField}) {
+            field.getDocument().addDocumentListener(documentListener);
+        }
+        relativeRatioRadioBtn.addActionListener(_ -> scheduleLiveCalculation());
+        absoluteRateRadioBtn.addActionListener(_ -> scheduleLiveCalculation());
+        currencyComboBox.addActionListener(_ -> scheduleLiveCalculation());
+        contractFormulaComboBox.addActionListener(_ -> scheduleLiveCalculation());
+    }
+
     private JPanel createResultPanel () {
         JPanel panel = new JPanel(new CardLayout());
 
@@ -388,6 +487,15 @@ public class SingleSupplierInvoiceCalculator extends JFrame {
         toggleDisplayMode();
     }
 
+    /**
+     * 用户点选显示模式，计入切换显示模式的耗时统计
+     */
+    private void onDisplayModeSelected () {
+        try (EdtWatchdog.Operation _ = EdtWatchdog.getInstance().begin(EdtWatchdog.UiAction.TOGGLE_MODE)) {
+            toggleDisplayMode();
+        }
+    }
+
     private void toggleDisplayMode () {
         boolean isDetailedMode = detailedModeRadioBtn.isSelected();
 
@@ -411,6 +519,8 @@ public class SingleSupplierInvoiceCalculator extends JFrame {
         // 重新布局
         revalidate();
         repaint();
+
+        scheduleLiveCalculation();
     }
 
     private void setDefaultValues () {
@@ -442,7 +552,7 @@ public class SingleSupplierInvoiceCalculator extends JFrame {
     private class CalculateButtonListener implements ActionListener {
         @Override
         public void actionPerformed ( ActionEvent e ) {
-            try {
+            try (EdtWatchdog.Operation _ = EdtWatchdog.getInstance().begin(EdtWatchdog.UiAction.CALCULATE)) {
                 calculateInvoiceAmount();
             } catch (Exception ex) {
                 JOptionPane.showMessageDialog( SingleSupplierInvoiceCalculator.this,
@@ -454,29 +564,96 @@ public class SingleSupplierInvoiceCalculator extends JFrame {
     }
 
     private void calculateInvoiceAmount () {
+        showCalculation(calculate(readInput()));
+    }
+
+    /**
+     * 输入停顿 LIVE_CALCULATION_DELAY_MILLIS 毫秒后再计算，连续输入时只算最后一次
+     */
+    private void scheduleLiveCalculation () {
+        if (liveCalculationCheckBox == null || !liveCalculationCheckBox.isSelected()) {
+            return;
+        }
+        // 正在后台进行的计算已过时
+        liveCalculationGeneration.incrementAndGet();
+        liveCalculationTimer.restart();
+    }
+
+    /**
+     * 在事件分发线程读取输入快照，在后台线程解析和计算，再回到事件分发线程显示
+     * 实时计算出错时不弹窗，只在按钮旁显示原因
+     */
+    private void runLiveCalculation () {
+        long startNanos = System.nanoTime();
+        CalculationInput input = readInput();
+        long generation = liveCalculationGeneration.get();
+        liveCalculationExecutor.execute(() -> {
+            SingleCalculation calculation = null;
+            String errorMessage = null;
+            try {
+                calculation = calculate(input);
+            } catch (IllegalArgumentException | ArithmeticException e) {
+                errorMessage = e.getMessage();
+            } catch (RuntimeException e) {
+                // 与点击计算按钮时一样显示出来，不让异常在后台线程中悄悄结束这次计算
+                errorMessage = "计算出错: " + e;
+            }
+            SingleCalculation finalCalculation = calculation;
+            String finalErrorMessage = errorMessage;
+            SwingUtilities.invokeLater(() -> {
+                if (generation != liveCalculationGeneration.get()) {
+                    return;
+                }
+                if (finalCalculation != null) {
+                    showCalculation(finalCalculation);
+                    liveCalculationStatusLabel.setText("");
+                    // 实时计算的耗时从开始计算算起，到显示出结果为止
+                    EdtWatchdog.getInstance().record(EdtWatchdog.UiAction.LIVE_CALCULATE,
+                            TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+                } else {
+                    detailedResultArea.setText("");
+                    conciseResultInvoiceAmountField.setText("");
+                    liveCalculationStatusLabel.setText(finalErrorMessage);
+                }
+            });
+        });
+    }
+
+    /**
+     * 读取界面输入的快照（须在事件分发线程调用）
+     */
+    private CalculationInput readInput () {
+        boolean relativeRatio = relativeRatioRadioBtn.isSelected();
+        return new CalculationInput(detailedModeRadioBtn.isSelected(), relativeRatio,
+                (ContractFormula) contractFormulaComboBox.getSelectedItem(),
+                purchaseAmountField.getText(), salesAmountField.getText(), exchangeRateField.getText(),
+                taxRebateRateField.getText(),
+                relativeRatio ? agentRelativeRatioField.getText() : agentAbsoluteRateField.getText());
+    }
+
+    /**
+     * 解析输入并计算，不访问界面组件，可在后台线程调用
+     */
+    private SingleCalculation calculate ( CalculationInput input ) {
         // 获取输入值
-        BigDecimal purchaseAmountInRMB = detailedModeRadioBtn.isSelected() ?
-                parseBigDecimal(purchaseAmountField.getText(), "采购金额") :
+        BigDecimal purchaseAmountInRMB = input.detailedMode() ?
+                purchaseAmountInput.parse(input.purchaseAmountText()) :
                 null;
-        BigDecimal salesAmount = parseBigDecimal(salesAmountField.getText(), "销售金额");
-        BigDecimal exchangeRate = parseBigDecimal(exchangeRateField.getText(), "汇率");
-        BigDecimal taxRebateRate = parseBigDecimal(taxRebateRateField.getText(), "退税率")
-                .divide(BigDecimal.valueOf(100), CALCULATION_PRECISION, ROUNDING_MODE);
+        BigDecimal salesAmount = salesAmountInput.parse(input.salesAmountText());
+        BigDecimal exchangeRate = exchangeRateInput.parse(input.exchangeRateText());
+        BigDecimal taxRebateRate = taxRebateRateInput.parse(input.taxRebateRateText());
 
         // 根据选择的分成方式获取对应的输入值
-        BigDecimal agentRateInput;
-        if (relativeRatioRadioBtn.isSelected()) {
-            agentRateInput = parseBigDecimal(agentRelativeRatioField.getText(), "相对分配率");
-        } else {
-            agentRateInput = parseBigDecimal(agentAbsoluteRateField.getText(), "绝对分配率");
-        }
+        BigDecimal agentRateInput = input.relativeRatio() ?
+                agentRelativeRatioInput.parse(input.agentRateText()) :
+                agentAbsoluteRateInput.parse(input.agentRateText());
 
         // 验证输入
-        validateInputs(purchaseAmountInRMB, salesAmount, exchangeRate, taxRebateRate, agentRateInput);
+        validateInputs(input.detailedMode(), purchaseAmountInRMB, salesAmount, exchangeRate, taxRebateRate, agentRateInput);
 
         // 计算代理分成比例
         BigDecimal agentRatio;
-        if ( relativeRatioRadioBtn.isSelected()) {
+        if (input.relativeRatio()) {
             // 相对分配率
             agentRatio = agentRateInput.divide(BigDecimal.valueOf(100), CALCULATION_PRECISION, ROUNDING_MODE);
             if (agentRatio.compareTo(BigDecimal.ZERO) < 0 || agentRatio.compareTo(BigDecimal.ONE) > 0) {
@@ -484,43 +661,40 @@ public class SingleSupplierInvoiceCalculator extends JFrame {
             }
         } else {
             // 绝对分配率
-            agentRatio = convertAbsoluteRateToRelativeRatio( taxRebateRate, agentRateInput );
+            agentRatio = MultiFactoryInvoiceCalculationService.convertAbsoluteRateToRelativeRatio( taxRebateRate, agentRateInput );
         }
 
-        // 验证分母不为零
-//        BigDecimal denominator = BigDecimal.ONE.subtract(
-//                taxRebateRate.multiply(BigDecimal.ONE.subtract(agentRatio))
-//        );
-        BigDecimal denominator = BigDecimal.ONE.add( taxRebateRate.multiply( agentRatio ) );
-        if (denominator.compareTo(BigDecimal.ZERO) == 0) {
-            throw new IllegalArgumentException("参数组合导致计算公式分母为0，计算无解！请调整代理分成比例，重新计算。");
+        // 开票金额、退税金额及代理利润
+        CalculationResult result = MultiFactoryInvoiceCalculationService.calculateInvoiceAmount(
+                new CalculationParams(salesAmount, exchangeRate, taxRebateRate, agentRatio), input.formula());
+
+        if (!input.detailedMode()) {
+            return new SingleCalculation(input, null, salesAmount, exchangeRate, taxRebateRate, agentRatio,
+                    agentRateInput, result, null, null, null);
         }
+        BigDecimal yourTotalIncomeInRMB = calculateYourTotalIncome( salesAmount, exchangeRate,
+                result.taxRebateAmount(), result.agentProfit() );
+        BigDecimal yourNetProfitInRMB = calculateYourNetProfit( purchaseAmountInRMB, salesAmount, exchangeRate,
+                result.taxRebateAmount(), result.agentProfit() );
+        BigDecimal yourGrossMarkup = yourNetProfitInRMB.divide( purchaseAmountInRMB, CALCULATION_PRECISION, ROUNDING_MODE )
+                .multiply( BigDecimal.valueOf(100) );
+        return new SingleCalculation(input, purchaseAmountInRMB, salesAmount, exchangeRate, taxRebateRate, agentRatio,
+                agentRateInput, result, yourTotalIncomeInRMB, yourNetProfitInRMB, yourGrossMarkup);
+    }
 
-//        // 计算开票金额: invoiceAmountInRMB = (salesAmount × exchangeRate) ÷ [1 - taxRebateRate × (1 - agentRatio)]
-//        BigDecimal clientPaymentInRMB = salesAmount.multiply(exchangeRate);
-//        BigDecimal invoiceAmountInRMB = clientPaymentInRMB.divide(denominator, CALCULATION_PRECISION, ROUNDING_MODE);
-        // 计算开票金额: invoiceAmountInRMB = (salesAmount × exchangeRate) × (1+taxRebateRate) ÷ (1 + taxRebateRate × agentRatio)
-        BigDecimal clientPaymentInRMB = salesAmount.multiply(exchangeRate);
-        BigDecimal numerator = clientPaymentInRMB.multiply( BigDecimal.ONE.add( taxRebateRate ) );
-        BigDecimal invoiceAmountInRMB = numerator.divide( denominator, CALCULATION_PRECISION, ROUNDING_MODE );
-
-        // 计算相关数值
-//        BigDecimal taxRebateAmountInRMB = invoiceAmountInRMB.multiply(taxRebateRate);
-        BigDecimal taxRebateAmountInRMB = invoiceAmountInRMB.multiply( taxRebateRate )
-                .divide( BigDecimal.ONE.add( taxRebateRate ), CALCULATION_PRECISION, ROUNDING_MODE );
-        BigDecimal agentProfitInRMB = taxRebateAmountInRMB.multiply(agentRatio);
-        // 显示结果
-        if (detailedModeRadioBtn.isSelected()) {
-            BigDecimal yourTotalIncomeInRMB = calculateYourTotalIncome( salesAmount, exchangeRate, taxRebateAmountInRMB, agentProfitInRMB );
-            BigDecimal yourNetProfitInRMB = calculateYourNetProfit( purchaseAmountInRMB, salesAmount, exchangeRate,
-                    taxRebateAmountInRMB, agentProfitInRMB );
-            BigDecimal yourGrossMarkup = yourNetProfitInRMB.divide( purchaseAmountInRMB, CALCULATION_PRECISION, ROUNDING_MODE )
-                    .multiply( BigDecimal.valueOf(100) );
-            displayDetailedResults(purchaseAmountInRMB, salesAmount, exchangeRate, taxRebateRate, agentRatio,
-                    agentRateInput, invoiceAmountInRMB, taxRebateAmountInRMB, agentProfitInRMB,
-                    clientPaymentInRMB, yourTotalIncomeInRMB, yourNetProfitInRMB, yourGrossMarkup);
+    /**
+     * 显示结果（须在事件分发线程调用）
+     */
+    private void showCalculation ( SingleCalculation calculation ) {
+        CalculationResult result = calculation.result();
+        if (calculation.input().detailedMode()) {
+            displayDetailedResults(calculation.purchaseAmountInRMB(), calculation.salesAmount(),
+                    calculation.exchangeRate(), calculation.taxRebateRate(), calculation.agentRatio(),
+                    calculation.agentRateInput(), result.invoiceAmount(), result.taxRebateAmount(),
+                    result.agentProfit(), result.clientPaymentInRMB(), calculation.yourTotalIncomeInRMB(),
+                    calculation.yourNetProfitInRMB(), calculation.yourGrossMarkup());
         } else {
-            displaySimpleResult(invoiceAmountInRMB);
+            displaySimpleResult(result.invoiceAmount());
         }
     }
 
@@ -562,10 +736,10 @@ public class SingleSupplierInvoiceCalculator extends JFrame {
         return yourNetProfitInRMB;
     }
 
-    private void validateInputs (
+    private void validateInputs ( boolean detailedMode,
             BigDecimal purchaseAmount, BigDecimal salesAmount, BigDecimal exchangeRate,
             BigDecimal taxRebateRate, BigDecimal agentRateInput ) {
-        if ( detailedModeRadioBtn.isSelected() ) {
+        if ( detailedMode ) {
             if ( purchaseAmount == null || purchaseAmount.compareTo( BigDecimal.ZERO ) <= 0 ) {
                 throw new IllegalArgumentException("采购金额必须大于0");
             }
@@ -581,38 +755,6 @@ public class SingleSupplierInvoiceCalculator extends JFrame {
             throw new IllegalArgumentException("代理分成率必须在0-100%之间");
     }
 
-    /**
-     * 将用户手工输入的分配给代理公司的绝对退税率换算成退税金额中分配给代理公司的相对分配率（百分比）。
-     * @param taxRebateRate 该款产品的海关退税率
-     * @param agentRateInput 用户手工输入的分配给代理公司的绝对退税率
-     * @return 退税金额中分配给代理公司的相对分配率（百分比）
-     */
-    private BigDecimal convertAbsoluteRateToRelativeRatio ( BigDecimal taxRebateRate, BigDecimal agentRateInput ) {
-        BigDecimal agentRate = agentRateInput.divide( BigDecimal.valueOf( 100 ), CALCULATION_PRECISION, ROUNDING_MODE );
-        if ( agentRate.compareTo( BigDecimal.ZERO ) < 0 || agentRate.compareTo( taxRebateRate ) > 0 ) {
-            String errorMsg = String.format( "代理分成绝对退税率必须在0-%.2f%%之间",
-                    taxRebateRate.multiply( BigDecimal.valueOf( 100 ) ).doubleValue() );
-            throw new IllegalArgumentException( errorMsg );
-        }
-        BigDecimal relativeAgentRatio = agentRate.divide( taxRebateRate, CALCULATION_PRECISION, ROUNDING_MODE );
-        return relativeAgentRatio;
-    }
-
-    private BigDecimal parseBigDecimal ( String text, String fieldName ) {
-        if (text == null || text.trim().isEmpty()) {
-            throw new IllegalArgumentException(fieldName + "不能为空");
-        }
-        try {
-            BigDecimal value = new BigDecimal( text.trim().replaceAll( ",", "" ) );
-            if ( value.scale() > CALCULATION_PRECISION ) {
-                value = value.setScale( CALCULATION_PRECISION, ROUNDING_MODE );
-            }
-            return value;
-        } catch (NumberFormatException e) {
-            throw new IllegalArgumentException(fieldName + "格式不正确！请输入数字！");
-        }
-    }
-
     private void displaySimpleResult ( BigDecimal invoiceAmountInRMB ) {
         conciseResultInvoiceAmountField.setText( currencyFormat.format( invoiceAmountInRMB ) );
     }
@@ -697,6 +839,67 @@ public class SingleSupplierInvoiceCalculator extends JFrame {
         } );
     }
 
+    /**
+     * 一次计算的输入快照
+     */
+    private record CalculationInput (
+            boolean detailedMode,
+            boolean relativeRatio,
+            ContractFormula formula,
+            String purchaseAmountText,
+            String salesAmountText,
+            String exchangeRateText,
+            String taxRebateRateText,
+            String agentRateText        // 相对分配率或绝对分配率，取决于 relativeRatio
+    ) {}
+
+    /**
+     * 一次计算的输入值和结果（简洁模式下采购金额及盈利分析为null）
+     */
+    private record SingleCalculation (
+            CalculationInput input,
+            BigDecimal purchaseAmountInRMB,
+            BigDecimal salesAmount,
+            BigDecimal exchangeRate,
+            BigDecimal taxRebateRate,
+            BigDecimal agentRatio,
+            BigDecimal agentRateInput,
+            CalculationResult result,
+            BigDecimal yourTotalIncomeInRMB,
+            BigDecimal yourNetProfitInRMB,
+            BigDecimal yourGrossMarkup
+    ) {}
+
+    /**
+     * 绑定了字段名称和换算方式的数值输入解析器
+     * 记住上一次解析的文本和结果，实时计算时未修改的字段不再重复解析
+     */
+    private static final class NumericInput {
+
+        private record Parsed(String text, BigDecimal value) {}
+
+        private final String fieldName;
+        private final boolean percentage;     // 按百分比输入，解析后换算为小数
+        private volatile Parsed last;
+
+        NumericInput(String fieldName, boolean percentage) {
+            this.fieldName = fieldName;
+            this.percentage = percentage;
+        }
+
+        BigDecimal parse(String text) {
+            Parsed cached = last;
+            if (cached != null && cached.text().equals(text)) {
+                return cached.value();
+            }
+            BigDecimal value = percentage ?
+                    MultiFactoryInvoiceCalculationService.percentageToDecimal(text, fieldName) :
+                    MultiFactoryInvoiceCalculationService.parseBigDecimal(text, fieldName);
+            last = new Parsed(text, value);
+            return value;
+        }
+    }
+
     public static void main ( String[] args ) {
         // 设置系统外观
         try {
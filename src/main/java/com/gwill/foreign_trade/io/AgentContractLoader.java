@@ -0,0 +1,122 @@
+package com.gwill.foreign_trade.io;
+
+import com.gwill.foreign_trade.model.AgentContract;
+import com.gwill.foreign_trade.service.ContractFormula;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.function.Consumer;
+
+/**
+ * 代理合同公式加载器
+ * 合同定义文件为UTF-8的properties文件，每个合同以一个键前缀区分，例如按开票金额1%收取代理费的合同：
+ * <pre>
+ * fee.name=按开票金额1%收取代理费
+ * fee.invoice=S * E * (1 + R) / (1 + 1% * (1 + R))
+ * fee.agentProfit=X * 1%
+ * </pre>
+ * 退税金额公式（.taxRebate）和代理利润公式（.agentProfit）未填写时沿用标准合同的公式；
+ * 其他后缀（包括拼写错误的后缀）视为配置错误，不会悄悄沿用标准合同的公式
+ */
+public final class AgentContractLoader {
+
+    /**
+     * 默认的合同定义文件，位于程序工作目录
+     */
+    public static final Path DEFAULT_CONTRACT_FILE = Path.of( "agent-contracts.properties" );
+
+    private static final String SUFFIX_NAME = ".name";
+    private static final String SUFFIX_INVOICE = ".invoice";
+    private static final String SUFFIX_TAX_REBATE = ".taxRebate";
+    private static final String SUFFIX_AGENT_PROFIT = ".agentProfit";
+    private static final Set<String> SUFFIXES = Set.of( SUFFIX_NAME, SUFFIX_INVOICE, SUFFIX_TAX_REBATE,
+            SUFFIX_AGENT_PROFIT );
+
+    private AgentContractLoader() {
+    }
+
+    /**
+     * 可选的全部合同：标准合同在前，其后为默认合同定义文件中的合同（文件不存在时只有标准合同）
+     */
+    public static List<AgentContract> loadAvailable() throws IOException {
+        List<AgentContract> contracts = new ArrayList<>();
+        contracts.add( AgentContract.STANDARD );
+        if ( Files.isRegularFile( DEFAULT_CONTRACT_FILE ) ) {
+            contracts.addAll( load( DEFAULT_CONTRACT_FILE ) );
+        }
+        return contracts;
+    }
+
+    /**
+     * 按名称查找可选的合同（供命令行入口使用）
+     * @param name 合同名称
+     * @throws IllegalArgumentException 没有该名称的合同
+     */
+    public static AgentContract findAvailable( String name ) throws IOException {
+        List<AgentContract> contracts = loadAvailable();
+        return contracts.stream()
+                .filter( contract -> contract.name().equals( name ) )
+                .findFirst()
+                .orElseThrow( () -> new IllegalArgumentException( String.format( "没有名为“%s”的代理合同，可选：%s", name,
+                        contracts.stream().map( AgentContract::name ).toList() ) ) );
+    }
+
+    /**
+     * 编译可选的全部合同公式，合同定义文件有误时通过warning提示并只保留标准合同
+     * @param warning 接收提示信息（界面上弹出警告框）
+     * @return 编译后的合同公式，标准合同在前
+     */
+    public static List<ContractFormula> loadAvailableFormulas( Consumer<String> warning ) {
+        try {
+            return loadAvailable().stream()
+                    .map( ContractFormula::compile )
+                    .toList();
+        } catch ( IOException | IllegalArgumentException e ) {
+            warning.accept( "合同公式加载失败，使用标准合同：" + e.getMessage() );
+            return List.of( ContractFormula.STANDARD );
+        }
+    }
+
+    /**
+     * 加载合同定义文件
+     * @param contractFile 合同定义文件路径
+     * @return 合同列表（按键前缀排序）
+     */
+    public static List<AgentContract> load( Path contractFile ) throws IOException {
+        Properties properties = new Properties();
+        try ( Reader reader = Files.newBufferedReader( contractFile, StandardCharsets.UTF_8 ) ) {
+            properties.load( reader );
+        }
+
+        TreeSet<String> keys = new TreeSet<>();
+        for ( String propertyName : properties.stringPropertyNames() ) {
+            int dot = propertyName.lastIndexOf( '.' );
+            if ( dot <= 0 || !SUFFIXES.contains( propertyName.substring( dot ) ) ) {
+                throw new IllegalArgumentException( contractFile + "：无法识别的配置项" + propertyName );
+            }
+            keys.add( propertyName.substring( 0, dot ) );
+        }
+
+        List<AgentContract> contracts = new ArrayList<>();
+        for ( String key : keys ) {
+            String invoiceFormula = properties.getProperty( key + SUFFIX_INVOICE );
+            if ( invoiceFormula == null || invoiceFormula.isBlank() ) {
+                throw new IllegalArgumentException( contractFile + "：合同" + key + "缺少开票金额公式（" + key + SUFFIX_INVOICE + "）" );
+            }
+            contracts.add( new AgentContract(
+                    properties.getProperty( key + SUFFIX_NAME, key ).trim(),
+                    invoiceFormula.trim(),
+                    properties.getProperty( key + SUFFIX_TAX_REBATE, AgentContract.STANDARD.taxRebateFormula() ).trim(),
+                    properties.getProperty( key + SUFFIX_AGENT_PROFIT, AgentContract.STANDARD.agentProfitFormula() ).trim() ) );
+        }
+        return contracts;
+    }
+}
@@ -0,0 +1,211 @@
+package com.gwill.foreign_trade.io;
+
+import com.gwill.foreign_trade.model.BatchOrderResult;
+import com.gwill.foreign_trade.model.OrderBookEntry;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigDecimal;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 批量任务的检查点日志
+ * 每完成一笔订单追加一行：清单序号、订单编号、输入内容哈希、结果摘要和导出的文件。重新运行同一批任务时，
+ * 同一序号、同一订单编号的订单输入哈希相同且导出文件都还在时直接沿用日志中的结果，只处理其余订单，中途失败的批量任务可以从断点继续。
+ * 输入哈希覆盖订单清单中该行的全部字段、所引用工厂数据文件的内容以及影响结果的运行参数（计算日期、汇率、导出格式），
+ * 其中任何一项变化都会重新计算。协调进程按当时的文件内容计算哈希以决定沿用哪些订单，
+ * 工作进程则对它实际解析的文件字节重新计算哈希并写入日志，处理期间文件被修改也不会记下与结果不符的哈希。
+ * 多个工作进程向同一个日志追加时以文件锁互斥，每行一次写入并刷到磁盘；进程在写一行时退出留下的不完整行在读取时忽略。
+ *
+ * 每行以制表符分隔，文本字段经URL编码：
+ * 清单序号 订单编号 输入哈希 货币 汇率 产品数 开票金额 退税金额 代理公司利润 您应分得的退税金额 您的净利润 工作进程 耗时 导出文件(以|分隔)
+ */
+public final class BatchJournal {
+
+    private static final String FIELD_SEPARATOR = "\t";
+    private static final String OUTPUT_FILE_SEPARATOR = "|";
+    private static final int FIELD_COUNT = 14;
+
+    private final Path file;
+
+    /**
+     * 日志中的一笔已完成订单
+     */
+    public record Entry( int sequence, String inputHash, BatchOrderResult result ) {}
+
+    /**
+     * 订单在日志中的键：清单序号加订单编号
+     */
+    public record Key( int sequence, String orderId ) {}
+
+    public BatchJournal( Path file ) {
+        this.file = file;
+    }
+
+    public Path file() {
+        return file;
+    }
+
+    /**
+     * 按文件当前的内容计算一笔订单的输入哈希（SHA-256），供协调进程决定沿用哪些订单
+     * @param entry 订单清单中的一行
+     * @param runParameters 影响计算结果的运行参数（如计算日期、汇率、导出格式）
+     * @return 十六进制哈希值
+     */
+    public static String inputHash( OrderBookEntry entry, String runParameters ) throws IOException {
+        MessageDigest digest = startInputHash( entry, runParameters );
+        byte[] buffer = new byte[GzipFiles.STREAM_BUFFER_SIZE];
+        for ( Path situationFile : entry.situationFiles() ) {
+            try ( InputStream input = Files.newInputStream( situationFile ) ) {
+                for ( int read = input.read( buffer ); read >= 0; read = input.read( buffer ) ) {
+                    digest.update( buffer, 0, read );
+                }
+            }
+            digest.update( (byte) '\n' );
+        }
+        return HexFormat.of().formatHex( digest.digest() );
+    }
+
+    /**
+     * 按已读入内存的工厂数据文件内容计算输入哈希，与 inputHash 对同样内容的结果相同
+     * @param situationFileContents 各工厂数据文件的内容（顺序与 entry.situationFiles() 一致，即工作进程实际解析的字节）
+     */
+    public static String inputHash( OrderBookEntry entry, String runParameters, List<byte[]> situationFileContents ) {
+        MessageDigest digest = startInputHash( entry, runParameters );
+        for ( byte[] content : situationFileContents ) {
+            digest.update( content );
+            digest.update( (byte) '\n' );
+        }
+        return HexFormat.of().formatHex( digest.digest() );
+    }
+
+    private static MessageDigest startInputHash( OrderBookEntry entry, String runParameters ) {
+        MessageDigest digest = newDigest();
+        for ( String field : new String[] { runParameters, entry.orderId(), entry.currency(),
+                entry.salesAmount().toPlainString(), entry.agentRelativeRatio().toPlainString() } ) {
+            digest.update( field.getBytes( StandardCharsets.UTF_8 ) );
+            digest.update( (byte) '\n' );
+        }
+        return digest;
+    }
+
+    /**
+     * 读取日志，同一订单出现多次时以最后一次为准
+     * @return （清单序号, 订单编号） -> 最近一次完成记录（日志不存在时为空）
+     */
+    public Map<Key, Entry> read() throws IOException {
+        Map<Key, Entry> entries = new HashMap<>();
+        if ( !Files.exists( file ) ) {
+            return entries;
+        }
+        try ( BufferedReader reader = Files.newBufferedReader( file, StandardCharsets.UTF_8 ) ) {
+            String line;
+            while ( ( line = reader.readLine() ) != null ) {
+                Entry entry = parse( line );
+                if ( entry != null ) {
+                    entries.put( new Key( entry.sequence(), entry.result().orderId() ), entry );
+                }
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * 追加一笔已完成订单（可由多个进程同时调用）
+     * @param sequence 订单在清单中的序号
+     */
+    public void append( int sequence, String inputHash, BatchOrderResult result ) throws IOException {
+        String line = String.join( FIELD_SEPARATOR,
+                Integer.toString( sequence ),
+                encode( result.orderId() ),
+                inputHash,
+                encode( result.currency() ),
+                result.exchangeRate().toPlainString(),
+                Integer.toString( result.productCount() ),
+                result.totalInvoiceAmount().toPlainString(),
+                result.totalTaxRebateAmount().toPlainString(),
+                result.totalAgentProfit().toPlainString(),
+                result.yourTotalTaxRebateShareAmount().toPlainString(),
+                result.yourNetProfit().toPlainString(),
+                encode( result.workerName() ),
+                Long.toString( result.elapsedMillis() ),
+                String.join( OUTPUT_FILE_SEPARATOR, result.outputFiles().stream().map( BatchJournal::encode ).toList() ) )
+                + "\n";
+
+        try ( FileChannel channel = FileChannel.open( file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND ) ) {
+            // 锁随通道关闭释放
+            channel.lock();
+            ByteBuffer bytes = ByteBuffer.wrap( line.getBytes( StandardCharsets.UTF_8 ) );
+            while ( bytes.hasRemaining() ) {
+                channel.write( bytes );
+            }
+            channel.force( false );
+        }
+    }
+
+    /**
+     * 解析一行，不完整或无法识别的行返回null
+     */
+    private static Entry parse( String line ) {
+        String[] fields = line.split( FIELD_SEPARATOR, -1 );
+        if ( fields.length != FIELD_COUNT ) {
+            return null;
+        }
+        try {
+            List<String> outputFiles = new ArrayList<>();
+            if ( !fields[13].isEmpty() ) {
+                for ( String outputFile : fields[13].split( "\\|" ) ) {
+                    outputFiles.add( decode( outputFile ) );
+                }
+            }
+            return new Entry( Integer.parseInt( fields[0] ), fields[2], new BatchOrderResult(
+                    decode( fields[1] ),
+                    decode( fields[3] ),
+                    new BigDecimal( fields[4] ),
+                    Integer.parseInt( fields[5] ),
+                    new BigDecimal( fields[6] ),
+                    new BigDecimal( fields[7] ),
+                    new BigDecimal( fields[8] ),
+                    new BigDecimal( fields[9] ),
+                    new BigDecimal( fields[10] ),
+                    List.copyOf( outputFiles ),
+                    decode( fields[11] ),
+                    Long.parseLong( fields[12] ),
+                    true ) );
+        } catch ( IllegalArgumentException e ) {
+            return null;
+        }
+    }
+
+    private static String encode( String text ) {
+        return URLEncoder.encode( text, StandardCharsets.UTF_8 );
+    }
+
+    private static String decode( String text ) {
+        return URLDecoder.decode( text, StandardCharsets.UTF_8 );
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance( "SHA-256" );
+        } catch ( NoSuchAlgorithmException e ) {
+            throw new IllegalStateException( "当前JVM不支持SHA-256", e );
+        }
+    }
+}
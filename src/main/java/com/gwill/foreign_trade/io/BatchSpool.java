@@ -0,0 +1,397 @@
+package com.gwill.foreign_trade.io;
+
+import com.gwill.foreign_trade.model.BatchOrderResult;
+import com.gwill.foreign_trade.model.OrderBookEntry;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+
+/**
+ * 多进程批量任务的共享缓冲目录
+ * 协调进程把每笔订单写成一个任务文件，按订单清单顺序分成连续的若干段放入各工作进程自己的队列目录；
+ * 工作进程先从自己队列的头部取任务，自己的队列取空后从剩余任务最多的队列尾部“窃取”任务。
+ * 取任务就是把任务文件原子改名到自己的处理中目录，同一任务只有一个进程能改名成功，进程之间不需要加锁或通信。
+ * 处理完的订单写出结果文件，失败的写出错误文件，结果文件先写临时文件再改名，不会被读到写了一半的内容。
+ *
+ * 目录结构：
+ * job.properties            批量任务参数
+ * queue/worker-NN/*.task    各工作进程待处理的任务
+ * running/worker-NN/*.task  正在处理的任务（进程异常退出时留在这里）
+ * done/*.result             已完成订单的结果摘要
+ * failed/*.error            处理失败的订单及原因
+ * logs/worker-NN.log        工作进程的输出
+ */
+public final class BatchSpool {
+
+    private static final String JOB_FILE = "job.properties";
+    private static final String QUEUE_DIRECTORY = "queue";
+    private static final String RUNNING_DIRECTORY = "running";
+    private static final String DONE_DIRECTORY = "done";
+    private static final String FAILED_DIRECTORY = "failed";
+    private static final String LOG_DIRECTORY = "logs";
+
+    private static final String TASK_SUFFIX = ".task";
+    private static final String RESULT_SUFFIX = ".result";
+    private static final String ERROR_SUFFIX = ".error";
+    private static final String WORKER_NAME_FORMAT = "worker-%02d";
+    private static final String TASK_NAME_FORMAT = "%08d";
+
+    private final Path directory;
+    private final int workerCount;
+
+    /**
+     * 工作进程取到的任务
+     * @param taskName 任务名（订单在清单中的序号，按名称排序即清单顺序）
+     * @param entry 订单清单中的一行
+     * @param stolen 是否从其他工作进程的队列中窃取
+     */
+    public record ClaimedTask( String taskName, OrderBookEntry entry, boolean stolen, Path runningFile ) {
+
+        /**
+         * 订单在清单中的序号（从0开始）
+         */
+        public int sequence() {
+            return Integer.parseInt( taskName );
+        }
+    }
+
+    /**
+     * 未完成的任务（工作进程退出时仍在队列中或处理中）
+     * @param workerIndex 任务所在队列或处理中目录所属的工作进程（从0开始）
+     * @param running 是否已被取走处理
+     */
+    public record UnfinishedTask( String taskName, String orderId, int workerIndex, boolean running ) {}
+
+    /**
+     * 处理失败的任务
+     */
+    public record FailedTask( String taskName, String orderId, String workerName, String message ) {}
+
+    private BatchSpool( Path directory, int workerCount ) {
+        this.directory = directory;
+        this.workerCount = workerCount;
+    }
+
+    /**
+     * 新建缓冲目录
+     * @param directory 缓冲目录（不存在或为空目录，应与工作进程位于同一台机器的本地磁盘）
+     * @param workerCount 工作进程数
+     */
+    public static BatchSpool create( Path directory, int workerCount ) throws IOException {
+        if ( workerCount <= 0 ) {
+            throw new IllegalArgumentException( "工作进程数必须大于0" );
+        }
+        Files.createDirectories( directory );
+        try ( Stream<Path> files = Files.list( directory ) ) {
+            if ( files.findAny().isPresent() ) {
+                throw new IllegalArgumentException( "缓冲目录不为空：" + directory );
+            }
+        }
+
+        BatchSpool spool = new BatchSpool( directory, workerCount );
+        for ( int worker = 0; worker < workerCount; worker++ ) {
+            Files.createDirectories( spool.queueDirectory( worker ) );
+            Files.createDirectories( spool.runningDirectory( worker ) );
+        }
+        Files.createDirectories( directory.resolve( DONE_DIRECTORY ) );
+        Files.createDirectories( directory.resolve( FAILED_DIRECTORY ) );
+        Files.createDirectories( directory.resolve( LOG_DIRECTORY ) );
+        return spool;
+    }
+
+    /**
+     * 打开已有的缓冲目录（工作进程使用）
+     */
+    public static BatchSpool open( Path directory ) throws IOException {
+        int workerCount;
+        try ( Stream<Path> queues = Files.list( directory.resolve( QUEUE_DIRECTORY ) ) ) {
+            workerCount = (int) queues.filter( Files::isDirectory ).count();
+        }
+        if ( workerCount == 0 ) {
+            throw new IllegalArgumentException( "不是批量任务的缓冲目录：" + directory );
+        }
+        return new BatchSpool( directory, workerCount );
+    }
+
+    public Path directory() {
+        return directory;
+    }
+
+    public int workerCount() {
+        return workerCount;
+    }
+
+    /**
+     * 订单在清单中的序号对应的任务名
+     */
+    public static String taskName( int sequence ) {
+        return String.format( TASK_NAME_FORMAT, sequence );
+    }
+
+    public static String workerName( int workerIndex ) {
+        return String.format( WORKER_NAME_FORMAT, workerIndex );
+    }
+
+    public Path logFile( int workerIndex ) {
+        return directory.resolve( LOG_DIRECTORY ).resolve( workerName( workerIndex ) + ".log" );
+    }
+
+    public void writeJob( Properties job ) throws IOException {
+        writeAtomically( directory.resolve( JOB_FILE ), job );
+    }
+
+    public Properties readJob() throws IOException {
+        return read( directory.resolve( JOB_FILE ) );
+    }
+
+    /**
+     * 把一笔订单放入指定工作进程的队列
+     * @param sequence 订单在清单中的序号（决定任务名和合并结果的顺序）
+     */
+    public void enqueue( int workerIndex, int sequence, OrderBookEntry entry ) throws IOException {
+        Properties task = new Properties();
+        task.setProperty( "lineNumber", Long.toString( entry.lineNumber() ) );
+        task.setProperty( "orderId", entry.orderId() );
+        task.setProperty( "currency", entry.currency() );
+        task.setProperty( "salesAmount", entry.salesAmount().toPlainString() );
+        task.setProperty( "agentRelativeRatio", entry.agentRelativeRatio().toPlainString() );
+        task.setProperty( "situationFileCount", Integer.toString( entry.situationFiles().size() ) );
+        for ( int i = 0; i < entry.situationFiles().size(); i++ ) {
+            task.setProperty( "situationFile." + i, entry.situationFiles().get( i ).toString() );
+        }
+        writeAtomically( queueDirectory( workerIndex ).resolve( taskName( sequence ) + TASK_SUFFIX ), task );
+    }
+
+    /**
+     * 取一个任务：先取自己队列中序号最小的任务，自己的队列为空时从剩余任务最多的队列中窃取序号最大的任务
+     * @return 取到的任务，全部队列都为空时返回空
+     */
+    public Optional<ClaimedTask> claim( int workerIndex ) throws IOException {
+        while ( true ) {
+            List<Path> ownTasks = listTasks( queueDirectory( workerIndex ) );
+            boolean stolen = false;
+            List<Path> candidates = ownTasks;
+            if ( ownTasks.isEmpty() ) {
+                stolen = true;
+                candidates = List.of();
+                for ( int victim = 0; victim < workerCount; victim++ ) {
+                    if ( victim == workerIndex ) {
+                        continue;
+                    }
+                    List<Path> victimTasks = listTasks( queueDirectory( victim ) );
+                    if ( victimTasks.size() > candidates.size() ) {
+                        candidates = victimTasks.reversed();
+                    }
+                }
+                if ( candidates.isEmpty() ) {
+                    return Optional.empty();
+                }
+            }
+
+            for ( Path task : candidates ) {
+                Path runningFile = runningDirectory( workerIndex ).resolve( task.getFileName() );
+                try {
+                    // 同一任务文件只有一个进程能改名成功
+                    Files.move( task, runningFile, StandardCopyOption.ATOMIC_MOVE );
+                } catch ( NoSuchFileException e ) {
+                    continue; // 已被其他进程取走
+                }
+                String fileName = runningFile.getFileName().toString();
+                String taskName = fileName.substring( 0, fileName.length() - TASK_SUFFIX.length() );
+                Properties properties = read( runningFile );
+                return Optional.of( new ClaimedTask( taskName, toEntry( properties ), stolen, runningFile ) );
+            }
+            // 列出的任务都已被其他进程取走，重新查看各队列
+        }
+    }
+
+    /**
+     * 记录订单处理完成
+     */
+    public void complete( ClaimedTask task, BatchOrderResult result ) throws IOException {
+        Properties properties = new Properties();
+        properties.setProperty( "orderId", result.orderId() );
+        properties.setProperty( "currency", result.currency() );
+        properties.setProperty( "exchangeRate", result.exchangeRate().toPlainString() );
+        properties.setProperty( "productCount", Integer.toString( result.productCount() ) );
+        properties.setProperty( "totalInvoiceAmount", result.totalInvoiceAmount().toPlainString() );
+        properties.setProperty( "totalTaxRebateAmount", result.totalTaxRebateAmount().toPlainString() );
+        properties.setProperty( "totalAgentProfit", result.totalAgentProfit().toPlainString() );
+        properties.setProperty( "yourTotalTaxRebateShareAmount", result.yourTotalTaxRebateShareAmount().toPlainString() );
+        properties.setProperty( "yourNetProfit", result.yourNetProfit().toPlainString() );
+        properties.setProperty( "outputFiles", String.join( "\n", result.outputFiles() ) );
+        properties.setProperty( "workerName", result.workerName() );
+        properties.setProperty( "elapsedMillis", Long.toString( result.elapsedMillis() ) );
+        writeAtomically( directory.resolve( DONE_DIRECTORY ).resolve( task.taskName() + RESULT_SUFFIX ), properties );
+        Files.delete( task.runningFile() );
+    }
+
+    /**
+     * 记录订单处理失败
+     */
+    public void fail( ClaimedTask task, String workerName, String message ) throws IOException {
+        Properties properties = new Properties();
+        properties.setProperty( "orderId", task.entry().orderId() );
+        properties.setProperty( "workerName", workerName );
+        properties.setProperty( "message", message == null ? "" : message );
+        writeAtomically( directory.resolve( FAILED_DIRECTORY ).resolve( task.taskName() + ERROR_SUFFIX ), properties );
+        Files.delete( task.runningFile() );
+    }
+
+    /**
+     * 已完成订单的结果
+     * @return 任务名 -> 结果，按任务名（订单清单顺序）排列
+     */
+    public Map<String, BatchOrderResult> readResults() throws IOException {
+        Map<String, BatchOrderResult> results = new TreeMap<>();
+        for ( Path file : listFiles( directory.resolve( DONE_DIRECTORY ), RESULT_SUFFIX ) ) {
+            Properties properties = read( file );
+            String outputFiles = properties.getProperty( "outputFiles" );
+            String fileName = file.getFileName().toString();
+            results.put( fileName.substring( 0, fileName.length() - RESULT_SUFFIX.length() ), new BatchOrderResult(
+                    properties.getProperty( "orderId" ),
+                    properties.getProperty( "currency" ),
+                    new BigDecimal( properties.getProperty( "exchangeRate" ) ),
+                    Integer.parseInt( properties.getProperty( "productCount" ) ),
+                    new BigDecimal( properties.getProperty( "totalInvoiceAmount" ) ),
+                    new BigDecimal( properties.getProperty( "totalTaxRebateAmount" ) ),
+                    new BigDecimal( properties.getProperty( "totalAgentProfit" ) ),
+                    new BigDecimal( properties.getProperty( "yourTotalTaxRebateShareAmount" ) ),
+                    new BigDecimal( properties.getProperty( "yourNetProfit" ) ),
+                    outputFiles.isEmpty() ? List.of() : List.of( outputFiles.split( "\n" ) ),
+                    properties.getProperty( "workerName" ),
+                    Long.parseLong( properties.getProperty( "elapsedMillis" ) ),
+                    false ) );
+        }
+        return results;
+    }
+
+    /**
+     * 处理失败的任务，按任务名（订单清单顺序）排列
+     */
+    public List<FailedTask> readFailures() throws IOException {
+        List<FailedTask> failures = new ArrayList<>();
+        for ( Path file : listFiles( directory.resolve( FAILED_DIRECTORY ), ERROR_SUFFIX ) ) {
+            Properties properties = read( file );
+            String fileName = file.getFileName().toString();
+            failures.add( new FailedTask( fileName.substring( 0, fileName.length() - ERROR_SUFFIX.length() ),
+                    properties.getProperty( "orderId" ), properties.getProperty( "workerName" ),
+                    properties.getProperty( "message" ) ) );
+        }
+        return failures;
+    }
+
+    /**
+     * 仍在队列中或处理中的任务（全部工作进程退出后调用，结果非空说明有进程异常退出）
+     */
+    public List<UnfinishedTask> unfinishedTasks() throws IOException {
+        List<UnfinishedTask> unfinished = new ArrayList<>();
+        for ( int worker = 0; worker < workerCount; worker++ ) {
+            for ( Path file : listTasks( runningDirectory( worker ) ) ) {
+                unfinished.add( unfinishedTask( file, worker, true ) );
+            }
+            for ( Path file : listTasks( queueDirectory( worker ) ) ) {
+                unfinished.add( unfinishedTask( file, worker, false ) );
+            }
+        }
+        return unfinished;
+    }
+
+    /**
+     * 删除整个缓冲目录（批量任务全部成功后调用）
+     */
+    public void delete() throws IOException {
+        try ( Stream<Path> files = Files.walk( directory ) ) {
+            for ( Path file : files.sorted( Comparator.reverseOrder() ).toList() ) {
+                Files.delete( file );
+            }
+        }
+    }
+
+    private UnfinishedTask unfinishedTask( Path file, int workerIndex, boolean running ) throws IOException {
+        String fileName = file.getFileName().toString();
+        return new UnfinishedTask( fileName.substring( 0, fileName.length() - TASK_SUFFIX.length() ),
+                read( file ).getProperty( "orderId" ), workerIndex, running );
+    }
+
+    private static OrderBookEntry toEntry( Properties task ) {
+        int situationFileCount = Integer.parseInt( task.getProperty( "situationFileCount" ) );
+        List<Path> situationFiles = new ArrayList<>( situationFileCount );
+        for ( int i = 0; i < situationFileCount; i++ ) {
+            situationFiles.add( Path.of( task.getProperty( "situationFile." + i ) ) );
+        }
+        return new OrderBookEntry(
+                Long.parseLong( task.getProperty( "lineNumber" ) ),
+                task.getProperty( "orderId" ),
+                task.getProperty( "currency" ),
+                new BigDecimal( task.getProperty( "salesAmount" ) ),
+                new BigDecimal( task.getProperty( "agentRelativeRatio" ) ),
+                List.copyOf( situationFiles ) );
+    }
+
+    private Path queueDirectory( int workerIndex ) {
+        return directory.resolve( QUEUE_DIRECTORY ).resolve( workerName( workerIndex ) );
+    }
+
+    private Path runningDirectory( int workerIndex ) {
+        return directory.resolve( RUNNING_DIRECTORY ).resolve( workerName( workerIndex ) );
+    }
+
+    private static List<Path> listTasks( Path directory ) throws IOException {
+        return listFiles( directory, TASK_SUFFIX );
+    }
+
+    /**
+     * 列出目录中指定后缀的文件，按文件名排序（忽略以.开头的临时文件）
+     */
+    private static List<Path> listFiles( Path directory, String suffix ) throws IOException {
+        try ( Stream<Path> files = Files.list( directory ) ) {
+            Path[] matched = files.filter( file -> {
+                String fileName = file.getFileName().toString();
+                return fileName.endsWith( suffix ) && !fileName.startsWith( "." );
+            } ).toArray( Path[]::new );
+            Arrays.sort( matched );
+            return Arrays.asList( matched );
+        }
+    }
+
+    private static Properties read( Path file ) throws IOException {
+        Properties properties = new Properties();
+        try ( BufferedReader reader = Files.newBufferedReader( file, StandardCharsets.UTF_8 ) ) {
+            properties.load( reader );
+        }
+        return properties;
+    }
+
+    /**
+     * 先写同目录下的临时文件再原子改名，其他进程只会看到完整的文件
+     */
+    private static void writeAtomically( Path file, Properties properties ) throws IOException {
+        Path tempFile = Files.createTempFile( file.getParent(), "." + file.getFileName(), ".tmp" );
+        try {
+            try ( BufferedWriter writer = Files.newBufferedWriter( tempFile, StandardCharsets.UTF_8 ) ) {
+                properties.store( writer, null );
+            }
+            Files.move( tempFile, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING );
+        } catch ( IOException | RuntimeException e ) {
+            Files.deleteIfExists( tempFile );
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,670 @@
+package com.gwill.foreign_trade.io;
+
+import com.gwill.foreign_trade.model.BatchOrderFailure;
+import com.gwill.foreign_trade.model.BatchOrderResult;
+import com.gwill.foreign_trade.model.BatchRunSummary;
+import com.gwill.foreign_trade.model.CashFlowProjection;
+import com.gwill.foreign_trade.model.LedgerRollup;
+import com.gwill.foreign_trade.model.MultiProductCalculationResult;
+import com.gwill.foreign_trade.model.NetProfitDistribution;
+import com.gwill.foreign_trade.model.ProductCalculationDetail;
+import com.gwill.foreign_trade.model.ProductSituation;
+import com.gwill.io.excel.AlternatingRowsWriter;
+import com.gwill.io.excel.ExcelIO;
+import com.gwill.io.excel.ExcelIOException;
+import com.gwill.io.excel.util.ResourceUtil;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 多工厂计算结果导出器
+ * 一次遍历计算结果，同时写出Excel、CSV及可选的NDJSON运行记录（CSV和NDJSON可直接写为.gz压缩文件）：遍历线程把每一行放入各格式的队列，
+ * 每种格式一个虚拟线程各自格式化并写入同目录下的临时文件；全部格式写完后才改名为目标文件，
+ * 任一格式写入失败则删除全部临时文件，改名途中失败则撤回已改名的文件并恢复原有的目标文件，
+ * 不会留下写了一半的结果文件，也不会只替换了其中一部分格式
+ */
+public final class CalculationResultExporter {
+
+    // 输出模板文件
+    public static final String RESULT_TEMPLATE_FILE_RELATIVE_PATH = "formatted_templates/multi_factory_calculation_results_alternating_rows_template.xlsx";
+    public static final String RESULT_SHEET_NAME = "多工厂分配结果";
+
+    // 每种格式的待写队列长度
+    private static final int QUEUE_CAPACITY = 1024;
+    // 遍历线程在队列已满时检查写入线程是否已失败的间隔
+    private static final long OFFER_TIMEOUT_MILLIS = 100;
+    // 风险模拟报告列出的百分位
+    private static final int[] DISTRIBUTION_PERCENTILES = { 1, 5, 10, 25, 50, 75, 90, 95, 99 };
+
+    /**
+     * 导出格式
+     */
+    public enum Format {
+        XLSX( "xlsx" ),
+        CSV( "csv" ),
+        NDJSON( "ndjson" );
+
+        private final String extension;
+
+        Format( String extension ) {
+            this.extension = extension;
+        }
+
+        public String getExtension() {
+            return extension;
+        }
+    }
+
+    /**
+     * 逐行提供导出数据（如分块计算时边算边导出），不必先把全部计算详情放在内存中
+     */
+    @FunctionalInterface
+    public interface RowSource {
+        void forEachRow( RowConsumer consumer ) throws ExcelIOException, IOException;
+    }
+
+    /**
+     * 接收一行导出数据
+     */
+    @FunctionalInterface
+    public interface RowConsumer {
+        void accept( ProductSituation prodSituation, ProductCalculationDetail detail ) throws ExcelIOException, IOException;
+    }
+
+    // 队列中的一行，END表示结果已遍历完
+    private record ExportRow( ProductSituation prodSituation, ProductCalculationDetail detail ) {}
+
+    private static final ExportRow END = new ExportRow( null, null );
+
+    private CalculationResultExporter() {
+    }
+
+    /**
+     * 导出计算结果
+     * @param basePath 输出路径（不含扩展名），各格式以各自的扩展名写在同一目录下
+     * @param formats 要导出的格式
+     * @param productSituationList 产品信息列表（与计算详情一一对应）
+     * @param result 计算结果
+     * @return 写出的文件，顺序同 Format 的声明顺序
+     */
+    public static List<Path> export( Path basePath, Set<Format> formats, List<ProductSituation> productSituationList,
+                                     MultiProductCalculationResult result ) throws ExcelIOException, IOException {
+        return export( basePath, formats, false, productSituationList, result );
+    }
+
+    /**
+     * 导出计算结果，可选将CSV和NDJSON边写边压缩为.gz文件（xlsx本身已是压缩格式，不再压缩）
+     * @param basePath 输出路径（不含扩展名），各格式以各自的扩展名写在同一目录下
+     * @param formats 要导出的格式
+     * @param gzipTextFormats CSV和NDJSON是否写为.gz文件
+     * @param productSituationList 产品信息列表（与计算详情一一对应）
+     * @param result 计算结果
+     * @return 写出的文件，顺序同 Format 的声明顺序
+     */
+    public static List<Path> export( Path basePath, Set<Format> formats, boolean gzipTextFormats,
+                                     List<ProductSituation> productSituationList,
+                                     MultiProductCalculationResult result ) throws ExcelIOException, IOException {
+        List<ProductCalculationDetail> details = result.productCalculationDetails();
+        if ( details.size() != productSituationList.size() ) {
+            throw new IllegalArgumentException( "计算结果与产品信息的行数不一致！" );
+        }
+        return export( basePath, formats, gzipTextFormats, consumer -> {
+            for ( int i = 0; i < details.size(); i++ ) {
+                consumer.accept( productSituationList.get( i ), details.get( i ) );
+            }
+        } );
+    }
+
+    /**
+     * 导出逐行提供的计算结果，写出方式与导出完整结果相同
+     * @param basePath 输出路径（不含扩展名），各格式以各自的扩展名写在同一目录下
+     * @param formats 要导出的格式
+     * @param gzipTextFormats CSV和NDJSON是否写为.gz文件
+     * @param rows 导出数据（只遍历一次）
+     * @return 写出的文件，顺序同 Format 的声明顺序
+     */
+    public static List<Path> export( Path basePath, Set<Format> formats, boolean gzipTextFormats, RowSource rows )
+            throws ExcelIOException, IOException {
+        Path directory = basePath.toAbsolutePath().getParent();
+        String baseName = basePath.getFileName().toString();
+        List<Format> orderedFormats = new ArrayList<>( EnumSet.copyOf( formats ) );
+        List<Path> tempFiles = new ArrayList<>();
+        List<Path> targetFiles = new ArrayList<>();
+
+        try ( ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor() ) {
+            List<BlockingQueue<ExportRow>> queues = new ArrayList<>();
+            List<Future<Void>> writers = new ArrayList<>();
+            try {
+                for ( Format format : orderedFormats ) {
+                    String extension = "." + format.getExtension();
+                    if ( gzipTextFormats && format != Format.XLSX ) {
+                        extension += GzipFiles.GZIP_SUFFIX;
+                    }
+                    Path tempFile = Files.createTempFile( directory, "." + baseName + "-", extension );
+                    tempFiles.add( tempFile );
+                    targetFiles.add( directory.resolve( baseName + extension ) );
+
+                    BlockingQueue<ExportRow> queue = new ArrayBlockingQueue<>( QUEUE_CAPACITY );
+                    queues.add( queue );
+                    writers.add( executor.submit( () -> {
+                        switch ( format ) {
+                            case XLSX -> writeXlsx( queue, tempFile );
+                            case CSV -> writeCsv( queue, tempFile );
+                            case NDJSON -> writeNdjson( queue, tempFile );
+                        }
+                        return null;
+                    } ) );
+                }
+
+                // 只遍历一次结果
+                rows.forEachRow( ( prodSituation, detail ) -> {
+                    ExportRow row = new ExportRow( prodSituation, detail );
+                    for ( int k = 0; k < queues.size(); k++ ) {
+                        putRow( queues.get( k ), row, writers.get( k ) );
+                    }
+                } );
+                for ( int k = 0; k < queues.size(); k++ ) {
+                    putRow( queues.get( k ), END, writers.get( k ) );
+                }
+                for ( Future<Void> writer : writers ) {
+                    awaitTask( writer );
+                }
+
+                moveAllAtomically( tempFiles, targetFiles );
+                return targetFiles;
+            } catch ( Exception e ) {
+                executor.shutdownNow();
+                for ( Path tempFile : tempFiles ) {
+                    Files.deleteIfExists( tempFile );
+                }
+                throw e;
+            }
+        }
+    }
+
+    private static void writeXlsx( BlockingQueue<ExportRow> queue, Path tempFile )
+            throws ExcelIOException, IOException, InterruptedException {
+        try ( InputStream templateStream = ResourceUtil.getInputStream( RESULT_TEMPLATE_FILE_RELATIVE_PATH ) ) {
+            if ( templateStream == null ) {
+                throw new ExcelIOException( "找不到输出模板文件: " + RESULT_TEMPLATE_FILE_RELATIVE_PATH );
+            }
+
+            AlternatingRowsWriter writer = ExcelIO.alternatingRows( templateStream )
+                    .encoding( StandardCharsets.UTF_8 );
+            writer.sheet( RESULT_SHEET_NAME )
+                    .header(
+                            ProductCalculationDetail.HEADER_FACTORY_NAME,
+                            ProductCalculationDetail.HEADER_PRODUCT_NAME,
+                            ProductCalculationDetail.HEADER_TAX_REBATE_RATE,
+                            ProductCalculationDetail.HEADER_ACTUAL_PURCHASE_AMOUNT,
+                            ProductCalculationDetail.HEADER_PREPAID_AMOUNT,
+                            ProductCalculationDetail.HEADER_TAX_POINT,
+                            ProductCalculationDetail.HEADER_AGREE_TO_INVOICE_AGENT,
+                            ProductCalculationDetail.HEADER_ABLE_TO_INVOICE_OVERPRICE,
+                            ProductCalculationDetail.HEADER_INVOICE_AMOUNT,
+                            ProductCalculationDetail.HEADER_TAX_REBATE_AMOUNT,
+                            ProductCalculationDetail.HEADER_AGENT_BALANCE_BEFORE_SHIPMENT,
+                            ProductCalculationDetail.HEADER_AGENT_BALANCE_AFTER_REBATING,
+                            ProductCalculationDetail.HEADER_OVERPRICE_TAX,
+                            ProductCalculationDetail.HEADER_PREPAYMENT_REFUND,
+                            ProductCalculationDetail.HEADER_OVERPRICE_REFUND
+                    );
+
+            for ( ExportRow row = queue.take(); row != END; row = queue.take() ) {
+                ProductSituation prodSituation = row.prodSituation();
+                ProductCalculationDetail detail = row.detail();
+                writer.row(
+                        detail.factoryName(),
+                        detail.productName(),
+                        prodSituation.taxRebateRate(),
+                        detail.actualPurchaseAmount(),
+                        prodSituation.prepaidAmount(),
+                        prodSituation.taxPoint(),
+                        prodSituation.agreeToInvoiceToAgent() ? "是" : "否",
+                        prodSituation.ableToInvoiceWithOverprice() ? "是" : "否",
+                        detail.invoiceAmount(),
+                        detail.taxRebateAmount(),
+                        detail.agentBalanceToFactoryBeforeShipment(),
+                        detail.agentBalanceToFactoryAfterRebating(),
+                        detail.overpriceTax(),
+                        detail.prepaymentRefundAmount(),
+                        detail.overpriceRefundFromFactory()
+                );
+            }
+
+            writer.saveAs( tempFile.toString() );
+        }
+    }
+
+    private static void writeCsv( BlockingQueue<ExportRow> queue, Path tempFile ) throws IOException, InterruptedException {
+        try ( BufferedWriter writer = GzipFiles.newBufferedWriter( tempFile, StandardCharsets.UTF_8 ) ) {
+            // Excel识别UTF-8所需的BOM
+            writer.write( '\uFEFF' );
+
+            writer.write( "工厂名称,产品名称,退税率,实际货值,已预付金额,税点,同意开票给代理公司,可超额开票," );
+            writer.write( "开票金额,退税金额,发货前代理公司须向工厂支付的金额,代理公司收到退税后应向工厂支付的余款金额," );
+            writer.write( "扣税金额,对公退款金额,对私退款金额" );
+            writer.newLine();
+
+            StringBuilder line = new StringBuilder();
+            for ( ExportRow row = queue.take(); row != END; row = queue.take() ) {
+                ProductSituation prodSituation = row.prodSituation();
+                ProductCalculationDetail detail = row.detail();
+                line.setLength( 0 );
+                line.append( escapeCsvField( detail.factoryName() ) ).append( ',' )
+                        .append( escapeCsvField( detail.productName() ) ).append( ',' )
+                        .append( formatCsvPercentage( prodSituation.taxRebateRate() ) ).append( ',' )
+                        .append( formatCsvNumber( detail.actualPurchaseAmount() ) ).append( ',' )
+                        .append( formatCsvNumber( prodSituation.prepaidAmount() ) ).append( ',' )
+                        .append( formatCsvPercentage( prodSituation.taxPoint() ) ).append( ',' )
+                        .append( prodSituation.agreeToInvoiceToAgent() ? "是" : "否" ).append( ',' )
+                        .append( prodSituation.ableToInvoiceWithOverprice() ? "是" : "否" ).append( ',' )
+                        .append( formatCsvNumber( detail.invoiceAmount() ) ).append( ',' )
+                        .append( formatCsvNumber( detail.taxRebateAmount() ) ).append( ',' )
+                        .append( formatCsvNumber( detail.agentBalanceToFactoryBeforeShipment() ) ).append( ',' )
+                        .append( formatCsvNumber( detail.agentBalanceToFactoryAfterRebating() ) ).append( ',' )
+                        .append( formatCsvNumber( detail.overpriceTax() ) ).append( ',' )
+                        .append( formatCsvNumber( detail.prepaymentRefundAmount() ) ).append( ',' )
+                        .append( formatCsvNumber( detail.overpriceRefundFromFactory() ) );
+                writer.append( line );
+                writer.newLine();
+            }
+        }
+    }
+
+    /**
+     * NDJSON运行记录：每行一个JSON对象，金额保留完整计算精度
+     */
+    private static void writeNdjson( BlockingQueue<ExportRow> queue, Path tempFile ) throws IOException, InterruptedException {
+        try ( BufferedWriter writer = GzipFiles.newBufferedWriter( tempFile, StandardCharsets.UTF_8 ) ) {
+            StringBuilder line = new StringBuilder();
+            for ( ExportRow row = queue.take(); row != END; row = queue.take() ) {
+                ProductSituation prodSituation = row.prodSituation();
+                ProductCalculationDetail detail = row.detail();
+                line.setLength( 0 );
+                line.append( "{\"factoryName\":" );
+                appendJsonString( line, detail.factoryName() );
+                line.append( ",\"productName\":" );
+                appendJsonString( line, detail.productName() );
+                appendJsonNumber( line, "taxRebateRate", prodSituation.taxRebateRate() );
+                appendJsonNumber( line, "actualPurchaseAmount", detail.actualPurchaseAmount() );
+                appendJsonNumber( line, "prepaidAmount", prodSituation.prepaidAmount() );
+                appendJsonNumber( line, "taxPoint", prodSituation.taxPoint() );
+                line.append( ",\"agreeToInvoiceToAgent\":" ).append( prodSituation.agreeToInvoiceToAgent() );
+                line.append( ",\"ableToInvoiceWithOverprice\":" ).append( prodSituation.ableToInvoiceWithOverprice() );
+                appendJsonNumber( line, "invoiceAmount", detail.invoiceAmount() );
+                appendJsonNumber( line, "taxRebateAmount", detail.taxRebateAmount() );
+                appendJsonNumber( line, "agentProfit", detail.agentProfit() );
+                appendJsonNumber( line, "agentBalanceToFactoryBeforeShipment", detail.agentBalanceToFactoryBeforeShipment() );
+                appendJsonNumber( line, "agentBalanceToFactoryAfterRebating", detail.agentBalanceToFactoryAfterRebating() );
+                appendJsonNumber( line, "overpriceTax", detail.overpriceTax() );
+                appendJsonNumber( line, "prepaymentRefundAmount", detail.prepaymentRefundAmount() );
+                appendJsonNumber( line, "overpriceRefundFromFactory", detail.overpriceRefundFromFactory() );
+                line.append( '}' );
+                writer.append( line );
+                writer.write( '\n' );
+            }
+        }
+    }
+
+    /**
+     * 放入队列；队列已满时定期检查写入线程，写入线程已失败则抛出其异常，避免遍历线程一直阻塞
+     */
+    private static void putRow( BlockingQueue<ExportRow> queue, ExportRow row, Future<Void> writer )
+            throws ExcelIOException, IOException {
+        try {
+            while ( !queue.offer( row, OFFER_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS ) ) {
+                if ( writer.isDone() ) {
+                    awaitTask( writer );
+                    throw new IOException( "导出线程已提前结束" );
+                }
+            }
+        } catch ( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new IOException( "导出被中断", e );
+        }
+    }
+
+    /**
+     * 导出多进程批量任务的汇总报告（CSV）：每笔订单一行，失败的订单列出原因，最后一行为已完成订单的合计
+     * @param reportPath 报告文件路径
+     * @param summary 合并后的汇总
+     */
+    public static void exportBatchSummary( Path reportPath, BatchRunSummary summary ) throws IOException {
+        Path directory = reportPath.toAbsolutePath().getParent();
+        Path tempFile = Files.createTempFile( directory, "." + reportPath.getFileName() + "-", ".tmp" );
+        try {
+            try ( BufferedWriter writer = GzipFiles.newBufferedWriter( tempFile, StandardCharsets.UTF_8,
+                    GzipFiles.isGzip( reportPath ) ) ) {
+                // Excel识别UTF-8所需的BOM
+                writer.write( '\uFEFF' );
+                writer.write( "订单编号,货币,汇率,产品数,开票金额,退税金额,代理公司利润,您应分得的退税金额,您的净利润," );
+                writer.write( "工作进程,耗时(毫秒),状态" );
+                writer.newLine();
+
+                // 每笔订单或者完成或者失败，按失败订单的清单序号交错写出，即为订单清单顺序
+                int orderCount = summary.completedOrders().size() + summary.failedOrders().size();
+                int completedIndex = 0;
+                int failedIndex = 0;
+                for ( int sequence = 0; sequence < orderCount; sequence++ ) {
+                    if ( failedIndex < summary.failedOrders().size()
+                            && summary.failedOrders().get( failedIndex ).sequence() == sequence ) {
+                        BatchOrderFailure failed = summary.failedOrders().get( failedIndex++ );
+                        writer.write( escapeCsvField( failed.orderId() ) + ",,,,,,,,,,,"
+                                + escapeCsvField( "失败：" + failed.reason() ) );
+                        writer.newLine();
+                        continue;
+                    }
+                    BatchOrderResult result = summary.completedOrders().get( completedIndex++ );
+                    writer.write( escapeCsvField( result.orderId() ) + ',' + result.currency() + ','
+                            + result.exchangeRate().toPlainString() + ',' + result.productCount() + ','
+                            + formatCsvNumber( result.totalInvoiceAmount() ) + ','
+                            + formatCsvNumber( result.totalTaxRebateAmount() ) + ','
+                            + formatCsvNumber( result.totalAgentProfit() ) + ','
+                            + formatCsvNumber( result.yourTotalTaxRebateShareAmount() ) + ','
+                            + formatCsvNumber( result.yourNetProfit() ) + ','
+                            + result.workerName() + ',' + result.elapsedMillis() + ','
+                            + ( result.resumed() ? "沿用上次结果" : "完成" ) );
+                    writer.newLine();
+                }
+                writer.write( String.format( "合计（%d笔完成（其中%d笔沿用上次结果），%d笔失败，%d个工作进程，总耗时%dms）,,,,%s,%s,%s,,%s,,,",
+                        summary.completedOrders().size(), summary.resumedOrderCount(), summary.failedOrders().size(),
+                        summary.workerCount(),
+                        summary.elapsedMillis(), formatCsvNumber( summary.totalInvoiceAmount() ),
+                        formatCsvNumber( summary.totalTaxRebateAmount() ), formatCsvNumber( summary.totalAgentProfit() ),
+                        formatCsvNumber( summary.yourTotalNetProfit() ) ) );
+                writer.newLine();
+            }
+            moveAtomically( tempFile, reportPath );
+        } catch ( IOException | RuntimeException e ) {
+            Files.deleteIfExists( tempFile );
+            throw e;
+        }
+    }
+
+    /**
+     * 导出运行台账的汇总查询结果（CSV）
+     * @param reportPath 报告文件路径
+     * @param rollups 汇总行
+     */
+    public static void exportLedgerRollup( Path reportPath, List<LedgerRollup> rollups ) throws IOException {
+        Path directory = reportPath.toAbsolutePath().getParent();
+        Path tempFile = Files.createTempFile( directory, "." + reportPath.getFileName() + "-", ".tmp" );
+        try {
+            try ( BufferedWriter writer = GzipFiles.newBufferedWriter( tempFile, StandardCharsets.UTF_8,
+                    GzipFiles.isGzip( reportPath ) ) ) {
+                // Excel识别UTF-8所需的BOM
+                writer.write( '\uFEFF' );
+                writer.write( "工厂名称,产品名称,期间,计算次数,产品行数,开票金额,退税金额,代理公司利润,扣税金额,对公退款金额,对私退款金额" );
+                writer.newLine();
+
+                for ( LedgerRollup rollup : rollups ) {
+                    writer.write( escapeCsvField( rollup.factoryName() ) + ','
+                            + escapeCsvField( rollup.productName() ) + ','
+                            + ( rollup.period() == null ? "" : rollup.period() ) + ','
+                            + rollup.runCount() + ',' + rollup.rowCount() + ','
+                            + formatCsvNumber( rollup.totalInvoiceAmount() ) + ','
+                            + formatCsvNumber( rollup.totalTaxRebateAmount() ) + ','
+                            + formatCsvNumber( rollup.totalAgentProfit() ) + ','
+                            + formatCsvNumber( rollup.totalOverpriceTax() ) + ','
+                            + formatCsvNumber( rollup.totalPrepaymentRefundAmount() ) + ','
+                            + formatCsvNumber( rollup.totalOverpriceRefundFromFactory() ) );
+                    writer.newLine();
+                }
+            }
+            moveAtomically( tempFile, reportPath );
+        } catch ( IOException | RuntimeException e ) {
+            Files.deleteIfExists( tempFile );
+            throw e;
+        }
+    }
+
+    /**
+     * 导出各方逐日资金头寸预测（CSV），每行一天，每列一个参与方
+     * @param reportPath 报告文件路径
+     * @param projection 资金头寸预测
+     */
+    public static void exportCashFlowProjection( Path reportPath, CashFlowProjection projection ) throws IOException {
+        Path directory = reportPath.toAbsolutePath().getParent();
+        Path tempFile = Files.createTempFile( directory, "." + reportPath.getFileName() + "-", ".tmp" );
+        try {
+            try ( BufferedWriter writer = GzipFiles.newBufferedWriter( tempFile, StandardCharsets.UTF_8,
+                    GzipFiles.isGzip( reportPath ) ) ) {
+                // Excel识别UTF-8所需的BOM
+                writer.write( '\uFEFF' );
+                writer.write( "日期" );
+                for ( String party : projection.positionsByParty().keySet() ) {
+                    writer.write( ',' + escapeCsvField( party ) );
+                }
+                writer.newLine();
+
+                List<List<BigDecimal>> columns = List.copyOf( projection.positionsByParty().values() );
+                LocalDate date = projection.from();
+                for ( int day = 0; !date.isAfter( projection.to() ); day++, date = date.plusDays( 1 ) ) {
+                    writer.write( date.toString() );
+                    for ( List<BigDecimal> positions : columns ) {
+                        writer.write( ',' + formatCsvNumber( positions.get( day ) ) );
+                    }
+                    writer.newLine();
+                }
+            }
+            moveAtomically( tempFile, reportPath );
+        } catch ( IOException | RuntimeException e ) {
+            Files.deleteIfExists( tempFile );
+            throw e;
+        }
+    }
+
+    /**
+     * 导出净利润风险模拟结果（CSV）：抽样次数、平均值、标准差、各分位数及亏损概率
+     * @param reportPath 报告文件路径
+     * @param distribution 净利润分布
+     */
+    public static void exportNetProfitDistribution( Path reportPath, NetProfitDistribution distribution )
+            throws IOException {
+        Path directory = reportPath.toAbsolutePath().getParent();
+        Path tempFile = Files.createTempFile( directory, "." + reportPath.getFileName() + "-", ".tmp" );
+        try {
+            try ( BufferedWriter writer = GzipFiles.newBufferedWriter( tempFile, StandardCharsets.UTF_8,
+                    GzipFiles.isGzip( reportPath ) ) ) {
+                // Excel识别UTF-8所需的BOM
+                writer.write( '\uFEFF' );
+                writer.write( "项目,数值" );
+                writer.newLine();
+                writer.write( "订单编号," + escapeCsvField( distribution.orderId() ) );
+                writer.newLine();
+                writer.write( "当前汇率," + distribution.spotRate().toPlainString() );
+                writer.newLine();
+                writer.write( "按当前汇率计算的净利润," + formatCsvNumber( distribution.netProfitAtSpot() ) );
+                writer.newLine();
+                writer.write( "抽样次数," + distribution.sampleCount() );
+                writer.newLine();
+                writer.write( "平均值," + formatCsvNumber( distribution.mean() ) );
+                writer.newLine();
+                writer.write( "标准差," + formatCsvNumber( distribution.standardDeviation() ) );
+                writer.newLine();
+                writer.write( "最小值," + formatCsvNumber( distribution.min() ) );
+                writer.newLine();
+                for ( int percent : DISTRIBUTION_PERCENTILES ) {
+                    writer.write( "P" + percent + "," + formatCsvNumber( distribution.percentile( percent ) ) );
+                    writer.newLine();
+                }
+                writer.write( "最大值," + formatCsvNumber( distribution.max() ) );
+                writer.newLine();
+                writer.write( "亏损概率," + BigDecimal.valueOf( distribution.lossProbability() )
+                        .setScale( 6, RoundingMode.HALF_UP ).toPlainString() );
+                writer.newLine();
+            }
+            moveAtomically( tempFile, reportPath );
+        } catch ( IOException | RuntimeException e ) {
+            Files.deleteIfExists( tempFile );
+            throw e;
+        }
+    }
+
+    /**
+     * 把一组临时文件全部改名为对应的目标文件
+     * 已有的目标文件先改名为同目录下的备份，再逐个改名临时文件；任一步失败时删除已改名到位的新文件并恢复备份，
+     * 全部成功后才删除备份
+     */
+    private static void moveAllAtomically( List<Path> sources, List<Path> targets ) throws IOException {
+        List<Path> backups = new ArrayList<>();
+        int moved = 0;
+        try {
+            for ( Path target : targets ) {
+                Path backup = null;
+                if ( Files.exists( target ) ) {
+                    backup = Files.createTempFile( target.getParent(), "." + target.getFileName() + "-", ".bak" );
+                    try {
+                        moveAtomically( target, backup );
+                    } catch ( IOException | RuntimeException e ) {
+                        Files.deleteIfExists( backup );
+                        throw e;
+                    }
+                }
+                backups.add( backup );
+            }
+            for ( ; moved < sources.size(); moved++ ) {
+                moveAtomically( sources.get( moved ), targets.get( moved ) );
+            }
+        } catch ( IOException | RuntimeException e ) {
+            for ( int k = 0; k < backups.size(); k++ ) {
+                try {
+                    if ( k < moved ) {
+                        Files.deleteIfExists( targets.get( k ) );
+                    }
+                    if ( backups.get( k ) != null ) {
+                        moveAtomically( backups.get( k ), targets.get( k ) );
+                    }
+                } catch ( IOException restoreFailure ) {
+                    e.addSuppressed( restoreFailure );
+                }
+            }
+            throw e;
+        }
+        for ( Path backup : backups ) {
+            if ( backup != null ) {
+                Files.deleteIfExists( backup );
+            }
+        }
+    }
+
+    /**
+     * 临时文件改名为目标文件，文件系统支持时使用原子改名
+     */
+    private static void moveAtomically( Path source, Path target ) throws IOException {
+        try {
+            Files.move( source, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING );
+        } catch ( AtomicMoveNotSupportedException e ) {
+            Files.move( source, target, StandardCopyOption.REPLACE_EXISTING );
+        }
+    }
+
+    /**
+     * 等待任务完成，并将任务中的异常按原类型抛出
+     */
+    private static <T> T awaitTask( Future<T> task ) throws ExcelIOException, IOException {
+        try {
+            return task.get();
+        } catch ( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new IOException( "导出被中断", e );
+        } catch ( ExecutionException e ) {
+            Throwable cause = e.getCause();
+            if ( cause instanceof ExcelIOException excelIOException ) {
+                throw excelIOException;
+            }
+            if ( cause instanceof IOException ioException ) {
+                throw ioException;
+            }
+            if ( cause instanceof RuntimeException runtimeException ) {
+                throw runtimeException;
+            }
+            throw new IOException( cause );
+        }
+    }
+
+    /**
+     * 转义CSV字段中的特殊字符
+     */
+    private static String escapeCsvField( String field ) {
+        if ( field == null ) return "";
+        if ( field.contains( "," ) || field.contains( "\"" ) || field.contains( "\n" ) ) {
+            return "\"" + field.replace( "\"", "\"\"" ) + "\"";
+        }
+        return field;
+    }
+
+    /**
+     * 格式化CSV中的数字（去掉千位分隔符）
+     */
+    private static String formatCsvNumber( BigDecimal number ) {
+        if ( number == null ) return "0";
+        return number.setScale( 2, RoundingMode.HALF_UP ).toString();
+    }
+
+    private static String formatCsvNumber( double number ) {
+        return formatCsvNumber( BigDecimal.valueOf( number ) );
+    }
+
+    /**
+     * 格式化CSV中的百分比数字
+     */
+    private static String formatCsvPercentage( BigDecimal percentage ) {
+        if ( percentage == null ) return "0";
+        return percentage.multiply( BigDecimal.valueOf( 100 ) )
+                .setScale( 2, RoundingMode.HALF_UP ).toString() + "%";
+    }
+
+    private static void appendJsonNumber( StringBuilder line, String key, BigDecimal value ) {
+        line.append( ",\"" ).append( key ).append( "\":" );
+        line.append( value == null ? "null" : value.toPlainString() );
+    }
+
+    private static void appendJsonString( StringBuilder line, String value ) {
+        if ( value == null ) {
+            line.append( "null" );
+            return;
+        }
+        line.append( '"' );
+        for ( int i = 0; i < value.length(); i++ ) {
+            char c = value.charAt( i );
+            switch ( c ) {
+                case '"' -> line.append( "\\\"" );
+                case '\\' -> line.append( "\\\\" );
+                case '\n' -> line.append( "\\n" );
+                case '\r' -> line.append( "\\r" );
+                case '\t' -> line.append( "\\t" );
+                default -> {
+                    if ( c < 0x20 ) {
+                        line.append( String.format( "\\u%04x", (int) c ) );
+                    } else {
+                        line.append( c );
+                    }
+                }
+            }
+        }
+        line.append( '"' );
+    }
+}
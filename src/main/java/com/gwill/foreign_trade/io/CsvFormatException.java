@@ -0,0 +1,39 @@
+package com.gwill.foreign_trade.io;
+
+/**
+ * CSV格式错误
+ * 携带出错位置（行号、列号均从1开始），便于用户直接定位到源文件中的问题单元格
+ */
+public class CsvFormatException extends IllegalArgumentException {
+
+    private final long lineNumber;      // 出错行号
+    private final int columnNumber;     // 出错列号（0表示整行错误）
+    private final String columnName;    // 出错列名（整行错误为null）
+    private final String detail;        // 不含位置的错误说明
+
+    public CsvFormatException( long lineNumber, int columnNumber, String columnName, String message ) {
+        super( columnNumber > 0 ?
+                String.format( "第%d行第%d列（%s）：%s", lineNumber, columnNumber, columnName, message ) :
+                String.format( "第%d行：%s", lineNumber, message ) );
+        this.lineNumber = lineNumber;
+        this.columnNumber = columnNumber;
+        this.columnName = columnNumber > 0 ? columnName : null;
+        this.detail = message;
+    }
+
+    public long getLineNumber() {
+        return lineNumber;
+    }
+
+    public int getColumnNumber() {
+        return columnNumber;
+    }
+
+    public String getColumnName() {
+        return columnName;
+    }
+
+    public String getDetail() {
+        return detail;
+    }
+}
@@ -0,0 +1,77 @@
+package com.gwill.foreign_trade.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.foreign.MemorySegment;
+import java.nio.file.Path;
+
+/**
+ * 按记录读取CSV文件，切分规则与产品情况CSV加载器相同（见 CsvScanner）：
+ * 带引号的字段可包含逗号和换行，""表示转义的引号；空行自动跳过。供订单清单、汇率表、日期表等小型CSV使用
+ */
+public final class CsvRecordReader implements AutoCloseable {
+
+    // 每条记录最多返回的列数，更多的列计入列数但不返回内容
+    private static final int MAX_RECORDED_COLUMNS = 64;
+
+    private final CsvScanner scanner;
+    private final InputStream source;
+    private boolean started;
+
+    private CsvRecordReader( CsvScanner scanner, InputStream source ) {
+        this.scanner = scanner;
+        this.source = source;
+    }
+
+    /**
+     * 打开CSV文件（.gz文件边读边解压）
+     */
+    public static CsvRecordReader open( Path path ) throws IOException {
+        InputStream in = GzipFiles.newInputStream( path );
+        return new CsvRecordReader( new CsvScanner( in, GzipFiles.STREAM_BUFFER_SIZE, MAX_RECORDED_COLUMNS ), in );
+    }
+
+    /**
+     * 读取已在内存中的CSV数据（UTF-8）
+     */
+    public static CsvRecordReader of( byte[] content ) {
+        return new CsvRecordReader( new CsvScanner( MemorySegment.ofArray( content ), MAX_RECORDED_COLUMNS ), null );
+    }
+
+    /**
+     * 读取下一条非空记录
+     * @return 各字段文本（未带引号的字段已去掉首尾空白），没有更多记录时返回null
+     * @throws CsvFormatException 引号未闭合等结构错误（带行号、列号）
+     */
+    public String[] next() throws IOException {
+        if ( !started ) {
+            started = true;
+            scanner.start();
+        }
+        while ( scanner.nextRow() ) {
+            if ( scanner.isBlankRow() ) {
+                continue;
+            }
+            String[] fields = new String[Math.min( scanner.fieldCount, MAX_RECORDED_COLUMNS )];
+            for ( int column = 0; column < fields.length; column++ ) {
+                fields[column] = scanner.fieldText( column );
+            }
+            return fields;
+        }
+        return null;
+    }
+
+    /**
+     * 上一次 next 返回的记录在文件中的起始行号（从1开始）
+     */
+    public long lineNumber() {
+        return scanner.rowLineNumber;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if ( source != null ) {
+            source.close();
+        }
+    }
+}
@@ -0,0 +1,244 @@
+package com.gwill.foreign_trade.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.foreign.MemorySegment;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static java.lang.foreign.ValueLayout.JAVA_BYTE;
+
+/**
+ * CSV记录切分器：直接在字节上切分UTF-8编码（可带BOM）的CSV记录，只记录各字段的起止位置，不创建中间String
+ * 数据可以是映射的文件、内存中的字节数组，或流式输入的滑动窗口（每条记录扫描前先确认窗口内有完整记录，
+ * 不足时把未处理部分移到窗口开头再读入后续数据）。
+ * 带引号的字段可包含逗号和换行，""表示转义的引号；未带引号的字段去掉首尾空白。非线程安全
+ */
+class CsvScanner {
+
+    MemorySegment data;
+    long limit;
+    long pos;
+
+    // 流式输入（映射文件或字节数组时为null）
+    private final InputStream source;
+    private byte[] window;
+    private boolean endOfInput;
+
+    long lineNumber;        // 已扫描到的物理行号
+    long rowLineNumber;     // 当前记录起始行号（用于错误报告）
+
+    // 当前记录的字段边界（仅记录前maxRecordedColumns列）
+    final long[] fieldStart;
+    final long[] fieldEnd;
+    final boolean[] fieldEscaped;
+    int fieldCount;
+
+    CsvScanner( MemorySegment data, int maxRecordedColumns ) {
+        this.data = data;
+        this.limit = data.byteSize();
+        this.source = null;
+        this.endOfInput = true;
+        this.fieldStart = new long[maxRecordedColumns];
+        this.fieldEnd = new long[maxRecordedColumns];
+        this.fieldEscaped = new boolean[maxRecordedColumns];
+    }
+
+    CsvScanner( InputStream source, int windowSize, int maxRecordedColumns ) {
+        this.source = source;
+        this.window = new byte[windowSize];
+        this.data = MemorySegment.ofArray( window );
+        this.fieldStart = new long[maxRecordedColumns];
+        this.fieldEnd = new long[maxRecordedColumns];
+        this.fieldEscaped = new boolean[maxRecordedColumns];
+    }
+
+    /**
+     * 读入首个窗口并跳过BOM
+     * @return 数据是否为空
+     */
+    boolean start() throws IOException {
+        if ( !endOfInput ) {
+            fill();
+        }
+        if ( limit >= 3 && byteAt( 0 ) == (byte) 0xEF && byteAt( 1 ) == (byte) 0xBB && byteAt( 2 ) == (byte) 0xBF ) {
+            pos = 3;
+        }
+        return limit == 0;
+    }
+
+    /**
+     * 切分下一条记录的字段边界
+     * @return 是否读到了记录
+     */
+    boolean nextRow() throws IOException {
+        if ( !endOfInput ) {
+            ensureCompleteRecord();
+        }
+        if ( pos >= limit ) {
+            return false;
+        }
+        rowLineNumber = ++lineNumber;
+        fieldCount = 0;
+
+        while ( true ) {
+            long start = skipBlanks( pos );
+            if ( start < limit && byteAt( start ) == '"' ) {
+                // 带引号的字段：查找闭合引号，""表示转义的引号
+                boolean escaped = false;
+                long p = start + 1;
+                while ( true ) {
+                    if ( p >= limit ) {
+                        throw error( fieldCount, "引号未闭合" );
+                    }
+                    byte b = byteAt( p );
+                    if ( b == '"' ) {
+                        if ( p + 1 < limit && byteAt( p + 1 ) == '"' ) {
+                            escaped = true;
+                            p += 2;
+                            continue;
+                        }
+                        break;
+                    }
+                    if ( b == '\n' ) {
+                        lineNumber++;
+                    }
+                    p++;
+                }
+                recordField( start + 1, p, escaped );
+                p = skipBlanks( p + 1 );
+                if ( p < limit && byteAt( p ) == '\r' ) {
+                    p++;
+                }
+                pos = p;
+            } else {
+                long p = start;
+                byte b;
+                while ( p < limit && ( b = byteAt( p ) ) != ',' && b != '\n' ) {
+                    p++;
+                }
+                recordField( start, trimTrailing( start, p ), false );
+                pos = p;
+            }
+
+            if ( pos >= limit ) {
+                return true;
+            }
+            byte delimiter = byteAt( pos++ );
+            if ( delimiter == '\n' ) {
+                return true;
+            }
+            if ( delimiter != ',' ) {
+                throw error( fieldCount - 1, "引号后存在多余字符" );
+            }
+        }
+    }
+
+    /**
+     * 流式输入时确认窗口内从pos开始有一条完整记录（引号外的换行或输入结束），不足时继续读入
+     */
+    private void ensureCompleteRecord() throws IOException {
+        boolean inQuotes = false;
+        long p = pos;
+        while ( true ) {
+            for ( ; p < limit; p++ ) {
+                byte b = byteAt( p );
+                if ( b == '"' ) {
+                    inQuotes = !inQuotes;
+                } else if ( b == '\n' && !inQuotes ) {
+                    return;
+                }
+            }
+            if ( endOfInput ) {
+                return;
+            }
+            long scanned = p - pos;
+            fill();
+            p = pos + scanned;
+        }
+    }
+
+    /**
+     * 把窗口中未处理的部分移到开头（记录比窗口大时先扩大窗口），再读满窗口
+     */
+    private void fill() throws IOException {
+        int remaining = (int) ( limit - pos );
+        if ( pos == 0 && remaining == window.length ) {
+            window = Arrays.copyOf( window, window.length * 2 );
+        } else if ( remaining > 0 ) {
+            System.arraycopy( window, (int) pos, window, 0, remaining );
+        }
+        int read = source.readNBytes( window, remaining, window.length - remaining );
+        if ( read < window.length - remaining ) {
+            endOfInput = true;
+        }
+        data = MemorySegment.ofArray( window );
+        pos = 0;
+        limit = remaining + read;
+    }
+
+    private void recordField( long start, long end, boolean escaped ) {
+        if ( fieldCount < fieldStart.length ) {
+            fieldStart[fieldCount] = start;
+            fieldEnd[fieldCount] = end;
+            fieldEscaped[fieldCount] = escaped;
+        }
+        fieldCount++;
+    }
+
+    boolean isBlankRow() {
+        return fieldCount == 1 && fieldStart[0] == fieldEnd[0];
+    }
+
+    long skipBlanks( long p ) {
+        while ( p < limit ) {
+            byte b = byteAt( p );
+            if ( b != ' ' && b != '\t' ) {
+                break;
+            }
+            p++;
+        }
+        return p;
+    }
+
+    long trimTrailing( long start, long end ) {
+        while ( end > start ) {
+            byte b = byteAt( end - 1 );
+            if ( b != ' ' && b != '\t' && b != '\r' ) {
+                break;
+            }
+            end--;
+        }
+        return end;
+    }
+
+    byte byteAt( long offset ) {
+        return data.get( JAVA_BYTE, offset );
+    }
+
+    /**
+     * 字段文本（已还原转义的引号）
+     */
+    String fieldText( int column ) {
+        String text = text( fieldStart[column], fieldEnd[column] );
+        return fieldEscaped[column] ? text.replace( "\"\"", "\"" ) : text;
+    }
+
+    String text( long start, long end ) {
+        byte[] bytes = new byte[(int) ( end - start )];
+        MemorySegment.copy( data, JAVA_BYTE, start, bytes, 0, bytes.length );
+        return new String( bytes, StandardCharsets.UTF_8 );
+    }
+
+    /**
+     * 错误信息中使用的列名，子类可按表头给出
+     */
+    String columnName( int columnIndex ) {
+        return "第" + ( columnIndex + 1 ) + "列";
+    }
+
+    CsvFormatException error( int column, String message ) {
+        int columnIndex = Math.max( column, 0 );
+        return new CsvFormatException( rowLineNumber, columnIndex + 1, columnName( columnIndex ), message );
+    }
+}
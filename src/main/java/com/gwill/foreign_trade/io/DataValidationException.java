@@ -0,0 +1,36 @@
+package com.gwill.foreign_trade.io;
+
+import com.gwill.foreign_trade.model.ValidationProblem;
+
+import java.util.List;
+
+/**
+ * 输入数据校验未通过
+ * 携带加载过程中发现的全部问题（按文件、工作表、行号的顺序），消息中列出前 MAX_LISTED_PROBLEMS 处
+ */
+public class DataValidationException extends IllegalArgumentException {
+
+    private static final int MAX_LISTED_PROBLEMS = 50;
+
+    private final List<ValidationProblem> problems;
+
+    public DataValidationException( List<ValidationProblem> problems ) {
+        super( summarize( problems ) );
+        this.problems = List.copyOf( problems );
+    }
+
+    public List<ValidationProblem> getProblems() {
+        return problems;
+    }
+
+    private static String summarize( List<ValidationProblem> problems ) {
+        StringBuilder message = new StringBuilder( String.format( "共发现%d处数据问题：", problems.size() ) );
+        for ( int i = 0; i < Math.min( problems.size(), MAX_LISTED_PROBLEMS ); i++ ) {
+            message.append( '\n' ).append( problems.get( i ).describe() );
+        }
+        if ( problems.size() > MAX_LISTED_PROBLEMS ) {
+            message.append( "\n……（其余" ).append( problems.size() - MAX_LISTED_PROBLEMS ).append( "处未列出）" );
+        }
+        return message.toString();
+    }
+}
@@ -0,0 +1,91 @@
+package com.gwill.foreign_trade.io;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * 按文件名透明读写gzip压缩文件
+ * 文件名以.gz结尾时边读边解压（或边压缩边写），不经过临时文件；否则按普通文件读写
+ */
+public final class GzipFiles {
+
+    public static final String GZIP_SUFFIX = ".gz";
+
+    // 读写缓冲区大小：共享NAS上按较大的块读写，减少系统调用和网络往返
+    public static final int STREAM_BUFFER_SIZE = 64 * 1024;
+
+    private GzipFiles() {
+    }
+
+    /**
+     * 是否为gzip压缩文件（按文件名判断）
+     */
+    public static boolean isGzip( Path path ) {
+        return path.getFileName().toString().toLowerCase().endsWith( GZIP_SUFFIX );
+    }
+
+    /**
+     * 去掉.gz后缀后的文件名，用于按原始扩展名判断文件类型
+     */
+    public static String uncompressedFileName( Path path ) {
+        String fileName = path.getFileName().toString();
+        return isGzip( path ) ? fileName.substring( 0, fileName.length() - GZIP_SUFFIX.length() ) : fileName;
+    }
+
+    /**
+     * 打开输入流，.gz文件边读边解压
+     * 返回的流未做额外缓冲，调用方应以不小于 STREAM_BUFFER_SIZE 的块读取
+     */
+    public static InputStream newInputStream( Path path ) throws IOException {
+        InputStream in = Files.newInputStream( path );
+        if ( !isGzip( path ) ) {
+            return in;
+        }
+        try {
+            return new GZIPInputStream( in, STREAM_BUFFER_SIZE );
+        } catch ( IOException e ) {
+            in.close();
+            throw e;
+        }
+    }
+
+    /**
+     * 打开按行读取的文本输入，.gz文件边读边解压
+     */
+    public static BufferedReader newBufferedReader( Path path, Charset charset ) throws IOException {
+        return new BufferedReader( new InputStreamReader( newInputStream( path ), charset ), STREAM_BUFFER_SIZE );
+    }
+
+    /**
+     * 打开文本输出，.gz文件边写边压缩
+     */
+    public static BufferedWriter newBufferedWriter( Path path, Charset charset ) throws IOException {
+        return newBufferedWriter( path, charset, isGzip( path ) );
+    }
+
+    /**
+     * 打开文本输出，是否压缩由调用方决定（如先写临时文件再改名为目标文件时，按目标文件名决定）
+     */
+    public static BufferedWriter newBufferedWriter( Path path, Charset charset, boolean gzip ) throws IOException {
+        OutputStream out = Files.newOutputStream( path );
+        if ( gzip ) {
+            try {
+                out = new GZIPOutputStream( out, STREAM_BUFFER_SIZE );
+            } catch ( IOException e ) {
+                out.close();
+                throw e;
+            }
+        }
+        return new BufferedWriter( new OutputStreamWriter( out, charset ), STREAM_BUFFER_SIZE );
+    }
+}
@@ -0,0 +1,188 @@
+package com.gwill.foreign_trade.io;
+
+import com.gwill.foreign_trade.model.NameDictionary;
+import com.gwill.foreign_trade.model.ProductCalculationDetail;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * NDJSON运行记录加载器
+ * 读取 CalculationResultExporter 导出的NDJSON运行记录（可为.ndjson.gz），逐行还原为产品计算详情，
+ * 用于把历史导出结果补录到运行台账。每行是一个只含字符串、数字、布尔值和null的扁平JSON对象，
+ * 金额保留导出时的完整精度，名称和金额字段都不可缺少
+ */
+public final class NdjsonRunRecordLoader {
+
+    private NdjsonRunRecordLoader() {
+    }
+
+    /**
+     * 逐行读取运行记录
+     * @param path NDJSON文件路径
+     * @param consumer 接收每一行的计算详情
+     * @return 读取的行数
+     */
+    public static long load( Path path, Consumer<ProductCalculationDetail> consumer ) throws IOException {
+        // 本文件内同名的工厂、产品名称只保留一份
+        NameDictionary names = new NameDictionary();
+        Map<String, String> fields = new HashMap<>();
+        long rows = 0;
+        try ( BufferedReader reader = GzipFiles.newBufferedReader( path, StandardCharsets.UTF_8 ) ) {
+            String line;
+            long lineNumber = 0;
+            while ( ( line = reader.readLine() ) != null ) {
+                lineNumber++;
+                if ( line.isBlank() ) {
+                    continue;
+                }
+                fields.clear();
+                String location = String.format( "%s 第%d行", path, lineNumber );
+                parseObject( line, fields, location );
+
+                consumer.accept( new ProductCalculationDetail(
+                        names.canonical( requireField( fields, "factoryName", location ) ),
+                        names.canonical( requireField( fields, "productName", location ) ),
+                        requireDecimal( fields, "actualPurchaseAmount", location ),
+                        requireDecimal( fields, "invoiceAmount", location ),
+                        requireDecimal( fields, "taxRebateAmount", location ),
+                        requireDecimal( fields, "agentProfit", location ),
+                        requireDecimal( fields, "agentBalanceToFactoryBeforeShipment", location ),
+                        requireDecimal( fields, "agentBalanceToFactoryAfterRebating", location ),
+                        requireDecimal( fields, "overpriceTax", location ),
+                        requireDecimal( fields, "prepaymentRefundAmount", location ),
+                        requireDecimal( fields, "overpriceRefundFromFactory", location ) ) );
+                rows++;
+            }
+        }
+        return rows;
+    }
+
+    private static String requireField( Map<String, String> fields, String key, String location ) {
+        String value = fields.get( key );
+        if ( value == null ) {
+            throw new IllegalArgumentException( String.format( "%s缺少字段%s", location, key ) );
+        }
+        return value;
+    }
+
+    /**
+     * 金额字段，导出时每个金额都会写出，null或缺少说明记录不完整，报错而不按0计入台账
+     */
+    private static BigDecimal requireDecimal( Map<String, String> fields, String key, String location ) {
+        String value = requireField( fields, key, location );
+        try {
+            return new BigDecimal( value );
+        } catch ( NumberFormatException e ) {
+            throw new IllegalArgumentException( String.format( "%s的字段%s不是数字：%s", location, key, value ) );
+        }
+    }
+
+    /**
+     * 解析扁平JSON对象，null值不放入 fields
+     */
+    private static void parseObject( String line, Map<String, String> fields, String location ) {
+        int[] position = { skipWhitespace( line, 0 ) };
+        expect( line, position, '{', location );
+        if ( peek( line, position ) == '}' ) {
+            return;
+        }
+        while ( true ) {
+            String key = parseString( line, position, location );
+            expect( line, position, ':', location );
+            String value;
+            if ( peek( line, position ) == '"' ) {
+                value = parseString( line, position, location );
+            } else {
+                int start = position[0];
+                while ( position[0] < line.length() && ",} \t".indexOf( line.charAt( position[0] ) ) < 0 ) {
+                    position[0]++;
+                }
+                value = line.substring( start, position[0] );
+                if ( value.isEmpty() ) {
+                    throw new IllegalArgumentException( location + "的JSON格式不正确" );
+                }
+                if ( value.equals( "null" ) ) {
+                    value = null;
+                }
+                position[0] = skipWhitespace( line, position[0] );
+            }
+            if ( value != null ) {
+                fields.put( key, value );
+            }
+            char next = peek( line, position );
+            position[0]++;
+            if ( next == '}' ) {
+                return;
+            }
+            if ( next != ',' ) {
+                throw new IllegalArgumentException( location + "的JSON格式不正确" );
+            }
+            position[0] = skipWhitespace( line, position[0] );
+        }
+    }
+
+    private static String parseString( String line, int[] position, String location ) {
+        expect( line, position, '"', location );
+        StringBuilder value = new StringBuilder();
+        int p = position[0];
+        while ( true ) {
+            if ( p >= line.length() ) {
+                throw new IllegalArgumentException( location + "的JSON字符串未结束" );
+            }
+            char c = line.charAt( p++ );
+            if ( c == '"' ) {
+                break;
+            }
+            if ( c != '\\' ) {
+                value.append( c );
+                continue;
+            }
+            if ( p >= line.length() ) {
+                throw new IllegalArgumentException( location + "的JSON字符串未结束" );
+            }
+            char escaped = line.charAt( p++ );
+            switch ( escaped ) {
+                case 'n' -> value.append( '\n' );
+                case 'r' -> value.append( '\r' );
+                case 't' -> value.append( '\t' );
+                case 'b' -> value.append( '\b' );
+                case 'f' -> value.append( '\f' );
+                case 'u' -> {
+                    if ( p + 4 > line.length() ) {
+                        throw new IllegalArgumentException( location + "的JSON字符串未结束" );
+                    }
+                    value.append( (char) Integer.parseInt( line, p, p + 4, 16 ) );
+                    p += 4;
+                }
+                default -> value.append( escaped ); // \" \\ \/
+            }
+        }
+        position[0] = skipWhitespace( line, p );
+        return value.toString();
+    }
+
+    private static void expect( String line, int[] position, char expected, String location ) {
+        if ( peek( line, position ) != expected ) {
+            throw new IllegalArgumentException( String.format( "%s的JSON格式不正确，应为“%c”", location, expected ) );
+        }
+        position[0] = skipWhitespace( line, position[0] + 1 );
+    }
+
+    private static char peek( String line, int[] position ) {
+        return position[0] < line.length() ? line.charAt( position[0] ) : '\0';
+    }
+
+    private static int skipWhitespace( String line, int position ) {
+        while ( position < line.length() && Character.isWhitespace( line.charAt( position ) ) ) {
+            position++;
+        }
+        return position;
+    }
+}
@@ -0,0 +1,139 @@
+package com.gwill.foreign_trade.io;
+
+import com.gwill.foreign_trade.model.OrderBookEntry;
+import com.gwill.foreign_trade.model.OrderSnapshot;
+import com.gwill.foreign_trade.model.ProductSituation;
+import com.gwill.foreign_trade.model.ProductTable;
+import com.gwill.foreign_trade.model.SourcedProductSituation;
+import com.gwill.foreign_trade.service.MultiFactoryInvoiceCalculationService;
+import com.gwill.io.excel.ExcelIOException;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 订单清单加载器
+ * 订单清单为UTF-8 CSV，每行一笔已保存的订单，工厂数据仍保存在各自的Excel/CSV文件中
+ *
+ * CSV格式：订单编号,货币,PI销售金额,代理相对分配率(%),工厂数据文件
+ * 字段可带引号（引号内可含逗号）；工厂数据文件可填多个（以;分隔），相对路径相对于订单清单所在目录；订单清单和工厂数据CSV均可为gzip压缩文件（.gz）
+ */
+public final class OrderBookLoader {
+
+    public static final String HEADER_ORDER_ID = "订单编号";
+    public static final String HEADER_CURRENCY = "货币";
+    public static final String HEADER_SALES_AMOUNT = "PI销售金额";
+    public static final String HEADER_AGENT_RELATIVE_RATIO = "代理相对分配率(%)";
+    public static final String HEADER_SITUATION_FILES = "工厂数据文件";
+
+    private static final int COLUMN_COUNT = 5;
+    private static final String SITUATION_FILE_SEPARATOR = ";";
+
+    private OrderBookLoader() {
+    }
+
+    /**
+     * 加载订单清单及其引用的全部工厂数据
+     * @param orderBookPath 订单清单CSV文件路径
+     * @return 订单快照列表（顺序与清单一致）
+     */
+    public static List<OrderSnapshot> load( Path orderBookPath ) throws ExcelIOException, IOException {
+        List<OrderSnapshot> orders = new ArrayList<>();
+        for ( OrderBookEntry entry : readEntries( orderBookPath ) ) {
+            orders.add( loadOrder( entry ) );
+        }
+        return orders;
+    }
+
+    /**
+     * 只读取订单清单本身，不加载工厂数据（如批量任务分发前先列出全部订单）
+     * @param orderBookPath 订单清单CSV文件路径
+     * @return 订单清单各行（顺序与清单一致），工厂数据文件已解析为绝对路径
+     * @throws IllegalArgumentException 数据不完整或订单编号重复
+     */
+    public static List<OrderBookEntry> readEntries( Path orderBookPath ) throws IOException {
+        Path baseDirectory = orderBookPath.toAbsolutePath().getParent();
+        List<OrderBookEntry> entries = new ArrayList<>();
+        // 订单编号 -> 首次出现的行号（订单编号用于导出文件名、检查点日志和运行台账，必须唯一）
+        Map<String, Long> firstLineByOrderId = new HashMap<>();
+
+        try ( CsvRecordReader reader = CsvRecordReader.open( orderBookPath ) ) {
+            reader.next(); // 表头行
+            String[] fields;
+            while ( ( fields = reader.next() ) != null ) {
+                long lineNumber = reader.lineNumber();
+                if ( fields.length < COLUMN_COUNT ) {
+                    throw new IllegalArgumentException( String.format( "订单清单第%d行数据不完整，需要至少%d列数据",
+                            lineNumber, COLUMN_COUNT ) );
+                }
+
+                String orderId = fields[0];
+                String currency = fields[1].toUpperCase();
+                String location = String.format( "订单清单第%d行", lineNumber );
+                BigDecimal salesAmount = MultiFactoryInvoiceCalculationService.parseBigDecimal(
+                        fields[2], location + HEADER_SALES_AMOUNT );
+                BigDecimal agentRelativeRatio = MultiFactoryInvoiceCalculationService.percentageToDecimal(
+                        fields[3].replace( "%", "" ), location + HEADER_AGENT_RELATIVE_RATIO );
+
+                List<Path> situationFiles = new ArrayList<>();
+                for ( String situationFile : fields[4].split( SITUATION_FILE_SEPARATOR ) ) {
+                    if ( !situationFile.isBlank() ) {
+                        situationFiles.add( baseDirectory.resolve( situationFile.trim() ) );
+                    }
+                }
+                if ( orderId.isEmpty() || currency.isEmpty() || situationFiles.isEmpty() ) {
+                    throw new IllegalArgumentException( location + "的订单编号、货币和工厂数据文件不能为空" );
+                }
+                Long firstLine = firstLineByOrderId.putIfAbsent( orderId, lineNumber );
+                if ( firstLine != null ) {
+                    throw new IllegalArgumentException( String.format( "%s的订单编号“%s”与第%d行重复", location, orderId,
+                            firstLine ) );
+                }
+
+                entries.add( new OrderBookEntry( lineNumber, orderId, currency, salesAmount, agentRelativeRatio,
+                        List.copyOf( situationFiles ) ) );
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * 加载订单清单中一行引用的工厂数据
+     * @param entry 订单清单中的一行
+     * @return 订单快照
+     */
+    public static OrderSnapshot loadOrder( OrderBookEntry entry ) throws ExcelIOException, IOException {
+        return loadOrder( entry, null );
+    }
+
+    /**
+     * 按已读入内存的工厂数据文件内容加载订单清单中的一行（如批量任务中已对这些字节计算过输入哈希）
+     * @param entry 订单清单中的一行
+     * @param situationFileContents 各工厂数据文件的全部字节（顺序与 entry.situationFiles() 一致，null表示直接读取文件）
+     * @return 订单快照
+     */
+    public static OrderSnapshot loadOrder( OrderBookEntry entry, List<byte[]> situationFileContents )
+            throws ExcelIOException, IOException {
+        // 订单较多时工厂数据按列保存，快照中只放列表视图
+        List<SourcedProductSituation> sourcedSituations = ProductSituationWorkbookLoader.load( entry.situationFiles(),
+                situationFileContents );
+        List<ProductSituation> situations = new ArrayList<>( sourcedSituations.size() );
+        for ( SourcedProductSituation sourced : sourcedSituations ) {
+            situations.add( sourced.productSituation() );
+        }
+        List<ProductSituation> stored;
+        try {
+            stored = ProductTable.of( situations ).situationView();
+        } catch ( IllegalArgumentException e ) {
+            // 有超过6位小数的数值（如Excel公式结果），列式表格不能按原值保存，该订单仍按对象保存，计算结果不变
+            stored = List.copyOf( situations );
+        }
+        return new OrderSnapshot( entry.orderId(), entry.currency(), entry.salesAmount(), entry.agentRelativeRatio(),
+                stored );
+    }
+}
@@ -0,0 +1,63 @@
+package com.gwill.foreign_trade.io;
+
+import com.gwill.foreign_trade.model.OrderTimeline;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 订单资金流转日期表加载器
+ * 日期表为UTF-8 CSV（可为gzip压缩文件），每行一笔订单，日期格式为yyyy-MM-dd
+ *
+ * CSV格式：订单编号,定金日期,押金日期,发货日期,收汇日期,收到退税日期,工厂退款日期
+ */
+public final class OrderTimelineLoader {
+
+    private static final int COLUMN_COUNT = 7;
+    private static final String[] DATE_HEADERS = { "定金日期", "押金日期", "发货日期", "收汇日期", "收到退税日期", "工厂退款日期" };
+
+    private OrderTimelineLoader() {
+    }
+
+    /**
+     * 加载日期表
+     * @param path 日期表CSV文件路径
+     * @return 订单编号 -> 资金流转日期（顺序与日期表一致）
+     */
+    public static Map<String, OrderTimeline> load( Path path ) throws IOException {
+        Map<String, OrderTimeline> timelines = new LinkedHashMap<>();
+        try ( CsvRecordReader reader = CsvRecordReader.open( path ) ) {
+            reader.next(); // 表头行
+            String[] fields;
+            while ( ( fields = reader.next() ) != null ) {
+                long lineNumber = reader.lineNumber();
+                if ( fields.length < COLUMN_COUNT ) {
+                    throw new IllegalArgumentException( String.format( "日期表第%d行数据不完整，需要至少%d列数据",
+                            lineNumber, COLUMN_COUNT ) );
+                }
+                String orderId = fields[0];
+                if ( orderId.isEmpty() ) {
+                    throw new IllegalArgumentException( String.format( "日期表第%d行的订单编号不能为空", lineNumber ) );
+                }
+                LocalDate[] dates = new LocalDate[DATE_HEADERS.length];
+                for ( int i = 0; i < dates.length; i++ ) {
+                    try {
+                        dates[i] = LocalDate.parse( fields[i + 1] );
+                    } catch ( DateTimeParseException e ) {
+                        throw new IllegalArgumentException( String.format( "日期表第%d行的%s格式不正确，应为yyyy-MM-dd",
+                                lineNumber, DATE_HEADERS[i] ) );
+                    }
+                }
+                if ( timelines.put( orderId, new OrderTimeline( orderId, dates[0], dates[1], dates[2], dates[3],
+                        dates[4], dates[5] ) ) != null ) {
+                    throw new IllegalArgumentException( String.format( "日期表第%d行的订单编号重复：%s", lineNumber, orderId ) );
+                }
+            }
+        }
+        return timelines;
+    }
+}
@@ -0,0 +1,523 @@
+package com.gwill.foreign_trade.io;
+
+import com.gwill.foreign_trade.model.NameDictionary;
+import com.gwill.foreign_trade.model.ProductSituation;
+import com.gwill.foreign_trade.model.ProductTable;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.math.BigDecimal;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.IntFunction;
+import java.util.zip.GZIPInputStream;
+
+import static java.lang.foreign.ValueLayout.JAVA_BYTE;
+
+/**
+ * 产品情况CSV加载器
+ * 以内存映射方式扫描UTF-8编码（可带BOM）的CSV文件，直接从字节解析金额、百分比和布尔值，
+ * .csv.gz 文件无法映射，改为边解压边扫描一个滑动窗口，解析方式相同；
+ * 不再像 ProductSituation.fromCsvRow 那样为每个字段创建中间String；重复的工厂名称和产品名称只保留一份String实例
+ *
+ * CSV格式：工厂名称,产品名称,退税率,PI外币销售金额,实际货值,已预付金额,税点,同意开票给代理公司,可超额开票
+ * 首行必须为表头；必需列之后可带“最高开票金额”“最高超额比例”可选列（按表头名称识别，留空表示不限），
+ * 其他多余的列将被忽略，空行将被跳过。表头缺失、引号不闭合等结构错误立即抛出带行号、列号的 CsvFormatException；
+ * 字段格式和取值问题由 ProductSituationValidator 在同一遍扫描中逐行收集，读完全文后一次抛出 DataValidationException
+ */
+public final class ProductSituationCsvLoader {
+
+    // 必需列定义（顺序即CSV列顺序）
+    private static final String[] HEADERS = {
+            ProductSituation.HEADER_FACTORY_NAME,
+            ProductSituation.HEADER_PRODUCT_NAME,
+            ProductSituation.HEADER_TAX_REBATE_RATE,
+            ProductSituation.HEADER_SALES_AMOUNT_FOREIGN,
+            ProductSituation.HEADER_ACTUAL_PURCHASE_AMOUNT,
+            ProductSituation.HEADER_PREPAID_AMOUNT,
+            ProductSituation.HEADER_TAX_POINT,
+            ProductSituation.HEADER_AGREE_TO_INVOICE_AGENT,
+            ProductSituation.HEADER_ABLE_TO_INVOICE_OVERPRICE
+    };
+    private static final int COLUMN_COUNT = HEADERS.length;
+
+    // 必需列之后可按表头名称识别的可选列，最多识别到第MAX_RECORDED_COLUMNS列
+    private static final int MAX_RECORDED_COLUMNS = 16;
+
+    private static final int COL_FACTORY_NAME = 0;
+    private static final int COL_PRODUCT_NAME = 1;
+    private static final int COL_TAX_REBATE_RATE = 2;
+    private static final int COL_SALES_AMOUNT = 3;
+    private static final int COL_ACTUAL_PURCHASE_AMOUNT = 4;
+    private static final int COL_PREPAID_AMOUNT = 5;
+    private static final int COL_TAX_POINT = 6;
+    private static final int COL_AGREE_TO_INVOICE = 7;
+    private static final int COL_ABLE_TO_OVERPRICE = 8;
+
+    // long可精确容纳的十进制有效数字位数，超出时退回BigDecimal字符串解析
+    private static final int MAX_FAST_PATH_DIGITS = 18;
+
+    // 解压后数据的扫描窗口初始大小（单条记录超过窗口时自动加倍）
+    private static final int STREAMING_WINDOW_SIZE = 1024 * 1024;
+
+    private static final byte[] YES_BYTES = "是".getBytes( StandardCharsets.UTF_8 );
+    private static final byte[] TRUE_BYTES = "true".getBytes( StandardCharsets.US_ASCII );
+    private static final byte[] NO_BYTES = "否".getBytes( StandardCharsets.UTF_8 );
+    private static final byte[] FALSE_BYTES = "false".getBytes( StandardCharsets.US_ASCII );
+
+    private ProductSituationCsvLoader() {
+    }
+
+    /**
+     * 加载CSV文件中的全部产品情况
+     * @param csvPath CSV文件路径
+     * @return 按文件行顺序排列的产品情况列表
+     * @throws IOException 文件无法读取
+     * @throws CsvFormatException 文件结构错误（带行号、列号）
+     * @throws DataValidationException 数据校验未通过（包含全部问题）
+     */
+    public static List<ProductSituation> load( Path csvPath ) throws IOException {
+        List<ProductSituation> result = new ArrayList<>();
+        load( csvPath, ( situation, lineNumber ) -> result.add( situation ) );
+        return result;
+    }
+
+    /**
+     * 加载CSV文件中的全部产品情况，直接以列式表格保存（适合全年汇总账册等大文件）
+     * @param csvPath CSV文件路径
+     * @return 按文件行顺序排列的列式表格
+     * @throws IOException 文件无法读取
+     * @throws CsvFormatException 文件结构错误（带行号、列号）
+     * @throws DataValidationException 数据校验未通过（包含全部问题）
+     * @throws IllegalArgumentException 某行数值超过6位小数，列式表格无法按原值保存（带行号）
+     */
+    public static ProductTable loadTable( Path csvPath ) throws IOException {
+        ProductTable table = new ProductTable( 1024 );
+        load( csvPath, ( situation, lineNumber ) -> {
+            try {
+                table.add( situation );
+            } catch ( IllegalArgumentException e ) {
+                throw new IllegalArgumentException( String.format( "%s 第%d行：%s", csvPath, lineNumber, e.getMessage() ), e );
+            }
+        } );
+        table.trimToSize();
+        return table;
+    }
+
+    /**
+     * 逐条加载CSV文件中的产品情况，每解析出一条通过校验的记录即回调一次
+     * @param csvPath CSV文件路径
+     * @param handler 记录处理器，同时接收该记录在源文件中的起始行号
+     * @throws IOException 文件无法读取
+     * @throws CsvFormatException 文件结构错误（带行号、列号）
+     * @throws DataValidationException 数据校验未通过（包含全部问题）
+     */
+    public static void load( Path csvPath, RowHandler handler ) throws IOException {
+        ProductSituationValidator validator = new ProductSituationValidator( csvPath.toString(), null );
+        scan( csvPath, handler, validator, true );
+        validator.throwIfInvalid();
+    }
+
+    /**
+     * 逐条加载已整体读入内存的CSV文件内容（如批量任务中已计算过哈希的文件字节），解析结果与直接加载该文件相同
+     * @param csvPath 来源文件路径（按文件名判断是否为gzip压缩，并用于报告问题）
+     * @param content 文件的全部字节
+     * @param handler 记录处理器，同时接收该记录在源文件中的起始行号
+     * @throws IOException 压缩数据无法解压
+     * @throws CsvFormatException 文件结构错误（带行号、列号）
+     * @throws DataValidationException 数据校验未通过（包含全部问题）
+     */
+    public static void load( Path csvPath, byte[] content, RowHandler handler ) throws IOException {
+        ProductSituationValidator validator = new ProductSituationValidator( csvPath.toString(), null );
+        if ( GzipFiles.isGzip( csvPath ) ) {
+            try ( InputStream in = new GZIPInputStream( new ByteArrayInputStream( content ),
+                    GzipFiles.STREAM_BUFFER_SIZE ) ) {
+                new RowScanner( in, true ).readAll( handler, validator );
+            }
+        } else {
+            if ( content.length == 0 ) {
+                throw new CsvFormatException( 1, 0, null, "文件为空，缺少表头行" );
+            }
+            new RowScanner( MemorySegment.ofArray( content ), true ).readAll( handler, validator );
+        }
+        validator.throwIfInvalid();
+    }
+
+    /**
+     * 逐条扫描超出堆内存的CSV文件：名称不经驻留表（每行新建String），堆内不保留随行数增长的状态；
+     * 数据问题只记入 validator，不抛出 DataValidationException，由调用方补充重复检查后再 throwIfInvalid
+     * @param validator 校验器（通常关闭了堆内的重复检查）
+     * @throws IOException 文件无法读取
+     * @throws CsvFormatException 文件结构错误（带行号、列号）
+     */
+    public static void scan( Path csvPath, ProductSituationValidator validator, RowHandler handler ) throws IOException {
+        scan( csvPath, handler, validator, false );
+    }
+
+    private static void scan( Path csvPath, RowHandler handler, ProductSituationValidator validator,
+                              boolean internNames ) throws IOException {
+        if ( GzipFiles.isGzip( csvPath ) ) {
+            try ( InputStream in = GzipFiles.newInputStream( csvPath ) ) {
+                new RowScanner( in, internNames ).readAll( handler, validator );
+            }
+            return;
+        }
+        try ( FileChannel channel = FileChannel.open( csvPath, StandardOpenOption.READ );
+              Arena arena = Arena.ofConfined() ) {
+            long size = channel.size();
+            if ( size == 0 ) {
+                throw new CsvFormatException( 1, 0, null, "文件为空，缺少表头行" );
+            }
+            MemorySegment data = channel.map( FileChannel.MapMode.READ_ONLY, 0, size, arena );
+            new RowScanner( data, internNames ).readAll( handler, validator );
+        }
+    }
+
+    /**
+     * CSV记录处理器
+     */
+    @FunctionalInterface
+    public interface RowHandler {
+        void accept( ProductSituation situation, long lineNumber );
+    }
+
+    /**
+     * 逐行扫描映射内存的解析器（非线程安全，每次加载新建一个），记录切分见 CsvScanner
+     */
+    private static final class RowScanner extends CsvScanner {
+
+        // 可选列位置（-1表示文件中没有该列）
+        private int maxInvoiceAmountColumn = -1;
+        private int maxOverpriceRatioColumn = -1;
+
+        // 字段格式问题和取值问题都交给校验器
+        private ProductSituationValidator validator;
+
+        // 不驻留名称时为null
+        private final NameInterner factoryNames;
+        private final NameInterner productNames;
+
+        RowScanner( MemorySegment data, boolean internNames ) {
+            super( data, MAX_RECORDED_COLUMNS );
+            this.factoryNames = internNames ? new NameInterner() : null;
+            this.productNames = internNames ? new NameInterner() : null;
+        }
+
+        RowScanner( InputStream source, boolean internNames ) {
+            super( source, STREAMING_WINDOW_SIZE, MAX_RECORDED_COLUMNS );
+            this.factoryNames = internNames ? new NameInterner() : null;
+            this.productNames = internNames ? new NameInterner() : null;
+        }
+
+        void readAll( RowHandler handler, ProductSituationValidator validator ) throws IOException {
+            this.validator = validator;
+            if ( start() ) {
+                throw new CsvFormatException( 1, 0, null, "文件为空，缺少表头行" );
+            }
+            if ( !nextRow() ) {
+                throw new CsvFormatException( 1, 0, null, "缺少表头行" );
+            }
+            checkHeader();
+
+            while ( nextRow() ) {
+                if ( isBlankRow() ) {
+                    continue;
+                }
+                ProductSituation situation = toProductSituation();
+                if ( situation != null && validator.check( situation, rowLineNumber ) ) {
+                    handler.accept( situation, rowLineNumber );
+                }
+            }
+        }
+
+        // =========================== 字段解析 ===========================
+
+        private void checkHeader() {
+            for ( int column = 0; column < COLUMN_COUNT; column++ ) {
+                if ( column >= fieldCount ) {
+                    throw error( column, "缺少表头列，应为“" + HEADERS[column] + "”" );
+                }
+                if ( !HEADERS[column].equals( fieldText( column ) ) ) {
+                    throw error( column, "表头应为“" + HEADERS[column] + "”" );
+                }
+            }
+            for ( int column = COLUMN_COUNT; column < Math.min( fieldCount, MAX_RECORDED_COLUMNS ); column++ ) {
+                String header = fieldText( column );
+                if ( ProductSituation.HEADER_MAX_INVOICE_AMOUNT.equals( header ) ) {
+                    maxInvoiceAmountColumn = column;
+                } else if ( ProductSituation.HEADER_MAX_OVERPRICE_RATIO.equals( header ) ) {
+                    maxOverpriceRatioColumn = column;
+                }
+            }
+        }
+
+        /**
+         * 解析当前记录的全部字段，每个出错的字段都交给校验器
+         * @return 产品情况，出错的字段为null（布尔字段为false）；列数不足时返回null
+         */
+        private ProductSituation toProductSituation() {
+            if ( fieldCount < COLUMN_COUNT ) {
+                validator.reject( rowLineNumber, null, "CSV行数据不完整，需要至少" + COLUMN_COUNT + "列数据" );
+                return null;
+            }
+
+            String factoryName = field( COL_FACTORY_NAME, column -> parseName( column, factoryNames ) );
+            String productName = field( COL_PRODUCT_NAME, column -> parseName( column, productNames ) );
+            BigDecimal taxRebateRate = field( COL_TAX_REBATE_RATE, this::parseDecimal );
+            BigDecimal salesAmount = field( COL_SALES_AMOUNT, this::parseDecimal );
+            BigDecimal actualPurchaseAmount = field( COL_ACTUAL_PURCHASE_AMOUNT, this::parseDecimal );
+            BigDecimal prepaidAmount = field( COL_PREPAID_AMOUNT, this::parseDecimal );
+            BigDecimal taxPoint = field( COL_TAX_POINT, this::parseDecimal );
+            Boolean agreeToInvoice = field( COL_AGREE_TO_INVOICE, this::parseBoolean );
+            Boolean ableToOverprice = field( COL_ABLE_TO_OVERPRICE, this::parseBoolean );
+            BigDecimal maxInvoiceAmount = field( maxInvoiceAmountColumn, this::parseOptionalDecimal );
+            BigDecimal maxOverpriceRatio = field( maxOverpriceRatioColumn, this::parseOptionalDecimal );
+
+            return new ProductSituation( factoryName, productName, taxRebateRate, salesAmount, actualPurchaseAmount,
+                    prepaidAmount, taxPoint, Boolean.TRUE.equals( agreeToInvoice ), Boolean.TRUE.equals( ableToOverprice ),
+                    maxInvoiceAmount, maxOverpriceRatio );
+        }
+
+        /**
+         * 解析一个字段，出错时记录问题并返回null，继续解析本行其余字段
+         */
+        private <T> T field( int column, IntFunction<T> parser ) {
+            try {
+                return parser.apply( column );
+            } catch ( CsvFormatException e ) {
+                validator.reject( e );
+                return null;
+            }
+        }
+
+        /**
+         * 解析可选列，列不存在、本行缺少该列或留空时返回null
+         */
+        private BigDecimal parseOptionalDecimal( int column ) {
+            if ( column < 0 || column >= fieldCount || fieldStart[column] == fieldEnd[column] ) {
+                return null;
+            }
+            return parseDecimal( column );
+        }
+
+        private String parseName( int column, NameInterner interner ) {
+            long start = fieldStart[column];
+            long end = fieldEnd[column];
+            if ( start == end ) {
+                throw error( column, "不能为空" );
+            }
+            if ( interner == null ) {
+                return fieldText( column );
+            }
+            if ( fieldEscaped[column] ) {
+                return interner.intern( fieldText( column ) );
+            }
+            return interner.intern( data, start, end );
+        }
+
+        /**
+         * 直接从字节解析十进制数，支持正负号、小数点、千位分隔符（仅可能出现在带引号的字段中）和%后缀
+         * 18位有效数字以内走long累加的快速路径，结果与 new BigDecimal(text) 的数值和精度一致
+         */
+        private BigDecimal parseDecimal( int column ) {
+            long start = fieldStart[column];
+            long end = fieldEnd[column];
+            if ( start == end ) {
+                throw error( column, "不能为空" );
+            }
+
+            boolean percent = false;
+            if ( byteAt( end - 1 ) == '%' ) {
+                percent = true;
+                end = trimTrailing( start, end - 1 );
+            }
+
+            long p = start;
+            boolean negative = false;
+            if ( p < end && ( byteAt( p ) == '-' || byteAt( p ) == '+' ) ) {
+                negative = byteAt( p ) == '-';
+                p++;
+            }
+
+            long unscaled = 0;
+            int scale = 0;
+            int significantDigits = 0;
+            boolean anyDigit = false;
+            boolean seenPoint = false;
+            for ( ; p < end; p++ ) {
+                byte b = byteAt( p );
+                if ( b >= '0' && b <= '9' ) {
+                    if ( significantDigits == MAX_FAST_PATH_DIGITS ) {
+                        return parseDecimalSlowly( column, start, end, percent );
+                    }
+                    unscaled = unscaled * 10 + ( b - '0' );
+                    if ( unscaled != 0 ) {
+                        significantDigits++;
+                    }
+                    if ( seenPoint ) {
+                        scale++;
+                    }
+                    anyDigit = true;
+                } else if ( b == '.' && !seenPoint ) {
+                    seenPoint = true;
+                } else if ( b == ',' && !seenPoint ) {
+                    // 千位分隔符，直接跳过
+                } else {
+                    throw error( column, "格式不正确！请输入数字！" );
+                }
+            }
+            if ( !anyDigit ) {
+                throw error( column, "格式不正确！请输入数字！" );
+            }
+
+            if ( percent ) {
+                scale += 2;
+            }
+            return BigDecimal.valueOf( negative ? -unscaled : unscaled, scale );
+        }
+
+        private BigDecimal parseDecimalSlowly( int column, long start, long end, boolean percent ) {
+            String text = text( start, end ).replace( ",", "" );
+            try {
+                BigDecimal value = new BigDecimal( text );
+                return percent ? value.movePointLeft( 2 ) : value;
+            } catch ( NumberFormatException e ) {
+                throw error( column, "格式不正确！请输入数字！" );
+            }
+        }
+
+        /**
+         * 解析布尔值（支持中文"是/否"和英文"true/false"，留空视为否），规则与 ProductSituation.fromCsvRow 一致
+         */
+        private boolean parseBoolean( int column ) {
+            long start = fieldStart[column];
+            long length = fieldEnd[column] - start;
+            if ( length == YES_BYTES.length && matches( start, YES_BYTES, false ) ) {
+                return true;
+            }
+            if ( length == TRUE_BYTES.length && matches( start, TRUE_BYTES, true ) ) {
+                return true;
+            }
+            if ( length == 0 || length == NO_BYTES.length && matches( start, NO_BYTES, false )
+                    || length == FALSE_BYTES.length && matches( start, FALSE_BYTES, true ) ) {
+                return false;
+            }
+            throw error( column, "无法识别“" + fieldText( column ) + "”，应为“是”或“否”" );
+        }
+
+        private boolean matches( long start, byte[] expected, boolean ignoreAsciiCase ) {
+            for ( int i = 0; i < expected.length; i++ ) {
+                byte b = byteAt( start + i );
+                if ( ignoreAsciiCase && b >= 'A' && b <= 'Z' ) {
+                    b += 'a' - 'A';
+                }
+                if ( b != expected[i] ) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        String columnName( int columnIndex ) {
+            return columnIndex < COLUMN_COUNT ? HEADERS[columnIndex] :
+                    columnIndex == maxInvoiceAmountColumn ? ProductSituation.HEADER_MAX_INVOICE_AMOUNT :
+                    columnIndex == maxOverpriceRatioColumn ? ProductSituation.HEADER_MAX_OVERPRICE_RATIO :
+                    super.columnName( columnIndex );
+        }
+    }
+
+    /**
+     * 名称驻留表：按UTF-8字节内容查找已有的String实例，命中时不产生任何新对象
+     * 首次出现的名称登记到本次加载的名称字典，带转义引号的同名名称也得到同一个实例；驻留表随加载结束一起回收。
+     * 开放寻址 + 线性探测，负载因子不超过0.5
+     */
+    private static final class NameInterner {
+
+        private byte[][] keys = new byte[64][];
+        private int[] hashes = new int[64];
+        private String[] values = new String[64];
+        private int size;
+
+        private final NameDictionary dictionary = new NameDictionary();
+
+        String intern( MemorySegment data, long start, long end ) {
+            int length = (int) ( end - start );
+            int hash = 1;
+            for ( long p = start; p < end; p++ ) {
+                hash = 31 * hash + data.get( JAVA_BYTE, p );
+            }
+
+            int mask = keys.length - 1;
+            int slot = spread( hash ) & mask;
+            while ( keys[slot] != null ) {
+                if ( hashes[slot] == hash && sameBytes( keys[slot], data, start, length ) ) {
+                    return values[slot];
+                }
+                slot = ( slot + 1 ) & mask;
+            }
+
+            byte[] key = new byte[length];
+            MemorySegment.copy( data, JAVA_BYTE, start, key, 0, length );
+            String value = dictionary.canonical( new String( key, StandardCharsets.UTF_8 ) );
+            keys[slot] = key;
+            hashes[slot] = hash;
+            values[slot] = value;
+            if ( ++size * 2 > keys.length ) {
+                grow();
+            }
+            return value;
+        }
+
+        // 带转义引号的名称较少见，直接查字典
+        String intern( String name ) {
+            return dictionary.canonical( name );
+        }
+
+        private static boolean sameBytes( byte[] key, MemorySegment data, long start, int length ) {
+            if ( key.length != length ) {
+                return false;
+            }
+            for ( int i = 0; i < length; i++ ) {
+                if ( key[i] != data.get( JAVA_BYTE, start + i ) ) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static int spread( int hash ) {
+            return hash ^ ( hash >>> 16 );
+        }
+
+        private void grow() {
+            byte[][] oldKeys = keys;
+            int[] oldHashes = hashes;
+            String[] oldValues = values;
+            keys = new byte[oldKeys.length * 2][];
+            hashes = new int[oldKeys.length * 2];
+            values = new String[oldKeys.length * 2];
+
+            int mask = keys.length - 1;
+            for ( int i = 0; i < oldKeys.length; i++ ) {
+                if ( oldKeys[i] == null ) {
+                    continue;
+                }
+                int slot = spread( oldHashes[i] ) & mask;
+                while ( keys[slot] != null ) {
+                    slot = ( slot + 1 ) & mask;
+                }
+                keys[slot] = oldKeys[i];
+                hashes[slot] = oldHashes[i];
+                values[slot] = oldValues[i];
+            }
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package com.gwill.foreign_trade.io;
+
+import com.gwill.foreign_trade.model.NameDictionary;
+import com.gwill.foreign_trade.model.ProductSituation;
+import com.gwill.foreign_trade.model.SourcedProductSituation;
+import com.gwill.foreign_trade.model.ValidationProblem;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * 产品情况校验器
+ * 加载器每解析出一行即调用 check，在同一遍扫描中检查取值范围、负数金额、预付超过货值和重复的工厂产品，
+ * 解析失败的单元格通过 reject 记录；出错后继续检查后续各行，加载结束时由 throwIfInvalid 一次报告全部问题。
+ * 通过校验的数据满足 MultiFactoryInvoiceCalculationService 对单个产品的全部要求，计算时不再逐行检查；
+ * 由程序直接构造的产品信息在计算入口处经 MultiFactoryInvoiceCalculationService.validateProductSituations 检查一次。
+ * 数据量超出堆内存时可关闭堆内的重复检查，由调用方在外存中检查后通过 rejectDuplicate 报告（见 SpilledProductSituations）。
+ * 每个文件（工作表）一个实例，非线程安全
+ */
+public final class ProductSituationValidator {
+
+    private final String sourceFile;
+    private final String sheetName;
+    private final List<ValidationProblem> problems = new ArrayList<>();
+    // （工厂名称编号, 产品名称编号） -> 首次出现的行号，编号取自本校验器的名称字典
+    private final NameDictionary names = new NameDictionary();
+    private final Map<Long, Long> firstRowByNameKey;
+    private long lastRejectedRowNumber = -1;
+
+    /**
+     * @param sourceFile 来源文件路径
+     * @param sheetName 来源工作表名称（CSV文件为null）
+     */
+    public ProductSituationValidator( String sourceFile, String sheetName ) {
+        this( sourceFile, sheetName, true );
+    }
+
+    /**
+     * @param sourceFile 来源文件路径
+     * @param sheetName 来源工作表名称（CSV文件为null）
+     * @param checkDuplicates 是否在堆内检查重复的工厂产品（为false时由调用方检查）
+     */
+    public ProductSituationValidator( String sourceFile, String sheetName, boolean checkDuplicates ) {
+        this.sourceFile = sourceFile;
+        this.sheetName = sheetName;
+        this.firstRowByNameKey = checkDuplicates ? new HashMap<>() : null;
+    }
+
+    /**
+     * 记录一处解析失败
+     * @param columnName 出错列名（整行问题为null）
+     */
+    public void reject( long rowNumber, String columnName, String message ) {
+        lastRejectedRowNumber = rowNumber;
+        problems.add( new ValidationProblem( sourceFile, sheetName, rowNumber, columnName, message ) );
+    }
+
+    /**
+     * 记录CSV字段的解析错误
+     */
+    void reject( CsvFormatException e ) {
+        reject( e.getLineNumber(), e.getColumnName(), e.getDetail() );
+    }
+
+    /**
+     * 检查已解析的一行；解析失败的字段为null，跳过与之相关的检查，其余字段照常检查
+     * @return 本行（含此前 reject 记录的本行解析问题）是否没有问题
+     */
+    public boolean check( ProductSituation prodSituation, long rowNumber ) {
+        BigDecimal taxRebateRate = prodSituation.taxRebateRate();
+        if ( taxRebateRate != null && ( taxRebateRate.signum() <= 0 || taxRebateRate.compareTo( BigDecimal.ONE ) >= 0 ) ) {
+            reject( rowNumber, ProductSituation.HEADER_TAX_REBATE_RATE, "退税率必须在0-100%之间" );
+        }
+        BigDecimal salesAmount = prodSituation.salesAmountInForeignCurrency();
+        if ( salesAmount != null && salesAmount.signum() <= 0 ) {
+            reject( rowNumber, ProductSituation.HEADER_SALES_AMOUNT_FOREIGN, "销售金额必须大于0" );
+        }
+        BigDecimal actualPurchaseAmount = prodSituation.actualPurchaseAmount();
+        BigDecimal prepaidAmount = prodSituation.prepaidAmount();
+        requireNonNegative( actualPurchaseAmount, rowNumber, ProductSituation.HEADER_ACTUAL_PURCHASE_AMOUNT );
+        requireNonNegative( prepaidAmount, rowNumber, ProductSituation.HEADER_PREPAID_AMOUNT );
+        if ( actualPurchaseAmount != null && prepaidAmount != null && prepaidAmount.compareTo( actualPurchaseAmount ) > 0 ) {
+            reject( rowNumber, ProductSituation.HEADER_PREPAID_AMOUNT, "已预付金额大于实际货值" );
+        }
+        BigDecimal taxPoint = prodSituation.taxPoint();
+        if ( taxPoint != null && ( taxPoint.signum() < 0 || taxPoint.compareTo( BigDecimal.ONE ) > 0 ) ) {
+            reject( rowNumber, ProductSituation.HEADER_TAX_POINT, "税点必须在0-100%之间" );
+        }
+        requireNonNegative( prodSituation.maxInvoiceAmount(), rowNumber, ProductSituation.HEADER_MAX_INVOICE_AMOUNT );
+        requireNonNegative( prodSituation.maxOverpriceRatio(), rowNumber, ProductSituation.HEADER_MAX_OVERPRICE_RATIO );
+
+        if ( firstRowByNameKey != null && prodSituation.factoryName() != null && prodSituation.productName() != null ) {
+            Long firstRow = firstRowByNameKey.putIfAbsent( nameKey( names, prodSituation ), rowNumber );
+            if ( firstRow != null ) {
+                rejectDuplicate( prodSituation.factoryName(), prodSituation.productName(), rowNumber, firstRow );
+            }
+        }
+        return lastRejectedRowNumber != rowNumber;
+    }
+
+    /**
+     * 记录一处重复的工厂产品
+     * @param firstRowNumber 该工厂产品首次出现的行号
+     */
+    public void rejectDuplicate( String factoryName, String productName, long rowNumber, long firstRowNumber ) {
+        reject( rowNumber, null, String.format( "工厂“%s”的产品“%s”与第%d行重复", factoryName, productName,
+                firstRowNumber ) );
+    }
+
+    public List<ValidationProblem> problems() {
+        return problems;
+    }
+
+    /**
+     * 有问题时抛出携带全部问题的 DataValidationException（调用方检查的重复问题按行号排回原位）
+     */
+    public void throwIfInvalid() {
+        if ( firstRowByNameKey == null ) {
+            problems.sort( Comparator.comparingLong( ValidationProblem::rowNumber ) );
+        }
+        if ( !problems.isEmpty() ) {
+            throw new DataValidationException( problems );
+        }
+    }
+
+    /**
+     * 检查合并后的数据中来自不同文件（工作表）的重复工厂产品（同一文件内的重复已由各自的校验器报告）
+     * @return 发现的问题，按合并后的顺序排列
+     */
+    public static List<ValidationProblem> findDuplicatesAcrossSources( List<SourcedProductSituation> merged ) {
+        List<ValidationProblem> duplicates = new ArrayList<>();
+        NameDictionary names = new NameDictionary();
+        Map<Long, SourcedProductSituation> firstByNameKey = new HashMap<>();
+        for ( SourcedProductSituation sourced : merged ) {
+            SourcedProductSituation first = firstByNameKey.putIfAbsent( nameKey( names, sourced.productSituation() ),
+                    sourced );
+            if ( first != null && !( first.sourceFile().equals( sourced.sourceFile() )
+                    && Objects.equals( first.sheetName(), sourced.sheetName() ) ) ) {
+                ProductSituation prodSituation = sourced.productSituation();
+                duplicates.add( new ValidationProblem( sourced.sourceFile(), sourced.sheetName(), sourced.rowNumber(),
+                        null, String.format( "工厂“%s”的产品“%s”与 %s 重复",
+                        prodSituation.factoryName(), prodSituation.productName(), first.describeSource() ) ) );
+            }
+        }
+        return duplicates;
+    }
+
+    private void requireNonNegative( BigDecimal value, long rowNumber, String columnName ) {
+        if ( value != null && value.signum() < 0 ) {
+            reject( rowNumber, columnName, "不能为负数" );
+        }
+    }
+
+    private static long nameKey( NameDictionary names, ProductSituation prodSituation ) {
+        return names.keyOf( prodSituation.factoryName(), prodSituation.productName() );
+    }
+}
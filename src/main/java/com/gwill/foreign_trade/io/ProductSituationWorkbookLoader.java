@@ -0,0 +1,278 @@
+package com.gwill.foreign_trade.io;
+
+import com.gwill.foreign_trade.model.NameDictionary;
+import com.gwill.foreign_trade.model.ProductSituation;
+import com.gwill.foreign_trade.model.SourcedProductSituation;
+import com.gwill.foreign_trade.model.ValidationProblem;
+import com.gwill.io.excel.ExcelIO;
+import com.gwill.io.excel.ExcelIOException;
+import com.gwill.io.excel.util.ResourceUtil;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * 多文件产品情况加载器
+ * 同时读取多个供应商文件（.xlsx的全部工作表，或.csv文件），每个工作表一个虚拟线程，
+ * 合并为一个带来源信息（文件、工作表、行号）的列表，顺序与文件顺序、工作表顺序、行顺序一致。
+ * 每个工作表边读边由 ProductSituationValidator 校验，全部文件读完后连同跨文件的重复工厂产品一起报告
+ */
+public final class ProductSituationWorkbookLoader {
+
+    // 输入文件数据类型元数据
+    public static final String INPUT_FILE_METADATA_RELATIVE_PATH = "data_types/multi_factory_situations_data_types.xlsx";
+
+    // xlsx工作簿中记录工作表顺序和名称的部件
+    private static final String WORKBOOK_PART = "xl/workbook.xml";
+    private static final Pattern SHEET_NAME_PATTERN = Pattern.compile( "<(?:\\w+:)?sheet\\s[^>]*?\\bname=\"([^\"]*)\"" );
+
+    // Excel数据从第2行开始（第1行为表头）
+    private static final int FIRST_DATA_ROW_NUMBER = 2;
+
+    private ProductSituationWorkbookLoader() {
+    }
+
+    /**
+     * 并发加载多个文件中的全部产品情况
+     * @param inputFiles 输入文件列表（.xlsx 或 .csv）
+     * @return 合并后的带来源信息的产品情况列表
+     * @throws ExcelIOException Excel文件读取失败（消息中包含出错的文件和工作表）
+     * @throws IOException 文件无法读取
+     * @throws DataValidationException 数据校验未通过（包含全部文件中的全部问题）
+     */
+    public static List<SourcedProductSituation> load( List<Path> inputFiles ) throws ExcelIOException, IOException {
+        return load( inputFiles, null );
+    }
+
+    /**
+     * 按已读入内存的文件内容并发加载（如批量任务中已计算过哈希的文件字节），加载期间磁盘上的文件被修改不影响结果。
+     * CSV直接从这些字节解析；Excel读取库只接受文件路径，xlsx先把这些字节写到临时快照文件再读取，问题报告中仍为原文件路径
+     * @param inputFiles 输入文件列表（.xlsx 或 .csv）
+     * @param contents 各文件的全部字节（顺序与inputFiles一致，null表示直接读取文件）
+     * @return 合并后的带来源信息的产品情况列表
+     */
+    public static List<SourcedProductSituation> load( List<Path> inputFiles, List<byte[]> contents )
+            throws ExcelIOException, IOException {
+        // 元数据仅用于读取xlsx，纯CSV输入无需加载
+        boolean anyWorkbook = inputFiles.stream().anyMatch( inputFile -> !isCsvFile( inputFile ) );
+        byte[] metadata = anyWorkbook ? readMetadata() : null;
+        // 本次加载的各工作表共用一个名称字典，同名的工厂、产品名称只保留一份
+        NameDictionary names = new NameDictionary();
+
+        try ( ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor() ) {
+            List<Future<List<SourcedProductSituation>>> fileTasks = new ArrayList<>();
+            for ( int i = 0; i < inputFiles.size(); i++ ) {
+                Path inputFile = inputFiles.get( i );
+                byte[] content = contents == null ? null : contents.get( i );
+                fileTasks.add( executor.submit( () -> loadFile( executor, inputFile, content, metadata, names ) ) );
+            }
+
+            List<SourcedProductSituation> merged = new ArrayList<>();
+            List<ValidationProblem> problems = new ArrayList<>();
+            try {
+                for ( Future<List<SourcedProductSituation>> fileTask : fileTasks ) {
+                    try {
+                        merged.addAll( awaitTask( fileTask ) );
+                    } catch ( DataValidationException e ) {
+                        // 数据问题不影响读取其余文件，汇总后一起报告
+                        problems.addAll( e.getProblems() );
+                    }
+                }
+            } catch ( Exception e ) {
+                // 任一文件无法读取即放弃其余任务
+                executor.shutdownNow();
+                throw e;
+            }
+            problems.addAll( ProductSituationValidator.findDuplicatesAcrossSources( merged ) );
+            if ( !problems.isEmpty() ) {
+                throw new DataValidationException( problems );
+            }
+            return merged;
+        }
+    }
+
+    /**
+     * 加载单个文件：CSV直接解析；xlsx按工作表拆分为并发任务
+     * @param content 文件的全部字节（null表示直接读取文件）
+     */
+    private static List<SourcedProductSituation> loadFile( ExecutorService executor, Path inputFile, byte[] content,
+                                                           byte[] metadata, NameDictionary names )
+            throws ExcelIOException, IOException {
+        String sourceFile = inputFile.toString();
+        List<SourcedProductSituation> result = new ArrayList<>();
+
+        if ( isCsvFile( inputFile ) ) {
+            ProductSituationCsvLoader.RowHandler handler = ( situation, lineNumber ) ->
+                    result.add( new SourcedProductSituation( situation, sourceFile, null, lineNumber ) );
+            if ( content == null ) {
+                ProductSituationCsvLoader.load( inputFile, handler );
+            } else {
+                ProductSituationCsvLoader.load( inputFile, content, handler );
+            }
+            return result;
+        }
+
+        if ( content == null ) {
+            return loadWorkbook( executor, inputFile, sourceFile, metadata, names );
+        }
+        Path snapshot = Files.createTempFile( "workbook-snapshot-", ".xlsx" );
+        try {
+            Files.write( snapshot, content );
+            return loadWorkbook( executor, snapshot, sourceFile, metadata, names );
+        } finally {
+            try {
+                Files.deleteIfExists( snapshot );
+            } catch ( IOException e ) {
+                // 出错时其他工作表可能仍在读取快照（Windows上无法删除打开的文件），退出时再删
+                snapshot.toFile().deleteOnExit();
+            }
+        }
+    }
+
+    /**
+     * 按工作表并发加载一个工作簿
+     * @param workbookFile 读取的工作簿文件（可为快照文件）
+     * @param sourceFile 问题报告和来源信息中的文件路径
+     */
+    private static List<SourcedProductSituation> loadWorkbook( ExecutorService executor, Path workbookFile,
+                                                               String sourceFile, byte[] metadata, NameDictionary names )
+            throws ExcelIOException, IOException {
+        List<SourcedProductSituation> result = new ArrayList<>();
+        List<String> sheetNames = listSheetNames( workbookFile );
+        List<ValidationProblem> problems = new ArrayList<>();
+        List<Future<List<SourcedProductSituation>>> sheetTasks = new ArrayList<>();
+        for ( int sheetIndex = 0; sheetIndex < sheetNames.size(); sheetIndex++ ) {
+            int index = sheetIndex;
+            String sheetName = sheetNames.get( sheetIndex );
+            sheetTasks.add( executor.submit( () -> loadSheet( workbookFile, sourceFile, index, sheetName, metadata,
+                    names ) ) );
+        }
+        for ( int sheetIndex = 0; sheetIndex < sheetTasks.size(); sheetIndex++ ) {
+            try {
+                result.addAll( awaitTask( sheetTasks.get( sheetIndex ) ) );
+            } catch ( DataValidationException e ) {
+                problems.addAll( e.getProblems() );
+            } catch ( ExcelIOException e ) {
+                ExcelIOException located = new ExcelIOException( String.format( "%s [%s]：%s",
+                        sourceFile, sheetNames.get( sheetIndex ), e.getMessage() ) );
+                located.addSuppressed( e );
+                throw located;
+            }
+        }
+        if ( !problems.isEmpty() ) {
+            throw new DataValidationException( problems );
+        }
+        return result;
+    }
+
+    private static List<SourcedProductSituation> loadSheet( Path workbookFile, String sourceFile, int sheetIndex,
+                                                            String sheetName, byte[] metadata, NameDictionary names )
+            throws ExcelIOException {
+        List<SourcedProductSituation> result = new ArrayList<>();
+        ProductSituationValidator validator = new ProductSituationValidator( sourceFile, sheetName );
+
+        var dataList = ExcelIO.read( workbookFile.toString() )
+                .withMetadata( new ByteArrayInputStream( metadata ) )
+                .sheet( sheetIndex )
+                .asMaps();
+
+        for ( int i = 0; i < dataList.size(); i++ ) {
+            var dataMap = dataList.get( i );
+            // 不含工厂名称列的工作表（如说明页）不是数据表，整表跳过
+            if ( i == 0 && !dataMap.containsKey( ProductSituation.HEADER_FACTORY_NAME ) ) {
+                break;
+            }
+            // 跳过空行
+            if ( dataMap.get( ProductSituation.HEADER_FACTORY_NAME ) == null ) {
+                continue;
+            }
+            long rowNumber = FIRST_DATA_ROW_NUMBER + i;
+            ProductSituation situation = ProductSituation.fromExcelRow( dataMap,
+                    ( columnName, message ) -> validator.reject( rowNumber, columnName, message ), names );
+            if ( validator.check( situation, rowNumber ) ) {
+                result.add( new SourcedProductSituation( situation, sourceFile, sheetName, rowNumber ) );
+            }
+        }
+        validator.throwIfInvalid();
+        return result;
+    }
+
+    /**
+     * 从xlsx压缩包的 xl/workbook.xml 中按顺序读取工作表名称
+     */
+    static List<String> listSheetNames( Path workbookFile ) throws IOException {
+        try ( ZipFile zipFile = new ZipFile( workbookFile.toFile() ) ) {
+            ZipEntry workbookEntry = zipFile.getEntry( WORKBOOK_PART );
+            if ( workbookEntry == null ) {
+                throw new IOException( "不是有效的Excel工作簿文件: " + workbookFile );
+            }
+            String workbookXml;
+            try ( InputStream in = zipFile.getInputStream( workbookEntry ) ) {
+                workbookXml = new String( in.readAllBytes(), StandardCharsets.UTF_8 );
+            }
+
+            List<String> sheetNames = new ArrayList<>();
+            Matcher matcher = SHEET_NAME_PATTERN.matcher( workbookXml );
+            while ( matcher.find() ) {
+                sheetNames.add( unescapeXml( matcher.group( 1 ) ) );
+            }
+            return sheetNames;
+        }
+    }
+
+    private static boolean isCsvFile( Path inputFile ) {
+        return GzipFiles.uncompressedFileName( inputFile ).toLowerCase().endsWith( ".csv" );
+    }
+
+    private static String unescapeXml( String text ) {
+        return text.replace( "&lt;", "<" ).replace( "&gt;", ">" ).replace( "&quot;", "\"" )
+                .replace( "&apos;", "'" ).replace( "&amp;", "&" );
+    }
+
+    private static byte[] readMetadata() throws ExcelIOException, IOException {
+        try ( InputStream metadataStream = ResourceUtil.getInputStream( INPUT_FILE_METADATA_RELATIVE_PATH ) ) {
+            if ( metadataStream == null ) {
+                throw new ExcelIOException( "找不到元数据文件: " + INPUT_FILE_METADATA_RELATIVE_PATH );
+            }
+            return metadataStream.readAllBytes();
+        }
+    }
+
+    /**
+     * 等待任务完成，并将任务中的异常按原类型抛出
+     */
+    private static <T> T awaitTask( Future<T> task ) throws ExcelIOException, IOException {
+        try {
+            return task.get();
+        } catch ( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new IOException( "文件加载被中断", e );
+        } catch ( ExecutionException e ) {
+            Throwable cause = e.getCause();
+            if ( cause instanceof ExcelIOException excelIOException ) {
+                throw excelIOException;
+            }
+            if ( cause instanceof IOException ioException ) {
+                throw ioException;
+            }
+            if ( cause instanceof RuntimeException runtimeException ) {
+                throw runtimeException;
+            }
+            throw new IOException( cause );
+        }
+    }
+}
@@ -0,0 +1,301 @@
+package com.gwill.foreign_trade.io;
+
+import com.gwill.foreign_trade.model.NameDictionary;
+import com.gwill.foreign_trade.model.ProductSituation;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.stream.Stream;
+
+/**
+ * 落盘分块保存的产品情况
+ * 数据量超过堆内存时，按输入顺序每 chunkRows 行写入一个二进制分块文件，计算时逐块读回，同一时刻堆内只有一块数据。
+ * 金额按未缩放值和小数位数原样保存，读回的 BigDecimal 与写入时完全相同（含精度）；名称读回后按块经 NameDictionary 规范化。
+ * 每块另写一个按（工厂名称, 产品名称, 行号）排好序的名称键文件，checkDuplicates 对各块的键文件做多路归并，
+ * 堆内同一时刻每块只有一个键，即可找出块内和跨块重复的工厂产品。
+ * 分块文件写在指定目录下新建的临时子目录中，close() 时连同子目录一起删除
+ */
+public final class SpilledProductSituations implements AutoCloseable {
+
+    private static final String CHUNK_FILE_FORMAT = "chunk-%06d.bin";
+    private static final String KEYS_FILE_FORMAT = "keys-%06d.bin";
+
+    // 归并名称键文件时每块的读缓冲区大小（同时打开全部块的键文件）
+    private static final int KEY_RUN_BUFFER_SIZE = 16 * 1024;
+
+    private static final Comparator<NameKey> NAME_KEY_ORDER = Comparator.comparing( NameKey::factoryName )
+            .thenComparing( NameKey::productName )
+            .thenComparingLong( NameKey::rowNumber );
+
+    // 每行的标志字节
+    private static final int AGREE_TO_INVOICE_TO_AGENT = 1;
+    private static final int ABLE_TO_INVOICE_WITH_OVERPRICE = 2;
+    private static final int HAS_MAX_INVOICE_AMOUNT = 4;
+    private static final int HAS_MAX_OVERPRICE_RATIO = 8;
+
+    private final Path chunkDirectory;
+    private final int chunkRows;
+    private final List<Integer> chunkSizes = new ArrayList<>();
+    private long size;
+
+    private DataOutputStream output;
+    private int rowsInCurrentChunk;
+    // 当前块的名称键，写完该块时排序落盘
+    private final List<NameKey> chunkKeys = new ArrayList<>();
+
+    private SpilledProductSituations( Path chunkDirectory, int chunkRows ) {
+        this.chunkDirectory = chunkDirectory;
+        this.chunkRows = chunkRows;
+    }
+
+    /**
+     * 在 spillDirectory 下新建临时子目录
+     * @param spillDirectory 分块文件所在目录（应有足够的磁盘空间）
+     * @param chunkRows 每块行数
+     */
+    public static SpilledProductSituations create( Path spillDirectory, int chunkRows ) throws IOException {
+        if ( chunkRows <= 0 ) {
+            throw new IllegalArgumentException( "每块行数必须大于0" );
+        }
+        Files.createDirectories( spillDirectory );
+        return new SpilledProductSituations( Files.createTempDirectory( spillDirectory, "spill-" ), chunkRows );
+    }
+
+    /**
+     * 追加一行，当前块写满时换到新块
+     * @param rowNumber 该行在源文件中的行号（用于报告重复）
+     */
+    public void add( ProductSituation prodSituation, long rowNumber ) throws IOException {
+        if ( output == null ) {
+            output = new DataOutputStream( new BufferedOutputStream(
+                    Files.newOutputStream( chunkFile( chunkSizes.size() ) ), GzipFiles.STREAM_BUFFER_SIZE ) );
+            rowsInCurrentChunk = 0;
+        }
+
+        output.writeUTF( prodSituation.factoryName() );
+        output.writeUTF( prodSituation.productName() );
+        writeDecimal( prodSituation.taxRebateRate() );
+        writeDecimal( prodSituation.salesAmountInForeignCurrency() );
+        writeDecimal( prodSituation.actualPurchaseAmount() );
+        writeDecimal( prodSituation.prepaidAmount() );
+        writeDecimal( prodSituation.taxPoint() );
+        output.writeByte( ( prodSituation.agreeToInvoiceToAgent() ? AGREE_TO_INVOICE_TO_AGENT : 0 )
+                | ( prodSituation.ableToInvoiceWithOverprice() ? ABLE_TO_INVOICE_WITH_OVERPRICE : 0 )
+                | ( prodSituation.maxInvoiceAmount() != null ? HAS_MAX_INVOICE_AMOUNT : 0 )
+                | ( prodSituation.maxOverpriceRatio() != null ? HAS_MAX_OVERPRICE_RATIO : 0 ) );
+        if ( prodSituation.maxInvoiceAmount() != null ) {
+            writeDecimal( prodSituation.maxInvoiceAmount() );
+        }
+        if ( prodSituation.maxOverpriceRatio() != null ) {
+            writeDecimal( prodSituation.maxOverpriceRatio() );
+        }
+        chunkKeys.add( new NameKey( prodSituation.factoryName(), prodSituation.productName(), rowNumber ) );
+        size++;
+
+        if ( ++rowsInCurrentChunk == chunkRows ) {
+            finishChunk();
+        }
+    }
+
+    /**
+     * 结束写入（读取前调用）
+     */
+    public void finish() throws IOException {
+        if ( output != null ) {
+            finishChunk();
+        }
+    }
+
+    public long size() {
+        return size;
+    }
+
+    public int chunkCount() {
+        return chunkSizes.size();
+    }
+
+    /**
+     * 读回一块数据
+     * @param index 块号（从0开始）
+     * @return 该块的产品情况，顺序与写入顺序一致
+     */
+    public List<ProductSituation> readChunk( int index ) throws IOException {
+        if ( output != null ) {
+            throw new IllegalStateException( "分块尚未写完" );
+        }
+        // 块内同名的工厂、产品名称只保留一份
+        NameDictionary names = new NameDictionary();
+        int rows = chunkSizes.get( index );
+        List<ProductSituation> chunk = new ArrayList<>( rows );
+        try ( DataInputStream input = new DataInputStream( new BufferedInputStream(
+                Files.newInputStream( chunkFile( index ) ), GzipFiles.STREAM_BUFFER_SIZE ) ) ) {
+            for ( int row = 0; row < rows; row++ ) {
+                String factoryName = names.canonical( input.readUTF() );
+                String productName = names.canonical( input.readUTF() );
+                BigDecimal taxRebateRate = readDecimal( input );
+                BigDecimal salesAmount = readDecimal( input );
+                BigDecimal actualPurchaseAmount = readDecimal( input );
+                BigDecimal prepaidAmount = readDecimal( input );
+                BigDecimal taxPoint = readDecimal( input );
+                int flags = input.readUnsignedByte();
+                BigDecimal maxInvoiceAmount = ( flags & HAS_MAX_INVOICE_AMOUNT ) != 0 ? readDecimal( input ) : null;
+                BigDecimal maxOverpriceRatio = ( flags & HAS_MAX_OVERPRICE_RATIO ) != 0 ? readDecimal( input ) : null;
+                chunk.add( new ProductSituation( factoryName, productName, taxRebateRate, salesAmount,
+                        actualPurchaseAmount, prepaidAmount, taxPoint,
+                        ( flags & AGREE_TO_INVOICE_TO_AGENT ) != 0, ( flags & ABLE_TO_INVOICE_WITH_OVERPRICE ) != 0,
+                        maxInvoiceAmount, maxOverpriceRatio ) );
+            }
+        }
+        return chunk;
+    }
+
+    /**
+     * 检查重复的工厂产品：多路归并各块排好序的名称键，每处重复按首次出现的行号交给校验器
+     */
+    public void checkDuplicates( ProductSituationValidator validator ) throws IOException {
+        if ( output != null ) {
+            throw new IllegalStateException( "分块尚未写完" );
+        }
+        List<KeyRun> runs = new ArrayList<>( chunkSizes.size() );
+        try {
+            PriorityQueue<KeyRun> queue = new PriorityQueue<>( Math.max( chunkSizes.size(), 1 ),
+                    Comparator.comparing( run -> run.current, NAME_KEY_ORDER ) );
+            for ( int chunk = 0; chunk < chunkSizes.size(); chunk++ ) {
+                KeyRun run = new KeyRun( keysFile( chunk ), chunkSizes.get( chunk ) );
+                runs.add( run );
+                if ( run.advance() ) {
+                    queue.add( run );
+                }
+            }
+
+            NameKey first = null;
+            while ( !queue.isEmpty() ) {
+                KeyRun run = queue.poll();
+                NameKey key = run.current;
+                if ( first != null && first.factoryName().equals( key.factoryName() )
+                        && first.productName().equals( key.productName() ) ) {
+                    validator.rejectDuplicate( key.factoryName(), key.productName(), key.rowNumber(), first.rowNumber() );
+                } else {
+                    first = key;
+                }
+                if ( run.advance() ) {
+                    queue.add( run );
+                }
+            }
+        } finally {
+            for ( KeyRun run : runs ) {
+                run.input.close();
+            }
+        }
+    }
+
+    /**
+     * 删除全部分块文件及临时子目录
+     */
+    @Override
+    public void close() throws IOException {
+        if ( output != null ) {
+            output.close();
+            output = null;
+        }
+        try ( Stream<Path> files = Files.list( chunkDirectory ) ) {
+            files.forEach( file -> {
+                try {
+                    Files.delete( file );
+                } catch ( IOException e ) {
+                    throw new UncheckedIOException( e );
+                }
+            } );
+        } catch ( UncheckedIOException e ) {
+            throw e.getCause();
+        }
+        Files.deleteIfExists( chunkDirectory );
+    }
+
+    private void finishChunk() throws IOException {
+        output.close();
+        output = null;
+
+        chunkKeys.sort( NAME_KEY_ORDER );
+        try ( DataOutputStream keys = new DataOutputStream( new BufferedOutputStream(
+                Files.newOutputStream( keysFile( chunkSizes.size() ) ), GzipFiles.STREAM_BUFFER_SIZE ) ) ) {
+            for ( NameKey key : chunkKeys ) {
+                keys.writeUTF( key.factoryName() );
+                keys.writeUTF( key.productName() );
+                keys.writeLong( key.rowNumber() );
+            }
+        }
+        chunkKeys.clear();
+        chunkSizes.add( rowsInCurrentChunk );
+    }
+
+    private Path chunkFile( int index ) {
+        return chunkDirectory.resolve( String.format( CHUNK_FILE_FORMAT, index ) );
+    }
+
+    private Path keysFile( int index ) {
+        return chunkDirectory.resolve( String.format( KEYS_FILE_FORMAT, index ) );
+    }
+
+    private void writeDecimal( BigDecimal value ) throws IOException {
+        byte[] unscaled = value.unscaledValue().toByteArray();
+        output.writeInt( value.scale() );
+        output.writeShort( unscaled.length );
+        output.write( unscaled );
+    }
+
+    private static BigDecimal readDecimal( DataInputStream input ) throws IOException {
+        int scale = input.readInt();
+        byte[] unscaled = new byte[input.readUnsignedShort()];
+        input.readFully( unscaled );
+        return new BigDecimal( new BigInteger( unscaled ), scale );
+    }
+
+    /**
+     * 一行的名称键
+     */
+    private record NameKey( String factoryName, String productName, long rowNumber ) {
+    }
+
+    /**
+     * 归并时一块名称键文件的读取位置
+     */
+    private static final class KeyRun {
+
+        private final DataInputStream input;
+        private int remaining;
+        private NameKey current;
+
+        KeyRun( Path keysFile, int rows ) throws IOException {
+            this.input = new DataInputStream( new BufferedInputStream( Files.newInputStream( keysFile ),
+                    KEY_RUN_BUFFER_SIZE ) );
+            this.remaining = rows;
+        }
+
+        /**
+         * 读下一个键
+         * @return 是否读到（该块已读完时返回false）
+         */
+        boolean advance() throws IOException {
+            if ( remaining == 0 ) {
+                current = null;
+                return false;
+            }
+            remaining--;
+            current = new NameKey( input.readUTF(), input.readUTF(), input.readLong() );
+            return true;
+        }
+    }
+}
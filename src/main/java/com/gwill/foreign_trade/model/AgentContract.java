@@ -0,0 +1,25 @@
+package com.gwill.foreign_trade.model;
+
+/**
+ * 代理合同公式定义
+ * 公式中可用的变量：S=PI外币销售金额, E=汇率, R=退税率, A=代理退税相对分配率, X=开票金额, T=退税金额；
+ * 支持 + - * / × ÷、括号、负号、小数和百分数（如6.5%）
+ */
+public record AgentContract (
+        String name,                    // 合同名称
+        String invoiceAmountFormula,    // 开票金额公式（可引用S、E、R、A）
+        String taxRebateFormula,        // 退税金额公式（可引用X、R、A）
+        String agentProfitFormula       // 代理利润公式（可引用T、X、R、A）
+) {
+
+    /**
+     * 标准合同：代理公司按相对分配率分得退税
+     */
+    public static final AgentContract STANDARD = new AgentContract( "标准合同（按相对分配率分成）",
+            "S * E * (1 + R) / (1 + R * A)", "X * R / (1 + R)", "T * A" );
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
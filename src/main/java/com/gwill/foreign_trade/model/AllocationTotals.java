@@ -0,0 +1,33 @@
+package com.gwill.foreign_trade.model;
+
+import java.math.BigDecimal;
+import java.util.List;
+
+/**
+ * 工厂分配所需的预汇总数据
+ * 固定开票金额工厂的货值合计和可超额开票工厂的货值合计，可由加载阶段一次算好后传给分配算法
+ */
+public record AllocationTotals (
+        BigDecimal fixedTotalActualPurchaseAmount,      // 固定开票金额工厂的实际货值合计
+        BigDecimal flexibleTotalActualPurchaseAmount,   // 可超额开票工厂的实际货值合计
+        int flexibleCount                               // 可超额开票工厂数量
+) {
+
+    /**
+     * 遍历一次产品列表计算预汇总数据
+     */
+    public static AllocationTotals of( List<ProductSituation> productSituationList ) {
+        BigDecimal fixedTotal = BigDecimal.ZERO;
+        BigDecimal flexibleTotal = BigDecimal.ZERO;
+        int flexibleCount = 0;
+        for ( ProductSituation prodSituation : productSituationList ) {
+            if ( prodSituation.isFixedInvoiceAmount() ) {
+                fixedTotal = fixedTotal.add( prodSituation.actualPurchaseAmount() );
+            } else {
+                flexibleTotal = flexibleTotal.add( prodSituation.actualPurchaseAmount() );
+                flexibleCount++;
+            }
+        }
+        return new AllocationTotals( fixedTotal, flexibleTotal, flexibleCount );
+    }
+}
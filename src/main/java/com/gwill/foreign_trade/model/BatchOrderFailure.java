@@ -0,0 +1,10 @@
+package com.gwill.foreign_trade.model;
+
+/**
+ * 批量任务中未完成的一笔订单
+ */
+public record BatchOrderFailure (
+        int sequence,                           // 订单在清单中的序号（从0开始）
+        String orderId,                         // 订单编号
+        String reason                           // 失败原因
+) {}
@@ -0,0 +1,23 @@
+package com.gwill.foreign_trade.model;
+
+import java.math.BigDecimal;
+import java.util.List;
+
+/**
+ * 批量任务中一笔订单的计算结果摘要（各产品详情已由工作进程导出到文件）
+ */
+public record BatchOrderResult (
+        String orderId,                         // 订单编号
+        String currency,                        // PI货币代码
+        BigDecimal exchangeRate,                // 使用的汇率
+        int productCount,                       // 产品数
+        BigDecimal totalInvoiceAmount,          // 总开票金额
+        BigDecimal totalTaxRebateAmount,        // 总退税金额
+        BigDecimal totalAgentProfit,            // 代理公司应获得的总利润
+        BigDecimal yourTotalTaxRebateShareAmount, // 您应分得的总退税金额
+        BigDecimal yourNetProfit,               // 您（委托方）的净利润（人民币）
+        List<String> outputFiles,               // 导出的文件
+        String workerName,                      // 处理该订单的工作进程
+        long elapsedMillis,                     // 处理耗时（毫秒，含加载和导出）
+        boolean resumed                         // 是否沿用检查点日志中上次运行的结果
+) {}
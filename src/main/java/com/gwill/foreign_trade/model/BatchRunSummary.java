@@ -0,0 +1,20 @@
+package com.gwill.foreign_trade.model;
+
+import java.math.BigDecimal;
+import java.util.List;
+
+/**
+ * 多进程批量任务的合并汇总
+ * 每笔订单或者完成或者失败，按失败订单的清单序号把两个列表交错合并即得到订单清单顺序
+ */
+public record BatchRunSummary (
+        List<BatchOrderResult> completedOrders, // 已完成的订单（含沿用上次结果的订单，顺序与订单清单一致）
+        int resumedOrderCount,                  // 沿用上次运行结果、本次未重新计算的订单数
+        List<BatchOrderFailure> failedOrders,   // 未完成的订单（按清单序号排列）
+        BigDecimal totalInvoiceAmount,          // 已完成订单的开票金额合计
+        BigDecimal totalTaxRebateAmount,        // 已完成订单的退税金额合计
+        BigDecimal totalAgentProfit,            // 已完成订单的代理公司利润合计
+        BigDecimal yourTotalNetProfit,          // 已完成订单的您的净利润合计
+        int workerCount,                        // 工作进程数
+        long elapsedMillis                      // 总耗时（毫秒）
+) {}
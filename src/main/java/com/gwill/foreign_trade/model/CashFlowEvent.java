@@ -0,0 +1,16 @@
+package com.gwill.foreign_trade.model;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+
+/**
+ * 一笔有日期的资金往来（人民币）
+ */
+public record CashFlowEvent (
+        LocalDate date,                         // 发生日期
+        String orderId,                         // 订单编号
+        CashFlowStep step,                      // 资金流转步骤
+        String payer,                           // 付款方
+        String payee,                           // 收款方
+        BigDecimal amount                       // 金额（大于0）
+) {}
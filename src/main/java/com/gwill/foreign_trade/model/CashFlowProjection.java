@@ -0,0 +1,43 @@
+package com.gwill.foreign_trade.model;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.time.temporal.ChronoUnit;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 各方逐日资金头寸预测
+ * 头寸为截至当日（含）全部资金往来的累计净额，收入为正、支出为负，金额保留2位小数
+ */
+public record CashFlowProjection (
+        LocalDate from,                                 // 起始日期
+        LocalDate to,                                   // 截止日期
+        Map<String, List<BigDecimal>> positionsByParty  // 参与方 -> 逐日头寸（第i个为 from 之后第i天）
+) {
+
+    /**
+     * 某方在某日的头寸
+     */
+    public BigDecimal positionOn( String party, LocalDate date ) {
+        if ( date.isBefore( from ) || date.isAfter( to ) ) {
+            throw new IllegalArgumentException( "日期超出预测范围：" + date );
+        }
+        return positionsOf( party ).get( (int) ChronoUnit.DAYS.between( from, date ) );
+    }
+
+    /**
+     * 某方在预测范围内的最低头寸（资金占用最多的时点）
+     */
+    public BigDecimal lowestPosition( String party ) {
+        return positionsOf( party ).stream().min( BigDecimal::compareTo ).orElse( BigDecimal.ZERO );
+    }
+
+    private List<BigDecimal> positionsOf( String party ) {
+        List<BigDecimal> positions = positionsByParty.get( party );
+        if ( positions == null ) {
+            throw new IllegalArgumentException( "没有该参与方：" + party );
+        }
+        return positions;
+    }
+}
@@ -0,0 +1,33 @@
+package com.gwill.foreign_trade.model;
+
+/**
+ * 一笔订单资金流转中的各步资金往来（开具发票本身不产生资金往来，不在其中）
+ */
+public enum CashFlowStep {
+
+    PREPAYMENT( "您向工厂支付定金" ),
+    DEPOSIT( "您向代理公司个人账户汇押金" ),
+    REMAINING_PAYMENT( "代理公司向工厂支付剩余货款" ),
+    FX_RECEIPT( "代理公司收到海外客户外币货款" ),
+    DEPOSIT_RETURN( "代理公司退回押金" ),
+    TAX_REBATE_RECEIPT( "代理公司收到退税" ),
+    SECOND_PAYMENT( "代理公司支付第二笔货款" ),
+    SETTLEMENT( "代理公司向您结算货款余额" ),
+    PREPAYMENT_REFUND( "工厂对公退回定金" ),
+    OVERPRICE_REFUND( "工厂对私退回差额" );
+
+    private final String displayName;
+
+    CashFlowStep( String displayName ) {
+        this.displayName = displayName;
+    }
+
+    public String getDisplayName() {
+        return displayName;
+    }
+
+    @Override
+    public String toString() {
+        return displayName;
+    }
+}
@@ -0,0 +1,15 @@
+package com.gwill.foreign_trade.model;
+
+import java.math.BigDecimal;
+
+/**
+ * 单家工厂在全部在手订单中的资金敞口汇总
+ */
+public record FactoryExposure (
+        String factoryName,                             // 工厂名称
+        int orderCount,                                 // 涉及的订单数
+        BigDecimal totalInvoiceAmount,                  // 开票金额合计
+        BigDecimal overpriceRefundFromFactory,          // 对私退款金额合计
+        BigDecimal prepaymentRefundAmount,              // 对公退款金额合计
+        BigDecimal agentBalanceToFactoryAfterRebating   // 代理公司收到退税后应向工厂支付的余款合计
+) {}
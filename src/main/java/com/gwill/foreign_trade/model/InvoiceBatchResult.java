@@ -0,0 +1,25 @@
+package com.gwill.foreign_trade.model;
+
+/**
+ * 列式批量计算结果（按列保存，每列一个double数组，下标与输入行一一对应）
+ * 可反复传入 ColumnarInvoiceKernel.calculateInto 复用，避免每批重新分配数组
+ */
+public record InvoiceBatchResult (
+        double[] invoiceAmounts,        // 开票金额
+        double[] taxRebateAmounts,      // 退税金额
+        double[] agentProfits,          // 代理利润
+        double[] overpriceTaxes         // 超额开票扣税金额 = (开票金额 - 实际货值) × 税点
+) {
+
+    /**
+     * 分配可容纳指定行数的结果数组
+     */
+    public static InvoiceBatchResult allocate( int rowCount ) {
+        return new InvoiceBatchResult( new double[rowCount], new double[rowCount], new double[rowCount],
+                new double[rowCount] );
+    }
+
+    public int capacity() {
+        return invoiceAmounts.length;
+    }
+}
@@ -0,0 +1,16 @@
+package com.gwill.foreign_trade.model;
+
+import java.math.BigDecimal;
+
+/**
+ * 单家工厂可接受的开票金额范围
+ * 两端均可为null，表示不设下限（即按实际货值开票）或不设上限
+ */
+public record InvoiceLimit (
+        BigDecimal minInvoiceAmount,    // 最低开票金额
+        BigDecimal maxInvoiceAmount     // 最高开票金额
+) {
+
+    // 不设任何限制
+    public static final InvoiceLimit NONE = new InvoiceLimit( null, null );
+}
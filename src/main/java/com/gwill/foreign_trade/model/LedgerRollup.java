@@ -0,0 +1,20 @@
+package com.gwill.foreign_trade.model;
+
+import java.math.BigDecimal;
+
+/**
+ * 运行台账按工厂（及产品）、期间汇总的一行
+ */
+public record LedgerRollup (
+        String factoryName,                     // 工厂名称
+        String productName,                     // 产品名称（不按产品分组时为null）
+        String period,                          // 期间，如 2025-10、2025（不分期间时为null）
+        int runCount,                           // 涉及的计算次数
+        long rowCount,                          // 汇总的产品行数
+        BigDecimal totalInvoiceAmount,          // 开票金额合计
+        BigDecimal totalTaxRebateAmount,        // 退税金额合计
+        BigDecimal totalAgentProfit,            // 代理公司利润合计
+        BigDecimal totalOverpriceTax,           // 扣税金额合计
+        BigDecimal totalPrepaymentRefundAmount, // 对公退款金额合计
+        BigDecimal totalOverpriceRefundFromFactory  // 对私退款金额合计
+) {}
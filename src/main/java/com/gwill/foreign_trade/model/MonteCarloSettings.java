@@ -0,0 +1,20 @@
+package com.gwill.foreign_trade.model;
+
+import java.math.BigDecimal;
+
+/**
+ * 汇率与退税到账时间风险模拟参数
+ * 汇率按几何布朗运动从当前汇率出发模拟到收汇日，退税到账延迟在给定天数范围内均匀抽样，
+ * 延迟期间您应分得的退税按年化资金成本折算
+ */
+public record MonteCarloSettings (
+        int sampleCount,                        // 抽样次数
+        long seed,                              // 随机数种子（相同种子结果相同）
+        BigDecimal spotRate,                    // 当前汇率
+        double annualDrift,                     // 汇率年化漂移率（小数形式）
+        double annualVolatility,                // 汇率年化波动率（小数形式）
+        int fxReceiptDays,                      // 签订PI至收汇的天数
+        int rebateDelayMinDays,                 // 退税到账最短延迟天数
+        int rebateDelayMaxDays,                 // 退税到账最长延迟天数
+        double annualFundingRate                // 年化资金成本（小数形式）
+) {}
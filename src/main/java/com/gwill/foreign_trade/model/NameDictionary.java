@@ -0,0 +1,83 @@
+package com.gwill.foreign_trade.model;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 名称字典：一个作用范围（一张列式表格、一次加载、一本台账）内的工厂名称和产品名称只保存一份，并各有一个整数编号
+ * 同一字典规范化的同名 String 是同一个对象；列式表格和分组计算只保存、比较编号。
+ * 编号一经分配不会改变，字典只增不减，随所属的表格或加载过程一起回收，不设全局字典，长期运行时不会无限增长。
+ * 编号只在同一字典内有意义。查询时用 find 查找，不会为查询条件中的名称登记新编号。线程安全
+ */
+public final class NameDictionary {
+
+    private final Map<String, Integer> ids = new ConcurrentHashMap<>();
+    // 先写数组元素再登记编号，按编号读取时一定能看到对应的名称
+    private volatile String[] names = new String[256];
+    private int size;
+
+    public NameDictionary() {
+    }
+
+    /**
+     * 名称的编号，首次出现时分配新编号
+     */
+    public int idOf( String name ) {
+        Integer id = ids.get( name );
+        if ( id != null ) {
+            return id;
+        }
+        synchronized ( this ) {
+            id = ids.get( name );
+            if ( id == null ) {
+                String[] current = names;
+                if ( size == current.length ) {
+                    current = Arrays.copyOf( current, size * 2 );
+                }
+                current[size] = name;
+                names = current;
+                id = size++;
+                ids.put( name, id );
+            }
+        }
+        return id;
+    }
+
+    /**
+     * 已登记名称的编号，不登记新名称
+     * @return 编号，名称未登记时返回-1
+     */
+    public int find( String name ) {
+        Integer id = ids.get( name );
+        return id == null ? -1 : id;
+    }
+
+    /**
+     * 编号对应的名称
+     */
+    public String name( int id ) {
+        return names[id];
+    }
+
+    /**
+     * 与给定名称相同的规范 String 实例
+     */
+    public String canonical( String name ) {
+        return name( idOf( name ) );
+    }
+
+    /**
+     * 工厂名称编号和产品名称编号合成的long，可作为（工厂, 产品）的索引键
+     */
+    public long keyOf( String factoryName, String productName ) {
+        return ( (long) idOf( factoryName ) << 32 ) | ( idOf( productName ) & 0xFFFFFFFFL );
+    }
+
+    /**
+     * 已登记的名称数量
+     */
+    public synchronized int size() {
+        return size;
+    }
+}
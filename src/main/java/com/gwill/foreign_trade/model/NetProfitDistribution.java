@@ -0,0 +1,48 @@
+package com.gwill.foreign_trade.model;
+
+import java.math.BigDecimal;
+
+/**
+ * 一笔订单净利润的风险模拟结果
+ * 保存全部抽样的净利润（已排序），分位数按相邻两个样本线性插值
+ */
+public record NetProfitDistribution (
+        String orderId,                         // 订单编号
+        BigDecimal spotRate,                    // 当前汇率
+        BigDecimal netProfitAtSpot,             // 按当前汇率、退税不延迟计算的净利润
+        double[] sortedNetProfits,              // 各次抽样的净利润（升序）
+        double mean,                            // 平均值
+        double standardDeviation,               // 标准差
+        double lossProbability,                 // 净利润为负的概率
+        long elapsedMillis                      // 模拟耗时（毫秒）
+) {
+
+    public int sampleCount() {
+        return sortedNetProfits.length;
+    }
+
+    public double min() {
+        return sortedNetProfits[0];
+    }
+
+    public double max() {
+        return sortedNetProfits[sortedNetProfits.length - 1];
+    }
+
+    /**
+     * 净利润的分位数
+     * @param percent 百分位（0-100），如5表示有5%的抽样低于该值
+     */
+    public double percentile( double percent ) {
+        if ( percent < 0 || percent > 100 ) {
+            throw new IllegalArgumentException( "百分位必须在0-100之间" );
+        }
+        double position = percent / 100 * ( sortedNetProfits.length - 1 );
+        int lower = (int) position;
+        if ( lower + 1 >= sortedNetProfits.length ) {
+            return sortedNetProfits[lower];
+        }
+        double fraction = position - lower;
+        return sortedNetProfits[lower] + ( sortedNetProfits[lower + 1] - sortedNetProfits[lower] ) * fraction;
+    }
+}
@@ -0,0 +1,17 @@
+package com.gwill.foreign_trade.model;
+
+import java.math.BigDecimal;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * 订单清单中的一行（尚未加载工厂数据）
+ */
+public record OrderBookEntry (
+        long lineNumber,                        // 在订单清单中的行号
+        String orderId,                         // 订单编号
+        String currency,                        // PI货币代码，如USD
+        BigDecimal salesAmount,                 // PI上的销售金额（外币）
+        BigDecimal agentRelativeRatio,          // 代理退税相对分配率（小数形式）
+        List<Path> situationFiles               // 工厂数据文件（绝对路径）
+) {}
@@ -0,0 +1,15 @@
+package com.gwill.foreign_trade.model;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+
+/**
+ * 订单按指定日期汇率重估的结果
+ */
+public record OrderRevaluation (
+        String orderId,                         // 订单编号
+        LocalDate valuationDate,                // 重估日期
+        BigDecimal exchangeRate,                // 重估使用的汇率
+        MultiProductCalculationResult calculationResult,   // 重新计算的结果
+        BigDecimal yourNetProfit                // 您（委托方）的净利润（人民币）
+) {}
@@ -0,0 +1,16 @@
+package com.gwill.foreign_trade.model;
+
+import java.math.BigDecimal;
+import java.util.List;
+
+/**
+ * 订单快照
+ * 保存一笔多工厂订单重新计算所需的全部输入（汇率除外），用于按不同日期的汇率批量重估
+ */
+public record OrderSnapshot (
+        String orderId,                         // 订单编号
+        String currency,                        // PI货币代码，如USD
+        BigDecimal salesAmount,                 // PI上的销售金额（外币）
+        BigDecimal agentRelativeRatio,          // 代理退税相对分配率（小数形式）
+        List<ProductSituation> productSituations    // 各工厂产品情况
+) {}
@@ -0,0 +1,16 @@
+package com.gwill.foreign_trade.model;
+
+import java.time.LocalDate;
+
+/**
+ * 一笔订单资金流转各步的日期
+ */
+public record OrderTimeline (
+        String orderId,                         // 订单编号
+        LocalDate prepaymentDate,               // 您向工厂支付定金的日期
+        LocalDate depositDate,                  // 您向代理公司汇押金的日期
+        LocalDate shipmentDate,                 // 代理公司向工厂支付剩余货款（发货前）的日期
+        LocalDate fxReceiptDate,                // 代理公司收到外币货款并退回押金的日期
+        LocalDate rebateReceiptDate,            // 代理公司收到退税、支付第二笔货款并与您结算的日期
+        LocalDate factoryRefundDate             // 工厂退回定金和差额的日期
+) {}
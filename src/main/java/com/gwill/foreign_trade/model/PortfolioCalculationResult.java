@@ -0,0 +1,11 @@
+package com.gwill.foreign_trade.model;
+
+import java.util.List;
+
+/**
+ * 订单组合计算结果
+ */
+public record PortfolioCalculationResult (
+        List<OrderRevaluation> orderResults,        // 各订单计算结果（顺序与输入一致）
+        List<FactoryExposure> factoryExposures      // 各工厂跨订单汇总（按工厂名称排序）
+) {}
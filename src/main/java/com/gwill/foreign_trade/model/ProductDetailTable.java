@@ -0,0 +1,139 @@
+package com.gwill.foreign_trade.model;
+
+import java.util.AbstractList;
+import java.util.List;
+import java.util.RandomAccess;
+
+import static com.gwill.foreign_trade.model.ScaledDecimals.rounded;
+import static com.gwill.foreign_trade.model.ScaledDecimals.toDecimal;
+
+/**
+ * 列式保存的产品计算详情
+ * 金额四舍五入到 ScaledDecimals.SCALE 位小数后保存为long，名称为字典编号；
+ * detailView() 按需还原为 ProductCalculationDetail，可直接放进 MultiProductCalculationResult 供界面和导出使用
+ */
+public final class ProductDetailTable {
+
+    // 本表的名称字典，随表一起回收
+    private final NameDictionary names = new NameDictionary();
+
+    private final int size;
+    private final int[] factoryNameIds;
+    private final int[] productNameIds;
+    private final long[] actualPurchaseAmounts;
+    private final long[] invoiceAmounts;
+    private final long[] taxRebateAmounts;
+    private final long[] agentProfits;
+    private final long[] agentBalancesBeforeShipment;
+    private final long[] agentBalancesAfterRebating;
+    private final long[] overpriceTaxes;
+    private final long[] prepaymentRefundAmounts;
+    private final long[] overpriceRefundsFromFactory;
+
+    private ProductDetailTable( List<ProductCalculationDetail> details ) {
+        size = details.size();
+        factoryNameIds = new int[size];
+        productNameIds = new int[size];
+        actualPurchaseAmounts = new long[size];
+        invoiceAmounts = new long[size];
+        taxRebateAmounts = new long[size];
+        agentProfits = new long[size];
+        agentBalancesBeforeShipment = new long[size];
+        agentBalancesAfterRebating = new long[size];
+        overpriceTaxes = new long[size];
+        prepaymentRefundAmounts = new long[size];
+        overpriceRefundsFromFactory = new long[size];
+
+        for ( int row = 0; row < size; row++ ) {
+            ProductCalculationDetail detail = details.get( row );
+            factoryNameIds[row] = names.idOf( detail.factoryName() );
+            productNameIds[row] = names.idOf( detail.productName() );
+            actualPurchaseAmounts[row] = rounded( detail.actualPurchaseAmount(), ProductCalculationDetail.HEADER_ACTUAL_PURCHASE_AMOUNT );
+            invoiceAmounts[row] = rounded( detail.invoiceAmount(), ProductCalculationDetail.HEADER_INVOICE_AMOUNT );
+            taxRebateAmounts[row] = rounded( detail.taxRebateAmount(), ProductCalculationDetail.HEADER_TAX_REBATE_AMOUNT );
+            agentProfits[row] = rounded( detail.agentProfit(), "代理利润" );
+            agentBalancesBeforeShipment[row] = rounded( detail.agentBalanceToFactoryBeforeShipment(),
+                    ProductCalculationDetail.HEADER_AGENT_BALANCE_BEFORE_SHIPMENT );
+            agentBalancesAfterRebating[row] = rounded( detail.agentBalanceToFactoryAfterRebating(),
+                    ProductCalculationDetail.HEADER_AGENT_BALANCE_AFTER_REBATING );
+            overpriceTaxes[row] = rounded( detail.overpriceTax(), ProductCalculationDetail.HEADER_OVERPRICE_TAX );
+            prepaymentRefundAmounts[row] = rounded( detail.prepaymentRefundAmount(), ProductCalculationDetail.HEADER_PREPAYMENT_REFUND );
+            overpriceRefundsFromFactory[row] = rounded( detail.overpriceRefundFromFactory(),
+                    ProductCalculationDetail.HEADER_OVERPRICE_REFUND );
+        }
+    }
+
+    /**
+     * 把计算详情转为列式保存
+     */
+    public static ProductDetailTable of( List<ProductCalculationDetail> details ) {
+        return new ProductDetailTable( details );
+    }
+
+    /**
+     * 把计算结果中的详情列表换成列式表格的视图
+     * 各行金额已四舍五入到 ScaledDecimals.SCALE 位小数，退税、代理利润等由各行汇总的合计按保存的各行重新汇总，
+     * 使合计与详情行一致（与原合计相差不超过 行数×0.0000005元）；总开票金额是分配前的目标金额，保持不变
+     */
+    public static MultiProductCalculationResult compact( MultiProductCalculationResult result ) {
+        ProductDetailTable table = of( result.productCalculationDetails() );
+        long totalTaxRebate = sum( table.taxRebateAmounts, table.size );
+        long totalAgentProfit = sum( table.agentProfits, table.size );
+        return new MultiProductCalculationResult( result.totalInvoiceAmount(), toDecimal( totalTaxRebate ),
+                toDecimal( totalAgentProfit ), toDecimal( Math.subtractExact( totalTaxRebate, totalAgentProfit ) ),
+                table.detailView() );
+    }
+
+    private static long sum( long[] column, int size ) {
+        long total = 0;
+        for ( int row = 0; row < size; row++ ) {
+            total = Math.addExact( total, column[row] );
+        }
+        return total;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * 把一行还原为 ProductCalculationDetail（每次调用新建对象）
+     */
+    public ProductCalculationDetail detail( int row ) {
+        if ( row < 0 || row >= size ) {
+            throw new IndexOutOfBoundsException( "行号" + row + "超出范围（共" + size + "行）" );
+        }
+        return new ProductCalculationDetail(
+                names.name( factoryNameIds[row] ),
+                names.name( productNameIds[row] ),
+                toDecimal( actualPurchaseAmounts[row] ),
+                toDecimal( invoiceAmounts[row] ),
+                toDecimal( taxRebateAmounts[row] ),
+                toDecimal( agentProfits[row] ),
+                toDecimal( agentBalancesBeforeShipment[row] ),
+                toDecimal( agentBalancesAfterRebating[row] ),
+                toDecimal( overpriceTaxes[row] ),
+                toDecimal( prepaymentRefundAmounts[row] ),
+                toDecimal( overpriceRefundsFromFactory[row] ) );
+    }
+
+    /**
+     * 以只读列表的形式查看全部行，按下标访问时才还原对应的 ProductCalculationDetail
+     */
+    public List<ProductCalculationDetail> detailView() {
+        return new DetailView();
+    }
+
+    private final class DetailView extends AbstractList<ProductCalculationDetail> implements RandomAccess {
+
+        @Override
+        public ProductCalculationDetail get( int index ) {
+            return detail( index );
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+    }
+}
@@ -3,6 +3,7 @@ package com.gwill.foreign_trade.model;
 import java.math.BigDecimal;
 import java.time.LocalDate;
 import java.util.Map;
+import java.util.function.BiConsumer;
 
 /**
  * 产品情况数据模型
@@ -17,8 +18,21 @@ public record ProductSituation (
         BigDecimal prepaidAmount,               // 已预付金额（人民币）
         BigDecimal taxPoint,                    // 税点（小数形式，如0.10表示10%）
         boolean agreeToInvoiceToAgent,          // 同意开票给代理公司
-        boolean ableToInvoiceWithOverprice      // 可超额开票
+        boolean ableToInvoiceWithOverprice,     // 可超额开票
+        BigDecimal maxInvoiceAmount,            // 最高开票金额（可选，null表示不限）
+        BigDecimal maxOverpriceRatio            // 最高超额比例（可选，小数形式，如0.20表示最多超出实际货值20%，null表示不限）
 ) {
+
+    /**
+     * 不限制开票金额上限的产品情况
+     */
+    public ProductSituation( String factoryName, String productName, BigDecimal taxRebateRate,
+                             BigDecimal salesAmountInForeignCurrency, BigDecimal actualPurchaseAmount,
+                             BigDecimal prepaidAmount, BigDecimal taxPoint,
+                             boolean agreeToInvoiceToAgent, boolean ableToInvoiceWithOverprice ) {
+        this( factoryName, productName, taxRebateRate, salesAmountInForeignCurrency, actualPurchaseAmount,
+                prepaidAmount, taxPoint, agreeToInvoiceToAgent, ableToInvoiceWithOverprice, null, null );
+    }
     
     // Excel输入数据表头常量
     public static final String HEADER_FACTORY_NAME = "工厂名称";
@@ -30,10 +44,13 @@ public record ProductSituation (
     public static final String HEADER_TAX_POINT = "税点";
     public static final String HEADER_AGREE_TO_INVOICE_AGENT = "同意开票给代理公司";
     public static final String HEADER_ABLE_TO_INVOICE_OVERPRICE = "可超额开票";
+    // 可选列
+    public static final String HEADER_MAX_INVOICE_AMOUNT = "最高开票金额";
+    public static final String HEADER_MAX_OVERPRICE_RATIO = "最高超额比例";
     
     /**
      * 从CSV行数据构造ProductSituation
-     * CSV格式：工厂名称,产品名称,退税率,PI外币销售金额,实际货值,已预付金额,税点,同意开票给代理公司,可超额开票
+     * CSV格式：工厂名称,产品名称,退税率,PI外币销售金额,实际货值,已预付金额,税点,同意开票给代理公司,可超额开票[,最高开票金额[,最高超额比例]]
      */
     public static ProductSituation fromCsvRow(String[] csvRow) {
         if (csvRow.length < 9) {
@@ -67,57 +84,183 @@ public record ProductSituation (
             taxPoint = new BigDecimal(taxPointStr);
         }
         
-        boolean agreeToInvoice = "是".equals(csvRow[7].trim()) || "true".equalsIgnoreCase(csvRow[7].trim());
-        boolean ableToOverprice = "是".equals(csvRow[8].trim()) || "true".equalsIgnoreCase(csvRow[8].trim());
+        boolean agreeToInvoice = requireBooleanText(csvRow[7], HEADER_AGREE_TO_INVOICE_AGENT);
+        boolean ableToOverprice = requireBooleanText(csvRow[8], HEADER_ABLE_TO_INVOICE_OVERPRICE);
+
+        // 可选的开票上限列，留空表示不限
+        BigDecimal maxInvoiceAmount = csvRow.length > 9 ? parseOptionalDecimal(csvRow[9]) : null;
+        BigDecimal maxOverpriceRatio = csvRow.length > 10 ? parseOptionalDecimal(csvRow[10]) : null;
         
         return new ProductSituation(
             factoryName, productName, taxRebateRate,
             salesAmount, actualPurchaseAmount, prepaidAmount,
-            taxPoint, agreeToInvoice, ableToOverprice
+            taxPoint, agreeToInvoice, ableToOverprice,
+            maxInvoiceAmount, maxOverpriceRatio
         );
     }
     
+    private static boolean requireBooleanText(String text, String header) {
+        Boolean value = parseBooleanText(text);
+        if (value == null) {
+            throw new IllegalArgumentException(header + "：无法识别“" + text.trim() + "”，应为“是”或“否”");
+        }
+        return value;
+    }
+
     /**
      * 从Excel行数据构造ProductSituation（使用类型安全的Map数据）
      * Excel字段映射：工厂名称,产品名称,退税率,PI外币销售金额,实际货值,已预付金额,税点,同意开票给代理公司,可超额开票
+     * @throws IllegalArgumentException 单元格为空、不是数字或布尔值无法识别（消息中指明列名）
      */
     public static ProductSituation fromExcelRow(Map<String, Object> excelRow) {
-        String factoryName = (String) excelRow.get(HEADER_FACTORY_NAME);
-        String productName = (String) excelRow.get(HEADER_PRODUCT_NAME);
-        
-        // 从Excel读取的数据已经被excel-io按照元数据进行了类型转换
-        BigDecimal taxRebateRate = (BigDecimal) excelRow.get(HEADER_TAX_REBATE_RATE);
-        BigDecimal salesAmount = (BigDecimal) excelRow.get(HEADER_SALES_AMOUNT_FOREIGN);
-        BigDecimal actualPurchaseAmount = (BigDecimal) excelRow.get(HEADER_ACTUAL_PURCHASE_AMOUNT);
-        BigDecimal prepaidAmount = (BigDecimal) excelRow.get(HEADER_PREPAID_AMOUNT);
-        BigDecimal taxPoint = (BigDecimal) excelRow.get(HEADER_TAX_POINT);
-        
-        // 处理布尔值字段
-        Object agreeToInvoiceObj = excelRow.get(HEADER_AGREE_TO_INVOICE_AGENT);
-        boolean agreeToInvoice = parseBoolean(agreeToInvoiceObj);
-        
-        Object ableToOverpriceObj = excelRow.get(HEADER_ABLE_TO_INVOICE_OVERPRICE);
-        boolean ableToOverprice = parseBoolean(ableToOverpriceObj);
-        
+        return fromExcelRow(excelRow, (columnName, message) -> {
+            throw new IllegalArgumentException(columnName + "：" + message);
+        });
+    }
+
+    /**
+     * 从Excel行数据构造ProductSituation，每个单元格的问题都交给problems（列名, 问题说明）后继续读取其余单元格
+     * @return 产品情况，出错的字段为null（布尔字段为false），供校验器继续检查其余字段
+     */
+    public static ProductSituation fromExcelRow(Map<String, Object> excelRow, BiConsumer<String, String> problems) {
+        return fromExcelRow(excelRow, problems, null);
+    }
+
+    /**
+     * 从Excel行数据构造ProductSituation，工厂名称和产品名称经names规范化（同一次加载中同名的名称共用一个String实例）
+     * @param names 本次加载的名称字典（null表示不规范化）
+     * @return 产品情况，出错的字段为null（布尔字段为false），供校验器继续检查其余字段
+     */
+    public static ProductSituation fromExcelRow(Map<String, Object> excelRow, BiConsumer<String, String> problems,
+                                                NameDictionary names) {
+        ExcelRowReader reader = new ExcelRowReader(excelRow, problems, names);
+
+        String factoryName = reader.name(HEADER_FACTORY_NAME);
+        String productName = reader.name(HEADER_PRODUCT_NAME);
+
+        // 从Excel读取的数据一般已经被excel-io按照元数据转换为BigDecimal，文本形式的数字同样接受
+        BigDecimal taxRebateRate = reader.decimal(HEADER_TAX_REBATE_RATE);
+        BigDecimal salesAmount = reader.decimal(HEADER_SALES_AMOUNT_FOREIGN);
+        BigDecimal actualPurchaseAmount = reader.decimal(HEADER_ACTUAL_PURCHASE_AMOUNT);
+        BigDecimal prepaidAmount = reader.decimal(HEADER_PREPAID_AMOUNT);
+        BigDecimal taxPoint = reader.decimal(HEADER_TAX_POINT);
+
+        boolean agreeToInvoice = reader.bool(HEADER_AGREE_TO_INVOICE_AGENT);
+        boolean ableToOverprice = reader.bool(HEADER_ABLE_TO_INVOICE_OVERPRICE);
+
+        // 可选的开票上限列不在元数据中，可能以数字或文本形式读入
+        BigDecimal maxInvoiceAmount = reader.optionalDecimal(HEADER_MAX_INVOICE_AMOUNT);
+        BigDecimal maxOverpriceRatio = reader.optionalDecimal(HEADER_MAX_OVERPRICE_RATIO);
+
         return new ProductSituation(
             factoryName, productName, taxRebateRate,
             salesAmount, actualPurchaseAmount, prepaidAmount,
-            taxPoint, agreeToInvoice, ableToOverprice
+            taxPoint, agreeToInvoice, ableToOverprice,
+            maxInvoiceAmount, maxOverpriceRatio
         );
     }
-    
+
+    /**
+     * 辅助方法：解析可选的数值文本（支持%后缀，空白返回null）
+     */
+    private static BigDecimal parseOptionalDecimal(String text) {
+        String str = text.trim();
+        if (str.isEmpty()) {
+            return null;
+        }
+        if (str.endsWith("%")) {
+            return new BigDecimal(str.substring(0, str.length() - 1).trim()).movePointLeft(2);
+        }
+        return new BigDecimal(str);
+    }
+
     /**
-     * 辅助方法：解析布尔值（支持中文"是/否"和英文"true/false"）
+     * 辅助方法：解析布尔值文本（“是/否”或“true/false”，留空视为否）
+     * @return 无法识别时返回null
      */
-    private static boolean parseBoolean(Object value) {
-        if (value instanceof Boolean) {
-            return (Boolean) value;
+    public static Boolean parseBooleanText(String text) {
+        String str = text.trim();
+        if ("是".equals(str) || "true".equalsIgnoreCase(str)) {
+            return Boolean.TRUE;
         }
-        if (value instanceof String) {
-            String str = ((String) value).trim();
-            return "是".equals(str) || "true".equalsIgnoreCase(str);
+        if (str.isEmpty() || "否".equals(str) || "false".equalsIgnoreCase(str)) {
+            return Boolean.FALSE;
+        }
+        return null;
+    }
+
+    /**
+     * 逐个单元格读取Excel行数据，出错的单元格交给problems并记下，继续读取其余单元格
+     */
+    private static final class ExcelRowReader {
+        private final Map<String, Object> excelRow;
+        private final BiConsumer<String, String> problems;
+        private final NameDictionary names;
+
+        ExcelRowReader(Map<String, Object> excelRow, BiConsumer<String, String> problems, NameDictionary names) {
+            this.excelRow = excelRow;
+            this.problems = problems;
+            this.names = names;
+        }
+
+        String name(String header) {
+            Object value = excelRow.get(header);
+            String name = value instanceof BigDecimal decimal ? decimal.toPlainString()
+                    : value == null ? "" : value.toString().trim();
+            if (name.isEmpty()) {
+                reject(header, "不能为空");
+                return null;
+            }
+            return names == null ? name : names.canonical(name);
+        }
+
+        BigDecimal decimal(String header) {
+            Object value = excelRow.get(header);
+            if (value == null || value instanceof String str && str.isBlank()) {
+                reject(header, "不能为空");
+                return null;
+            }
+            return optionalDecimal(header);
+        }
+
+        BigDecimal optionalDecimal(String header) {
+            Object value = excelRow.get(header);
+            try {
+                if (value == null || value instanceof BigDecimal) {
+                    return (BigDecimal) value;
+                }
+                if (value instanceof Number number) {
+                    return new BigDecimal(number.toString());
+                }
+                if (value instanceof String str) {
+                    return parseOptionalDecimal(str);
+                }
+            } catch (NumberFormatException e) {
+                // 与其他类型的单元格一样按格式错误报告
+            }
+            reject(header, "格式不正确！请输入数字！");
+            return null;
+        }
+
+        boolean bool(String header) {
+            Object value = excelRow.get(header);
+            if (value == null) {
+                return false;
+            }
+            if (value instanceof Boolean bool) {
+                return bool;
+            }
+            Boolean parsed = value instanceof String str ? parseBooleanText(str) : null;
+            if (parsed == null) {
+                reject(header, "无法识别“" + value + "”，应为“是”或“否”");
+                return false;
+            }
+            return parsed;
+        }
+
+        private void reject(String header, String message) {
+            problems.accept(header, message);
         }
-        return false;
     }
     
     /**
@@ -126,4 +269,32 @@ public record ProductSituation (
     public boolean isFixedInvoiceAmount() {
         return !agreeToInvoiceToAgent || !ableToInvoiceWithOverprice;
     }
+
+    /**
+     * 是否设置了开票金额上限（最高开票金额或最高超额比例）
+     */
+    public boolean hasInvoiceCap() {
+        return maxInvoiceAmount != null || maxOverpriceRatio != null;
+    }
+
+    /**
+     * 修改实际货值、已预付金额和税点后的产品情况，其余字段不变
+     */
+    public ProductSituation withAmounts(BigDecimal actualPurchaseAmount, BigDecimal prepaidAmount, BigDecimal taxPoint) {
+        return new ProductSituation(factoryName, productName, taxRebateRate, salesAmountInForeignCurrency,
+                actualPurchaseAmount, prepaidAmount, taxPoint, agreeToInvoiceToAgent, ableToInvoiceWithOverprice,
+                maxInvoiceAmount, maxOverpriceRatio);
+    }
+
+    /**
+     * 开票金额范围：上限取最高开票金额与 实际货值 × (1 + 最高超额比例) 中较小者，不设下限
+     */
+    public InvoiceLimit invoiceLimit() {
+        BigDecimal cap = maxInvoiceAmount;
+        if (maxOverpriceRatio != null) {
+            BigDecimal ratioCap = actualPurchaseAmount.multiply(BigDecimal.ONE.add(maxOverpriceRatio));
+            cap = cap == null ? ratioCap : cap.min(ratioCap);
+        }
+        return cap == null ? InvoiceLimit.NONE : new InvoiceLimit(null, cap);
+    }
 }
\ No newline at end of file
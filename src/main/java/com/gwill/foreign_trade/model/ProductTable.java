@@ -0,0 +1,172 @@
+package com.gwill.foreign_trade.model;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.RandomAccess;
+
+import static com.gwill.foreign_trade.model.ScaledDecimals.input;
+import static com.gwill.foreign_trade.model.ScaledDecimals.toDecimal;
+
+/**
+ * 列式保存的工厂产品信息
+ * 每列一个基本类型数组：金额和比例为定点long（见 ScaledDecimals.SCALE），工厂名称和产品名称为字典编号，
+ * 两个布尔字段合并为一个标志字节。每行约占65字节，一个 ProductSituation 连同其中的BigDecimal和名称约占300字节，
+ * 即约为对象形式的四分之一到五分之一（名称重复较多时；不是数量级的差别）。金额和比例按原值保存，超过6位小数的拒绝。
+ * situationView() 按需把行还原为 ProductSituation，界面、计算和导出代码可以照常使用 List&lt;ProductSituation&gt;
+ */
+public final class ProductTable {
+
+    private static final byte AGREE_TO_INVOICE_TO_AGENT = 1;
+    private static final byte ABLE_TO_INVOICE_WITH_OVERPRICE = 2;
+
+    // 本表的名称字典，随表一起回收
+    private final NameDictionary names = new NameDictionary();
+
+    private int size;
+    private int[] factoryNameIds;
+    private int[] productNameIds;
+    private long[] taxRebateRates;
+    private long[] salesAmounts;
+    private long[] actualPurchaseAmounts;
+    private long[] prepaidAmounts;
+    private long[] taxPoints;
+    private long[] maxInvoiceAmounts;
+    private long[] maxOverpriceRatios;
+    private byte[] flags;
+
+    public ProductTable( int initialCapacity ) {
+        int capacity = Math.max( initialCapacity, 8 );
+        factoryNameIds = new int[capacity];
+        productNameIds = new int[capacity];
+        taxRebateRates = new long[capacity];
+        salesAmounts = new long[capacity];
+        actualPurchaseAmounts = new long[capacity];
+        prepaidAmounts = new long[capacity];
+        taxPoints = new long[capacity];
+        maxInvoiceAmounts = new long[capacity];
+        maxOverpriceRatios = new long[capacity];
+        flags = new byte[capacity];
+    }
+
+    /**
+     * 由产品信息列表建表；传入的本身就是某个表的 situationView() 时直接返回该表
+     */
+    public static ProductTable of( List<ProductSituation> productSituationList ) {
+        if ( productSituationList instanceof SituationView view ) {
+            return view.table();
+        }
+        ProductTable table = new ProductTable( productSituationList.size() );
+        for ( ProductSituation prodSituation : productSituationList ) {
+            table.add( prodSituation );
+        }
+        return table;
+    }
+
+    /**
+     * 追加一行，金额和比例按原值保存
+     * @throws IllegalArgumentException 金额或比例超过 ScaledDecimals.SCALE 位小数或超出定点数的范围
+     */
+    public void add( ProductSituation prodSituation ) {
+        if ( size == flags.length ) {
+            grow();
+        }
+        factoryNameIds[size] = names.idOf( prodSituation.factoryName() );
+        productNameIds[size] = names.idOf( prodSituation.productName() );
+        taxRebateRates[size] = input( prodSituation.taxRebateRate(), ProductSituation.HEADER_TAX_REBATE_RATE );
+        salesAmounts[size] = input( prodSituation.salesAmountInForeignCurrency(), ProductSituation.HEADER_SALES_AMOUNT_FOREIGN );
+        actualPurchaseAmounts[size] = input( prodSituation.actualPurchaseAmount(), ProductSituation.HEADER_ACTUAL_PURCHASE_AMOUNT );
+        prepaidAmounts[size] = input( prodSituation.prepaidAmount(), ProductSituation.HEADER_PREPAID_AMOUNT );
+        taxPoints[size] = input( prodSituation.taxPoint(), ProductSituation.HEADER_TAX_POINT );
+        maxInvoiceAmounts[size] = input( prodSituation.maxInvoiceAmount(), ProductSituation.HEADER_MAX_INVOICE_AMOUNT );
+        maxOverpriceRatios[size] = input( prodSituation.maxOverpriceRatio(), ProductSituation.HEADER_MAX_OVERPRICE_RATIO );
+        flags[size] = (byte) ( ( prodSituation.agreeToInvoiceToAgent() ? AGREE_TO_INVOICE_TO_AGENT : 0 )
+                | ( prodSituation.ableToInvoiceWithOverprice() ? ABLE_TO_INVOICE_WITH_OVERPRICE : 0 ) );
+        size++;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * 把一行还原为 ProductSituation（每次调用新建对象）
+     */
+    public ProductSituation situation( int row ) {
+        checkRow( row );
+        return new ProductSituation(
+                names.name( factoryNameIds[row] ),
+                names.name( productNameIds[row] ),
+                toDecimal( taxRebateRates[row] ),
+                toDecimal( salesAmounts[row] ),
+                toDecimal( actualPurchaseAmounts[row] ),
+                toDecimal( prepaidAmounts[row] ),
+                toDecimal( taxPoints[row] ),
+                ( flags[row] & AGREE_TO_INVOICE_TO_AGENT ) != 0,
+                ( flags[row] & ABLE_TO_INVOICE_WITH_OVERPRICE ) != 0,
+                toDecimal( maxInvoiceAmounts[row] ),
+                toDecimal( maxOverpriceRatios[row] ) );
+    }
+
+    /**
+     * 以只读列表的形式查看全部行，按下标访问时才还原对应的 ProductSituation
+     */
+    public List<ProductSituation> situationView() {
+        return new SituationView( this );
+    }
+
+    /**
+     * 释放多余的预留容量（建表完成后调用）
+     */
+    public void trimToSize() {
+        if ( size < flags.length ) {
+            resize( size );
+        }
+    }
+
+    private void grow() {
+        resize( flags.length + ( flags.length >> 1 ) );
+    }
+
+    private void resize( int capacity ) {
+        factoryNameIds = Arrays.copyOf( factoryNameIds, capacity );
+        productNameIds = Arrays.copyOf( productNameIds, capacity );
+        taxRebateRates = Arrays.copyOf( taxRebateRates, capacity );
+        salesAmounts = Arrays.copyOf( salesAmounts, capacity );
+        actualPurchaseAmounts = Arrays.copyOf( actualPurchaseAmounts, capacity );
+        prepaidAmounts = Arrays.copyOf( prepaidAmounts, capacity );
+        taxPoints = Arrays.copyOf( taxPoints, capacity );
+        maxInvoiceAmounts = Arrays.copyOf( maxInvoiceAmounts, capacity );
+        maxOverpriceRatios = Arrays.copyOf( maxOverpriceRatios, capacity );
+        flags = Arrays.copyOf( flags, capacity );
+    }
+
+    private void checkRow( int row ) {
+        if ( row < 0 || row >= size ) {
+            throw new IndexOutOfBoundsException( "行号" + row + "超出范围（共" + size + "行）" );
+        }
+    }
+
+    private static final class SituationView extends AbstractList<ProductSituation> implements RandomAccess {
+
+        private final ProductTable table;
+
+        SituationView( ProductTable table ) {
+            this.table = table;
+        }
+
+        ProductTable table() {
+            return table;
+        }
+
+        @Override
+        public ProductSituation get( int index ) {
+            return table.situation( index );
+        }
+
+        @Override
+        public int size() {
+            return table.size;
+        }
+    }
+}
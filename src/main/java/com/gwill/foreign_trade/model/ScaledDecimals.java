@@ -0,0 +1,67 @@
+package com.gwill.foreign_trade.model;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+
+/**
+ * 列式表格中金额和比例按固定小数位数保存为long（定点数）
+ */
+final class ScaledDecimals {
+
+    /**
+     * 保存的小数位数：金额精确到0.000001元，比例精确到0.0001%
+     */
+    static final int SCALE = 6;
+
+    /**
+     * 可选列留空（null）时保存的值
+     */
+    static final long NULL = Long.MIN_VALUE;
+
+    private ScaledDecimals() {
+    }
+
+    /**
+     * 输入数据按原值保存，不做舍入：有效小数超过 SCALE 位（如Excel公式单元格带来的 1234.5600000001）时报错，
+     * 否则列式表格的计算结果会与直接用BigDecimal计算的结果不同。尾随零不算有效小数（1.2300000000 可以保存）
+     * @throws IllegalArgumentException 有效小数超过 SCALE 位或超出long范围
+     */
+    static long input( BigDecimal value, String fieldName ) {
+        if ( value == null ) {
+            return NULL;
+        }
+        BigDecimal scaled;
+        try {
+            scaled = value.setScale( SCALE, RoundingMode.UNNECESSARY );
+        } catch ( ArithmeticException e ) {
+            throw new IllegalArgumentException( fieldName + "超过" + SCALE + "位小数，列式表格无法按原值保存：" + value );
+        }
+        try {
+            return scaled.unscaledValue().longValueExact();
+        } catch ( ArithmeticException e ) {
+            throw new IllegalArgumentException( fieldName + "超出列式表格的范围：" + value );
+        }
+    }
+
+    /**
+     * 计算结果四舍五入到 SCALE 位小数保存
+     */
+    static long rounded( BigDecimal value, String fieldName ) {
+        try {
+            return value.setScale( SCALE, RoundingMode.HALF_UP ).unscaledValue().longValueExact();
+        } catch ( ArithmeticException e ) {
+            throw new IllegalArgumentException( fieldName + "超出列式表格的范围：" + value );
+        }
+    }
+
+    /**
+     * 还原为BigDecimal，去掉多余的尾随零（整数金额不带小数部分）
+     */
+    static BigDecimal toDecimal( long scaled ) {
+        if ( scaled == NULL ) {
+            return null;
+        }
+        BigDecimal value = BigDecimal.valueOf( scaled, SCALE ).stripTrailingZeros();
+        return value.scale() < 0 ? value.setScale( 0 ) : value;
+    }
+}
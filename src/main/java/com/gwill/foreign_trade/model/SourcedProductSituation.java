@@ -0,0 +1,22 @@
+package com.gwill.foreign_trade.model;
+
+/**
+ * 带来源信息的产品情况
+ * 合并多个文件、多个工作表的数据时，记录每条数据来自哪个文件的哪个工作表的第几行
+ */
+public record SourcedProductSituation (
+        ProductSituation productSituation,      // 产品情况
+        String sourceFile,                      // 来源文件路径
+        String sheetName,                       // 来源工作表名称（CSV文件为null）
+        long rowNumber                          // 来源行号（从1开始，含表头行）
+) {
+
+    /**
+     * 来源描述，用于错误提示，如：供应商A.xlsx [Sheet1] 第3行
+     */
+    public String describeSource() {
+        return sheetName == null ?
+                String.format( "%s 第%d行", sourceFile, rowNumber ) :
+                String.format( "%s [%s] 第%d行", sourceFile, sheetName, rowNumber );
+    }
+}
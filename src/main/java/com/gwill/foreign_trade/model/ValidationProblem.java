@@ -0,0 +1,26 @@
+package com.gwill.foreign_trade.model;
+
+/**
+ * 加载输入数据时发现的一处问题
+ * 加载器在解析的同时检查每一行，收集全部问题后一次报告，用户可以一次改完再重新加载
+ */
+public record ValidationProblem (
+        String sourceFile,                      // 来源文件路径
+        String sheetName,                       // 来源工作表名称（CSV文件为null）
+        long rowNumber,                         // 来源行号（从1开始，含表头行）
+        String columnName,                      // 出错列名（整行问题为null）
+        String message                          // 问题说明
+) {
+
+    /**
+     * 问题描述，如：供应商A.xlsx [Sheet1] 第3行（退税率）：退税率必须在0-100%之间
+     */
+    public String describe() {
+        String location = sheetName == null ?
+                String.format( "%s 第%d行", sourceFile, rowNumber ) :
+                String.format( "%s [%s] 第%d行", sourceFile, sheetName, rowNumber );
+        return columnName == null ?
+                location + "：" + message :
+                location + "（" + columnName + "）：" + message;
+    }
+}
@@ -0,0 +1,39 @@
+package com.gwill.foreign_trade.service;
+
+/**
+ * 超额开票金额在可超额开票工厂之间的分配方式
+ */
+public enum AllocationMode {
+
+    /**
+     * 按实际货值比例分配，10位精度，尾差由最后一家可超额开票工厂承担
+     * 有工厂设置开票上限时，超出上限的部分再按货值比例分摊给其余可超额开票工厂
+     */
+    PROPORTIONAL( "按货值比例分配" ),
+
+    /**
+     * 按实际货值比例分配到整分，剩余的分按最大余数法逐分补给余数最大的工厂
+     * 开票上限的处理同 PROPORTIONAL
+     */
+    LARGEST_REMAINDER_FEN( "按货值比例分配到分（最大余数法）" ),
+
+    /**
+     * 使超额开票扣税总额最小：优先分配给税点最低的工厂，税点相同的工厂之间按货值比例分配，并遵守各工厂的开票金额上下限
+     */
+    TAX_MINIMIZING( "扣税最少优先" );
+
+    private final String displayName;
+
+    AllocationMode( String displayName ) {
+        this.displayName = displayName;
+    }
+
+    public String getDisplayName() {
+        return displayName;
+    }
+
+    @Override
+    public String toString() {
+        return displayName;
+    }
+}
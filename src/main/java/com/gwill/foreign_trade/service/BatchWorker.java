@@ -0,0 +1,129 @@
+package com.gwill.foreign_trade.service;
+
+import com.gwill.foreign_trade.io.BatchJournal;
+import com.gwill.foreign_trade.io.BatchSpool;
+import com.gwill.foreign_trade.io.CalculationResultExporter;
+import com.gwill.foreign_trade.io.OrderBookLoader;
+import com.gwill.foreign_trade.model.BatchOrderResult;
+import com.gwill.foreign_trade.model.MultiProductCalculationResult;
+import com.gwill.foreign_trade.model.OrderBookEntry;
+import com.gwill.foreign_trade.model.OrderRevaluation;
+import com.gwill.foreign_trade.model.OrderSnapshot;
+import com.gwill.io.excel.ExcelIOException;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * 多进程批量计算的工作进程入口，由 ShardedBatchCoordinator 启动
+ * 参数：缓冲目录 工作进程序号
+ * 循环从缓冲目录取订单（自己的队列取空后窃取其他进程的任务），加载工厂数据、按计算日期的汇率计算并导出，
+ * 需要时计入运行台账，再写入检查点日志和结果摘要；单笔订单出错只记为该订单失败，继续处理后续订单。所有队列都为空时退出
+ */
+public final class BatchWorker {
+
+    private static final String OUTPUT_SEQUENCE_FORMAT = "%05d";
+    // Windows和Unix文件名中不能使用的字符
+    private static final String UNSAFE_FILE_NAME_CHARACTERS = "\\/:*?\"<>|";
+
+    private BatchWorker() {
+    }
+
+    public static void main( String[] args ) throws IOException {
+        if ( args.length != 2 ) {
+            System.err.println( "用法：BatchWorker <缓冲目录> <工作进程序号>" );
+            System.exit( 2 );
+        }
+        BatchSpool spool = BatchSpool.open( Path.of( args[0] ) );
+        int workerIndex = Integer.parseInt( args[1] );
+        String workerName = BatchSpool.workerName( workerIndex );
+        ShardedBatchCoordinator.Job job = ShardedBatchCoordinator.fromProperties( spool.readJob() );
+        FxRateStore fxRateStore = FxRateStore.importCsv( job.fxRatesPath() );
+        BatchJournal journal = new BatchJournal( job.outputDirectory().resolve( ShardedBatchCoordinator.JOURNAL_FILE ) );
+        RunLedger ledger = job.ledgerDirectory() == null ? null : RunLedger.open( job.ledgerDirectory() );
+        ContractFormula formula = ContractFormula.compile( job.contract() );
+
+        int processed = 0;
+        int stolen = 0;
+        for ( Optional<BatchSpool.ClaimedTask> claimed = spool.claim( workerIndex ); claimed.isPresent();
+              claimed = spool.claim( workerIndex ) ) {
+            BatchSpool.ClaimedTask task = claimed.get();
+            OrderBookEntry entry = task.entry();
+            try {
+                // process 在记录完成之前写检查点日志：此后本进程即使退出，重新运行时也不会再处理这笔订单
+                BatchOrderResult result = process( task.sequence(), entry, job, formula, fxRateStore, journal, ledger,
+                        workerName );
+                spool.complete( task, result );
+                System.out.printf( "%s 订单%s完成%s，%d个产品，耗时%dms%n", workerName, entry.orderId(),
+                        task.stolen() ? "（窃取）" : "", result.productCount(), result.elapsedMillis() );
+            } catch ( ExcelIOException | IOException | RuntimeException e ) {
+                spool.fail( task, workerName, e.getMessage() );
+                System.out.printf( "%s 订单%s失败：%s%n", workerName, entry.orderId(), e.getMessage() );
+            }
+            processed++;
+            if ( task.stolen() ) {
+                stolen++;
+            }
+        }
+        System.out.printf( "%s 结束，共处理%d笔订单，其中窃取%d笔%n", workerName, processed, stolen );
+    }
+
+    /**
+     * 加载、计算并导出一笔订单，需要时计入运行台账（同一订单同样的输入只计入一次），最后写入检查点日志
+     * 各工厂数据文件整体读入一次，输入哈希和解析都基于这同一份字节
+     * @param sequence 订单在清单中的序号（导出文件名的前缀）
+     * @param formula 按任务的代理合同编译的公式
+     * @param ledger 运行台账（null表示不记录）
+     */
+    static BatchOrderResult process( int sequence, OrderBookEntry entry, ShardedBatchCoordinator.Job job,
+                                     ContractFormula formula, FxRateStore fxRateStore, BatchJournal journal,
+                                     RunLedger ledger, String workerName )
+            throws ExcelIOException, IOException {
+        long startNanos = System.nanoTime();
+        BigDecimal exchangeRate = fxRateStore.rateOn( entry.currency(), job.valuationDate() );
+        List<byte[]> situationFileContents = new ArrayList<>( entry.situationFiles().size() );
+        for ( Path situationFile : entry.situationFiles() ) {
+            situationFileContents.add( Files.readAllBytes( situationFile ) );
+        }
+        String inputHash = BatchJournal.inputHash( entry, ShardedBatchCoordinator.runParameters( job, exchangeRate ),
+                situationFileContents );
+        OrderSnapshot order = OrderBookLoader.loadOrder( entry, situationFileContents );
+        OrderRevaluation revaluation = OrderRevaluationService.revalue( order, exchangeRate, job.valuationDate(),
+                formula );
+        MultiProductCalculationResult result = revaluation.calculationResult();
+
+        List<Path> outputFiles = CalculationResultExporter.export(
+                job.outputDirectory().resolve( outputBaseName( sequence, order.orderId() ) ),
+                job.formats(), job.gzipTextFormats(), order.productSituations(), result );
+        if ( ledger != null ) {
+            ledger.recordRun( order.orderId() + "@" + inputHash, job.valuationDate(), "批量计算订单" + order.orderId(),
+                    result.productCalculationDetails() );
+        }
+
+        BatchOrderResult batchOrderResult = new BatchOrderResult( order.orderId(), order.currency(), exchangeRate,
+                result.productCalculationDetails().size(), result.totalInvoiceAmount(), result.totalTaxRebateAmount(),
+                result.totalAgentProfit(), result.yourTotalTaxRebateShareAmount(), revaluation.yourNetProfit(),
+                outputFiles.stream().map( Path::toString ).toList(), workerName,
+                ( System.nanoTime() - startNanos ) / 1_000_000, false );
+        journal.append( sequence, inputHash, batchOrderResult );
+        return batchOrderResult;
+    }
+
+    /**
+     * 一笔订单导出文件的基础文件名：清单序号（从1开始）加订单编号，订单编号中不能用于文件名的字符换成下划线，
+     * 订单编号含“..”或路径分隔符时也不会写到输出目录之外
+     */
+    static String outputBaseName( int sequence, String orderId ) {
+        StringBuilder name = new StringBuilder( String.format( OUTPUT_SEQUENCE_FORMAT, sequence + 1 ) ).append( '_' );
+        for ( int i = 0; i < orderId.length(); i++ ) {
+            char c = orderId.charAt( i );
+            name.append( c < ' ' || UNSAFE_FILE_NAME_CHARACTERS.indexOf( c ) >= 0 ? '_' : c );
+        }
+        return name.toString();
+    }
+}
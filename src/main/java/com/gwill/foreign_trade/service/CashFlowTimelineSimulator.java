@@ -0,0 +1,306 @@
+package com.gwill.foreign_trade.service;
+
+import com.gwill.foreign_trade.io.CalculationResultExporter;
+import com.gwill.foreign_trade.io.OrderBookLoader;
+import com.gwill.foreign_trade.io.OrderTimelineLoader;
+import com.gwill.foreign_trade.model.CashFlowEvent;
+import com.gwill.foreign_trade.model.CashFlowProjection;
+import com.gwill.foreign_trade.model.CashFlowStep;
+import com.gwill.foreign_trade.model.MultiProductCalculationResult;
+import com.gwill.foreign_trade.model.OrderRevaluation;
+import com.gwill.foreign_trade.model.OrderSnapshot;
+import com.gwill.foreign_trade.model.OrderTimeline;
+import com.gwill.foreign_trade.model.ProductCalculationDetail;
+import com.gwill.foreign_trade.model.ProductSituation;
+import com.gwill.io.excel.ExcelIOException;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * 资金流转时间线模拟器
+ * 把每笔订单资金流转的各步（定金、押金、剩余货款、收汇、退押金、退税、第二笔货款、结算余款、工厂退款）按订单的日期展开为资金往来事件，
+ * 再把全部在手订单的事件放入按日期排序的事件队列逐日结算，预测您、代理公司和各工厂每天的资金头寸。
+ * 各订单的事件单独保存并已按日期排好序，某笔订单的日期变动时只重新展开这一笔订单，预测时对各订单的有序事件做多路归并，
+ * 数百笔订单也只需毫秒级即可重新预测。
+ * 全部步骤完成后，您的累计净额等于该订单的净利润，代理公司的累计净额等于代理公司利润，各工厂为实际货值加扣税金额。
+ * 非线程安全
+ */
+public final class CashFlowTimelineSimulator {
+
+    public static final String YOU = "您";
+    public static final String AGENT = "代理公司";
+    public static final String CUSTOMER = "海外客户";
+    public static final String TAX_AUTHORITY = "税务机关";
+
+    // 不预测头寸的外部参与方
+    private static final Set<String> EXTERNAL_PARTIES = Set.of( CUSTOMER, TAX_AUTHORITY );
+
+    private static final int POSITION_SCALE = 2;
+
+    /**
+     * 一笔订单的计算结果及按当前日期展开的事件（按日期排序）
+     */
+    private record OrderCashFlows( OrderSnapshot order, OrderRevaluation revaluation, OrderTimeline timeline,
+                                   List<CashFlowEvent> events ) {}
+
+    private final Map<String, OrderCashFlows> orders = new LinkedHashMap<>();
+
+    /**
+     * 命令行入口：按计算日期的汇率计算订单清单中的全部订单，按日期表展开资金往来，导出逐日头寸预测
+     * 参数：订单清单CSV 历史汇率CSV 计算日期 日期表CSV 导出CSV [起始日期 截止日期]，不指定日期时预测最早到最晚的资金往来
+     */
+    public static void main( String[] args ) throws ExcelIOException, IOException {
+        if ( args.length != 5 && args.length != 7 ) {
+            System.err.println( "用法：CashFlowTimelineSimulator <订单清单CSV> <历史汇率CSV> <计算日期> <日期表CSV> <导出CSV> "
+                    + "[起始日期 截止日期]" );
+            System.exit( 2 );
+        }
+        List<OrderSnapshot> orders = OrderBookLoader.load( Path.of( args[0] ) );
+        LocalDate valuationDate = LocalDate.parse( args[2] );
+        List<OrderRevaluation> revaluations = OrderRevaluationService.revalueAll( orders,
+                FxRateStore.importCsv( Path.of( args[1] ) ), valuationDate );
+        Map<String, OrderTimeline> timelines = OrderTimelineLoader.load( Path.of( args[3] ) );
+
+        CashFlowTimelineSimulator simulator = new CashFlowTimelineSimulator();
+        LocalDate from = null;
+        LocalDate to = null;
+        for ( int i = 0; i < orders.size(); i++ ) {
+            OrderSnapshot order = orders.get( i );
+            OrderTimeline timeline = timelines.get( order.orderId() );
+            if ( timeline == null ) {
+                throw new IllegalArgumentException( "日期表中没有订单" + order.orderId() );
+            }
+            simulator.putOrder( order, revaluations.get( i ), timeline );
+            for ( CashFlowEvent event : simulator.events( order.orderId() ) ) {
+                from = from == null || event.date().isBefore( from ) ? event.date() : from;
+                to = to == null || event.date().isAfter( to ) ? event.date() : to;
+            }
+        }
+        if ( args.length == 7 ) {
+            from = LocalDate.parse( args[5] );
+            to = LocalDate.parse( args[6] );
+        } else if ( from == null ) {
+            throw new IllegalArgumentException( "订单清单中没有资金往来" );
+        }
+
+        long startNanos = System.nanoTime();
+        CashFlowProjection projection = simulator.project( from, to );
+        long elapsedMillis = ( System.nanoTime() - startNanos ) / 1_000_000;
+        Path reportPath = Path.of( args[4] );
+        CalculationResultExporter.exportCashFlowProjection( reportPath, projection );
+        System.out.printf( "%d笔订单，%s至%s，预测耗时%dms，已导出：%s%n", simulator.orderCount(), from, to, elapsedMillis,
+                reportPath );
+        for ( String party : projection.positionsByParty().keySet() ) {
+            System.out.printf( "%s：最低头寸%.2f，期末头寸%.2f%n", party, projection.lowestPosition( party ),
+                    projection.positionOn( party, to ) );
+        }
+    }
+
+    /**
+     * 加入或替换一笔订单
+     * @param order 订单快照
+     * @param revaluation 该订单的计算结果
+     * @param timeline 该订单资金流转各步的日期
+     */
+    public void putOrder( OrderSnapshot order, OrderRevaluation revaluation, OrderTimeline timeline ) {
+        if ( !order.orderId().equals( revaluation.orderId() ) || !order.orderId().equals( timeline.orderId() ) ) {
+            throw new IllegalArgumentException( "订单编号不一致：" + order.orderId() );
+        }
+        orders.put( order.orderId(), new OrderCashFlows( order, revaluation, timeline,
+                buildEvents( order, revaluation, timeline ) ) );
+    }
+
+    /**
+     * 修改一笔订单的日期，只重新展开这一笔订单的事件
+     */
+    public void reschedule( OrderTimeline timeline ) {
+        OrderCashFlows current = orders.get( timeline.orderId() );
+        if ( current == null ) {
+            throw new IllegalArgumentException( "没有该订单：" + timeline.orderId() );
+        }
+        orders.put( timeline.orderId(), new OrderCashFlows( current.order(), current.revaluation(), timeline,
+                buildEvents( current.order(), current.revaluation(), timeline ) ) );
+    }
+
+    public void removeOrder( String orderId ) {
+        orders.remove( orderId );
+    }
+
+    public int orderCount() {
+        return orders.size();
+    }
+
+    /**
+     * 一笔订单的资金往来事件（按日期排序）
+     */
+    public List<CashFlowEvent> events( String orderId ) {
+        OrderCashFlows cashFlows = orders.get( orderId );
+        if ( cashFlows == null ) {
+            throw new IllegalArgumentException( "没有该订单：" + orderId );
+        }
+        return cashFlows.events();
+    }
+
+    /**
+     * 把一笔订单的资金流转展开为有日期的资金往来
+     * 金额为负的往来（如不参与开票的工厂第二笔货款为负）按相反方向记录
+     * @return 按日期排序的事件（同一天的按步骤顺序）
+     */
+    public static List<CashFlowEvent> buildEvents( OrderSnapshot order, OrderRevaluation revaluation,
+                                                   OrderTimeline timeline ) {
+        MultiProductCalculationResult result = revaluation.calculationResult();
+        List<ProductSituation> situations = order.productSituations();
+        List<ProductCalculationDetail> details = result.productCalculationDetails();
+        String orderId = order.orderId();
+        List<CashFlowEvent> events = new ArrayList<>();
+
+        BigDecimal totalDeposit = BigDecimal.ZERO;
+        BigDecimal totalPaidByAgent = BigDecimal.ZERO;
+        for ( ProductCalculationDetail detail : details ) {
+            totalDeposit = totalDeposit.add( detail.agentBalanceToFactoryBeforeShipment() );
+            totalPaidByAgent = totalPaidByAgent.add( detail.agentBalanceToFactoryBeforeShipment() )
+                    .add( detail.agentBalanceToFactoryAfterRebating() );
+        }
+        BigDecimal salesAmountInRMB = order.salesAmount().multiply( revaluation.exchangeRate() );
+
+        // 1. 您已向各工厂支付定金
+        for ( int i = 0; i < details.size(); i++ ) {
+            addEvent( events, timeline.prepaymentDate(), orderId, CashFlowStep.PREPAYMENT, YOU,
+                    details.get( i ).factoryName(), situations.get( i ).prepaidAmount() );
+        }
+        // 2. 您向代理公司个人账户汇押金（剩余应付货款）
+        addEvent( events, timeline.depositDate(), orderId, CashFlowStep.DEPOSIT, YOU, AGENT, totalDeposit );
+        // 3. 代理公司向各工厂支付剩余货款
+        for ( ProductCalculationDetail detail : details ) {
+            addEvent( events, timeline.shipmentDate(), orderId, CashFlowStep.REMAINING_PAYMENT, AGENT,
+                    detail.factoryName(), detail.agentBalanceToFactoryBeforeShipment() );
+        }
+        // 6. 代理公司收到海外客户外币货款后，退回押金给您
+        addEvent( events, timeline.fxReceiptDate(), orderId, CashFlowStep.FX_RECEIPT, CUSTOMER, AGENT,
+                salesAmountInRMB );
+        addEvent( events, timeline.fxReceiptDate(), orderId, CashFlowStep.DEPOSIT_RETURN, AGENT, YOU, totalDeposit );
+        // 7. 代理公司收到退税后向工厂（或委托方——如果是委托方开票的话）支付第二笔货款
+        addEvent( events, timeline.rebateReceiptDate(), orderId, CashFlowStep.TAX_REBATE_RECEIPT, TAX_AUTHORITY, AGENT,
+                result.totalTaxRebateAmount() );
+        for ( int i = 0; i < details.size(); i++ ) {
+            ProductCalculationDetail detail = details.get( i );
+            addEvent( events, timeline.rebateReceiptDate(), orderId, CashFlowStep.SECOND_PAYMENT, AGENT,
+                    situations.get( i ).agreeToInvoiceToAgent() ? detail.factoryName() : YOU,
+                    detail.agentBalanceToFactoryAfterRebating() );
+        }
+        // 代理公司扣下代理利润后，把外币货款和您应分得的退税中尚未付出的部分结算给您
+        addEvent( events, timeline.rebateReceiptDate(), orderId, CashFlowStep.SETTLEMENT, AGENT, YOU,
+                salesAmountInRMB.add( result.yourTotalTaxRebateShareAmount() ).subtract( totalPaidByAgent ) );
+        // 8. 工厂退回定金和差额给您
+        for ( ProductCalculationDetail detail : details ) {
+            addEvent( events, timeline.factoryRefundDate(), orderId, CashFlowStep.PREPAYMENT_REFUND,
+                    detail.factoryName(), YOU, detail.prepaymentRefundAmount() );
+            addEvent( events, timeline.factoryRefundDate(), orderId, CashFlowStep.OVERPRICE_REFUND,
+                    detail.factoryName(), YOU, detail.overpriceRefundFromFactory() );
+        }
+
+        // 稳定排序，同一天的事件保持步骤顺序
+        events.sort( Comparator.comparing( CashFlowEvent::date ) );
+        return List.copyOf( events );
+    }
+
+    private static void addEvent( List<CashFlowEvent> events, LocalDate date, String orderId, CashFlowStep step,
+                                  String payer, String payee, BigDecimal amount ) {
+        if ( date == null ) {
+            throw new IllegalArgumentException( String.format( "订单%s缺少“%s”的日期", orderId, step ) );
+        }
+        int sign = amount.signum();
+        if ( sign > 0 ) {
+            events.add( new CashFlowEvent( date, orderId, step, payer, payee, amount ) );
+        } else if ( sign < 0 ) {
+            events.add( new CashFlowEvent( date, orderId, step, payee, payer, amount.negate() ) );
+        }
+    }
+
+    /**
+     * 预测各方逐日资金头寸
+     * 各订单的有序事件经优先队列多路归并后按日期依次结算，起始日期之前的往来计入期初头寸
+     * @param from 起始日期
+     * @param to 截止日期
+     * @return 您、代理公司及各工厂（按名称排序）的逐日头寸
+     */
+    public CashFlowProjection project( LocalDate from, LocalDate to ) {
+        if ( to.isBefore( from ) ) {
+            throw new IllegalArgumentException( "截止日期不能早于起始日期" );
+        }
+        int days = (int) ChronoUnit.DAYS.between( from, to ) + 1;
+
+        // 参与方：您、代理公司在前，各工厂按名称排序
+        Set<String> factories = new TreeSet<>();
+        for ( OrderCashFlows cashFlows : orders.values() ) {
+            for ( CashFlowEvent event : cashFlows.events() ) {
+                factories.add( event.payer() );
+                factories.add( event.payee() );
+            }
+        }
+        factories.remove( YOU );
+        factories.remove( AGENT );
+        factories.removeAll( EXTERNAL_PARTIES );
+        Map<String, BigDecimal> balances = new LinkedHashMap<>();
+        balances.put( YOU, BigDecimal.ZERO );
+        balances.put( AGENT, BigDecimal.ZERO );
+        for ( String factory : factories ) {
+            balances.put( factory, BigDecimal.ZERO );
+        }
+        Map<String, List<BigDecimal>> positions = new LinkedHashMap<>();
+        for ( String party : balances.keySet() ) {
+            positions.put( party, new ArrayList<>( days ) );
+        }
+
+        // 事件队列：每笔订单一个游标，按游标所指事件的日期出队
+        record Cursor( List<CashFlowEvent> events, int index ) {
+            CashFlowEvent current() {
+                return events.get( index );
+            }
+        }
+        PriorityQueue<Cursor> queue = new PriorityQueue<>( Math.max( 1, orders.size() ),
+                Comparator.comparing( ( Cursor cursor ) -> cursor.current().date() ) );
+        for ( OrderCashFlows cashFlows : orders.values() ) {
+            if ( !cashFlows.events().isEmpty() ) {
+                queue.add( new Cursor( cashFlows.events(), 0 ) );
+            }
+        }
+
+        Map<String, BigDecimal> pending = new HashMap<>();
+        LocalDate day = from;
+        for ( int d = 0; d < days; d++, day = day.plusDays( 1 ) ) {
+            while ( !queue.isEmpty() && !queue.peek().current().date().isAfter( day ) ) {
+                Cursor cursor = queue.poll();
+                CashFlowEvent event = cursor.current();
+                pending.merge( event.payer(), event.amount().negate(), BigDecimal::add );
+                pending.merge( event.payee(), event.amount(), BigDecimal::add );
+                if ( cursor.index() + 1 < cursor.events().size() ) {
+                    queue.add( new Cursor( cursor.events(), cursor.index() + 1 ) );
+                }
+            }
+            if ( !pending.isEmpty() ) {
+                pending.forEach( ( party, change ) -> balances.computeIfPresent( party,
+                        ( key, balance ) -> balance.add( change ) ) );
+                pending.clear();
+            }
+            for ( Map.Entry<String, BigDecimal> balance : balances.entrySet() ) {
+                positions.get( balance.getKey() ).add( balance.getValue().setScale( POSITION_SCALE, RoundingMode.HALF_UP ) );
+            }
+        }
+        return new CashFlowProjection( from, to, positions );
+    }
+}
@@ -0,0 +1,184 @@
+package com.gwill.foreign_trade.service;
+
+import com.gwill.foreign_trade.model.CalculationParams;
+import com.gwill.foreign_trade.model.CalculationResult;
+import com.gwill.foreign_trade.model.InvoiceBatchResult;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.math.BigDecimal;
+
+/**
+ * 列式批量计算内核
+ * 输入为按列保存的double数组（PI外币销售金额、退税率、实际货值、税点），按合同公式逐行计算
+ * 开票金额、退税金额、代理利润和超额开票扣税金额，供情景网格、风险模拟等需要大量重复计算的场景使用。
+ * 标准合同以double直接计算：以 -Pvector 构建且以 --add-modules jdk.incubator.vector 启动时使用SIMD实现，
+ * 否则退回标量循环，两者结果逐位相同。其他合同的公式只有编译后的BigDecimal形式，逐行按 ContractFormula 计算后
+ * 转为double，结果正确但没有列式计算的速度优势。
+ * double运算与BigDecimal结果相差远小于一分钱，可用 crossCheck 抽样核对
+ */
+public final class ColumnarInvoiceKernel {
+
+    /**
+     * 与BigDecimal结果核对时允许的最大误差（元）
+     */
+    public static final double CENT_TOLERANCE = 0.01;
+
+    private static final String VECTORIZED_KERNEL_CLASS = "com.gwill.foreign_trade.service.VectorizedInvoiceKernel";
+    private static final MethodType KERNEL_TYPE = MethodType.methodType( void.class, double[].class, double[].class,
+            double[].class, double[].class, double.class, double.class, int.class, double[].class, double[].class,
+            double[].class, double[].class );
+
+    // SIMD实现的入口；未以 -Pvector 构建或启动时未加载 jdk.incubator.vector 模块时为null
+    private static final MethodHandle VECTORIZED_KERNEL = findVectorizedKernel();
+
+    private ColumnarInvoiceKernel() {
+    }
+
+    /**
+     * 是否使用Vector API实现
+     */
+    public static boolean isVectorized() {
+        return VECTORIZED_KERNEL != null;
+    }
+
+    private static MethodHandle findVectorizedKernel() {
+        if ( ModuleLayer.boot().findModule( "jdk.incubator.vector" ).isEmpty() ) {
+            return null;
+        }
+        try {
+            Class<?> kernel = Class.forName( VECTORIZED_KERNEL_CLASS );
+            return MethodHandles.lookup().findStatic( kernel, "calculate", KERNEL_TYPE );
+        } catch ( ReflectiveOperationException e ) {
+            // 默认构建不含SIMD实现
+            return null;
+        }
+    }
+
+    /**
+     * 批量计算
+     * @param salesAmounts PI外币销售金额
+     * @param taxRebateRates 退税率（小数形式）
+     * @param actualPurchaseAmounts 实际货值
+     * @param taxPoints 税点（小数形式）
+     * @param exchangeRate 汇率
+     * @param agentRelativeRatio 代理退税相对分配率（小数形式）
+     * @param formula 编译后的合同公式
+     * @return 计算结果
+     */
+    public static InvoiceBatchResult calculate( double[] salesAmounts, double[] taxRebateRates,
+                                                double[] actualPurchaseAmounts, double[] taxPoints,
+                                                double exchangeRate, double agentRelativeRatio,
+                                                ContractFormula formula ) {
+        InvoiceBatchResult result = InvoiceBatchResult.allocate( salesAmounts.length );
+        calculateInto( salesAmounts, taxRebateRates, actualPurchaseAmounts, taxPoints, exchangeRate,
+                agentRelativeRatio, formula, salesAmounts.length, result );
+        return result;
+    }
+
+    /**
+     * 批量计算前 rowCount 行，结果写入已分配的 result（可反复复用）
+     * 非标准合同逐行按 ContractFormula 以BigDecimal计算
+     */
+    public static void calculateInto( double[] salesAmounts, double[] taxRebateRates, double[] actualPurchaseAmounts,
+                                      double[] taxPoints, double exchangeRate, double agentRelativeRatio,
+                                      ContractFormula formula, int rowCount, InvoiceBatchResult result ) {
+        if ( taxRebateRates.length < rowCount || actualPurchaseAmounts.length < rowCount || taxPoints.length < rowCount
+                || salesAmounts.length < rowCount || result.capacity() < rowCount ) {
+            throw new IllegalArgumentException( "各列长度不足" + rowCount + "行！" );
+        }
+        if ( formula != ContractFormula.STANDARD ) {
+            calculateByFormula( salesAmounts, taxRebateRates, actualPurchaseAmounts, taxPoints, exchangeRate,
+                    agentRelativeRatio, formula, rowCount, result );
+        } else if ( VECTORIZED_KERNEL != null ) {
+            try {
+                VECTORIZED_KERNEL.invokeExact( salesAmounts, taxRebateRates, actualPurchaseAmounts, taxPoints,
+                        exchangeRate, agentRelativeRatio, rowCount, result.invoiceAmounts(), result.taxRebateAmounts(),
+                        result.agentProfits(), result.overpriceTaxes() );
+            } catch ( RuntimeException | Error e ) {
+                throw e;
+            } catch ( Throwable e ) {
+                throw new IllegalStateException( e );
+            }
+        } else {
+            calculateScalar( salesAmounts, taxRebateRates, actualPurchaseAmounts, taxPoints, exchangeRate,
+                    agentRelativeRatio, 0, rowCount, result.invoiceAmounts(), result.taxRebateAmounts(),
+                    result.agentProfits(), result.overpriceTaxes() );
+        }
+    }
+
+    /**
+     * 非标准合同：逐行按编译后的合同公式以BigDecimal计算，再转为double
+     */
+    private static void calculateByFormula( double[] salesAmounts, double[] taxRebateRates,
+                                            double[] actualPurchaseAmounts, double[] taxPoints, double exchangeRate,
+                                            double agentRelativeRatio, ContractFormula formula, int rowCount,
+                                            InvoiceBatchResult result ) {
+        BigDecimal exchangeRateDecimal = BigDecimal.valueOf( exchangeRate );
+        BigDecimal agentRelativeRatioDecimal = BigDecimal.valueOf( agentRelativeRatio );
+        for ( int i = 0; i < rowCount; i++ ) {
+            BigDecimal rate = BigDecimal.valueOf( taxRebateRates[i] );
+            BigDecimal invoice = formula.invoiceAmount( BigDecimal.valueOf( salesAmounts[i] ), exchangeRateDecimal,
+                    rate, agentRelativeRatioDecimal );
+            BigDecimal rebate = formula.taxRebateAmount( invoice, rate, agentRelativeRatioDecimal );
+            result.invoiceAmounts()[i] = invoice.doubleValue();
+            result.taxRebateAmounts()[i] = rebate.doubleValue();
+            result.agentProfits()[i] = formula.agentProfit( rebate, invoice, rate, agentRelativeRatioDecimal ).doubleValue();
+            result.overpriceTaxes()[i] = ( result.invoiceAmounts()[i] - actualPurchaseAmounts[i] ) * taxPoints[i];
+        }
+    }
+
+    /**
+     * 标准合同的标量实现，计算下标 [from, to) 的行；运算顺序与SIMD实现一致
+     */
+    static void calculateScalar( double[] salesAmounts, double[] taxRebateRates, double[] actualPurchaseAmounts,
+                                 double[] taxPoints, double exchangeRate, double agentRelativeRatio, int from, int to,
+                                 double[] invoiceAmounts, double[] taxRebateAmounts, double[] agentProfits,
+                                 double[] overpriceTaxes ) {
+        for ( int i = from; i < to; i++ ) {
+            double rate = taxRebateRates[i];
+            double onePlusRate = rate + 1.0;
+            double invoice = salesAmounts[i] * exchangeRate * onePlusRate / Math.fma( rate, agentRelativeRatio, 1.0 );
+            double rebate = invoice * rate / onePlusRate;
+            invoiceAmounts[i] = invoice;
+            taxRebateAmounts[i] = rebate;
+            agentProfits[i] = rebate * agentRelativeRatio;
+            overpriceTaxes[i] = ( invoice - actualPurchaseAmounts[i] ) * taxPoints[i];
+        }
+    }
+
+    /**
+     * 每隔 stride 行用合同公式以BigDecimal重算一次并核对
+     * @return 最大误差（元）
+     * @throws IllegalStateException 误差超过 CENT_TOLERANCE
+     */
+    public static double crossCheck( double[] salesAmounts, double[] taxRebateRates, double[] actualPurchaseAmounts,
+                                     double[] taxPoints, double exchangeRate, double agentRelativeRatio,
+                                     ContractFormula formula, int rowCount, InvoiceBatchResult result, int stride ) {
+        double maxDeviation = 0;
+        BigDecimal exchangeRateDecimal = BigDecimal.valueOf( exchangeRate );
+        BigDecimal agentRelativeRatioDecimal = BigDecimal.valueOf( agentRelativeRatio );
+        for ( int i = 0; i < rowCount; i += Math.max( stride, 1 ) ) {
+            CalculationResult expected = MultiFactoryInvoiceCalculationService.calculateInvoiceAmount(
+                    new CalculationParams( BigDecimal.valueOf( salesAmounts[i] ), exchangeRateDecimal,
+                            BigDecimal.valueOf( taxRebateRates[i] ), agentRelativeRatioDecimal ), formula );
+            BigDecimal expectedOverpriceTax = expected.invoiceAmount()
+                    .subtract( BigDecimal.valueOf( actualPurchaseAmounts[i] ) )
+                    .multiply( BigDecimal.valueOf( taxPoints[i] ) );
+
+            maxDeviation = Math.max( maxDeviation, deviation( expected.invoiceAmount(), result.invoiceAmounts()[i] ) );
+            maxDeviation = Math.max( maxDeviation, deviation( expected.taxRebateAmount(), result.taxRebateAmounts()[i] ) );
+            maxDeviation = Math.max( maxDeviation, deviation( expected.agentProfit(), result.agentProfits()[i] ) );
+            maxDeviation = Math.max( maxDeviation, deviation( expectedOverpriceTax, result.overpriceTaxes()[i] ) );
+            if ( maxDeviation > CENT_TOLERANCE ) {
+                throw new IllegalStateException( "第" + ( i + 1 ) + "行批量计算结果与精确计算相差" + maxDeviation + "元！" );
+            }
+        }
+        return maxDeviation;
+    }
+
+    private static double deviation( BigDecimal expected, double actual ) {
+        return expected.subtract( BigDecimal.valueOf( actual ) ).abs().doubleValue();
+    }
+}
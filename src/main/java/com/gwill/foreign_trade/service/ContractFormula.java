@@ -0,0 +1,348 @@
+package com.gwill.foreign_trade.service;
+
+import com.gwill.foreign_trade.model.AgentContract;
+import com.gwill.foreign_trade.model.CalculationParams;
+import com.gwill.foreign_trade.model.CalculationResult;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.math.BigDecimal;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.gwill.foreign_trade.service.MultiFactoryInvoiceCalculationService.CALCULATION_PRECISION;
+import static com.gwill.foreign_trade.service.MultiFactoryInvoiceCalculationService.ROUNDING_MODE;
+
+/**
+ * 编译后的代理合同公式
+ * 公式在编译时解析一次，组合成方法句柄（MethodHandle）树，计算时直接调用句柄，不再逐行解释公式文本。
+ * 同一合同定义只编译一次，单工厂、多工厂及批量计算共用同一个编译结果。
+ * 标准合同的句柄另存在static final字段中，JIT把它们当作常量，可把整棵句柄树内联到调用处；
+ * 其他合同的句柄在实例字段中，仍不必解释公式，但每次经句柄间接调用。
+ * 公式没有用到代理退税相对分配率时，该参数可传null；用到时传null会报错，而不是悄悄按缺值计算。
+ * 除法保留 CALCULATION_PRECISION 位小数并按 ROUNDING_MODE 舍入，与原有硬编码公式的结果完全一致
+ */
+public final class ContractFormula {
+
+    // 公式变量，也是句柄的参数顺序：S, E, R, A, X, T
+    private static final String VARIABLES = "SERAXT";
+    private static final String INVOICE_AMOUNT_VARIABLES = "SERA";
+    private static final String TAX_REBATE_VARIABLES = "XRA";
+    private static final String AGENT_PROFIT_VARIABLES = "TXRA";
+
+    private static final MethodType FORMULA_TYPE = MethodType.methodType( BigDecimal.class,
+            Collections.<Class<?>>nCopies( VARIABLES.length(), BigDecimal.class ) );
+    private static final MethodType BINARY_TYPE = MethodType.methodType( BigDecimal.class,
+            BigDecimal.class, BigDecimal.class );
+
+    private static final MethodHandle ADD;
+    private static final MethodHandle SUBTRACT;
+    private static final MethodHandle MULTIPLY;
+    private static final MethodHandle DIVIDE;
+    private static final MethodHandle NEGATE;
+
+    static {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            ADD = lookup.findVirtual( BigDecimal.class, "add", MethodType.methodType( BigDecimal.class, BigDecimal.class ) );
+            SUBTRACT = lookup.findVirtual( BigDecimal.class, "subtract", MethodType.methodType( BigDecimal.class, BigDecimal.class ) );
+            MULTIPLY = lookup.findVirtual( BigDecimal.class, "multiply", MethodType.methodType( BigDecimal.class, BigDecimal.class ) );
+            DIVIDE = lookup.findStatic( ContractFormula.class, "divide", BINARY_TYPE );
+            NEGATE = lookup.findVirtual( BigDecimal.class, "negate", MethodType.methodType( BigDecimal.class ) );
+        } catch ( ReflectiveOperationException e ) {
+            throw new ExceptionInInitializerError( e );
+        }
+    }
+
+    private static final Map<AgentContract, ContractFormula> COMPILED = new ConcurrentHashMap<>();
+
+    /**
+     * 标准合同公式：X = S × E × (1+R) ÷ (1 + R × A)，T = X × R ÷ (1+R)，代理利润 = T × A
+     */
+    public static final ContractFormula STANDARD = compile( AgentContract.STANDARD );
+
+    // 标准合同的句柄（static final，可被JIT当作常量）
+    private static final MethodHandle STANDARD_INVOICE_AMOUNT = STANDARD.invoiceAmount;
+    private static final MethodHandle STANDARD_TAX_REBATE = STANDARD.taxRebate;
+    private static final MethodHandle STANDARD_AGENT_PROFIT = STANDARD.agentProfit;
+
+    private final AgentContract contract;
+    private final MethodHandle invoiceAmount;
+    private final MethodHandle taxRebate;
+    private final MethodHandle agentProfit;
+    // 各公式是否用到代理退税相对分配率A
+    private final boolean invoiceAmountUsesAgentRatio;
+    private final boolean taxRebateUsesAgentRatio;
+    private final boolean agentProfitUsesAgentRatio;
+
+    private ContractFormula( AgentContract contract ) {
+        this.contract = contract;
+        Parser invoiceAmountParser = new Parser( contract.invoiceAmountFormula(), "开票金额公式", INVOICE_AMOUNT_VARIABLES );
+        Parser taxRebateParser = new Parser( contract.taxRebateFormula(), "退税金额公式", TAX_REBATE_VARIABLES );
+        Parser agentProfitParser = new Parser( contract.agentProfitFormula(), "代理利润公式", AGENT_PROFIT_VARIABLES );
+        this.invoiceAmount = invoiceAmountParser.parse();
+        this.taxRebate = taxRebateParser.parse();
+        this.agentProfit = agentProfitParser.parse();
+        this.invoiceAmountUsesAgentRatio = invoiceAmountParser.uses( 'A' );
+        this.taxRebateUsesAgentRatio = taxRebateParser.uses( 'A' );
+        this.agentProfitUsesAgentRatio = agentProfitParser.uses( 'A' );
+    }
+
+    /**
+     * 编译合同公式，同一合同定义只编译一次
+     * @param contract 合同公式定义
+     * @return 编译后的公式
+     * @throws IllegalArgumentException 公式语法错误或引用了不允许的变量
+     */
+    public static ContractFormula compile( AgentContract contract ) {
+        ContractFormula formula = COMPILED.get( contract );
+        if ( formula == null ) {
+            formula = new ContractFormula( contract );
+            ContractFormula existing = COMPILED.putIfAbsent( contract, formula );
+            if ( existing != null ) {
+                formula = existing;
+            }
+        }
+        return formula;
+    }
+
+    public AgentContract contract() {
+        return contract;
+    }
+
+    /**
+     * 按合同公式计算开票金额、退税金额和代理利润
+     * @param params 用于计算的用户输入参数
+     * @return 计算结果
+     */
+    public CalculationResult calculate( CalculationParams params ) {
+        BigDecimal clientPaymentInRMB = params.salesAmount().multiply( params.exchangeRate() );
+        BigDecimal invoiceAmountInRMB = invoiceAmount( params.salesAmount(), params.exchangeRate(),
+                params.taxRebateRate(), params.agentRelativeRatio() );
+        BigDecimal taxRebateAmountInRMB = taxRebateAmount( invoiceAmountInRMB, params.taxRebateRate(),
+                params.agentRelativeRatio() );
+        BigDecimal agentProfitInRMB = agentProfit( taxRebateAmountInRMB, invoiceAmountInRMB, params.taxRebateRate(),
+                params.agentRelativeRatio() );
+        return new CalculationResult( clientPaymentInRMB, invoiceAmountInRMB, taxRebateAmountInRMB,
+                agentProfitInRMB, taxRebateAmountInRMB.subtract( agentProfitInRMB ) );
+    }
+
+    /**
+     * 开票金额
+     */
+    public BigDecimal invoiceAmount( BigDecimal salesAmount, BigDecimal exchangeRate, BigDecimal taxRebateRate,
+                                     BigDecimal agentRelativeRatio ) {
+        requireAgentRatio( invoiceAmountUsesAgentRatio, agentRelativeRatio, "开票金额公式" );
+        return invoke( this == STANDARD ? STANDARD_INVOICE_AMOUNT : invoiceAmount,
+                salesAmount, exchangeRate, taxRebateRate, agentRelativeRatio, null, null );
+    }
+
+    /**
+     * 按开票金额计算退税金额
+     */
+    public BigDecimal taxRebateAmount( BigDecimal invoiceAmount, BigDecimal taxRebateRate, BigDecimal agentRelativeRatio ) {
+        requireAgentRatio( taxRebateUsesAgentRatio, agentRelativeRatio, "退税金额公式" );
+        return invoke( this == STANDARD ? STANDARD_TAX_REBATE : taxRebate,
+                null, null, taxRebateRate, agentRelativeRatio, invoiceAmount, null );
+    }
+
+    /**
+     * 按开票金额计算退税金额，只适用于退税金额公式不含代理退税相对分配率的合同（如标准合同）
+     * @throws IllegalArgumentException 退税金额公式用到了代理退税相对分配率
+     */
+    public BigDecimal taxRebateAmount( BigDecimal invoiceAmount, BigDecimal taxRebateRate ) {
+        return taxRebateAmount( invoiceAmount, taxRebateRate, null );
+    }
+
+    /**
+     * 按退税金额和开票金额计算代理利润
+     */
+    public BigDecimal agentProfit( BigDecimal taxRebateAmount, BigDecimal invoiceAmount, BigDecimal taxRebateRate,
+                                   BigDecimal agentRelativeRatio ) {
+        requireAgentRatio( agentProfitUsesAgentRatio, agentRelativeRatio, "代理利润公式" );
+        return invoke( this == STANDARD ? STANDARD_AGENT_PROFIT : agentProfit,
+                null, null, taxRebateRate, agentRelativeRatio, invoiceAmount, taxRebateAmount );
+    }
+
+    @Override
+    public String toString() {
+        return contract.name();
+    }
+
+    private void requireAgentRatio( boolean used, BigDecimal agentRelativeRatio, String formulaName ) {
+        if ( used && agentRelativeRatio == null ) {
+            throw new IllegalArgumentException( String.format( "合同“%s”的%s用到代理退税相对分配率，必须给出",
+                    contract.name(), formulaName ) );
+        }
+    }
+
+    private static BigDecimal invoke( MethodHandle formula, BigDecimal s, BigDecimal e, BigDecimal r, BigDecimal a,
+                                      BigDecimal x, BigDecimal t ) {
+        try {
+            return (BigDecimal) formula.invokeExact( s, e, r, a, x, t );
+        } catch ( RuntimeException | Error ex ) {
+            throw ex;
+        } catch ( Throwable ex ) {
+            throw new IllegalStateException( ex );
+        }
+    }
+
+    private static BigDecimal divide( BigDecimal dividend, BigDecimal divisor ) {
+        if ( divisor.signum() == 0 ) {
+            throw new IllegalArgumentException( "参数组合导致计算公式分母为0，计算无解！请调整代理分成比例，重新计算。" );
+        }
+        return dividend.divide( divisor, CALCULATION_PRECISION, ROUNDING_MODE );
+    }
+
+    /**
+     * 递归下降解析公式，边解析边组合句柄：
+     * 表达式 = 项 {(+|-) 项}，项 = 因子 {(*|/) 因子}，因子 = 数字[%] | 变量 | (表达式) | -因子
+     */
+    private static final class Parser {
+
+        private final String text;
+        private final String formulaName;
+        private final String allowedVariables;
+        private final StringBuilder usedVariables = new StringBuilder();
+        private int position;
+
+        Parser( String text, String formulaName, String allowedVariables ) {
+            if ( text == null || text.isBlank() ) {
+                throw new IllegalArgumentException( formulaName + "不能为空" );
+            }
+            this.text = text;
+            this.formulaName = formulaName;
+            this.allowedVariables = allowedVariables;
+        }
+
+        MethodHandle parse() {
+            MethodHandle expression = expression();
+            skipWhitespace();
+            if ( position < text.length() ) {
+                throw error( "无法识别的字符'" + text.charAt( position ) + "'" );
+            }
+            return expression;
+        }
+
+        /**
+         * 已解析的公式是否引用了指定变量
+         */
+        boolean uses( char variable ) {
+            return usedVariables.indexOf( String.valueOf( variable ) ) >= 0;
+        }
+
+        private MethodHandle expression() {
+            MethodHandle left = term();
+            while ( true ) {
+                char operator = peek();
+                if ( operator == '+' ) {
+                    position++;
+                    left = combine( ADD, left, term() );
+                } else if ( operator == '-' ) {
+                    position++;
+                    left = combine( SUBTRACT, left, term() );
+                } else {
+                    return left;
+                }
+            }
+        }
+
+        private MethodHandle term() {
+            MethodHandle left = factor();
+            while ( true ) {
+                char operator = peek();
+                if ( operator == '*' || operator == '×' ) {
+                    position++;
+                    left = combine( MULTIPLY, left, factor() );
+                } else if ( operator == '/' || operator == '÷' ) {
+                    position++;
+                    left = combine( DIVIDE, left, factor() );
+                } else {
+                    return left;
+                }
+            }
+        }
+
+        private MethodHandle factor() {
+            char c = peek();
+            if ( c == '-' ) {
+                position++;
+                return MethodHandles.filterReturnValue( factor(), NEGATE );
+            }
+            if ( c == '(' ) {
+                position++;
+                MethodHandle inner = expression();
+                if ( peek() != ')' ) {
+                    throw error( "缺少右括号" );
+                }
+                position++;
+                return inner;
+            }
+            if ( Character.isDigit( c ) || c == '.' ) {
+                return number();
+            }
+            int variable = VARIABLES.indexOf( Character.toUpperCase( c ) );
+            if ( variable >= 0 ) {
+                if ( allowedVariables.indexOf( Character.toUpperCase( c ) ) < 0 ) {
+                    throw error( "不能引用变量" + Character.toUpperCase( c ) + "（可用变量：" + allowedVariables + "）" );
+                }
+                position++;
+                usedVariables.append( VARIABLES.charAt( variable ) );
+                // 取第variable个参数原样返回
+                return MethodHandles.permuteArguments( MethodHandles.identity( BigDecimal.class ), FORMULA_TYPE, variable );
+            }
+            throw error( position < text.length() ? "无法识别的字符'" + c + "'" : "公式不完整" );
+        }
+
+        private MethodHandle number() {
+            int start = position;
+            while ( position < text.length() && ( Character.isDigit( text.charAt( position ) ) || text.charAt( position ) == '.' ) ) {
+                position++;
+            }
+            BigDecimal value;
+            try {
+                value = new BigDecimal( text.substring( start, position ) );
+            } catch ( NumberFormatException e ) {
+                throw error( "数字格式不正确" );
+            }
+            if ( peek() == '%' ) {
+                position++;
+                value = value.movePointLeft( 2 );
+            }
+            // 常量忽略全部参数
+            return MethodHandles.dropArguments( MethodHandles.constant( BigDecimal.class, value ), 0,
+                    FORMULA_TYPE.parameterArray() );
+        }
+
+        /**
+         * 把二元运算的两个操作数句柄合成一个参数为(S, E, R, A, X, T)的句柄
+         */
+        private static MethodHandle combine( MethodHandle operator, MethodHandle left, MethodHandle right ) {
+            // (左, 右) -> (S..T, 右) -> (S..T, S..T)
+            MethodHandle spread = MethodHandles.collectArguments( operator.asType( BINARY_TYPE ), 0, left );
+            spread = MethodHandles.collectArguments( spread, VARIABLES.length(), right );
+            int[] reorder = new int[VARIABLES.length() * 2];
+            for ( int i = 0; i < reorder.length; i++ ) {
+                reorder[i] = i % VARIABLES.length();
+            }
+            return MethodHandles.permuteArguments( spread, FORMULA_TYPE, reorder );
+        }
+
+        private char peek() {
+            skipWhitespace();
+            return position < text.length() ? text.charAt( position ) : 0;
+        }
+
+        private void skipWhitespace() {
+            while ( position < text.length() && Character.isWhitespace( text.charAt( position ) ) ) {
+                position++;
+            }
+        }
+
+        private IllegalArgumentException error( String reason ) {
+            return new IllegalArgumentException( formulaName + "第" + ( position + 1 ) + "个字符处" + reason + "：" + text );
+        }
+    }
+}
@@ -0,0 +1,263 @@
+package com.gwill.foreign_trade.service;
+
+import com.gwill.foreign_trade.io.AgentContractLoader;
+import com.gwill.foreign_trade.io.CalculationResultExporter;
+import com.gwill.foreign_trade.io.DataValidationException;
+import com.gwill.foreign_trade.io.ProductSituationCsvLoader;
+import com.gwill.foreign_trade.io.ProductSituationValidator;
+import com.gwill.foreign_trade.io.SpilledProductSituations;
+import com.gwill.foreign_trade.model.AllocationTotals;
+import com.gwill.foreign_trade.model.FactoryAllocation;
+import com.gwill.foreign_trade.model.MultiProductCalculationResult;
+import com.gwill.foreign_trade.model.ProductCalculationDetail;
+import com.gwill.foreign_trade.model.ProductSituation;
+import com.gwill.io.excel.ExcelIOException;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
+import java.nio.file.Path;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
+import static com.gwill.foreign_trade.service.MultiFactoryInvoiceCalculationService.CALCULATION_PRECISION;
+import static com.gwill.foreign_trade.service.MultiFactoryInvoiceCalculationService.ROUNDING_MODE;
+
+/**
+ * 外存分块的多工厂计算（适合超出堆内存的全年汇总数据）
+ * 分两个阶段完成按货值比例的分配，堆内同一时刻只有一块产品情况：
+ * 1. partition：流式读取CSV，逐行校验后写入磁盘分块，同时汇总总开票金额、固定开票金额工厂货值合计、可超额开票工厂货值合计；
+ *    重复的工厂产品由各块排好序的名称键归并检查，堆内不保留随行数增长的名称表；
+ * 2. allocate / export：逐块读回，按汇总值逐行分配开票金额并计算详情，详情直接交给调用方或导出器，不在内存中累积。
+ * 算法与 MultiFactoryInvoiceCalculationService.calculateMultiFactoryOrder（按货值比例分配、不设开票上限）一致，
+ * 各行详情和合计金额与内存计算完全相同。设置了开票上限或选择其他分配方式时需要全局排序，不支持分块计算
+ */
+public final class ExternalMemoryMultiFactoryCalculation implements AutoCloseable {
+
+    /**
+     * 默认每块行数
+     */
+    public static final int DEFAULT_CHUNK_ROWS = 100_000;
+
+    private final SpilledProductSituations spilled;
+    private final BigDecimal exchangeRate;
+    private final BigDecimal agentRelativeRatio;
+    private final ContractFormula formula;
+
+    // 第一阶段的汇总值
+    private BigDecimal totalInvoiceAmount = BigDecimal.ZERO;
+    private BigDecimal fixedTotalActualPurchaseAmount = BigDecimal.ZERO;
+    private BigDecimal flexibleTotalActualPurchaseAmount = BigDecimal.ZERO;
+    private BigDecimal factoryInvoicingToAgentTotalActualPurchaseAmount = BigDecimal.ZERO;
+    private int flexibleCount;
+
+    private MultiProductCalculationResult result;
+
+    private ExternalMemoryMultiFactoryCalculation( SpilledProductSituations spilled, BigDecimal exchangeRate,
+                                                   BigDecimal agentRelativeRatio, ContractFormula formula ) {
+        this.spilled = spilled;
+        this.exchangeRate = exchangeRate;
+        this.agentRelativeRatio = agentRelativeRatio;
+        this.formula = formula;
+    }
+
+    /**
+     * 命令行入口：分块计算一个产品情况CSV并导出为gzip压缩的CSV
+     * 参数：产品情况CSV 导出基础路径 汇率 代理退税相对分配率（小数形式） [合同名称]
+     * 分块文件写在导出文件所在目录，计算完成后删除
+     */
+    public static void main( String[] args ) throws ExcelIOException, IOException {
+        if ( args.length != 4 && args.length != 5 ) {
+            System.err.println( "用法：ExternalMemoryMultiFactoryCalculation <产品情况CSV> <导出基础路径> <汇率> "
+                    + "<代理退税相对分配率> [合同名称]" );
+            System.exit( 2 );
+        }
+        Path situationCsv = Path.of( args[0] );
+        Path basePath = Path.of( args[1] ).toAbsolutePath();
+        BigDecimal exchangeRate = new BigDecimal( args[2] );
+        BigDecimal agentRelativeRatio = new BigDecimal( args[3] );
+        ContractFormula formula = args.length == 5 ?
+                ContractFormula.compile( AgentContractLoader.findAvailable( args[4] ) ) : ContractFormula.STANDARD;
+
+        long startNanos = System.nanoTime();
+        try ( ExternalMemoryMultiFactoryCalculation calculation = partition( situationCsv, basePath.getParent(),
+                DEFAULT_CHUNK_ROWS, exchangeRate, agentRelativeRatio, formula ) ) {
+            List<Path> files = calculation.export( basePath, EnumSet.of( CalculationResultExporter.Format.CSV ), true );
+            MultiProductCalculationResult result = calculation.result();
+            System.out.printf( "共%d个产品，总开票金额%.2f，总退税金额%.2f，代理公司利润%.2f，您应分得退税%.2f，耗时%dms%n",
+                    calculation.size(), result.totalInvoiceAmount(), result.totalTaxRebateAmount(),
+                    result.totalAgentProfit(), result.yourTotalTaxRebateShareAmount(),
+                    ( System.nanoTime() - startNanos ) / 1_000_000 );
+            files.forEach( file -> System.out.println( "已导出：" + file ) );
+        }
+    }
+
+    /**
+     * 第一阶段：把CSV分块写到磁盘并汇总分配所需的合计值
+     * @param situationCsv 产品情况CSV文件（可为.csv.gz）
+     * @param spillDirectory 分块文件所在目录
+     * @param chunkRows 每块行数
+     * @param exchangeRate 汇率
+     * @param agentRelativeRatio 代理退税相对分配率（小数形式）
+     * @param formula 编译后的合同公式
+     * @return 可进行第二阶段计算的对象，用完须 close() 删除分块文件
+     * @throws IOException 文件无法读写
+     * @throws DataValidationException 数据校验未通过（包含全部问题）
+     * @throws IllegalArgumentException 没有参与的工厂或有工厂设置了开票上限
+     */
+    public static ExternalMemoryMultiFactoryCalculation partition( Path situationCsv, Path spillDirectory, int chunkRows,
+                                                                   BigDecimal exchangeRate, BigDecimal agentRelativeRatio,
+                                                                   ContractFormula formula ) throws IOException {
+        MultiFactoryInvoiceCalculationService.validateSharedParams( exchangeRate, agentRelativeRatio );
+
+        SpilledProductSituations spilled = SpilledProductSituations.create( spillDirectory, chunkRows );
+        ExternalMemoryMultiFactoryCalculation calculation =
+                new ExternalMemoryMultiFactoryCalculation( spilled, exchangeRate, agentRelativeRatio, formula );
+        try {
+            ProductSituationValidator validator = new ProductSituationValidator( situationCsv.toString(), null, false );
+            try {
+                ProductSituationCsvLoader.scan( situationCsv, validator, ( situation, lineNumber ) -> {
+                    calculation.accumulate( situation );
+                    try {
+                        spilled.add( situation, lineNumber );
+                    } catch ( IOException e ) {
+                        throw new UncheckedIOException( e );
+                    }
+                } );
+            } catch ( UncheckedIOException e ) {
+                throw e.getCause();
+            }
+            spilled.finish();
+            spilled.checkDuplicates( validator );
+            validator.throwIfInvalid();
+
+            if ( calculation.factoryInvoicingToAgentTotalActualPurchaseAmount.compareTo( BigDecimal.ZERO ) == 0 ) {
+                throw new IllegalArgumentException( "没有参与的工厂！" );
+            }
+            return calculation;
+        } catch ( IOException | RuntimeException e ) {
+            spilled.close();
+            throw e;
+        }
+    }
+
+    /**
+     * 第一阶段逐行汇总，累加顺序与内存计算相同
+     */
+    private void accumulate( ProductSituation prodSituation ) {
+        totalInvoiceAmount = totalInvoiceAmount.add( formula.invoiceAmount( prodSituation.salesAmountInForeignCurrency(),
+                exchangeRate, prodSituation.taxRebateRate(), agentRelativeRatio ) );
+        if ( prodSituation.agreeToInvoiceToAgent() ) {
+            factoryInvoicingToAgentTotalActualPurchaseAmount =
+                    factoryInvoicingToAgentTotalActualPurchaseAmount.add( prodSituation.actualPurchaseAmount() );
+        }
+        if ( prodSituation.isFixedInvoiceAmount() ) {
+            fixedTotalActualPurchaseAmount = fixedTotalActualPurchaseAmount.add( prodSituation.actualPurchaseAmount() );
+            return;
+        }
+        if ( prodSituation.hasInvoiceCap() ) {
+            throw new IllegalArgumentException( String.format( "%s - %s 设置了开票上限，分块计算只支持不设开票上限的按货值比例分配！",
+                    prodSituation.factoryName(), prodSituation.productName() ) );
+        }
+        flexibleTotalActualPurchaseAmount = flexibleTotalActualPurchaseAmount.add( prodSituation.actualPurchaseAmount() );
+        flexibleCount++;
+    }
+
+    /**
+     * 第二阶段：逐块分配开票金额并计算各产品详情
+     * @param consumer 按输入顺序接收每一行的产品情况及其计算详情
+     * @return 合计金额（详情列表为空，各行详情只交给consumer）
+     */
+    public MultiProductCalculationResult allocate( CalculationResultExporter.RowConsumer consumer )
+            throws ExcelIOException, IOException {
+        BigDecimal allocatableInvoiceAmount = totalInvoiceAmount.subtract( fixedTotalActualPurchaseAmount );
+        BigDecimal allocatedFlexibleAmount = BigDecimal.ZERO;
+        int flexiblePosition = 0;
+
+        BigDecimal totalTaxRebate = BigDecimal.ZERO;
+        BigDecimal totalAgentProfit = BigDecimal.ZERO;
+        BigDecimal yourTotalTaxRebateShareAmount = BigDecimal.ZERO;
+
+        for ( int chunk = 0; chunk < spilled.chunkCount(); chunk++ ) {
+            for ( ProductSituation prodSituation : spilled.readChunk( chunk ) ) {
+                FactoryAllocation allocation;
+                if ( prodSituation.isFixedInvoiceAmount() ) {
+                    allocation = MultiFactoryInvoiceCalculationService.fixedAllocation( prodSituation, formula,
+                            agentRelativeRatio );
+                } else {
+                    BigDecimal allocatedAmount;
+                    if ( ++flexiblePosition == flexibleCount ) {
+                        // 最后一家工厂调整尾差
+                        allocatedAmount = allocatableInvoiceAmount.subtract( allocatedFlexibleAmount );
+                    } else {
+                        BigDecimal allocateRatio = prodSituation.actualPurchaseAmount().divide(
+                                flexibleTotalActualPurchaseAmount, CALCULATION_PRECISION, ROUNDING_MODE );
+                        allocatedAmount = allocatableInvoiceAmount.multiply( allocateRatio );
+                    }
+                    allocatedFlexibleAmount = allocatedFlexibleAmount.add( allocatedAmount );
+                    allocation = MultiFactoryInvoiceCalculationService.flexibleAllocation( prodSituation, allocatedAmount,
+                            formula, agentRelativeRatio );
+                }
+
+                ProductCalculationDetail detail = MultiFactoryInvoiceCalculationService.calculateProductDetail(
+                        prodSituation, allocation, agentRelativeRatio, formula );
+                totalTaxRebate = totalTaxRebate.add( detail.taxRebateAmount() );
+                totalAgentProfit = totalAgentProfit.add( detail.agentProfit() );
+                yourTotalTaxRebateShareAmount = yourTotalTaxRebateShareAmount.add(
+                        detail.taxRebateAmount().subtract( detail.agentProfit() ) );
+                consumer.accept( prodSituation, detail );
+            }
+        }
+
+        result = new MultiProductCalculationResult( totalInvoiceAmount, totalTaxRebate, totalAgentProfit,
+                yourTotalTaxRebateShareAmount, List.of() );
+        return result;
+    }
+
+    /**
+     * 第二阶段：逐块计算并直接写出导出文件
+     * @return 写出的文件，合计金额见 result()
+     */
+    public List<Path> export( Path basePath, Set<CalculationResultExporter.Format> formats, boolean gzipTextFormats )
+            throws ExcelIOException, IOException {
+        return CalculationResultExporter.export( basePath, formats, gzipTextFormats, this::allocate );
+    }
+
+    /**
+     * 最近一次第二阶段计算的合计金额（尚未计算时为null）
+     */
+    public MultiProductCalculationResult result() {
+        return result;
+    }
+
+    public BigDecimal totalInvoiceAmount() {
+        return totalInvoiceAmount;
+    }
+
+    /**
+     * 第一阶段汇总的分配预汇总数据
+     */
+    public AllocationTotals allocationTotals() {
+        return new AllocationTotals( fixedTotalActualPurchaseAmount, flexibleTotalActualPurchaseAmount, flexibleCount );
+    }
+
+    /**
+     * 参与开票给代理公司的工厂的实际货值合计
+     */
+    public BigDecimal factoryInvoicingToAgentTotalActualPurchaseAmount() {
+        return factoryInvoicingToAgentTotalActualPurchaseAmount;
+    }
+
+    public long size() {
+        return spilled.size();
+    }
+
+    /**
+     * 删除磁盘上的分块文件
+     */
+    @Override
+    public void close() throws IOException {
+        spilled.close();
+    }
+}
@@ -0,0 +1,138 @@
+package com.gwill.foreign_trade.service;
+
+import com.gwill.foreign_trade.io.CsvRecordReader;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * 本地历史汇率库
+ * 按货币保存逐日汇率（CNY/外币），每种货币用两个按日期排序的基本类型数组做索引，按日期查询为O(log n)
+ * 查询某日汇率时取该日或之前最近一个有报价的日期（周末、节假日沿用前一交易日汇率）
+ *
+ * CSV格式：日期,货币,汇率（如 2025-10-17,USD,7.1234），首行表头可选，汇率保留8位小数；可带BOM，字段可带引号
+ */
+public final class FxRateStore {
+
+    // 汇率存储精度
+    public static final int RATE_SCALE = 8;
+
+    private static final int COLUMN_COUNT = 3;
+
+    private final Map<String, CurrencyRates> ratesByCurrency;
+
+    private FxRateStore( Map<String, CurrencyRates> ratesByCurrency ) {
+        this.ratesByCurrency = ratesByCurrency;
+    }
+
+    /**
+     * 从CSV文件导入汇率
+     * 同一货币同一日期出现多次时以文件中最后一次为准
+     * @param csvPath 汇率CSV文件路径（.gz文件边读边解压）
+     * @return 汇率库
+     */
+    public static FxRateStore importCsv( Path csvPath ) throws IOException {
+        Map<String, TreeMap<Integer, Long>> collected = new HashMap<>();
+
+        try ( CsvRecordReader reader = CsvRecordReader.open( csvPath ) ) {
+            String[] fields;
+            while ( ( fields = reader.next() ) != null ) {
+                long lineNumber = reader.lineNumber();
+                if ( fields.length < COLUMN_COUNT ) {
+                    throw new IllegalArgumentException( String.format( "汇率文件第%d行数据不完整，需要日期,货币,汇率三列", lineNumber ) );
+                }
+
+                LocalDate date;
+                try {
+                    date = LocalDate.parse( fields[0] );
+                } catch ( DateTimeParseException e ) {
+                    if ( lineNumber == 1 ) {
+                        continue; // 表头行
+                    }
+                    throw new IllegalArgumentException( String.format( "汇率文件第%d行日期格式不正确，应为yyyy-MM-dd", lineNumber ) );
+                }
+
+                String currency = fields[1].toUpperCase();
+                if ( currency.isEmpty() ) {
+                    throw new IllegalArgumentException( String.format( "汇率文件第%d行货币不能为空", lineNumber ) );
+                }
+                BigDecimal rate = MultiFactoryInvoiceCalculationService.parseBigDecimal(
+                        fields[2], String.format( "汇率文件第%d行汇率", lineNumber ) );
+                if ( rate.compareTo( BigDecimal.ZERO ) <= 0 ) {
+                    throw new IllegalArgumentException( String.format( "汇率文件第%d行汇率必须大于0", lineNumber ) );
+                }
+
+                collected.computeIfAbsent( currency, c -> new TreeMap<>() )
+                        .put( (int) date.toEpochDay(), toScaledRate( rate ) );
+            }
+        }
+
+        Map<String, CurrencyRates> ratesByCurrency = new HashMap<>();
+        collected.forEach( ( currency, rates ) -> ratesByCurrency.put( currency, CurrencyRates.of( rates ) ) );
+        return new FxRateStore( ratesByCurrency );
+    }
+
+    /**
+     * 查询指定货币在指定日期的汇率（该日无报价时取之前最近一日的汇率）
+     * @param currency 货币代码，如USD
+     * @param date 日期
+     * @return 汇率（CNY/外币）
+     */
+    public BigDecimal rateOn( String currency, LocalDate date ) {
+        CurrencyRates rates = ratesByCurrency.get( currency.toUpperCase() );
+        if ( rates == null ) {
+            throw new IllegalArgumentException( "汇率库中没有货币" + currency + "的汇率" );
+        }
+        int index = rates.indexOnOrBefore( (int) date.toEpochDay() );
+        if ( index < 0 ) {
+            throw new IllegalArgumentException( String.format( "汇率库中没有%s在%s及之前的汇率", currency, date ) );
+        }
+        return BigDecimal.valueOf( rates.scaledRates[index], RATE_SCALE );
+    }
+
+    /**
+     * 汇率库中包含的全部货币代码
+     */
+    public Set<String> currencies() {
+        return Set.copyOf( ratesByCurrency.keySet() );
+    }
+
+    private static long toScaledRate( BigDecimal rate ) {
+        return rate.setScale( RATE_SCALE, RoundingMode.HALF_UP ).unscaledValue().longValueExact();
+    }
+
+    /**
+     * 单一货币的汇率索引：日期（纪元日）与汇率（按RATE_SCALE放大的整数）两个并行的有序数组
+     */
+    private record CurrencyRates( int[] epochDays, long[] scaledRates ) {
+
+        static CurrencyRates of( TreeMap<Integer, Long> sortedRates ) {
+            int[] epochDays = new int[sortedRates.size()];
+            long[] scaledRates = new long[sortedRates.size()];
+            int i = 0;
+            for ( Map.Entry<Integer, Long> entry : sortedRates.entrySet() ) {
+                epochDays[i] = entry.getKey();
+                scaledRates[i] = entry.getValue();
+                i++;
+            }
+            return new CurrencyRates( epochDays, scaledRates );
+        }
+
+        /**
+         * 二分查找不晚于指定日期的最后一个报价位置，没有则返回-1
+         */
+        int indexOnOrBefore( int epochDay ) {
+            int index = Arrays.binarySearch( epochDays, epochDay );
+            return index >= 0 ? index : -index - 2;
+        }
+    }
+}
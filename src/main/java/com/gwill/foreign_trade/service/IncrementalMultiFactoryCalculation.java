@@ -0,0 +1,285 @@
+package com.gwill.foreign_trade.service;
+
+import com.gwill.foreign_trade.model.AllocationTotals;
+import com.gwill.foreign_trade.model.FactoryAllocation;
+import com.gwill.foreign_trade.model.MultiProductCalculationResult;
+import com.gwill.foreign_trade.model.ProductCalculationDetail;
+import com.gwill.foreign_trade.model.ProductSituation;
+
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.IntStream;
+
+import static com.gwill.foreign_trade.service.MultiFactoryInvoiceCalculationService.CALCULATION_PRECISION;
+import static com.gwill.foreign_trade.service.MultiFactoryInvoiceCalculationService.ROUNDING_MODE;
+
+/**
+ * 可增量重算的多工厂计算
+ * 保存一次完整计算的结果及货值合计、退税合计等累计值，修改单行的实际货值、已预付金额或税点后只重算受影响的行：
+ * - 只改已预付金额或税点：开票金额不变，只重算该行
+ * - 改固定开票金额工厂的实际货值：该行及可超额开票工厂（可分配金额随之变化）
+ * - 改可超额开票工厂的实际货值：可超额开票工厂（货值合计随之变化）
+ * 总开票金额只取决于PI金额、汇率和退税率，以上修改均不影响总开票金额。
+ * 增量重算只用于按货值比例分配且没有开票上限的情况，结果与完整重算完全一致；其他情况退回完整重算并逐行比对
+ */
+public class IncrementalMultiFactoryCalculation {
+
+    private final BigDecimal totalInvoiceAmount;
+    private final BigDecimal exchangeRate;
+    private final BigDecimal agentRelativeRatio;
+    private final AllocationMode allocationMode;
+    private final ContractFormula formula;
+
+    private final ProductSituation[] productSituations;
+    private final ProductCalculationDetail[] details;
+
+    // 累计值
+    private BigDecimal fixedTotalActualPurchaseAmount;
+    private BigDecimal flexibleTotalActualPurchaseAmount;
+    private BigDecimal totalTaxRebate = BigDecimal.ZERO;
+    private BigDecimal totalAgentProfit = BigDecimal.ZERO;
+
+    // 可超额开票工厂的下标（按输入顺序，尾差由最后一家承担）
+    private final int[] flexibleIndexes;
+
+    /**
+     * 完整计算一次并建立累计值
+     * @param totalInvoiceAmount 总开票金额
+     * @param productSituationList 产品信息列表
+     * @param exchangeRate 汇率
+     * @param agentRelativeRatio 代理退税相对分配率（小数形式）
+     * @param allocationMode 超额开票金额的分配方式
+     */
+    public IncrementalMultiFactoryCalculation( BigDecimal totalInvoiceAmount, List<ProductSituation> productSituationList,
+                                               BigDecimal exchangeRate, BigDecimal agentRelativeRatio,
+                                               AllocationMode allocationMode ) {
+        this( totalInvoiceAmount, productSituationList, exchangeRate, agentRelativeRatio, allocationMode,
+                ContractFormula.STANDARD );
+    }
+
+    /**
+     * 按指定的合同公式完整计算一次并建立累计值
+     * @param totalInvoiceAmount 总开票金额
+     * @param productSituationList 产品信息列表
+     * @param exchangeRate 汇率
+     * @param agentRelativeRatio 代理退税相对分配率（小数形式）
+     * @param allocationMode 超额开票金额的分配方式
+     * @param formula 编译后的合同公式
+     */
+    public IncrementalMultiFactoryCalculation( BigDecimal totalInvoiceAmount, List<ProductSituation> productSituationList,
+                                               BigDecimal exchangeRate, BigDecimal agentRelativeRatio,
+                                               AllocationMode allocationMode, ContractFormula formula ) {
+        this.totalInvoiceAmount = totalInvoiceAmount;
+        this.exchangeRate = exchangeRate;
+        this.agentRelativeRatio = agentRelativeRatio;
+        this.allocationMode = allocationMode;
+        this.formula = formula;
+        this.productSituations = productSituationList.toArray( new ProductSituation[0] );
+
+        // 此后各行只在 updateRow 中逐行校验，完整重算时不再重复检查
+        MultiFactoryInvoiceCalculationService.validateProductSituations( productSituationList );
+        MultiProductCalculationResult result = MultiFactoryInvoiceCalculationService.calculateMultiProductsData(
+                totalInvoiceAmount, productSituationList, exchangeRate, agentRelativeRatio, allocationMode, formula );
+        this.details = result.productCalculationDetails().toArray( new ProductCalculationDetail[0] );
+        for ( ProductCalculationDetail detail : details ) {
+            addToTotals( detail );
+        }
+
+        AllocationTotals totals = AllocationTotals.of( productSituationList );
+        this.fixedTotalActualPurchaseAmount = totals.fixedTotalActualPurchaseAmount();
+        this.flexibleTotalActualPurchaseAmount = totals.flexibleTotalActualPurchaseAmount();
+        this.flexibleIndexes = IntStream.range( 0, productSituations.length )
+                .filter( i -> !productSituations[i].isFixedInvoiceAmount() )
+                .toArray();
+    }
+
+    /**
+     * 替换一行产品信息并重算受影响的行
+     * 工厂名称、产品名称、退税率、PI外币销售金额及开票条件须与原行一致；重算失败时恢复原行和原计算结果后抛出异常
+     * @param index 行号（从0开始）
+     * @param updated 修改后的产品信息
+     * @return 计算结果有变化的行号（升序）
+     */
+    public int[] updateRow( int index, ProductSituation updated ) {
+        ProductSituation previous = productSituations[index];
+        if ( !previous.factoryName().equals( updated.factoryName() )
+                || !previous.productName().equals( updated.productName() )
+                || previous.taxRebateRate().compareTo( updated.taxRebateRate() ) != 0
+                || previous.salesAmountInForeignCurrency().compareTo( updated.salesAmountInForeignCurrency() ) != 0
+                || previous.isFixedInvoiceAmount() != updated.isFixedInvoiceAmount() ) {
+            throw new IllegalArgumentException( "只能修改实际货值、已预付金额和税点！" );
+        }
+        MultiFactoryInvoiceCalculationService.validateProductSituation( updated );
+
+        ProductCalculationDetail[] previousDetails = details.clone();
+        BigDecimal previousFixedTotal = fixedTotalActualPurchaseAmount;
+        BigDecimal previousFlexibleTotal = flexibleTotalActualPurchaseAmount;
+        BigDecimal previousTotalTaxRebate = totalTaxRebate;
+        BigDecimal previousTotalAgentProfit = totalAgentProfit;
+        productSituations[index] = updated;
+        try {
+            return recalculateRow( index, previous, updated );
+        } catch ( RuntimeException e ) {
+            productSituations[index] = previous;
+            System.arraycopy( previousDetails, 0, details, 0, details.length );
+            fixedTotalActualPurchaseAmount = previousFixedTotal;
+            flexibleTotalActualPurchaseAmount = previousFlexibleTotal;
+            totalTaxRebate = previousTotalTaxRebate;
+            totalAgentProfit = previousTotalAgentProfit;
+            throw e;
+        }
+    }
+
+    private int[] recalculateRow( int index, ProductSituation previous, ProductSituation updated ) {
+        if ( !isIncremental() ) {
+            return recalculateAll();
+        }
+
+        BigDecimal actualDelta = updated.actualPurchaseAmount().subtract( previous.actualPurchaseAmount() );
+        if ( actualDelta.signum() == 0 ) {
+            // 开票金额不变，只重算本行
+            FactoryAllocation allocation = previous.isFixedInvoiceAmount() ?
+                    MultiFactoryInvoiceCalculationService.fixedAllocation( updated, formula, agentRelativeRatio ) :
+                    MultiFactoryInvoiceCalculationService.flexibleAllocation( updated, details[index].invoiceAmount(),
+                            formula, agentRelativeRatio );
+            return replaceDetail( index, allocation ) ? new int[] { index } : new int[0];
+        }
+
+        if ( updated.isFixedInvoiceAmount() ) {
+            fixedTotalActualPurchaseAmount = fixedTotalActualPurchaseAmount.add( actualDelta );
+            replaceDetail( index, MultiFactoryInvoiceCalculationService.fixedAllocation( updated, formula,
+                    agentRelativeRatio ) );
+            int[] changed = rebalanceFlexible();
+            int[] withEdited = Arrays.copyOf( changed, changed.length + 1 );
+            withEdited[changed.length] = index;
+            Arrays.sort( withEdited );
+            return withEdited;
+        }
+
+        flexibleTotalActualPurchaseAmount = flexibleTotalActualPurchaseAmount.add( actualDelta );
+        return rebalanceFlexible();
+    }
+
+    /**
+     * 当前计算结果
+     */
+    public MultiProductCalculationResult result() {
+        return new MultiProductCalculationResult( totalInvoiceAmount, totalTaxRebate, totalAgentProfit,
+                totalTaxRebate.subtract( totalAgentProfit ), List.of( details ) );
+    }
+
+    /**
+     * 当前产品信息（含已修改的行）
+     */
+    public List<ProductSituation> productSituations() {
+        return List.of( productSituations );
+    }
+
+    /**
+     * 参与开票给代理公司的工厂的实际货值合计
+     */
+    public BigDecimal factoryInvoicingToAgentTotalActualPurchaseAmount() {
+        BigDecimal total = BigDecimal.ZERO;
+        for ( ProductSituation prodSituation : productSituations ) {
+            if ( prodSituation.agreeToInvoiceToAgent() ) {
+                total = total.add( prodSituation.actualPurchaseAmount() );
+            }
+        }
+        return total;
+    }
+
+    private boolean isIncremental() {
+        if ( allocationMode != AllocationMode.PROPORTIONAL ) {
+            return false;
+        }
+        for ( int index : flexibleIndexes ) {
+            if ( productSituations[index].hasInvoiceCap() ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 按货值比例重新分配可超额开票工厂，算法与 MultiFactoryInvoiceCalculationService.calculateFactoryAllocations 一致
+     * @return 结果有变化的可超额开票工厂行号
+     */
+    private int[] rebalanceFlexible() {
+        if ( flexibleIndexes.length > 1 && flexibleTotalActualPurchaseAmount.signum() == 0 ) {
+            throw new IllegalArgumentException( "可超额开票工厂的实际货值合计为0，无法按比例分配！" );
+        }
+        BigDecimal allocatableInvoiceAmount = totalInvoiceAmount.subtract( fixedTotalActualPurchaseAmount );
+        BigDecimal allocatedFlexibleAmount = BigDecimal.ZERO;
+        int[] changed = new int[flexibleIndexes.length];
+        int changedCount = 0;
+
+        for ( int k = 0; k < flexibleIndexes.length; k++ ) {
+            int index = flexibleIndexes[k];
+            ProductSituation prodSituation = productSituations[index];
+            BigDecimal allocatedAmount;
+            if ( k == flexibleIndexes.length - 1 ) {
+                // 最后一家工厂调整尾差
+                allocatedAmount = allocatableInvoiceAmount.subtract( allocatedFlexibleAmount );
+            } else {
+                BigDecimal allocateRatio = prodSituation.actualPurchaseAmount().divide(
+                        flexibleTotalActualPurchaseAmount, CALCULATION_PRECISION, ROUNDING_MODE );
+                allocatedAmount = allocatableInvoiceAmount.multiply( allocateRatio );
+            }
+            allocatedFlexibleAmount = allocatedFlexibleAmount.add( allocatedAmount );
+
+            if ( replaceDetail( index, MultiFactoryInvoiceCalculationService.flexibleAllocation(
+                    prodSituation, allocatedAmount, formula, agentRelativeRatio ) ) ) {
+                changed[changedCount++] = index;
+            }
+        }
+        return Arrays.copyOf( changed, changedCount );
+    }
+
+    /**
+     * 退回完整重算，逐行比对找出有变化的行
+     */
+    private int[] recalculateAll() {
+        MultiProductCalculationResult result = MultiFactoryInvoiceCalculationService.calculateMultiProductsData(
+                totalInvoiceAmount, List.of( productSituations ), exchangeRate, agentRelativeRatio, allocationMode,
+                formula );
+        List<ProductCalculationDetail> recalculated = result.productCalculationDetails();
+        int[] changed = new int[details.length];
+        int changedCount = 0;
+        for ( int i = 0; i < details.length; i++ ) {
+            if ( !details[i].equals( recalculated.get( i ) ) ) {
+                changed[changedCount++] = i;
+                details[i] = recalculated.get( i );
+            }
+        }
+        totalTaxRebate = result.totalTaxRebateAmount();
+        totalAgentProfit = result.totalAgentProfit();
+        return Arrays.copyOf( changed, changedCount );
+    }
+
+    /**
+     * 用新的分配结果重算一行，并更新累计值
+     * @return 该行结果是否有变化
+     */
+    private boolean replaceDetail( int index, FactoryAllocation allocation ) {
+        ProductCalculationDetail detail = MultiFactoryInvoiceCalculationService.calculateProductDetail(
+                productSituations[index], allocation, agentRelativeRatio, formula );
+        if ( detail.equals( details[index] ) ) {
+            return false;
+        }
+        subtractFromTotals( details[index] );
+        addToTotals( detail );
+        details[index] = detail;
+        return true;
+    }
+
+    private void addToTotals( ProductCalculationDetail detail ) {
+        totalTaxRebate = totalTaxRebate.add( detail.taxRebateAmount() );
+        totalAgentProfit = totalAgentProfit.add( detail.agentProfit() );
+    }
+
+    private void subtractFromTotals( ProductCalculationDetail detail ) {
+        totalTaxRebate = totalTaxRebate.subtract( detail.taxRebateAmount() );
+        totalAgentProfit = totalAgentProfit.subtract( detail.agentProfit() );
+    }
+}
@@ -0,0 +1,375 @@
+package com.gwill.foreign_trade.service;
+
+import com.gwill.foreign_trade.io.CalculationResultExporter;
+import com.gwill.foreign_trade.io.OrderBookLoader;
+import com.gwill.foreign_trade.model.CalculationParams;
+import com.gwill.foreign_trade.model.InvoiceBatchResult;
+import com.gwill.foreign_trade.model.MonteCarloSettings;
+import com.gwill.foreign_trade.model.MultiProductCalculationResult;
+import com.gwill.foreign_trade.model.NetProfitDistribution;
+import com.gwill.foreign_trade.model.OrderBookEntry;
+import com.gwill.foreign_trade.model.OrderSnapshot;
+import com.gwill.foreign_trade.model.ProductSituation;
+import com.gwill.io.excel.ExcelIOException;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.stream.IntStream;
+
+/**
+ * 汇率与退税到账时间风险模拟（蒙特卡洛）
+ * 签订PI前评估订单利润对汇率和退税到账时间的敏感程度：每次抽样模拟收汇日的汇率和退税到账延迟，
+ * 按与 OrderRevaluationService 相同的方式（按货值比例分配、标准合同公式）重算多工厂订单，得出您的净利润，
+ * 延迟期间您应分得的退税按资金成本扣减。汇率按几何布朗运动模拟，只有收汇日的汇率影响结果，直接按收汇日的分布一步抽样。
+ *
+ * 抽样分块并行：每块使用由种子依次拆分出的独立 SplittableRandom，结果与线程数和调度无关，相同种子结果相同；
+ * 每个线程复用一份计算工作区（列式产品数据的计算结果数组），逐次抽样不再分配对象。
+ * 各产品开票金额由 ColumnarInvoiceKernel 以double计算，每块第一次抽样与BigDecimal精确计算核对。
+ * double计算不模拟开票上限：可超额开票工厂设置了开票上限（最高开票金额或最高超额比例）时，每次抽样都按BigDecimal精确计算，
+ * 结果相同但速度慢约两个数量级（单核上10个产品的订单100万次抽样：无上限约0.4秒，有上限约30秒），宜减少抽样次数
+ */
+public final class MonteCarloRiskSimulator {
+
+    // 每块抽样次数
+    private static final int CHUNK_SIZE = 1 << 14;
+
+    private static final double DAYS_PER_YEAR = 365.0;
+
+    private static final String USAGE = String.join( System.lineSeparator(),
+            "用法：MonteCarloRiskSimulator <订单清单CSV> <订单编号> <当前汇率> <导出CSV> [选项]",
+            "  --samples=1000000    抽样次数",
+            "  --seed=1             随机数种子（相同种子结果相同）",
+            "  --drift=0            汇率年化漂移率（小数形式）",
+            "  --volatility=0.05    汇率年化波动率（小数形式）",
+            "  --fx-days=90         签订PI至收汇的天数",
+            "  --rebate-delay=30-90 退税到账延迟天数范围",
+            "  --funding-rate=0.04  年化资金成本（小数形式）" );
+
+    private MonteCarloRiskSimulator() {
+    }
+
+    /**
+     * 命令行入口：模拟订单清单中一笔订单的净利润分布，导出分位数等统计结果
+     * 参数见 USAGE
+     */
+    public static void main( String[] args ) throws ExcelIOException, IOException {
+        if ( args.length < 4 ) {
+            System.err.println( USAGE );
+            System.exit( 2 );
+        }
+        int sampleCount = 1_000_000;
+        long seed = 1;
+        double annualDrift = 0;
+        double annualVolatility = 0.05;
+        int fxReceiptDays = 90;
+        int rebateDelayMinDays = 30;
+        int rebateDelayMaxDays = 90;
+        double annualFundingRate = 0.04;
+        for ( String option : Arrays.asList( args ).subList( 4, args.length ) ) {
+            String value = option.substring( option.indexOf( '=' ) + 1 );
+            if ( option.startsWith( "--samples=" ) ) {
+                sampleCount = Integer.parseInt( value );
+            } else if ( option.startsWith( "--seed=" ) ) {
+                seed = Long.parseLong( value );
+            } else if ( option.startsWith( "--drift=" ) ) {
+                annualDrift = Double.parseDouble( value );
+            } else if ( option.startsWith( "--volatility=" ) ) {
+                annualVolatility = Double.parseDouble( value );
+            } else if ( option.startsWith( "--fx-days=" ) ) {
+                fxReceiptDays = Integer.parseInt( value );
+            } else if ( option.startsWith( "--rebate-delay=" ) ) {
+                String[] range = value.split( "-" );
+                rebateDelayMinDays = Integer.parseInt( range[0] );
+                rebateDelayMaxDays = Integer.parseInt( range[range.length - 1] );
+            } else if ( option.startsWith( "--funding-rate=" ) ) {
+                annualFundingRate = Double.parseDouble( value );
+            } else {
+                System.err.println( "无法识别的选项：" + option );
+                System.err.println( USAGE );
+                System.exit( 2 );
+            }
+        }
+
+        OrderBookEntry entry = OrderBookLoader.readEntries( Path.of( args[0] ) ).stream()
+                .filter( candidate -> candidate.orderId().equals( args[1] ) )
+                .findFirst()
+                .orElseThrow( () -> new IllegalArgumentException( "订单清单中没有订单" + args[1] ) );
+        OrderSnapshot order = OrderBookLoader.loadOrder( entry );
+        if ( hasFlexibleInvoiceCap( order ) ) {
+            System.out.println( "该订单有工厂设置了开票上限，每次抽样按BigDecimal精确计算，耗时较长" );
+        }
+        NetProfitDistribution distribution = simulate( order, new MonteCarloSettings( sampleCount, seed,
+                new BigDecimal( args[2] ), annualDrift, annualVolatility, fxReceiptDays, rebateDelayMinDays,
+                rebateDelayMaxDays, annualFundingRate ) );
+        Path reportPath = Path.of( args[3] );
+        CalculationResultExporter.exportNetProfitDistribution( reportPath, distribution );
+        System.out.printf( "订单%s：%d次抽样，耗时%dms，平均净利润%.2f，P5 %.2f，P50 %.2f，P95 %.2f，亏损概率%.4f%%，已导出：%s%n",
+                order.orderId(), distribution.sampleCount(), distribution.elapsedMillis(), distribution.mean(),
+                distribution.percentile( 5 ), distribution.percentile( 50 ), distribution.percentile( 95 ),
+                distribution.lossProbability() * 100, reportPath );
+    }
+
+    /**
+     * 模拟一笔订单的净利润分布
+     * 可超额开票工厂设置了开票上限时每次抽样都按BigDecimal精确计算，耗时约为无上限订单的数十至上百倍
+     * @param order 订单快照
+     * @param settings 模拟参数
+     * @return 净利润分布
+     */
+    public static NetProfitDistribution simulate( OrderSnapshot order, MonteCarloSettings settings ) {
+        validateSettings( settings );
+        long startNanos = System.nanoTime();
+
+        // 先按当前汇率精确计算一次，订单数据有误时在此报错
+        BigDecimal netProfitAtSpot = OrderRevaluationService.revalue( order, settings.spotRate(), null ).yourNetProfit();
+        OrderModel model = new OrderModel( order );
+
+        int sampleCount = settings.sampleCount();
+        int chunkCount = ( sampleCount + CHUNK_SIZE - 1 ) / CHUNK_SIZE;
+        SplittableRandom seedRandom = new SplittableRandom( settings.seed() );
+        SplittableRandom[] chunkRandoms = new SplittableRandom[chunkCount];
+        for ( int chunk = 0; chunk < chunkCount; chunk++ ) {
+            chunkRandoms[chunk] = seedRandom.split();
+        }
+
+        double spot = settings.spotRate().doubleValue();
+        double years = settings.fxReceiptDays() / DAYS_PER_YEAR;
+        double volatility = settings.annualVolatility();
+        double logDrift = ( settings.annualDrift() - volatility * volatility / 2 ) * years;
+        double logVolatility = volatility * Math.sqrt( years );
+        double dailyFundingRate = settings.annualFundingRate() / DAYS_PER_YEAR;
+
+        double[] netProfits = new double[sampleCount];
+        ThreadLocal<Workspace> workspaces = ThreadLocal.withInitial( () -> new Workspace( model.productCount() ) );
+        IntStream.range( 0, chunkCount ).parallel().forEach( chunk -> {
+            SplittableRandom random = chunkRandoms[chunk];
+            Workspace workspace = workspaces.get();
+            int from = chunk * CHUNK_SIZE;
+            int to = Math.min( sampleCount, from + CHUNK_SIZE );
+            for ( int i = from; i < to; i++ ) {
+                double rate = spot * Math.exp( logDrift + logVolatility * random.nextGaussian() );
+                int rebateDelayDays = random.nextInt( settings.rebateDelayMinDays(), settings.rebateDelayMaxDays() + 1 );
+                double netProfit = model.netProfit( rate, workspace );
+                if ( i == from ) {
+                    model.crossCheck( rate, netProfit );
+                }
+                netProfits[i] = netProfit - workspace.rebateShare * dailyFundingRate * rebateDelayDays;
+            }
+        } );
+
+        Arrays.parallelSort( netProfits );
+        double sum = 0;
+        int lossCount = 0;
+        for ( double netProfit : netProfits ) {
+            sum += netProfit;
+            if ( netProfit < 0 ) {
+                lossCount++;
+            }
+        }
+        double mean = sum / sampleCount;
+        double squaredDeviations = 0;
+        for ( double netProfit : netProfits ) {
+            squaredDeviations += ( netProfit - mean ) * ( netProfit - mean );
+        }
+        double standardDeviation = sampleCount > 1 ? Math.sqrt( squaredDeviations / ( sampleCount - 1 ) ) : 0;
+
+        return new NetProfitDistribution( order.orderId(), settings.spotRate(), netProfitAtSpot, netProfits, mean,
+                standardDeviation, (double) lossCount / sampleCount, ( System.nanoTime() - startNanos ) / 1_000_000 );
+    }
+
+    /**
+     * 是否有可超额开票工厂设置了开票上限（模拟时需按BigDecimal精确计算）
+     */
+    private static boolean hasFlexibleInvoiceCap( OrderSnapshot order ) {
+        for ( ProductSituation prodSituation : order.productSituations() ) {
+            if ( !prodSituation.isFixedInvoiceAmount() && prodSituation.hasInvoiceCap() ) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void validateSettings( MonteCarloSettings settings ) {
+        if ( settings.sampleCount() <= 0 ) {
+            throw new IllegalArgumentException( "抽样次数必须大于0" );
+        }
+        if ( settings.spotRate() == null || settings.spotRate().compareTo( BigDecimal.ZERO ) <= 0 ) {
+            throw new IllegalArgumentException( "当前汇率必须大于0" );
+        }
+        if ( settings.annualVolatility() < 0 || !Double.isFinite( settings.annualVolatility() )
+                || !Double.isFinite( settings.annualDrift() ) ) {
+            throw new IllegalArgumentException( "汇率漂移率和波动率必须为有效数值，波动率不能为负数" );
+        }
+        if ( settings.fxReceiptDays() < 0 ) {
+            throw new IllegalArgumentException( "收汇天数不能为负数" );
+        }
+        if ( settings.rebateDelayMinDays() < 0 || settings.rebateDelayMaxDays() < settings.rebateDelayMinDays() ) {
+            throw new IllegalArgumentException( "退税到账延迟天数不能为负数，且最长延迟不能小于最短延迟" );
+        }
+        if ( settings.annualFundingRate() < 0 || !Double.isFinite( settings.annualFundingRate() ) ) {
+            throw new IllegalArgumentException( "资金成本不能为负数" );
+        }
+    }
+
+    /**
+     * 每个线程复用的计算工作区
+     */
+    private static final class Workspace {
+
+        final InvoiceBatchResult products;
+        double rebateShare;                     // 最近一次计算中您应分得的退税
+
+        Workspace( int productCount ) {
+            products = InvoiceBatchResult.allocate( productCount );
+        }
+    }
+
+    /**
+     * 订单的列式数据及按汇率重算净利润
+     */
+    private static final class OrderModel {
+
+        private final OrderSnapshot order;
+        private final BigDecimal agentRelativeRatioDecimal;
+        private final double orderSalesAmount;
+        private final double agentRelativeRatio;
+        private final double[] salesAmounts;
+        private final double[] taxRebateRates;
+        private final double[] actualPurchaseAmounts;
+        private final double[] taxPoints;
+        private final boolean[] fixedInvoiceAmounts;
+        private final double[] allocateRatios;  // 可超额开票工厂的分配比例（与精确计算一样保留10位小数）
+        private final int lastFlexibleIndex;    // 承担尾差的最后一家可超额开票工厂
+        private final double totalActualPurchaseAmount;
+        private final double fixedTotalActualPurchaseAmount;
+        private final boolean exact;            // 有开票上限，需按BigDecimal精确计算
+
+        OrderModel( OrderSnapshot order ) {
+            this.order = order;
+            List<ProductSituation> situations = order.productSituations();
+            int productCount = situations.size();
+            agentRelativeRatioDecimal = order.agentRelativeRatio();
+            orderSalesAmount = order.salesAmount().doubleValue();
+            agentRelativeRatio = agentRelativeRatioDecimal.doubleValue();
+            salesAmounts = new double[productCount];
+            taxRebateRates = new double[productCount];
+            actualPurchaseAmounts = new double[productCount];
+            taxPoints = new double[productCount];
+            fixedInvoiceAmounts = new boolean[productCount];
+            allocateRatios = new double[productCount];
+
+            BigDecimal total = BigDecimal.ZERO;
+            BigDecimal fixedTotal = BigDecimal.ZERO;
+            int lastFlexible = -1;
+            for ( int i = 0; i < productCount; i++ ) {
+                ProductSituation prodSituation = situations.get( i );
+                salesAmounts[i] = prodSituation.salesAmountInForeignCurrency().doubleValue();
+                taxRebateRates[i] = prodSituation.taxRebateRate().doubleValue();
+                actualPurchaseAmounts[i] = prodSituation.actualPurchaseAmount().doubleValue();
+                taxPoints[i] = prodSituation.taxPoint().doubleValue();
+                fixedInvoiceAmounts[i] = prodSituation.isFixedInvoiceAmount();
+                total = total.add( prodSituation.actualPurchaseAmount() );
+                if ( fixedInvoiceAmounts[i] ) {
+                    fixedTotal = fixedTotal.add( prodSituation.actualPurchaseAmount() );
+                } else {
+                    lastFlexible = i;
+                }
+            }
+            BigDecimal flexibleTotal = total.subtract( fixedTotal );
+            for ( int i = 0; i < lastFlexible; i++ ) {
+                if ( !fixedInvoiceAmounts[i] ) {
+                    allocateRatios[i] = situations.get( i ).actualPurchaseAmount().divide( flexibleTotal,
+                            MultiFactoryInvoiceCalculationService.CALCULATION_PRECISION,
+                            MultiFactoryInvoiceCalculationService.ROUNDING_MODE ).doubleValue();
+                }
+            }
+            lastFlexibleIndex = lastFlexible;
+            totalActualPurchaseAmount = total.doubleValue();
+            fixedTotalActualPurchaseAmount = fixedTotal.doubleValue();
+            exact = hasFlexibleInvoiceCap( order );
+        }
+
+        int productCount() {
+            return salesAmounts.length;
+        }
+
+        /**
+         * 按给定汇率计算您的净利润，您应分得的退税写入 workspace.rebateShare
+         * 与 MultiFactoryInvoiceCalculationService 一致：固定开票的工厂按实际货值开票，
+         * 其余开票金额由可超额开票工厂按货值比例分摊、尾差由最后一家承担，各产品退税和代理利润按分配后的开票金额计算
+         */
+        double netProfit( double exchangeRate, Workspace workspace ) {
+            if ( exact ) {
+                MultiProductCalculationResult result = calculateExactly( exchangeRate );
+                workspace.rebateShare = result.yourTotalTaxRebateShareAmount().doubleValue();
+                return yourNetProfit( exchangeRate, result ).doubleValue();
+            }
+
+            int productCount = salesAmounts.length;
+            InvoiceBatchResult products = workspace.products;
+            ColumnarInvoiceKernel.calculateInto( salesAmounts, taxRebateRates, actualPurchaseAmounts, taxPoints,
+                    exchangeRate, agentRelativeRatio, ContractFormula.STANDARD, productCount, products );
+            double totalInvoiceAmount = 0;
+            double[] invoiceAmounts = products.invoiceAmounts();
+            for ( int i = 0; i < productCount; i++ ) {
+                totalInvoiceAmount += invoiceAmounts[i];
+            }
+
+            double allocatableInvoiceAmount = totalInvoiceAmount - fixedTotalActualPurchaseAmount;
+            double allocatedToOthers = 0;
+            for ( int i = 0; i < lastFlexibleIndex; i++ ) {
+                allocatedToOthers += fixedInvoiceAmounts[i] ? 0 : allocatableInvoiceAmount * allocateRatios[i];
+            }
+            double rebateShare = 0;
+            double overpriceTax = 0;
+            for ( int i = 0; i < productCount; i++ ) {
+                double actual = actualPurchaseAmounts[i];
+                double allocated;
+                if ( fixedInvoiceAmounts[i] ) {
+                    allocated = actual;
+                } else if ( i == lastFlexibleIndex ) {
+                    allocated = allocatableInvoiceAmount - allocatedToOthers;
+                } else {
+                    allocated = allocatableInvoiceAmount * allocateRatios[i];
+                }
+                double rate = taxRebateRates[i];
+                double taxRebate = allocated * rate / ( rate + 1.0 );
+                rebateShare += taxRebate - taxRebate * agentRelativeRatio;
+                overpriceTax += ( allocated - actual ) * taxPoints[i];
+            }
+            workspace.rebateShare = rebateShare;
+            return orderSalesAmount * exchangeRate + rebateShare - totalActualPurchaseAmount - overpriceTax;
+        }
+
+        /**
+         * 与BigDecimal精确计算核对
+         * @throws IllegalStateException 误差超过 ColumnarInvoiceKernel.CENT_TOLERANCE
+         */
+        void crossCheck( double exchangeRate, double netProfit ) {
+            if ( exact ) {
+                return;
+            }
+            double expected = yourNetProfit( exchangeRate, calculateExactly( exchangeRate ) ).doubleValue();
+            if ( Math.abs( expected - netProfit ) > ColumnarInvoiceKernel.CENT_TOLERANCE ) {
+                throw new IllegalStateException( String.format( "订单%s在汇率%s下的模拟净利润与精确计算相差%s元！",
+                        order.orderId(), exchangeRate, Math.abs( expected - netProfit ) ) );
+            }
+        }
+
+        private MultiProductCalculationResult calculateExactly( double exchangeRate ) {
+            return MultiFactoryInvoiceCalculationService.calculateMultiFactoryOrder( order.productSituations(),
+                    BigDecimal.valueOf( exchangeRate ), agentRelativeRatioDecimal );
+        }
+
+        private BigDecimal yourNetProfit( double exchangeRate, MultiProductCalculationResult result ) {
+            var params = new CalculationParams( order.salesAmount(), BigDecimal.valueOf( exchangeRate ), BigDecimal.ZERO,
+                    agentRelativeRatioDecimal );
+            return new MultiFactoryInvoiceCalculationService()
+                    .calculateYourNetProfit( params, order.productSituations(), result );
+        }
+    }
+}
@@ -1,8 +1,10 @@
 package com.gwill.foreign_trade.service;
 
+import com.gwill.foreign_trade.model.AllocationTotals;
 import com.gwill.foreign_trade.model.CalculationParams;
 import com.gwill.foreign_trade.model.CalculationResult;
 import com.gwill.foreign_trade.model.FactoryAllocation;
+import com.gwill.foreign_trade.model.InvoiceLimit;
 import com.gwill.foreign_trade.model.MultiProductCalculationResult;
 import com.gwill.foreign_trade.model.ProductCalculationDetail;
 import com.gwill.foreign_trade.model.ProductSituation;
@@ -10,11 +12,10 @@ import java.math.BigDecimal;
 import java.math.RoundingMode;
 import java.text.DecimalFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
-
-import static java.util.stream.Collectors.groupingBy;
+import java.util.function.Function;
 
 /**
  * 开票计算服务类
@@ -34,41 +35,108 @@ public class MultiFactoryInvoiceCalculationService {
 
 
     /**
-     * 核心计算方法：计算开票金额和相关数值
+     * 核心计算方法：按标准合同公式计算开票金额和相关数值
      * @param params 用于计算的用户输入参数
      * @return 计算结果
      */
     public static CalculationResult calculateInvoiceAmount ( CalculationParams params ) {
+        return calculateInvoiceAmount( params, ContractFormula.STANDARD );
+    }
+
+    /**
+     * 核心计算方法：按指定的合同公式计算开票金额和相关数值
+     * 标准合同: X = (S × E) × (1+R) ÷ (1 + R × A)，T = X × R/(1+R)，代理利润 = T × A
+     * @param params 用于计算的用户输入参数
+     * @param formula 编译后的合同公式
+     * @return 计算结果
+     */
+    public static CalculationResult calculateInvoiceAmount ( CalculationParams params, ContractFormula formula ) {
         // 验证用于笼统计算的用户输入参数
         validateCalculationParams( params );
 
-        // 计算客户付款（人民币等值）
-        BigDecimal clientPaymentInRMB = params.salesAmount().multiply( params.exchangeRate() );
+        return formula.calculate( params );
+    }
+
+    /**
+     * 按产品分别计算开票金额并汇总
+     * 汇率和代理分配率在此校验；各产品须已通过加载器或 validateProductSituations 的校验，此处不再逐行检查
+     * @param productSituationList 产品信息列表
+     * @param exchangeRate 汇率
+     * @param agentRelativeRatio 代理退税相对分配率（小数形式）
+     * @param formula 编译后的合同公式
+     * @return 总开票金额
+     */
+    public static BigDecimal calculateTotalInvoiceAmount( List<ProductSituation> productSituationList,
+                                                          BigDecimal exchangeRate, BigDecimal agentRelativeRatio,
+                                                          ContractFormula formula ) {
+        validateSharedParams( exchangeRate, agentRelativeRatio );
 
-        // 计算分母
-        BigDecimal denominator = BigDecimal.ONE.add( params.taxRebateRate().multiply( params.agentRelativeRatio() ) );
-        // 验证分母不为零
-        if (denominator.compareTo(BigDecimal.ZERO) == 0) {
-            throw new IllegalArgumentException( "参数组合导致计算公式分母为0，计算无解！请调整代理分成比例，重新计算。" );
+        BigDecimal totalInvoiceAmount = BigDecimal.ZERO;
+        for ( ProductSituation prodSituation : productSituationList ) {
+            totalInvoiceAmount = totalInvoiceAmount.add( formula.invoiceAmount( prodSituation.salesAmountInForeignCurrency(),
+                    exchangeRate, prodSituation.taxRebateRate(), agentRelativeRatio ) );
         }
+        return totalInvoiceAmount;
+    }
 
-        // 计算开票金额: X = (S × E) × (1+R) ÷ (1 + R × A)
-        // 即: invoiceAmountInRMB = (salesAmount × exchangeRate) × (1+taxRebateRate) ÷ (1 + taxRebateRate × agentRatio)
-        BigDecimal numerator = clientPaymentInRMB.multiply( BigDecimal.ONE.add( params.taxRebateRate() ) );
-        BigDecimal invoiceAmountInRMB = numerator.divide( denominator, CALCULATION_PRECISION, ROUNDING_MODE );
+    /**
+     * 多工厂订单计算：按产品分别计算开票金额并汇总，再分配到各工厂并计算各产品详情
+     * @param productSituationList 产品信息列表
+     * @param exchangeRate 汇率
+     * @param agentRelativeRatio 代理退税相对分配率（小数形式）
+     * @return 多产品计算结果
+     */
+    public static MultiProductCalculationResult calculateMultiFactoryOrder(
+            List<ProductSituation> productSituationList, BigDecimal exchangeRate, BigDecimal agentRelativeRatio ) {
+        return calculateMultiFactoryOrder( productSituationList, exchangeRate, agentRelativeRatio, AllocationMode.PROPORTIONAL );
+    }
+
+    /**
+     * 多工厂订单计算（指定超额开票金额的分配方式）
+     * @param productSituationList 产品信息列表
+     * @param exchangeRate 汇率
+     * @param agentRelativeRatio 代理退税相对分配率（小数形式）
+     * @param allocationMode 超额开票金额的分配方式
+     * @return 多产品计算结果
+     */
+    public static MultiProductCalculationResult calculateMultiFactoryOrder(
+            List<ProductSituation> productSituationList, BigDecimal exchangeRate, BigDecimal agentRelativeRatio,
+            AllocationMode allocationMode ) {
+        return calculateMultiFactoryOrder( productSituationList, exchangeRate, agentRelativeRatio, allocationMode,
+                ContractFormula.STANDARD );
+    }
 
-        // 计算退税金额: T = X × R/(1+R)
-        BigDecimal taxRebateAmountInRMB = invoiceAmountInRMB.multiply( params.taxRebateRate() )
-                .divide( BigDecimal.ONE.add( params.taxRebateRate() ), CALCULATION_PRECISION, ROUNDING_MODE );
+    /**
+     * 多工厂订单计算（指定超额开票金额的分配方式和合同公式）
+     * 产品信息可由程序直接构造、未经加载器校验，计算前先逐行校验一次，出错时报出具体的工厂和产品，
+     * 而不是算出错误结果或除以0
+     * @param productSituationList 产品信息列表
+     * @param exchangeRate 汇率
+     * @param agentRelativeRatio 代理退税相对分配率（小数形式）
+     * @param allocationMode 超额开票金额的分配方式
+     * @param formula 编译后的合同公式
+     * @return 多产品计算结果
+     */
+    public static MultiProductCalculationResult calculateMultiFactoryOrder(
+            List<ProductSituation> productSituationList, BigDecimal exchangeRate, BigDecimal agentRelativeRatio,
+            AllocationMode allocationMode, ContractFormula formula ) {
+        validateProductSituations( productSituationList );
 
-        // 计算代理利润
-        BigDecimal agentProfitInRMB = taxRebateAmountInRMB.multiply( params.agentRelativeRatio() );
+        // 按产品分别计算开票金额并汇总
+        BigDecimal totalInvoiceAmount = calculateTotalInvoiceAmount( productSituationList, exchangeRate,
+                agentRelativeRatio, formula );
 
-        // 计算您应分得的退税金额
-        BigDecimal yourTaxRebateAmountInRMB = taxRebateAmountInRMB.subtract( agentProfitInRMB );
+        // 计算参与工厂的总货值
+        BigDecimal factoryInvoicingToAgentTotalActualPurchaseAmount = productSituationList.stream()
+                .filter( ProductSituation::agreeToInvoiceToAgent )
+                .map( ProductSituation::actualPurchaseAmount )
+                .reduce( BigDecimal.ZERO, BigDecimal::add );
+        if ( factoryInvoicingToAgentTotalActualPurchaseAmount.compareTo( BigDecimal.ZERO ) == 0 ) {
+            throw new IllegalArgumentException( "没有参与的工厂！" );
+        }
 
-        return new CalculationResult( clientPaymentInRMB, invoiceAmountInRMB, taxRebateAmountInRMB,
-                agentProfitInRMB, yourTaxRebateAmountInRMB );
+        return calculateMultiProductsData( totalInvoiceAmount, productSituationList, exchangeRate, agentRelativeRatio,
+                allocationMode, formula );
     }
 
     /**
@@ -82,7 +150,42 @@ public class MultiFactoryInvoiceCalculationService {
     public static MultiProductCalculationResult calculateMultiProductsData(
             BigDecimal totalInvoiceAmount,
             List<ProductSituation> productSituationList, BigDecimal exchangeRate, BigDecimal agentRelativeRatio ) {
+        return calculateMultiProductsData( totalInvoiceAmount, productSituationList, exchangeRate, agentRelativeRatio,
+                AllocationMode.PROPORTIONAL );
+    }
 
+    /**
+     * 多产品计算方法（指定超额开票金额的分配方式）
+     * @param totalInvoiceAmount 总开票金额
+     * @param productSituationList 产品信息列表
+     * @param exchangeRate 汇率
+     * @param agentRelativeRatio 代理退税相对分配率（小数形式）
+     * @param allocationMode 超额开票金额的分配方式
+     * @return 多产品计算结果
+     */
+    public static MultiProductCalculationResult calculateMultiProductsData(
+            BigDecimal totalInvoiceAmount,
+            List<ProductSituation> productSituationList, BigDecimal exchangeRate, BigDecimal agentRelativeRatio,
+            AllocationMode allocationMode ) {
+        return calculateMultiProductsData( totalInvoiceAmount, productSituationList, exchangeRate, agentRelativeRatio,
+                allocationMode, ContractFormula.STANDARD );
+    }
+
+    /**
+     * 多产品计算方法（指定超额开票金额的分配方式和合同公式）
+     * 各产品须已通过加载器或 validateProductSituations 的校验，此处不再逐行检查
+     * @param totalInvoiceAmount 总开票金额
+     * @param productSituationList 产品信息列表
+     * @param exchangeRate 汇率
+     * @param agentRelativeRatio 代理退税相对分配率（小数形式）
+     * @param allocationMode 超额开票金额的分配方式
+     * @param formula 编译后的合同公式（各产品的退税金额和代理利润按此公式计算）
+     * @return 多产品计算结果
+     */
+    public static MultiProductCalculationResult calculateMultiProductsData(
+            BigDecimal totalInvoiceAmount,
+            List<ProductSituation> productSituationList, BigDecimal exchangeRate, BigDecimal agentRelativeRatio,
+            AllocationMode allocationMode, ContractFormula formula ) {
         BigDecimal totalTaxRebate = BigDecimal.ZERO;
         BigDecimal totalAgentProfit = BigDecimal.ZERO;
         BigDecimal yourTotalTaxRebateShareAmount = BigDecimal.ZERO;
@@ -90,55 +193,20 @@ public class MultiFactoryInvoiceCalculationService {
         List<ProductCalculationDetail> productCalcDetails = new ArrayList<>();
 
         List<FactoryAllocation> factoryAllocations = calculateFactoryAllocations(
-                totalInvoiceAmount, productSituationList );
-
-        Map<String, Map<String, List<ProductSituation>>> prodSituationFactoryProductMap =
-                productSituationList.stream().collect(
-                        groupingBy( ProductSituation::factoryName,
-                                groupingBy( ProductSituation::productName )
-                        )
-                );
-
-        for ( FactoryAllocation allocation : factoryAllocations ) {
-            String factoryName = allocation.factoryName();
-            String productName = allocation.productName();
-            // 按照实际业务逻辑，如下Map中每一个List中应该有且仅有1个ProductSituation对象element
-            ProductSituation prodSituation = prodSituationFactoryProductMap
-                    .get( factoryName ).get( productName ).getFirst();
+                totalInvoiceAmount, productSituationList, allocationMode, formula, agentRelativeRatio );
 
-            // 计算该产品的退税金额
-            BigDecimal taxRebateAmount = calculateTaxRebateAmount(
-                    allocation.allocatedInvoiceAmount(), prodSituation.taxRebateRate() );
-
-            // 计算代理公司从该产品获得的利润
-            BigDecimal agentProfitFromProduct = taxRebateAmount.multiply( agentRelativeRatio );
+        // 各分配方式返回的分配结果与产品信息按下标一一对应（顺序与输入顺序一致），无需按名称查找
+        for ( int i = 0; i < factoryAllocations.size(); i++ ) {
+            ProductSituation prodSituation = productSituationList.get( i );
+            FactoryAllocation allocation = factoryAllocations.get( i );
 
-            // 计算代理公司在收到退税后应向工厂支付的余款金额 = 开票金额 - 代理公司已向该工厂支付的金额
-            // = 开票金额 - (实际货值 - 您已支付给工厂的金额)
-            BigDecimal amountPaidByAgentToFactory = prodSituation.actualPurchaseAmount().subtract(
-                    prodSituation.prepaidAmount() );
-            BigDecimal balanceToFactoryAfterRebating = allocation.allocatedInvoiceAmount().subtract( amountPaidByAgentToFactory );
-
-            // 计算工厂多开票金额按照税点产生的额外费用 = (开票金额 - 实际货值) × 税点
-            BigDecimal overpriceAmount = allocation.allocatedInvoiceAmount().subtract(
-                    prodSituation.actualPurchaseAmount() );
-            BigDecimal overpriceTax = overpriceAmount.multiply( prodSituation.taxPoint() );
+            var detail = calculateProductDetail( prodSituation, allocation, agentRelativeRatio, formula );
 
             // 累计总额
-            totalTaxRebate = totalTaxRebate.add( taxRebateAmount );
-            totalAgentProfit = totalAgentProfit.add( agentProfitFromProduct );
+            totalTaxRebate = totalTaxRebate.add( detail.taxRebateAmount() );
+            totalAgentProfit = totalAgentProfit.add( detail.agentProfit() );
             yourTotalTaxRebateShareAmount = yourTotalTaxRebateShareAmount.add(
-                    taxRebateAmount.subtract( agentProfitFromProduct ) );
-
-            // 计算工厂对公应退金额：如果参与开票给代理公司，则为预付金额，否则为0
-            BigDecimal prepaymentRefundAmount = prodSituation.agreeToInvoiceToAgent() ? 
-                    prodSituation.prepaidAmount() : BigDecimal.ZERO;
-                    
-            // 记录产品详情
-            var detail = new ProductCalculationDetail( factoryName, productName,
-                    prodSituation.actualPurchaseAmount(), allocation.allocatedInvoiceAmount(), taxRebateAmount,
-                    agentProfitFromProduct, amountPaidByAgentToFactory, balanceToFactoryAfterRebating, 
-                    overpriceTax, prepaymentRefundAmount, allocation.overpriceRefundAmount() );
+                    detail.taxRebateAmount().subtract( detail.agentProfit() ) );
             productCalcDetails.add( detail );
         }
 
@@ -146,6 +214,60 @@ public class MultiFactoryInvoiceCalculationService {
                 totalAgentProfit, yourTotalTaxRebateShareAmount, productCalcDetails );
     }
 
+    /**
+     * 根据单个产品的工厂分配结果计算该产品的计算详情
+     * @param prodSituation 产品信息
+     * @param allocation 该产品的工厂分配结果
+     * @param agentRelativeRatio 代理退税相对分配率（小数形式）
+     * @return 产品计算详情
+     */
+    public static ProductCalculationDetail calculateProductDetail( ProductSituation prodSituation,
+                                                                   FactoryAllocation allocation,
+                                                                   BigDecimal agentRelativeRatio ) {
+        return calculateProductDetail( prodSituation, allocation, agentRelativeRatio, ContractFormula.STANDARD );
+    }
+
+    /**
+     * 根据单个产品的工厂分配结果，按指定的合同公式计算该产品的计算详情
+     * @param prodSituation 产品信息
+     * @param allocation 该产品的工厂分配结果
+     * @param agentRelativeRatio 代理退税相对分配率（小数形式）
+     * @param formula 编译后的合同公式
+     * @return 产品计算详情
+     */
+    public static ProductCalculationDetail calculateProductDetail( ProductSituation prodSituation,
+                                                                   FactoryAllocation allocation,
+                                                                   BigDecimal agentRelativeRatio,
+                                                                   ContractFormula formula ) {
+        // 计算该产品的退税金额
+        BigDecimal taxRebateAmount = formula.taxRebateAmount( allocation.allocatedInvoiceAmount(),
+                prodSituation.taxRebateRate(), agentRelativeRatio );
+
+        // 计算代理公司从该产品获得的利润
+        BigDecimal agentProfitFromProduct = formula.agentProfit( taxRebateAmount, allocation.allocatedInvoiceAmount(),
+                prodSituation.taxRebateRate(), agentRelativeRatio );
+
+        // 计算代理公司在收到退税后应向工厂支付的余款金额 = 开票金额 - 代理公司已向该工厂支付的金额
+        // = 开票金额 - (实际货值 - 您已支付给工厂的金额)
+        BigDecimal amountPaidByAgentToFactory = prodSituation.actualPurchaseAmount().subtract(
+                prodSituation.prepaidAmount() );
+        BigDecimal balanceToFactoryAfterRebating = allocation.allocatedInvoiceAmount().subtract( amountPaidByAgentToFactory );
+
+        // 计算工厂多开票金额按照税点产生的额外费用 = (开票金额 - 实际货值) × 税点
+        BigDecimal overpriceAmount = allocation.allocatedInvoiceAmount().subtract(
+                prodSituation.actualPurchaseAmount() );
+        BigDecimal overpriceTax = overpriceAmount.multiply( prodSituation.taxPoint() );
+
+        // 计算工厂对公应退金额：如果参与开票给代理公司，则为预付金额，否则为0
+        BigDecimal prepaymentRefundAmount = prodSituation.agreeToInvoiceToAgent() ? 
+                prodSituation.prepaidAmount() : BigDecimal.ZERO;
+                
+        return new ProductCalculationDetail( prodSituation.factoryName(), prodSituation.productName(),
+                prodSituation.actualPurchaseAmount(), allocation.allocatedInvoiceAmount(), taxRebateAmount,
+                agentProfitFromProduct, amountPaidByAgentToFactory, balanceToFactoryAfterRebating, 
+                overpriceTax, prepaymentRefundAmount, allocation.overpriceRefundAmount() );
+    }
+
     /**
      * 计算您的总收入
      * @param params 用户在界面上输入的总体信息（包括：PI上的外币销售金额、汇率、退税率、代理退税相对分配率）
@@ -198,7 +320,7 @@ public class MultiFactoryInvoiceCalculationService {
      * @param agentRateInput 用户手工输入的分配给代理公司的绝对退税率
      * @return 退税金额中分配给代理公司的相对分配率（百分比）
      */
-    public BigDecimal convertAbsoluteRateToRelativeRatio ( BigDecimal taxRefundRate, BigDecimal agentRateInput ) {
+    public static BigDecimal convertAbsoluteRateToRelativeRatio ( BigDecimal taxRefundRate, BigDecimal agentRateInput ) {
         BigDecimal agentRate = agentRateInput.divide( BigDecimal.valueOf( 100 ), CALCULATION_PRECISION, ROUNDING_MODE );
         if ( agentRate.compareTo( BigDecimal.ZERO ) < 0 || agentRate.compareTo( taxRefundRate ) > 0 ) {
             String errorMsg = String.format( "代理分成绝对退税率必须在0-%.2f%%之间",
@@ -218,8 +340,7 @@ public class MultiFactoryInvoiceCalculationService {
      * @return 退税金额
      */
     public static BigDecimal calculateTaxRebateAmount( BigDecimal invoiceAmountInRMB, BigDecimal taxRebateRate ) {
-        return invoiceAmountInRMB.multiply( taxRebateRate ).divide( BigDecimal.ONE.add( taxRebateRate ),
-                CALCULATION_PRECISION, ROUNDING_MODE );
+        return ContractFormula.STANDARD.taxRebateAmount( invoiceAmountInRMB, taxRebateRate );
     }
 
     // =========================== 工具方法 ===========================
@@ -232,7 +353,8 @@ public class MultiFactoryInvoiceCalculationService {
             throw new IllegalArgumentException(fieldName + "不能为空");
         }
         try {
-            String cleanText = text.trim().replaceAll(",", "");
+            // 按字面替换，不必每次编译正则表达式
+            String cleanText = text.trim().replace(",", "");
             BigDecimal value = new BigDecimal(cleanText);
             if (value.scale() > CALCULATION_PRECISION) {
                 value = value.setScale(CALCULATION_PRECISION, ROUNDING_MODE);
@@ -274,37 +396,239 @@ public class MultiFactoryInvoiceCalculationService {
         return EXCHANGE_RATE_FORMAT.format(rate);
     }
 
+    /**
+     * 按指定方式计算各家工厂分配的开票金额及退款金额
+     * @param totalInvoiceAmountInRMB 总开票金额
+     * @param productSituationList 从输入CSV中读取的信息
+     * @param allocationMode 超额开票金额的分配方式
+     * @return 一个包含各家工厂分配的开票金额及退款金额的列表
+     */
+    public static List<FactoryAllocation> calculateFactoryAllocations(
+            BigDecimal totalInvoiceAmountInRMB, List<ProductSituation> productSituationList,
+            AllocationMode allocationMode ) {
+        return calculateFactoryAllocations( totalInvoiceAmountInRMB, productSituationList, allocationMode,
+                ContractFormula.STANDARD, null );
+    }
+
+    /**
+     * 按指定方式计算各家工厂分配的开票金额及退款金额，各工厂的退税金额按指定的合同公式计算
+     * @param totalInvoiceAmountInRMB 总开票金额
+     * @param productSituationList 从输入CSV中读取的信息
+     * @param allocationMode 超额开票金额的分配方式
+     * @param formula 编译后的合同公式
+     * @param agentRelativeRatio 代理退税相对分配率（小数形式，合同公式用到时必须给出）
+     * @return 一个包含各家工厂分配的开票金额及退款金额的列表
+     */
+    public static List<FactoryAllocation> calculateFactoryAllocations(
+            BigDecimal totalInvoiceAmountInRMB, List<ProductSituation> productSituationList,
+            AllocationMode allocationMode, ContractFormula formula, BigDecimal agentRelativeRatio ) {
+        boolean capped = hasFlexibleInvoiceCap( productSituationList );
+        return switch ( allocationMode ) {
+            case PROPORTIONAL -> capped ?
+                    calculateCappedAllocations( totalInvoiceAmountInRMB, productSituationList, false,
+                            formula, agentRelativeRatio ) :
+                    calculateFactoryAllocations( totalInvoiceAmountInRMB, productSituationList,
+                            formula, agentRelativeRatio );
+            case LARGEST_REMAINDER_FEN -> capped ?
+                    calculateCappedAllocations( totalInvoiceAmountInRMB, productSituationList, true,
+                            formula, agentRelativeRatio ) :
+                    calculateFactoryAllocationsToFen( totalInvoiceAmountInRMB, productSituationList,
+                            AllocationTotals.of( productSituationList ), formula, agentRelativeRatio );
+            case TAX_MINIMIZING -> calculateTaxMinimizingAllocations( totalInvoiceAmountInRMB,
+                    productSituationList, ProductSituation::invoiceLimit, formula, agentRelativeRatio );
+        };
+    }
+
+    /**
+     * 是否有可超额开票工厂设置了开票上限（最高开票金额或最高超额比例）
+     */
+    private static boolean hasFlexibleInvoiceCap( List<ProductSituation> productSituationList ) {
+        for ( ProductSituation prodSituation : productSituationList ) {
+            if ( !prodSituation.isFixedInvoiceAmount() && prodSituation.hasInvoiceCap() ) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 带开票上限的按货值比例分配
+     * 超额部分按实际货值比例注水分配：份额超出上限的工厂封顶，超出部分再由其余可超额开票工厂按货值比例分摊，
+     * 直至分完；按 剩余空间/货值 排序后一次扫描完成，复杂度O(n log n)。没有工厂触及上限时结果与不设上限时一致。
+     * 总开票金额低于可超额开票工厂货值合计时无超额可分，各工厂开票金额均不超过实际货值，上限不起作用，按原方式分配
+     * @param totalInvoiceAmountInRMB 总开票金额
+     * @param productSituationList 从输入CSV中读取的信息（含各工厂的最高开票金额、最高超额比例）
+     * @param roundToFen 是否分配到整分（剩余的分按最大余数法补给小数部分最大且补分后不超过上限的工厂）
+     * @return 各家工厂分配的开票金额及退款金额，顺序与输入顺序一致
+     */
+    public static List<FactoryAllocation> calculateCappedAllocations(
+            BigDecimal totalInvoiceAmountInRMB, List<ProductSituation> productSituationList, boolean roundToFen ) {
+        return calculateCappedAllocations( totalInvoiceAmountInRMB, productSituationList, roundToFen,
+                ContractFormula.STANDARD, null );
+    }
+
+    /**
+     * 带开票上限的按货值比例分配，各工厂的退税金额按指定的合同公式计算
+     * @param totalInvoiceAmountInRMB 总开票金额
+     * @param productSituationList 从输入CSV中读取的信息（含各工厂的最高开票金额、最高超额比例）
+     * @param roundToFen 是否分配到整分
+     * @param formula 编译后的合同公式
+     * @param agentRelativeRatio 代理退税相对分配率（小数形式，合同公式用到时必须给出）
+     * @return 各家工厂分配的开票金额及退款金额，顺序与输入顺序一致
+     */
+    public static List<FactoryAllocation> calculateCappedAllocations(
+            BigDecimal totalInvoiceAmountInRMB, List<ProductSituation> productSituationList, boolean roundToFen,
+            ContractFormula formula, BigDecimal agentRelativeRatio ) {
+        AllocationTotals totals = AllocationTotals.of( productSituationList );
+        BigDecimal allocatableInvoiceAmount = totalInvoiceAmountInRMB.subtract( totals.fixedTotalActualPurchaseAmount() );
+        if ( roundToFen ) {
+            allocatableInvoiceAmount = allocatableInvoiceAmount.setScale( 2, ROUNDING_MODE );
+        }
+        BigDecimal excess = allocatableInvoiceAmount.subtract( totals.flexibleTotalActualPurchaseAmount() );
+        if ( excess.compareTo( BigDecimal.ZERO ) < 0 ) {
+            return roundToFen ?
+                    calculateFactoryAllocationsToFen( totalInvoiceAmountInRMB, productSituationList, totals,
+                            formula, agentRelativeRatio ) :
+                    calculateFactoryAllocations( totalInvoiceAmountInRMB, productSituationList,
+                            formula, agentRelativeRatio );
+        }
+
+        FactoryAllocation[] allocations = new FactoryAllocation[productSituationList.size()];
+        int[] flexibleIndexes = new int[totals.flexibleCount()];
+        BigDecimal[] amounts = new BigDecimal[totals.flexibleCount()];
+        BigDecimal[] uppers = new BigDecimal[totals.flexibleCount()];
+        int position = 0;
+
+        for ( int i = 0; i < allocations.length; i++ ) {
+            ProductSituation prodSituation = productSituationList.get( i );
+            if ( prodSituation.isFixedInvoiceAmount() ) {
+                allocations[i] = fixedAllocation( prodSituation, formula, agentRelativeRatio );
+                continue;
+            }
+            BigDecimal upper = prodSituation.invoiceLimit().maxInvoiceAmount();
+            if ( upper != null && upper.compareTo( prodSituation.actualPurchaseAmount() ) < 0 ) {
+                throw new IllegalArgumentException( String.format( "%s - %s 的开票金额上限 %s 低于实际货值 %s！",
+                        prodSituation.factoryName(), prodSituation.productName(),
+                        formatCurrency( upper ), formatCurrency( prodSituation.actualPurchaseAmount() ) ) );
+            }
+            flexibleIndexes[position] = i;
+            amounts[position] = prodSituation.actualPurchaseAmount();
+            uppers[position] = upper;
+            position++;
+        }
+
+        Integer[] group = new Integer[position];
+        for ( int k = 0; k < position; k++ ) {
+            group[k] = k;
+        }
+        BigDecimal remaining = fillGroup( group, excess, amounts, uppers, flexibleIndexes, productSituationList );
+        if ( remaining.compareTo( BigDecimal.ZERO ) > 0 ) {
+            throw new IllegalArgumentException( String.format( "可超额开票工厂的开票上限合计不足，还有 %s 元无法分配！",
+                    formatCurrency( remaining ) ) );
+        }
+        if ( roundToFen ) {
+            roundToFenByLargestRemainder( amounts, uppers );
+        }
+
+        for ( int k = 0; k < position; k++ ) {
+            int index = flexibleIndexes[k];
+            allocations[index] = flexibleAllocation( productSituationList.get( index ), amounts[k],
+                    formula, agentRelativeRatio );
+        }
+        return new ArrayList<>( Arrays.asList( allocations ) );
+    }
+
+    /**
+     * 将合计为整分的一组金额逐个向下取整到分，剩余的分补给小数部分最大的金额（相同时靠前的优先）
+     * 补分后不得超过上限：向下取整后再加1分就超过上限的金额（上限不是整分、且已分到上限所在的那一分内）跳过，
+     * 由余数次大的金额补足；可补分的金额不够时说明上限按分取整后合计不足，抛出异常
+     * @param amounts 各金额（就地修改）
+     * @param uppers 各金额的上限（null表示不设上限）
+     */
+    private static void roundToFenByLargestRemainder( BigDecimal[] amounts, BigDecimal[] uppers ) {
+        BigDecimal[] remainders = new BigDecimal[amounts.length];
+        BigDecimal leftover = BigDecimal.ZERO;
+        for ( int k = 0; k < amounts.length; k++ ) {
+            BigDecimal floored = amounts[k].setScale( 2, RoundingMode.FLOOR );
+            remainders[k] = amounts[k].subtract( floored );
+            leftover = leftover.add( remainders[k] );
+            amounts[k] = floored;
+        }
+
+        int leftoverFen = leftover.movePointRight( 2 ).setScale( 0, ROUNDING_MODE ).intValueExact();
+        if ( leftoverFen > 0 ) {
+            Integer[] byRemainder = new Integer[amounts.length];
+            for ( int k = 0; k < amounts.length; k++ ) {
+                byRemainder[k] = k;
+            }
+            // 稳定排序，余数相同时保持输入顺序
+            Arrays.sort( byRemainder, ( a, b ) -> remainders[b].compareTo( remainders[a] ) );
+            BigDecimal oneFen = BigDecimal.ONE.movePointLeft( 2 );
+            for ( int k = 0; k < byRemainder.length && leftoverFen > 0; k++ ) {
+                int member = byRemainder[k];
+                BigDecimal raised = amounts[member].add( oneFen );
+                if ( uppers[member] != null && raised.compareTo( uppers[member] ) > 0 ) {
+                    continue;
+                }
+                amounts[member] = raised;
+                leftoverFen--;
+            }
+            if ( leftoverFen > 0 ) {
+                throw new IllegalArgumentException( String.format(
+                        "可超额开票工厂的开票上限按分取整后合计不足，还有 %d 分无法分配！", leftoverFen ) );
+            }
+        }
+    }
+
     /**
      * 计算各家工厂分配的开票金额及退款金额
      * @param totalInvoiceAmountInRMB 总开票金额
      * @param productSituationList 从输入CSV中读取的信息（包括：工厂名称,产品名称,实际货值,已预付金额,税点,同意开票给代理公司,可超额开票）
-     * @return 一个包含各家工厂分配的开票金额及退款金额的列表
+     * @return 一个包含各家工厂分配的开票金额及退款金额的列表，顺序与输入顺序一致
      */
     public static List<FactoryAllocation> calculateFactoryAllocations(
             BigDecimal totalInvoiceAmountInRMB, List<ProductSituation> productSituationList ) {
-        List<FactoryAllocation> allocationResults = new ArrayList<>();
+        return calculateFactoryAllocations( totalInvoiceAmountInRMB, productSituationList,
+                ContractFormula.STANDARD, null );
+    }
+
+    /**
+     * 计算各家工厂分配的开票金额及退款金额，各工厂的退税金额按指定的合同公式计算
+     * @param totalInvoiceAmountInRMB 总开票金额
+     * @param productSituationList 从输入CSV中读取的信息
+     * @param formula 编译后的合同公式
+     * @param agentRelativeRatio 代理退税相对分配率（小数形式，合同公式用到时必须给出）
+     * @return 一个包含各家工厂分配的开票金额及退款金额的列表，顺序与输入顺序一致
+     */
+    public static List<FactoryAllocation> calculateFactoryAllocations(
+            BigDecimal totalInvoiceAmountInRMB, List<ProductSituation> productSituationList,
+            ContractFormula formula, BigDecimal agentRelativeRatio ) {
+        FactoryAllocation[] allocationResults = new FactoryAllocation[productSituationList.size()];
 
         // 将可超额开票和无法超额开票的工厂及产品信息分成到两个List中
         List<ProductSituation> fixedInvoiceAmountProducts = new ArrayList<>();
         List<ProductSituation> flexibleInvoiceAmountProducts = new ArrayList<>();
+        List<Integer> flexibleIndexes = new ArrayList<>();
 
         // 分配开票金额
         BigDecimal totalAllocatedAmount = BigDecimal.ZERO;
 
-        for ( ProductSituation prodSituation : productSituationList ) {
+        for ( int i = 0; i < allocationResults.length; i++ ) {
+            ProductSituation prodSituation = productSituationList.get( i );
             if ( !prodSituation.agreeToInvoiceToAgent() || !prodSituation.ableToInvoiceWithOverprice() ) {
                 fixedInvoiceAmountProducts.add( prodSituation );
                 totalAllocatedAmount = totalAllocatedAmount.add( prodSituation.actualPurchaseAmount() );
 
-                BigDecimal taxRebateAmount = calculateTaxRebateAmount( 
-                        prodSituation.actualPurchaseAmount(), prodSituation.taxRebateRate() );
+                BigDecimal taxRebateAmount = formula.taxRebateAmount(
+                        prodSituation.actualPurchaseAmount(), prodSituation.taxRebateRate(), agentRelativeRatio );
                 BigDecimal overpriceRefundAmount = BigDecimal.ZERO;
 
-                allocationResults.add( new FactoryAllocation( prodSituation.factoryName(), prodSituation.productName(),
+                allocationResults[i] = new FactoryAllocation( prodSituation.factoryName(), prodSituation.productName(),
                         prodSituation.actualPurchaseAmount(), prodSituation.actualPurchaseAmount(),
-                        taxRebateAmount, overpriceRefundAmount ) );
+                        taxRebateAmount, overpriceRefundAmount );
             } else {
                 flexibleInvoiceAmountProducts.add( prodSituation );
+                flexibleIndexes.add( i );
             }
         }
 
@@ -315,6 +639,7 @@ public class MultiFactoryInvoiceCalculationService {
 
         BigDecimal allocatableInvoiceAmount = totalInvoiceAmountInRMB.subtract( totalAllocatedAmount );
 
+        Iterator<Integer> flexibleIndexIter = flexibleIndexes.iterator();
         Iterator<ProductSituation> prodSituationIter = flexibleInvoiceAmountProducts.iterator();
         while ( prodSituationIter.hasNext() ) {
             ProductSituation prodSituation = prodSituationIter.next();
@@ -333,31 +658,383 @@ public class MultiFactoryInvoiceCalculationService {
             totalAllocatedAmount = totalAllocatedAmount.add( allocatedAmount );
 
             // 计算该产品的退税金额
-            BigDecimal taxRebateAmount = calculateTaxRebateAmount( allocatedAmount, prodSituation.taxRebateRate() );
+            BigDecimal taxRebateAmount = formula.taxRebateAmount( allocatedAmount, prodSituation.taxRebateRate(),
+                    agentRelativeRatio );
 
             // 计算应退金额：(开票金额 - 实际货值) * (1 - 税点)
             BigDecimal invoiceAmountDiff = allocatedAmount.subtract( prodSituation.actualPurchaseAmount() );
             BigDecimal overpriceRefundAmount = invoiceAmountDiff.multiply(
                     BigDecimal.ONE.subtract( prodSituation.taxPoint() ) );
 
-            allocationResults.add( new FactoryAllocation( prodSituation.factoryName(), prodSituation.productName(),
-                    prodSituation.actualPurchaseAmount(), allocatedAmount,
-                    taxRebateAmount, overpriceRefundAmount ) );
+            allocationResults[flexibleIndexIter.next()] = new FactoryAllocation( prodSituation.factoryName(),
+                    prodSituation.productName(), prodSituation.actualPurchaseAmount(), allocatedAmount,
+                    taxRebateAmount, overpriceRefundAmount );
+        }
+
+        return new ArrayList<>( Arrays.asList( allocationResults ) );
+    }
+
+    /**
+     * 按货值比例将超额开票金额分配到整分，剩余的分按最大余数法逐分补给余数最大的工厂（余数相同时靠前的工厂优先）
+     * 基于预汇总数据只遍历一次产品列表，不构建中间列表；各工厂开票金额均为整分，且合计严格等于应分配金额（四舍五入到分）。
+     * 全部工厂均为固定开票金额时与 calculateFactoryAllocations 相同，各工厂按实际货值开票
+     * @param totalInvoiceAmountInRMB 总开票金额
+     * @param productSituationList 从输入CSV中读取的信息
+     * @param totals 预汇总数据（见 AllocationTotals.of）
+     * @return 各家工厂分配的开票金额及退款金额，顺序与输入顺序一致
+     */
+    public static List<FactoryAllocation> calculateFactoryAllocationsToFen(
+            BigDecimal totalInvoiceAmountInRMB, List<ProductSituation> productSituationList, AllocationTotals totals ) {
+        return calculateFactoryAllocationsToFen( totalInvoiceAmountInRMB, productSituationList, totals,
+                ContractFormula.STANDARD, null );
+    }
+
+    /**
+     * 按货值比例将超额开票金额分配到整分，各工厂的退税金额按指定的合同公式计算
+     * @param totalInvoiceAmountInRMB 总开票金额
+     * @param productSituationList 从输入CSV中读取的信息
+     * @param totals 预汇总数据（见 AllocationTotals.of）
+     * @param formula 编译后的合同公式
+     * @param agentRelativeRatio 代理退税相对分配率（小数形式，合同公式用到时必须给出）
+     * @return 各家工厂分配的开票金额及退款金额，顺序与输入顺序一致
+     */
+    public static List<FactoryAllocation> calculateFactoryAllocationsToFen(
+            BigDecimal totalInvoiceAmountInRMB, List<ProductSituation> productSituationList, AllocationTotals totals,
+            ContractFormula formula, BigDecimal agentRelativeRatio ) {
+        BigDecimal flexibleTotal = totals.flexibleTotalActualPurchaseAmount();
+        if ( totals.flexibleCount() > 0 && flexibleTotal.compareTo( BigDecimal.ZERO ) == 0 ) {
+            throw new IllegalArgumentException( "可超额开票工厂的实际货值合计为0，无法按比例分配！" );
+        }
+
+        // 应分配给可超额开票工厂的开票金额（以分为单位的整数）
+        BigDecimal allocatableFen = totalInvoiceAmountInRMB.subtract( totals.fixedTotalActualPurchaseAmount() )
+                .movePointRight( 2 ).setScale( 0, ROUNDING_MODE );
+
+        FactoryAllocation[] allocations = new FactoryAllocation[productSituationList.size()];
+        int[] flexibleIndexes = new int[totals.flexibleCount()];
+        BigDecimal[] remainders = new BigDecimal[totals.flexibleCount()];
+        BigDecimal allocatedFen = BigDecimal.ZERO;
+        int flexiblePosition = 0;
+
+        for ( int i = 0; i < allocations.length; i++ ) {
+            ProductSituation prodSituation = productSituationList.get( i );
+            if ( prodSituation.isFixedInvoiceAmount() ) {
+                allocations[i] = fixedAllocation( prodSituation, formula, agentRelativeRatio );
+                continue;
+            }
+            // 份额 = 应分配分数 × 货值 ÷ 货值合计，向下取整到分，记下余数
+            BigDecimal share = allocatableFen.multiply( prodSituation.actualPurchaseAmount() );
+            BigDecimal shareFen = share.divide( flexibleTotal, 0, RoundingMode.FLOOR );
+            remainders[flexiblePosition] = share.subtract( shareFen.multiply( flexibleTotal ) );
+            flexibleIndexes[flexiblePosition++] = i;
+            allocatedFen = allocatedFen.add( shareFen );
+            allocations[i] = flexibleAllocation( prodSituation, shareFen.movePointLeft( 2 ), formula,
+                    agentRelativeRatio );
+        }
+
+        // 没有可超额开票工厂时与按货值比例分配一致：各工厂均按实际货值开票，差额无人承担，不再补分
+        if ( flexiblePosition == 0 ) {
+            return new ArrayList<>( Arrays.asList( allocations ) );
+        }
+
+        // 向下取整后剩余的分数一定少于可超额开票工厂数量，逐分补给余数最大的工厂
+        int leftoverFen = allocatableFen.subtract( allocatedFen ).intValueExact();
+        if ( leftoverFen > 0 ) {
+            Integer[] byRemainder = new Integer[flexiblePosition];
+            for ( int k = 0; k < flexiblePosition; k++ ) {
+                byRemainder[k] = k;
+            }
+            // 稳定排序，余数相同时保持输入顺序
+            Arrays.sort( byRemainder, ( a, b ) -> remainders[b].compareTo( remainders[a] ) );
+            BigDecimal oneFen = BigDecimal.ONE.movePointLeft( 2 );
+            for ( int k = 0; k < leftoverFen; k++ ) {
+                int index = flexibleIndexes[byRemainder[k]];
+                allocations[index] = flexibleAllocation( productSituationList.get( index ),
+                        allocations[index].allocatedInvoiceAmount().add( oneFen ), formula, agentRelativeRatio );
+            }
+        }
+
+        return new ArrayList<>( Arrays.asList( allocations ) );
+    }
+
+    /**
+     * 使超额开票扣税总额 Σ(开票金额 - 实际货值) × 税点 最小的分配
+     * 各可超额开票工厂先按下限开票（默认为实际货值），剩余金额按税点从低到高依次填满各工厂的上限；
+     * 税点相同的一组工厂之间按实际货值比例注水分配，先到达上限的工厂封顶，多出部分由同组其余工厂分摊。
+     * 排序后线性扫描，复杂度O(n log n)
+     * @param totalInvoiceAmountInRMB 总开票金额
+     * @param productSituationList 从输入CSV中读取的信息
+     * @param invoiceLimits 各工厂的开票金额上下限
+     * @return 各家工厂分配的开票金额及退款金额，顺序与输入顺序一致
+     */
+    public static List<FactoryAllocation> calculateTaxMinimizingAllocations(
+            BigDecimal totalInvoiceAmountInRMB, List<ProductSituation> productSituationList,
+            Function<ProductSituation, InvoiceLimit> invoiceLimits ) {
+        return calculateTaxMinimizingAllocations( totalInvoiceAmountInRMB, productSituationList, invoiceLimits,
+                ContractFormula.STANDARD, null );
+    }
+
+    /**
+     * 使超额开票扣税总额最小的分配，各工厂的退税金额按指定的合同公式计算
+     * @param totalInvoiceAmountInRMB 总开票金额
+     * @param productSituationList 从输入CSV中读取的信息
+     * @param invoiceLimits 各工厂的开票金额上下限
+     * @param formula 编译后的合同公式
+     * @param agentRelativeRatio 代理退税相对分配率（小数形式，合同公式用到时必须给出）
+     * @return 各家工厂分配的开票金额及退款金额，顺序与输入顺序一致
+     */
+    public static List<FactoryAllocation> calculateTaxMinimizingAllocations(
+            BigDecimal totalInvoiceAmountInRMB, List<ProductSituation> productSituationList,
+            Function<ProductSituation, InvoiceLimit> invoiceLimits, ContractFormula formula,
+            BigDecimal agentRelativeRatio ) {
+        FactoryAllocation[] allocations = new FactoryAllocation[productSituationList.size()];
+        int flexibleCount = 0;
+        for ( ProductSituation prodSituation : productSituationList ) {
+            if ( !prodSituation.isFixedInvoiceAmount() ) {
+                flexibleCount++;
+            }
+        }
+
+        int[] flexibleIndexes = new int[flexibleCount];
+        BigDecimal[] amounts = new BigDecimal[flexibleCount];   // 当前开票金额（初始为下限）
+        BigDecimal[] uppers = new BigDecimal[flexibleCount];    // 开票金额上限（null表示不设上限）
+        BigDecimal remaining = totalInvoiceAmountInRMB;
+        int position = 0;
+
+        for ( int i = 0; i < allocations.length; i++ ) {
+            ProductSituation prodSituation = productSituationList.get( i );
+            if ( prodSituation.isFixedInvoiceAmount() ) {
+                allocations[i] = fixedAllocation( prodSituation, formula, agentRelativeRatio );
+                remaining = remaining.subtract( prodSituation.actualPurchaseAmount() );
+                continue;
+            }
+            InvoiceLimit limit = invoiceLimits.apply( prodSituation );
+            BigDecimal lower = limit.minInvoiceAmount() == null ?
+                    prodSituation.actualPurchaseAmount() :
+                    limit.minInvoiceAmount().max( prodSituation.actualPurchaseAmount() );
+            BigDecimal upper = limit.maxInvoiceAmount();
+            if ( upper != null && upper.compareTo( lower ) < 0 ) {
+                throw new IllegalArgumentException( String.format( "%s - %s 的开票金额上限 %s 低于下限 %s！",
+                        prodSituation.factoryName(), prodSituation.productName(),
+                        formatCurrency( upper ), formatCurrency( lower ) ) );
+            }
+            flexibleIndexes[position] = i;
+            amounts[position] = lower;
+            uppers[position] = upper;
+            remaining = remaining.subtract( lower );
+            position++;
+        }
+
+        // 没有可超额开票工厂时与其他分配方式一致：各工厂均按实际货值开票，差额无人承担
+        if ( flexibleCount == 0 ) {
+            return new ArrayList<>( Arrays.asList( allocations ) );
+        }
+
+        if ( remaining.compareTo( BigDecimal.ZERO ) < 0 ) {
+            throw new IllegalArgumentException( String.format( "各工厂最低开票金额合计已超出总开票金额 %s 元！",
+                    formatCurrency( remaining.negate() ) ) );
+        }
+
+        // 按税点从低到高排序（稳定排序，税点相同时保持输入顺序）
+        Integer[] byTaxPoint = new Integer[flexibleCount];
+        for ( int k = 0; k < flexibleCount; k++ ) {
+            byTaxPoint[k] = k;
+        }
+        Arrays.sort( byTaxPoint, ( a, b ) -> productSituationList.get( flexibleIndexes[a] ).taxPoint()
+                .compareTo( productSituationList.get( flexibleIndexes[b] ).taxPoint() ) );
+
+        int groupStart = 0;
+        while ( groupStart < flexibleCount && remaining.compareTo( BigDecimal.ZERO ) > 0 ) {
+            BigDecimal groupTaxPoint = productSituationList.get( flexibleIndexes[byTaxPoint[groupStart]] ).taxPoint();
+            int groupEnd = groupStart + 1;
+            while ( groupEnd < flexibleCount && productSituationList.get( flexibleIndexes[byTaxPoint[groupEnd]] )
+                    .taxPoint().compareTo( groupTaxPoint ) == 0 ) {
+                groupEnd++;
+            }
+            remaining = fillGroup( Arrays.copyOfRange( byTaxPoint, groupStart, groupEnd ), remaining,
+                    amounts, uppers, flexibleIndexes, productSituationList );
+            groupStart = groupEnd;
+        }
+
+        if ( remaining.compareTo( BigDecimal.ZERO ) > 0 ) {
+            throw new IllegalArgumentException( String.format( "可超额开票工厂的开票上限合计不足，还有 %s 元无法分配！",
+                    formatCurrency( remaining ) ) );
         }
 
-        return allocationResults;
+        for ( int k = 0; k < flexibleCount; k++ ) {
+            int index = flexibleIndexes[k];
+            allocations[index] = flexibleAllocation( productSituationList.get( index ), amounts[k],
+                    formula, agentRelativeRatio );
+        }
+        return new ArrayList<>( Arrays.asList( allocations ) );
+    }
+
+    /**
+     * 在税点相同的一组工厂之间按实际货值比例注水分配剩余金额
+     * 货值为正的工厂先按货值比例分配；它们都已封顶后仍有剩余时，再在货值为0的工厂之间平均分配。
+     * 每家工厂均不超过其上限，本组容纳不下的金额返回给调用方，由下一个税点组继续分配
+     * @return 本组分配后仍未分配的金额
+     */
+    private static BigDecimal fillGroup( Integer[] group, BigDecimal remaining, BigDecimal[] amounts,
+                                         BigDecimal[] uppers, int[] flexibleIndexes,
+                                         List<ProductSituation> productSituationList ) {
+        // 分配权重取实际货值；货值为0的工厂权重取1，单独作为一组平均分配
+        BigDecimal[] weights = new BigDecimal[amounts.length];
+        List<Integer> weighted = new ArrayList<>( group.length );
+        List<Integer> weightless = new ArrayList<>();
+        for ( int k : group ) {
+            BigDecimal actualPurchaseAmount = productSituationList.get( flexibleIndexes[k] ).actualPurchaseAmount();
+            if ( actualPurchaseAmount.compareTo( BigDecimal.ZERO ) > 0 ) {
+                weights[k] = actualPurchaseAmount;
+                weighted.add( k );
+            } else {
+                weights[k] = BigDecimal.ONE;
+                weightless.add( k );
+            }
+        }
+        remaining = fillByWeight( weighted.toArray( new Integer[0] ), remaining, amounts, uppers, weights );
+        return fillByWeight( weightless.toArray( new Integer[0] ), remaining, amounts, uppers, weights );
+    }
+
+    /**
+     * 在一组权重均为正的工厂之间按权重注水分配剩余金额
+     * 按 剩余空间/权重 从小到大处理：空间不足按比例份额的工厂直接封顶，其余工厂按比例分摊，尾差由最后一家承担（不超过其上限）
+     * @return 分配后仍未分配的金额
+     */
+    private static BigDecimal fillByWeight( Integer[] members, BigDecimal remaining, BigDecimal[] amounts,
+                                            BigDecimal[] uppers, BigDecimal[] weights ) {
+        if ( members.length == 0 || remaining.compareTo( BigDecimal.ZERO ) <= 0 ) {
+            return remaining;
+        }
+        BigDecimal totalWeight = BigDecimal.ZERO;
+        for ( int k : members ) {
+            totalWeight = totalWeight.add( weights[k] );
+        }
+
+        // 按 剩余空间/权重 从小到大排序，不设上限的排在最后
+        BigDecimal[] ratios = new BigDecimal[amounts.length];
+        for ( int k : members ) {
+            if ( uppers[k] != null ) {
+                ratios[k] = uppers[k].subtract( amounts[k] ).divide( weights[k], CALCULATION_PRECISION, ROUNDING_MODE );
+            }
+        }
+        Arrays.sort( members, ( a, b ) -> {
+            if ( ratios[a] == null || ratios[b] == null ) {
+                return Boolean.compare( ratios[a] == null, ratios[b] == null );
+            }
+            return ratios[a].compareTo( ratios[b] );
+        } );
+
+        int k = 0;
+        // 先封顶：空间/权重 不超过 剩余金额/剩余权重 的工厂直接填满
+        for ( ; k < members.length && remaining.compareTo( BigDecimal.ZERO ) > 0; k++ ) {
+            int member = members[k];
+            if ( uppers[member] == null ) {
+                break;
+            }
+            BigDecimal headroom = uppers[member].subtract( amounts[member] );
+            if ( headroom.multiply( totalWeight ).compareTo( remaining.multiply( weights[member] ) ) > 0 ) {
+                break;
+            }
+            amounts[member] = uppers[member];
+            remaining = remaining.subtract( headroom );
+            totalWeight = totalWeight.subtract( weights[member] );
+        }
+
+        // 其余工厂按比例分摊
+        if ( k < members.length && remaining.compareTo( BigDecimal.ZERO ) > 0 ) {
+            BigDecimal toShare = remaining;
+            for ( int j = k; j < members.length; j++ ) {
+                int member = members[j];
+                BigDecimal share = j == members.length - 1 ? remaining :
+                        toShare.multiply( weights[member] ).divide( totalWeight, CALCULATION_PRECISION, ROUNDING_MODE );
+                if ( uppers[member] != null ) {
+                    share = share.min( uppers[member].subtract( amounts[member] ) );
+                }
+                amounts[member] = amounts[member].add( share );
+                remaining = remaining.subtract( share );
+            }
+        }
+        return remaining;
+    }
+
+    /**
+     * 固定开票金额工厂的分配结果：按实际货值开票，无超额退款；退税金额按合同公式计算
+     */
+    static FactoryAllocation fixedAllocation( ProductSituation prodSituation, ContractFormula formula,
+                                              BigDecimal agentRelativeRatio ) {
+        BigDecimal taxRebateAmount = formula.taxRebateAmount(
+                prodSituation.actualPurchaseAmount(), prodSituation.taxRebateRate(), agentRelativeRatio );
+        return new FactoryAllocation( prodSituation.factoryName(), prodSituation.productName(),
+                prodSituation.actualPurchaseAmount(), prodSituation.actualPurchaseAmount(),
+                taxRebateAmount, BigDecimal.ZERO );
+    }
+
+    /**
+     * 可超额开票工厂的分配结果：应退金额 = (开票金额 - 实际货值) × (1 - 税点)；退税金额按合同公式计算
+     */
+    static FactoryAllocation flexibleAllocation( ProductSituation prodSituation, BigDecimal allocatedAmount,
+                                                 ContractFormula formula, BigDecimal agentRelativeRatio ) {
+        BigDecimal taxRebateAmount = formula.taxRebateAmount( allocatedAmount, prodSituation.taxRebateRate(),
+                agentRelativeRatio );
+        BigDecimal overpriceRefundAmount = allocatedAmount.subtract( prodSituation.actualPurchaseAmount() )
+                .multiply( BigDecimal.ONE.subtract( prodSituation.taxPoint() ) );
+        return new FactoryAllocation( prodSituation.factoryName(), prodSituation.productName(),
+                prodSituation.actualPurchaseAmount(), allocatedAmount, taxRebateAmount, overpriceRefundAmount );
     }
 
     private static void validateCalculationParams ( CalculationParams params ) {
         if ( params.salesAmount().compareTo( BigDecimal.ZERO ) <= 0 )
             throw new IllegalArgumentException( "销售金额必须大于0" );
-        if ( params.exchangeRate().compareTo( BigDecimal.ZERO ) <= 0 )
-            throw new IllegalArgumentException( "汇率必须大于0" );
         if ( params.taxRebateRate().compareTo( BigDecimal.ZERO ) <= 0 ||
                 params.taxRebateRate().compareTo( BigDecimal.ONE ) >= 0 )
             throw new IllegalArgumentException( "退税率必须在0-100%之间" );
-        if ( params.agentRelativeRatio().compareTo( BigDecimal.ZERO ) < 0 ||
-                params.agentRelativeRatio().compareTo( BigDecimal.valueOf( 100 ) ) > 0 )
+        validateSharedParams( params.exchangeRate(), params.agentRelativeRatio() );
+    }
+
+    /**
+     * 逐行检查由程序直接构造的产品信息，遇到第一个问题即抛出异常（见 validateProductSituation）
+     */
+    public static void validateProductSituations( List<ProductSituation> productSituationList ) {
+        for ( ProductSituation prodSituation : productSituationList ) {
+            validateProductSituation( prodSituation );
+        }
+    }
+
+    /**
+     * 单个产品的取值检查，规则与 ProductSituationValidator 相同（只比较大小，不分配对象）
+     * 加载器已逐行报告全部问题；这里供直接构造产品信息的调用方（批量重估、订单组合、风险模拟、增量计算等）兜底，
+     * 遇到第一个问题即抛出异常
+     */
+    public static void validateProductSituation( ProductSituation prodSituation ) {
+        String problem = null;
+        if ( prodSituation.taxRebateRate().signum() <= 0 || prodSituation.taxRebateRate().compareTo( BigDecimal.ONE ) >= 0 ) {
+            problem = "退税率必须在0-100%之间";
+        } else if ( prodSituation.salesAmountInForeignCurrency().signum() <= 0 ) {
+            problem = "销售金额必须大于0";
+        } else if ( prodSituation.actualPurchaseAmount().signum() < 0 ) {
+            problem = ProductSituation.HEADER_ACTUAL_PURCHASE_AMOUNT + "不能为负数";
+        } else if ( prodSituation.prepaidAmount().signum() < 0 ) {
+            problem = ProductSituation.HEADER_PREPAID_AMOUNT + "不能为负数";
+        } else if ( prodSituation.prepaidAmount().compareTo( prodSituation.actualPurchaseAmount() ) > 0 ) {
+            problem = "已预付金额大于实际货值";
+        } else if ( prodSituation.taxPoint().signum() < 0 || prodSituation.taxPoint().compareTo( BigDecimal.ONE ) > 0 ) {
+            problem = "税点必须在0-100%之间";
+        }
+        if ( problem != null ) {
+            throw new IllegalArgumentException( prodSituation.factoryName() + " - " + prodSituation.productName()
+                    + "：" + problem );
+        }
+    }
+
+    /**
+     * 校验各产品共用的汇率和代理分配率
+     */
+    static void validateSharedParams ( BigDecimal exchangeRate, BigDecimal agentRelativeRatio ) {
+        if ( exchangeRate.compareTo( BigDecimal.ZERO ) <= 0 )
+            throw new IllegalArgumentException( "汇率必须大于0" );
+        if ( agentRelativeRatio.compareTo( BigDecimal.ZERO ) < 0 ||
+                agentRelativeRatio.compareTo( BigDecimal.valueOf( 100 ) ) > 0 )
             throw new IllegalArgumentException( "代理相对分成率必须在0-100%之间" );
     }
 }
@@ -0,0 +1,86 @@
+package com.gwill.foreign_trade.service;
+
+import com.gwill.foreign_trade.model.CalculationParams;
+import com.gwill.foreign_trade.model.MultiProductCalculationResult;
+import com.gwill.foreign_trade.model.OrderRevaluation;
+import com.gwill.foreign_trade.model.OrderSnapshot;
+import com.gwill.foreign_trade.model.ProductDetailTable;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.util.List;
+
+/**
+ * 订单批量重估服务
+ * 人民币汇率变动时，按指定日期的历史汇率并行重算全部在手订单
+ */
+public class OrderRevaluationService {
+
+    /**
+     * 按指定日期的汇率并行重估一批订单
+     * @param orders 订单快照列表
+     * @param fxRateStore 历史汇率库
+     * @param valuationDate 重估日期
+     * @return 重估结果（顺序与订单列表一致）
+     */
+    public static List<OrderRevaluation> revalueAll( List<OrderSnapshot> orders, FxRateStore fxRateStore,
+                                                     LocalDate valuationDate ) {
+        return revalueAll( orders, fxRateStore, valuationDate, ContractFormula.STANDARD );
+    }
+
+    /**
+     * 按指定日期的汇率和指定的合同公式并行重估一批订单
+     * @param orders 订单快照列表
+     * @param fxRateStore 历史汇率库
+     * @param valuationDate 重估日期
+     * @param formula 编译后的合同公式
+     * @return 重估结果（顺序与订单列表一致）
+     */
+    public static List<OrderRevaluation> revalueAll( List<OrderSnapshot> orders, FxRateStore fxRateStore,
+                                                     LocalDate valuationDate, ContractFormula formula ) {
+        return orders.parallelStream()
+                .map( order -> revalue( order, fxRateStore.rateOn( order.currency(), valuationDate ), valuationDate,
+                        formula ) )
+                .toList();
+    }
+
+    /**
+     * 按给定汇率重估单笔订单
+     * @param order 订单快照
+     * @param exchangeRate 汇率
+     * @param valuationDate 重估日期
+     * @return 重估结果
+     */
+    public static OrderRevaluation revalue( OrderSnapshot order, BigDecimal exchangeRate, LocalDate valuationDate ) {
+        return revalue( order, exchangeRate, valuationDate, ContractFormula.STANDARD );
+    }
+
+    /**
+     * 按给定汇率和指定的合同公式重估单笔订单
+     * @param order 订单快照
+     * @param exchangeRate 汇率
+     * @param valuationDate 重估日期
+     * @param formula 编译后的合同公式
+     * @return 重估结果
+     */
+    public static OrderRevaluation revalue( OrderSnapshot order, BigDecimal exchangeRate, LocalDate valuationDate,
+                                            ContractFormula formula ) {
+        try {
+            MultiProductCalculationResult result = MultiFactoryInvoiceCalculationService.calculateMultiFactoryOrder(
+                    order.productSituations(), exchangeRate, order.agentRelativeRatio(), AllocationMode.PROPORTIONAL,
+                    formula );
+
+            // 重估结果按列保存，大量订单同时在内存中时占用较少；合计和净利润都按保存的各行计算，与详情一致
+            MultiProductCalculationResult compacted = ProductDetailTable.compact( result );
+
+            // 净利润只用到销售金额和汇率，退税率不参与
+            var params = new CalculationParams( order.salesAmount(), exchangeRate, BigDecimal.ZERO, order.agentRelativeRatio() );
+            BigDecimal yourNetProfit = new MultiFactoryInvoiceCalculationService()
+                    .calculateYourNetProfit( params, order.productSituations(), compacted );
+
+            return new OrderRevaluation( order.orderId(), valuationDate, exchangeRate, compacted, yourNetProfit );
+        } catch ( IllegalArgumentException e ) {
+            throw new IllegalArgumentException( "订单" + order.orderId() + "重估失败：" + e.getMessage(), e );
+        }
+    }
+}
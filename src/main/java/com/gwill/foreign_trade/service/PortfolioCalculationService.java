@@ -0,0 +1,173 @@
+package com.gwill.foreign_trade.service;
+
+import com.gwill.foreign_trade.model.FactoryExposure;
+import com.gwill.foreign_trade.model.OrderRevaluation;
+import com.gwill.foreign_trade.model.OrderSnapshot;
+import com.gwill.foreign_trade.model.PortfolioCalculationResult;
+import com.gwill.foreign_trade.model.ProductCalculationDetail;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * 订单组合计算服务
+ * 并行计算全部在手订单（各订单有各自的销售金额和汇率），并按工厂汇总开票金额、对私退款、对公退款及退税后余款，
+ * 供资金计划使用。各工厂的汇总由分段累加器完成：每个工厂的累加器分为若干段，线程按线程号落到不同段上各自加锁累加，
+ * 读取时再合并各段，避免大量订单同时写同一家工厂时互相阻塞
+ */
+public class PortfolioCalculationService {
+
+    // 每个工厂累加器的分段数（2的幂，不少于CPU核数）
+    private static final int STRIPE_COUNT = Integer.highestOneBit(
+            Math.max( 1, Runtime.getRuntime().availableProcessors() ) * 2 - 1 );
+
+    // 累加项下标
+    private static final int INVOICE_AMOUNT = 0;
+    private static final int OVERPRICE_REFUND = 1;
+    private static final int PREPAYMENT_REFUND = 2;
+    private static final int BALANCE_AFTER_REBATING = 3;
+    private static final int AMOUNT_COUNT = 4;
+
+    /**
+     * 按指定日期的历史汇率计算订单组合
+     * @param orders 订单快照列表
+     * @param fxRateStore 历史汇率库
+     * @param valuationDate 计算日期
+     * @return 订单组合计算结果
+     */
+    public static PortfolioCalculationResult calculatePortfolio( List<OrderSnapshot> orders, FxRateStore fxRateStore,
+                                                                 LocalDate valuationDate ) {
+        return calculatePortfolio( orders, fxRateStore, valuationDate, ContractFormula.STANDARD );
+    }
+
+    /**
+     * 按指定日期的历史汇率和指定的合同公式计算订单组合
+     * @param orders 订单快照列表
+     * @param fxRateStore 历史汇率库
+     * @param valuationDate 计算日期
+     * @param formula 编译后的合同公式
+     * @return 订单组合计算结果
+     */
+    public static PortfolioCalculationResult calculatePortfolio( List<OrderSnapshot> orders, FxRateStore fxRateStore,
+                                                                 LocalDate valuationDate, ContractFormula formula ) {
+        return calculatePortfolio( orders, order -> fxRateStore.rateOn( order.currency(), valuationDate ), valuationDate,
+                formula );
+    }
+
+    /**
+     * 按各订单各自的汇率并行计算订单组合
+     * @param orders 订单快照列表
+     * @param exchangeRateOf 取得每笔订单所用汇率的函数
+     * @param valuationDate 计算日期
+     * @return 订单组合计算结果
+     */
+    public static PortfolioCalculationResult calculatePortfolio( List<OrderSnapshot> orders,
+                                                                 Function<OrderSnapshot, BigDecimal> exchangeRateOf,
+                                                                 LocalDate valuationDate ) {
+        return calculatePortfolio( orders, exchangeRateOf, valuationDate, ContractFormula.STANDARD );
+    }
+
+    /**
+     * 按各订单各自的汇率和指定的合同公式并行计算订单组合
+     * @param orders 订单快照列表
+     * @param exchangeRateOf 取得每笔订单所用汇率的函数
+     * @param valuationDate 计算日期
+     * @param formula 编译后的合同公式
+     * @return 订单组合计算结果
+     */
+    public static PortfolioCalculationResult calculatePortfolio( List<OrderSnapshot> orders,
+                                                                 Function<OrderSnapshot, BigDecimal> exchangeRateOf,
+                                                                 LocalDate valuationDate, ContractFormula formula ) {
+        Map<String, StripedExposureAccumulator> accumulators = new ConcurrentHashMap<>();
+
+        List<OrderRevaluation> orderResults = orders.parallelStream()
+                .map( order -> {
+                    OrderRevaluation revaluation = OrderRevaluationService.revalue(
+                            order, exchangeRateOf.apply( order ), valuationDate, formula );
+                    accumulate( revaluation, accumulators );
+                    return revaluation;
+                } )
+                .toList();
+
+        List<FactoryExposure> factoryExposures = new ArrayList<>( accumulators.size() );
+        accumulators.forEach( ( factoryName, accumulator ) -> factoryExposures.add( accumulator.sum( factoryName ) ) );
+        factoryExposures.sort( Comparator.comparing( FactoryExposure::factoryName ) );
+        return new PortfolioCalculationResult( orderResults, factoryExposures );
+    }
+
+    /**
+     * 先在订单内按工厂合并各产品，再对每家工厂累加一次
+     */
+    private static void accumulate( OrderRevaluation revaluation, Map<String, StripedExposureAccumulator> accumulators ) {
+        Map<String, BigDecimal[]> orderTotals = new LinkedHashMap<>();
+        for ( ProductCalculationDetail detail : revaluation.calculationResult().productCalculationDetails() ) {
+            BigDecimal[] totals = orderTotals.computeIfAbsent( detail.factoryName(), _ -> zeros() );
+            totals[INVOICE_AMOUNT] = totals[INVOICE_AMOUNT].add( detail.invoiceAmount() );
+            totals[OVERPRICE_REFUND] = totals[OVERPRICE_REFUND].add( detail.overpriceRefundFromFactory() );
+            totals[PREPAYMENT_REFUND] = totals[PREPAYMENT_REFUND].add( detail.prepaymentRefundAmount() );
+            totals[BALANCE_AFTER_REBATING] = totals[BALANCE_AFTER_REBATING].add(
+                    detail.agentBalanceToFactoryAfterRebating() );
+        }
+        orderTotals.forEach( ( factoryName, totals ) -> accumulators
+                .computeIfAbsent( factoryName, _ -> new StripedExposureAccumulator() )
+                .add( totals ) );
+    }
+
+    private static BigDecimal[] zeros() {
+        BigDecimal[] amounts = new BigDecimal[AMOUNT_COUNT];
+        Arrays.fill( amounts, BigDecimal.ZERO );
+        return amounts;
+    }
+
+    /**
+     * 单家工厂的分段累加器
+     */
+    private static final class StripedExposureAccumulator {
+
+        private final Stripe[] stripes = new Stripe[STRIPE_COUNT];
+
+        StripedExposureAccumulator() {
+            for ( int i = 0; i < stripes.length; i++ ) {
+                stripes[i] = new Stripe();
+            }
+        }
+
+        void add( BigDecimal[] orderTotals ) {
+            Stripe stripe = stripes[(int) Thread.currentThread().threadId() & ( STRIPE_COUNT - 1 )];
+            synchronized ( stripe ) {
+                for ( int i = 0; i < AMOUNT_COUNT; i++ ) {
+                    stripe.amounts[i] = stripe.amounts[i].add( orderTotals[i] );
+                }
+                stripe.orderCount++;
+            }
+        }
+
+        FactoryExposure sum( String factoryName ) {
+            BigDecimal[] amounts = zeros();
+            int orderCount = 0;
+            for ( Stripe stripe : stripes ) {
+                synchronized ( stripe ) {
+                    for ( int i = 0; i < AMOUNT_COUNT; i++ ) {
+                        amounts[i] = amounts[i].add( stripe.amounts[i] );
+                    }
+                    orderCount += stripe.orderCount;
+                }
+            }
+            return new FactoryExposure( factoryName, orderCount, amounts[INVOICE_AMOUNT], amounts[OVERPRICE_REFUND],
+                    amounts[PREPAYMENT_REFUND], amounts[BALANCE_AFTER_REBATING] );
+        }
+    }
+
+    private static final class Stripe {
+        final BigDecimal[] amounts = zeros();
+        int orderCount;
+    }
+}
@@ -0,0 +1,555 @@
+package com.gwill.foreign_trade.service;
+
+import com.gwill.foreign_trade.io.CalculationResultExporter;
+import com.gwill.foreign_trade.io.GzipFiles;
+import com.gwill.foreign_trade.io.NdjsonRunRecordLoader;
+import com.gwill.foreign_trade.model.LedgerRollup;
+import com.gwill.foreign_trade.model.NameDictionary;
+import com.gwill.foreign_trade.model.ProductCalculationDetail;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigDecimal;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * 计算运行台账
+ * 记录每次计算（一笔订单、一次导出）的各产品结果，按工厂、产品和月份预先汇总开票金额、退税金额、代理公司利润、
+ * 扣税金额、对公退款和对私退款。每个月的汇总单独保存为一个文件，记录一次计算只把该次的增量合并进所在月份的文件，
+ * 不重新扫描历史；查询时各月汇总已在内存中，多年的按工厂年度汇总只需合并各月的汇总行，毫秒级返回。
+ * 每个月份文件同时记下已合并的计算编号，同一次计算重复记录时忽略，文件先写临时文件再原子改名，
+ * 合并与记录编号同时生效。多个进程（如批量任务的工作进程）可同时记录，以台账目录中的锁文件互斥；
+ * 锁文件中保存台账的修改代数，每次记录加一并写入所改月份文件的首行。查询前在锁内读取代数，
+ * 与已加载的相同时不必查看任何月份文件，不同时只重新加载代数变化的月份（不依赖文件修改时间和大小）。
+ * 文件锁由整个JVM持有，同一JVM中打开同一目录的多个实例先以进程内的锁排队，再取文件锁
+ *
+ * 目录结构：rollup/2025-10.tsv（每月一个文件，其他文件忽略），ledger.lock
+ */
+public final class RunLedger {
+
+    /**
+     * 汇总期间
+     */
+    public enum Period {
+        MONTH,      // 按月
+        YEAR,       // 按年
+        ALL         // 查询范围内合计
+    }
+
+    private static final String ROLLUP_DIRECTORY = "rollup";
+    private static final String LOCK_FILE = "ledger.lock";
+    private static final String PARTITION_SUFFIX = ".tsv";
+    private static final Pattern PARTITION_FILE_PATTERN = Pattern.compile( "(\\d{4}-(?:0[1-9]|1[0-2]))\\.tsv" );
+    private static final String GENERATION_LINE_PREFIX = "#generation";
+    private static final String RUN_LINE_PREFIX = "#run";
+    private static final String FACTORY_LINE_PREFIX = "#factory";
+    private static final String FIELD_SEPARATOR = "\t";
+
+    private static final String USAGE = String.join( System.lineSeparator(),
+            "用法：RunLedger <台账目录> import <NDJSON运行记录> <计算日期>",
+            "      RunLedger <台账目录> rollup <导出CSV> [选项]",
+            "  --by-product         按产品分组（默认只按工厂）",
+            "  --period=YEAR        汇总期间（MONTH、YEAR、ALL，默认YEAR）",
+            "  --from=2024-01       起始月份（含）",
+            "  --to=2024-12         截止月份（含）",
+            "  --factory=工厂名称   只查询该工厂" );
+
+    // 台账目录（实际路径） -> 进程内的锁；同一JVM中的两个通道对同一文件加锁会抛出 OverlappingFileLockException 而不是等待
+    private static final ConcurrentMap<Path, ReentrantLock> PROCESS_LOCKS = new ConcurrentHashMap<>();
+
+    // 累加项下标
+    private static final int INVOICE_AMOUNT = 0;
+    private static final int TAX_REBATE_AMOUNT = 1;
+    private static final int AGENT_PROFIT = 2;
+    private static final int OVERPRICE_TAX = 3;
+    private static final int PREPAYMENT_REFUND = 4;
+    private static final int OVERPRICE_REFUND = 5;
+    private static final int AMOUNT_COUNT = 6;
+
+    private final Path directory;
+    private final ReentrantLock processLock;
+    // 本台账的名称字典（只登记台账中记录过的名称，查询条件中的名称不登记）
+    private final NameDictionary names = new NameDictionary();
+    private final Map<YearMonth, Partition> partitions = new TreeMap<>();
+    // 已加载到的台账修改代数（尚未加载时为-1）
+    private long loadedGeneration = -1;
+
+    /**
+     * 一个（工厂, 产品）或一个工厂在一个月内的累加值
+     */
+    private static final class Accumulator {
+        int runCount;
+        long rowCount;
+        final BigDecimal[] amounts = new BigDecimal[AMOUNT_COUNT];
+
+        Accumulator() {
+            Arrays.fill( amounts, BigDecimal.ZERO );
+        }
+
+        void add( ProductCalculationDetail detail ) {
+            rowCount++;
+            amounts[INVOICE_AMOUNT] = amounts[INVOICE_AMOUNT].add( detail.invoiceAmount() );
+            amounts[TAX_REBATE_AMOUNT] = amounts[TAX_REBATE_AMOUNT].add( detail.taxRebateAmount() );
+            amounts[AGENT_PROFIT] = amounts[AGENT_PROFIT].add( detail.agentProfit() );
+            amounts[OVERPRICE_TAX] = amounts[OVERPRICE_TAX].add( detail.overpriceTax() );
+            amounts[PREPAYMENT_REFUND] = amounts[PREPAYMENT_REFUND].add( detail.prepaymentRefundAmount() );
+            amounts[OVERPRICE_REFUND] = amounts[OVERPRICE_REFUND].add( detail.overpriceRefundFromFactory() );
+        }
+
+        void add( Accumulator other ) {
+            runCount += other.runCount;
+            rowCount += other.rowCount;
+            for ( int i = 0; i < AMOUNT_COUNT; i++ ) {
+                amounts[i] = amounts[i].add( other.amounts[i] );
+            }
+        }
+    }
+
+    /**
+     * 一个月的汇总
+     * @param generation 写入该月份文件时的台账修改代数
+     * @param runs 已合并的计算编号 -> 说明（计算日期、来源、行数）
+     * @param products （工厂名称编号, 产品名称编号） -> 累加值
+     * @param factories 工厂名称编号 -> 累加值
+     */
+    private record Partition( long generation, Map<String, String> runs,
+                              Map<Long, Accumulator> products, Map<Integer, Accumulator> factories ) {}
+
+    private RunLedger( Path directory, ReentrantLock processLock ) {
+        this.directory = directory;
+        this.processLock = processLock;
+    }
+
+    /**
+     * 打开（不存在时新建）台账目录
+     */
+    public static RunLedger open( Path directory ) throws IOException {
+        Files.createDirectories( directory.resolve( ROLLUP_DIRECTORY ) );
+        RunLedger ledger = new RunLedger( directory,
+                PROCESS_LOCKS.computeIfAbsent( directory.toRealPath(), key -> new ReentrantLock() ) );
+        ledger.refresh();
+        return ledger;
+    }
+
+    /**
+     * 命令行入口：补录NDJSON运行记录，或查询汇总并导出为CSV
+     * 参数见 USAGE
+     */
+    public static void main( String[] args ) throws IOException {
+        if ( args.length < 3 ) {
+            System.err.println( USAGE );
+            System.exit( 2 );
+        }
+        RunLedger ledger = open( Path.of( args[0] ) );
+        if ( args[1].equals( "import" ) && args.length == 4 ) {
+            Path ndjsonPath = Path.of( args[2] );
+            boolean recorded = ledger.importNdjson( ndjsonPath, LocalDate.parse( args[3] ) );
+            System.out.println( ( recorded ? "已补录：" : "已补录过，忽略：" ) + ndjsonPath );
+            return;
+        }
+        if ( !args[1].equals( "rollup" ) ) {
+            System.err.println( USAGE );
+            System.exit( 2 );
+        }
+
+        boolean byProduct = false;
+        Period period = Period.YEAR;
+        YearMonth from = null;
+        YearMonth to = null;
+        String factoryName = null;
+        for ( String option : Arrays.asList( args ).subList( 3, args.length ) ) {
+            String value = option.substring( option.indexOf( '=' ) + 1 );
+            if ( option.equals( "--by-product" ) ) {
+                byProduct = true;
+            } else if ( option.startsWith( "--period=" ) ) {
+                period = Period.valueOf( value.trim().toUpperCase() );
+            } else if ( option.startsWith( "--from=" ) ) {
+                from = YearMonth.parse( value );
+            } else if ( option.startsWith( "--to=" ) ) {
+                to = YearMonth.parse( value );
+            } else if ( option.startsWith( "--factory=" ) ) {
+                factoryName = value;
+            } else {
+                System.err.println( "无法识别的选项：" + option );
+                System.err.println( USAGE );
+                System.exit( 2 );
+            }
+        }
+
+        long startNanos = System.nanoTime();
+        List<LedgerRollup> rollups = ledger.rollup( byProduct, period, from, to, factoryName );
+        Path reportPath = Path.of( args[2] );
+        CalculationResultExporter.exportLedgerRollup( reportPath, rollups );
+        System.out.printf( "共%d次计算，汇总%d行，耗时%dms，已导出：%s%n", ledger.runCount(), rollups.size(),
+                ( System.nanoTime() - startNanos ) / 1_000_000, reportPath );
+    }
+
+    public Path directory() {
+        return directory;
+    }
+
+    /**
+     * 记录一次计算
+     * @param runId 计算编号（同一编号只记录一次，如 订单编号@输入哈希）
+     * @param runDate 计算所属日期，决定计入哪个月份
+     * @param source 来源说明
+     * @param details 该次计算的各产品结果
+     * @return 是否新记录（该编号已记录过时返回false）
+     */
+    public synchronized boolean recordRun( String runId, LocalDate runDate, String source,
+                                           Iterable<ProductCalculationDetail> details ) throws IOException {
+        // 先在文件锁外算好本次的增量
+        Map<Long, Accumulator> productDelta = new HashMap<>();
+        Map<Integer, Accumulator> factoryDelta = new HashMap<>();
+        long rowCount = 0;
+        for ( ProductCalculationDetail detail : details ) {
+            long nameKey = names.keyOf( detail.factoryName(), detail.productName() );
+            productDelta.computeIfAbsent( nameKey, key -> new Accumulator() ).add( detail );
+            factoryDelta.computeIfAbsent( (int) ( nameKey >>> 32 ), key -> new Accumulator() ).add( detail );
+            rowCount++;
+        }
+        productDelta.values().forEach( accumulator -> accumulator.runCount = 1 );
+        factoryDelta.values().forEach( accumulator -> accumulator.runCount = 1 );
+
+        YearMonth month = YearMonth.from( runDate );
+        processLock.lock();
+        try ( FileChannel lockChannel = openLockFile() ) {
+            // 锁随通道关闭释放
+            lockChannel.lock();
+            refresh( lockChannel );
+            for ( Partition partition : partitions.values() ) {
+                if ( partition.runs().containsKey( runId ) ) {
+                    return false;
+                }
+            }
+
+            Partition current = partitions.get( month );
+            Map<String, String> runs = new LinkedHashMap<>();
+            Map<Long, Accumulator> products = new HashMap<>();
+            Map<Integer, Accumulator> factories = new HashMap<>();
+            // 在副本上合并，写文件失败时内存中的汇总不受影响
+            if ( current != null ) {
+                runs.putAll( current.runs() );
+                mergeInto( products, current.products() );
+                mergeInto( factories, current.factories() );
+            }
+            runs.put( runId, String.join( FIELD_SEPARATOR, runDate.toString(), encode( source ), Long.toString( rowCount ) ) );
+            mergeInto( products, productDelta );
+            mergeInto( factories, factoryDelta );
+
+            // 先增加代数再改名月份文件：中途退出时其他进程只是多重新查看一次各月份
+            long generation = loadedGeneration + 1;
+            writeGeneration( lockChannel, generation );
+            writePartition( partitionFile( month ), generation, runs, products, factories );
+            partitions.put( month, new Partition( generation, runs, products, factories ) );
+            loadedGeneration = generation;
+            return true;
+        } finally {
+            processLock.unlock();
+        }
+    }
+
+    /**
+     * 把一份NDJSON运行记录补录到台账，计算编号为文件内容的哈希，同一份记录重复补录时忽略
+     * @param ndjsonPath NDJSON运行记录（可为.ndjson.gz）
+     * @param runDate 该次计算所属日期
+     * @return 是否新记录
+     */
+    public boolean importNdjson( Path ndjsonPath, LocalDate runDate ) throws IOException {
+        List<ProductCalculationDetail> details = new ArrayList<>();
+        NdjsonRunRecordLoader.load( ndjsonPath, details::add );
+        return recordRun( "ndjson:" + contentHash( ndjsonPath ), runDate, ndjsonPath.toAbsolutePath().toString(), details );
+    }
+
+    /**
+     * 已记录的计算次数
+     */
+    public synchronized int runCount() throws IOException {
+        refresh();
+        int runCount = 0;
+        for ( Partition partition : partitions.values() ) {
+            runCount += partition.runs().size();
+        }
+        return runCount;
+    }
+
+    /**
+     * 查询汇总
+     * @param byProduct 是否按产品分组（否则只按工厂）
+     * @param period 汇总期间
+     * @param from 起始月份（含，null表示不限）
+     * @param to 截止月份（含，null表示不限）
+     * @param factoryName 只查询该工厂（null表示全部工厂）
+     * @return 汇总行，按工厂名称、产品名称、期间排序
+     */
+    public synchronized List<LedgerRollup> rollup( boolean byProduct, Period period, YearMonth from, YearMonth to,
+                                                   String factoryName ) throws IOException {
+        refresh();
+        int factoryId = factoryName == null ? -1 : names.find( factoryName );
+        if ( factoryName != null && factoryId < 0 ) {
+            // 台账中没有记录过该工厂
+            return List.of();
+        }
+
+        // （工厂, 产品, 期间） -> 累加值
+        record GroupKey( String factoryName, String productName, String period ) {}
+        Map<GroupKey, Accumulator> groups = new HashMap<>();
+        for ( Map.Entry<YearMonth, Partition> entry : partitions.entrySet() ) {
+            YearMonth month = entry.getKey();
+            if ( ( from != null && month.isBefore( from ) ) || ( to != null && month.isAfter( to ) ) ) {
+                continue;
+            }
+            String periodLabel = switch ( period ) {
+                case MONTH -> month.toString();
+                case YEAR -> Integer.toString( month.getYear() );
+                case ALL -> null;
+            };
+            if ( byProduct ) {
+                entry.getValue().products().forEach( ( nameKey, accumulator ) -> {
+                    int factory = (int) ( nameKey >>> 32 );
+                    if ( factoryId < 0 || factory == factoryId ) {
+                        groups.computeIfAbsent( new GroupKey( names.name( factory ), names.name( (int) (long) nameKey ),
+                                periodLabel ), key -> new Accumulator() ).add( accumulator );
+                    }
+                } );
+            } else {
+                entry.getValue().factories().forEach( ( factory, accumulator ) -> {
+                    if ( factoryId < 0 || factory == factoryId ) {
+                        groups.computeIfAbsent( new GroupKey( names.name( factory ), null, periodLabel ),
+                                key -> new Accumulator() ).add( accumulator );
+                    }
+                } );
+            }
+        }
+
+        List<LedgerRollup> rollups = new ArrayList<>( groups.size() );
+        groups.forEach( ( key, accumulator ) -> rollups.add( new LedgerRollup( key.factoryName(), key.productName(),
+                key.period(), accumulator.runCount, accumulator.rowCount,
+                accumulator.amounts[INVOICE_AMOUNT], accumulator.amounts[TAX_REBATE_AMOUNT],
+                accumulator.amounts[AGENT_PROFIT], accumulator.amounts[OVERPRICE_TAX],
+                accumulator.amounts[PREPAYMENT_REFUND], accumulator.amounts[OVERPRICE_REFUND] ) ) );
+        rollups.sort( Comparator.comparing( LedgerRollup::factoryName )
+                .thenComparing( LedgerRollup::productName, Comparator.nullsFirst( Comparator.naturalOrder() ) )
+                .thenComparing( LedgerRollup::period, Comparator.nullsFirst( Comparator.naturalOrder() ) ) );
+        return rollups;
+    }
+
+    private static <K> void mergeInto( Map<K, Accumulator> target, Map<K, Accumulator> source ) {
+        source.forEach( ( key, accumulator ) -> target.computeIfAbsent( key, k -> new Accumulator() ).add( accumulator ) );
+    }
+
+    /**
+     * 在锁内重新加载被其他进程修改过的月份
+     */
+    private void refresh() throws IOException {
+        processLock.lock();
+        try ( FileChannel lockChannel = openLockFile() ) {
+            lockChannel.lock();
+            refresh( lockChannel );
+        } finally {
+            processLock.unlock();
+        }
+    }
+
+    /**
+     * 重新加载被修改过的月份文件（包括其他进程新建或更新的），调用方须持有锁文件的锁
+     * 台账代数与已加载的相同时直接返回；否则逐个读取月份文件首行的代数，只重新加载代数变化的月份
+     */
+    private void refresh( FileChannel lockChannel ) throws IOException {
+        long generation = readGeneration( lockChannel );
+        if ( generation == loadedGeneration ) {
+            return;
+        }
+        Map<YearMonth, Partition> current = new TreeMap<>();
+        try ( Stream<Path> files = Files.list( directory.resolve( ROLLUP_DIRECTORY ) ) ) {
+            for ( Path file : files.toList() ) {
+                // 只认 yyyy-MM.tsv，临时文件和其他无关文件一律跳过
+                Matcher matcher = PARTITION_FILE_PATTERN.matcher( file.getFileName().toString() );
+                if ( !matcher.matches() ) {
+                    continue;
+                }
+                YearMonth month = YearMonth.parse( matcher.group( 1 ) );
+                Partition cached = partitions.get( month );
+                current.put( month, cached != null && cached.generation() == readPartitionGeneration( file ) ?
+                        cached : readPartition( file ) );
+            }
+        }
+        partitions.clear();
+        partitions.putAll( current );
+        loadedGeneration = generation;
+    }
+
+    private FileChannel openLockFile() throws IOException {
+        return FileChannel.open( directory.resolve( LOCK_FILE ), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE );
+    }
+
+    /**
+     * 锁文件中的台账修改代数（新建的锁文件为0）
+     */
+    private static long readGeneration( FileChannel lockChannel ) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate( Long.BYTES );
+        while ( buffer.hasRemaining() && lockChannel.read( buffer, buffer.position() ) > 0 ) {
+            // 读满8字节
+        }
+        return buffer.hasRemaining() ? 0 : buffer.flip().getLong();
+    }
+
+    private static void writeGeneration( FileChannel lockChannel, long generation ) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate( Long.BYTES ).putLong( generation ).flip();
+        while ( buffer.hasRemaining() ) {
+            lockChannel.write( buffer, buffer.position() );
+        }
+        lockChannel.force( false );
+    }
+
+    private Path partitionFile( YearMonth month ) {
+        return directory.resolve( ROLLUP_DIRECTORY ).resolve( month + PARTITION_SUFFIX );
+    }
+
+    /**
+     * 月份文件首行的台账修改代数（没有代数行的文件为-1）
+     */
+    private static long readPartitionGeneration( Path file ) throws IOException {
+        try ( BufferedReader reader = Files.newBufferedReader( file, StandardCharsets.UTF_8 ) ) {
+            String line = reader.readLine();
+            if ( line == null || !line.startsWith( GENERATION_LINE_PREFIX + FIELD_SEPARATOR ) ) {
+                return -1;
+            }
+            return Long.parseLong( line.substring( GENERATION_LINE_PREFIX.length() + FIELD_SEPARATOR.length() ) );
+        }
+    }
+
+    /**
+     * 月份文件格式（制表符分隔，名称经URL编码）：
+     * #generation 写入时的台账修改代数
+     * #run 计算编号 计算日期 来源 行数
+     * #factory 工厂名称 计算次数 行数 开票金额 退税金额 代理公司利润 扣税金额 对公退款 对私退款
+     * 工厂名称 产品名称 计算次数 行数 开票金额 退税金额 代理公司利润 扣税金额 对公退款 对私退款
+     */
+    private Partition readPartition( Path file ) throws IOException {
+        long generation = -1;
+        Map<String, String> runs = new LinkedHashMap<>();
+        Map<Long, Accumulator> products = new HashMap<>();
+        Map<Integer, Accumulator> factories = new HashMap<>();
+        try ( BufferedReader reader = Files.newBufferedReader( file, StandardCharsets.UTF_8 ) ) {
+            String line;
+            while ( ( line = reader.readLine() ) != null ) {
+                String[] fields = line.split( FIELD_SEPARATOR, -1 );
+                if ( fields[0].equals( GENERATION_LINE_PREFIX ) ) {
+                    generation = Long.parseLong( fields[1] );
+                } else if ( fields[0].equals( RUN_LINE_PREFIX ) ) {
+                    runs.put( decode( fields[1] ), String.join( FIELD_SEPARATOR, fields[2], fields[3], fields[4] ) );
+                } else if ( fields[0].equals( FACTORY_LINE_PREFIX ) ) {
+                    factories.put( names.idOf( decode( fields[1] ) ), readAccumulator( fields, 2 ) );
+                } else {
+                    products.put( names.keyOf( decode( fields[0] ), decode( fields[1] ) ), readAccumulator( fields, 2 ) );
+                }
+            }
+        }
+        return new Partition( generation, runs, products, factories );
+    }
+
+    private static Accumulator readAccumulator( String[] fields, int offset ) {
+        Accumulator accumulator = new Accumulator();
+        accumulator.runCount = Integer.parseInt( fields[offset] );
+        accumulator.rowCount = Long.parseLong( fields[offset + 1] );
+        for ( int i = 0; i < AMOUNT_COUNT; i++ ) {
+            accumulator.amounts[i] = new BigDecimal( fields[offset + 2 + i] );
+        }
+        return accumulator;
+    }
+
+    /**
+     * 先写同目录下的临时文件再原子改名
+     */
+    private void writePartition( Path file, long generation, Map<String, String> runs, Map<Long, Accumulator> products,
+                                 Map<Integer, Accumulator> factories ) throws IOException {
+        Path tempFile = Files.createTempFile( file.getParent(), "." + file.getFileName(), ".tmp" );
+        try {
+            try ( BufferedWriter writer = Files.newBufferedWriter( tempFile, StandardCharsets.UTF_8 ) ) {
+                writer.write( GENERATION_LINE_PREFIX + FIELD_SEPARATOR + generation );
+                writer.newLine();
+                for ( Map.Entry<String, String> run : runs.entrySet() ) {
+                    writer.write( RUN_LINE_PREFIX + FIELD_SEPARATOR + encode( run.getKey() ) + FIELD_SEPARATOR + run.getValue() );
+                    writer.newLine();
+                }
+                for ( Map.Entry<Integer, Accumulator> factory : factories.entrySet() ) {
+                    writer.write( FACTORY_LINE_PREFIX + FIELD_SEPARATOR + encode( names.name( factory.getKey() ) ) );
+                    writeAccumulator( writer, factory.getValue() );
+                }
+                for ( Map.Entry<Long, Accumulator> product : products.entrySet() ) {
+                    long nameKey = product.getKey();
+                    writer.write( encode( names.name( (int) ( nameKey >>> 32 ) ) ) + FIELD_SEPARATOR
+                            + encode( names.name( (int) nameKey ) ) );
+                    writeAccumulator( writer, product.getValue() );
+                }
+            }
+            Files.move( tempFile, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING );
+        } catch ( IOException | RuntimeException e ) {
+            Files.deleteIfExists( tempFile );
+            throw e;
+        }
+    }
+
+    private static void writeAccumulator( BufferedWriter writer, Accumulator accumulator ) throws IOException {
+        writer.write( FIELD_SEPARATOR + accumulator.runCount + FIELD_SEPARATOR + accumulator.rowCount );
+        for ( BigDecimal amount : accumulator.amounts ) {
+            writer.write( FIELD_SEPARATOR + amount.toPlainString() );
+        }
+        writer.newLine();
+    }
+
+    private static String contentHash( Path file ) throws IOException {
+        try {
+            MessageDigest digest = MessageDigest.getInstance( "SHA-256" );
+            byte[] buffer = new byte[GzipFiles.STREAM_BUFFER_SIZE];
+            try ( InputStream input = Files.newInputStream( file ) ) {
+                for ( int read = input.read( buffer ); read >= 0; read = input.read( buffer ) ) {
+                    digest.update( buffer, 0, read );
+                }
+            }
+            return HexFormat.of().formatHex( digest.digest() );
+        } catch ( NoSuchAlgorithmException e ) {
+            throw new IllegalStateException( "当前JVM不支持SHA-256", e );
+        }
+    }
+
+    private static String encode( String text ) {
+        return URLEncoder.encode( Objects.requireNonNullElse( text, "" ), StandardCharsets.UTF_8 );
+    }
+
+    private static String decode( String text ) {
+        return URLDecoder.decode( text, StandardCharsets.UTF_8 );
+    }
+}
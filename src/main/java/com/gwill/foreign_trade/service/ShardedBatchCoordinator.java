@@ -0,0 +1,388 @@
+package com.gwill.foreign_trade.service;
+
+import com.gwill.foreign_trade.io.AgentContractLoader;
+import com.gwill.foreign_trade.io.BatchJournal;
+import com.gwill.foreign_trade.io.BatchSpool;
+import com.gwill.foreign_trade.io.CalculationResultExporter;
+import com.gwill.foreign_trade.io.OrderBookLoader;
+import com.gwill.foreign_trade.model.AgentContract;
+import com.gwill.foreign_trade.model.BatchOrderFailure;
+import com.gwill.foreign_trade.model.BatchOrderResult;
+import com.gwill.foreign_trade.model.BatchRunSummary;
+import com.gwill.foreign_trade.model.OrderBookEntry;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * 多进程批量计算协调器
+ * 大批量订单的加载、计算和POI导出在同一个JVM中进行时，大量短命对象使GC停顿占去相当一部分时间。
+ * 协调器把订单清单中的订单分给同一台机器上的若干个工作JVM（BatchWorker），每个进程有独立的堆和GC，
+ * 互不影响；进程之间只通过共享缓冲目录（BatchSpool）交换任务和结果，空闲的进程从其他进程的队列中窃取任务。
+ * 全部工作进程退出后，协调器按订单清单顺序合并各订单的结果摘要，写出汇总报告。
+ * 某个工作进程异常退出（如内存不足）时，其他进程照常处理，它正在处理的订单记为失败；
+ * 工作进程每完成一笔订单都写入输出目录中的检查点日志（BatchJournal），修正问题后重新运行只处理未完成的订单
+ */
+public final class ShardedBatchCoordinator {
+
+    /**
+     * 汇总报告文件名
+     */
+    public static final String SUMMARY_REPORT_FILE = "batch_summary.csv";
+
+    /**
+     * 检查点日志文件名（写在输出目录中，删除后重新运行即全部重新计算）
+     */
+    public static final String JOURNAL_FILE = "batch_journal.tsv";
+
+    // 任务参数的键
+    private static final String JOB_FX_RATES = "fxRates";
+    private static final String JOB_VALUATION_DATE = "valuationDate";
+    private static final String JOB_OUTPUT_DIRECTORY = "outputDirectory";
+    private static final String JOB_FORMATS = "formats";
+    private static final String JOB_GZIP_TEXT_FORMATS = "gzipTextFormats";
+    private static final String JOB_LEDGER_DIRECTORY = "ledgerDirectory";
+    private static final String JOB_CONTRACT_NAME = "contract.name";
+    private static final String JOB_CONTRACT_INVOICE = "contract.invoice";
+    private static final String JOB_CONTRACT_TAX_REBATE = "contract.taxRebate";
+    private static final String JOB_CONTRACT_AGENT_PROFIT = "contract.agentProfit";
+
+    /**
+     * 批量任务参数
+     * @param orderBookPath 订单清单CSV文件
+     * @param fxRatesPath 历史汇率CSV文件
+     * @param valuationDate 计算日期（按该日汇率计算）
+     * @param outputDirectory 输出目录（每笔订单以清单序号加订单编号为文件名导出，汇总报告和检查点日志也写在这里）
+     * @param formats 每笔订单导出的格式
+     * @param gzipTextFormats CSV和NDJSON是否写为.gz文件
+     * @param ledgerDirectory 运行台账目录，各订单的结果按计算日期所在月份计入台账（null表示不记录）
+     * @param contract 代理合同，各订单均按此合同的公式计算
+     */
+    public record Job( Path orderBookPath, Path fxRatesPath, LocalDate valuationDate, Path outputDirectory,
+                       Set<CalculationResultExporter.Format> formats, boolean gzipTextFormats, Path ledgerDirectory,
+                       AgentContract contract ) {}
+
+    private static final String USAGE = String.join( System.lineSeparator(),
+            "用法：ShardedBatchCoordinator <订单清单CSV> <历史汇率CSV> <计算日期> <输出目录> [选项]",
+            "  --workers=N          工作进程数（默认CPU核数的一半）",
+            "  --formats=XLSX,CSV   每笔订单导出的格式（XLSX、CSV、NDJSON，默认XLSX）",
+            "  --gzip               CSV和NDJSON写为.gz文件",
+            "  --ledger=目录        各订单结果计入该目录的运行台账",
+            "  --contract=合同名称  按指定的代理合同计算（默认标准合同）",
+            "  --spool=目录         缓冲目录所在的目录（默认系统临时目录）",
+            "  --jvm=参数           工作进程的JVM参数，可重复，如 --jvm=-Xmx4g" );
+
+    private ShardedBatchCoordinator() {
+    }
+
+    /**
+     * 命令行入口：运行批量任务，有订单失败时以退出码1结束
+     * 参数：订单清单CSV 历史汇率CSV 计算日期 输出目录 [选项]，选项见 USAGE
+     */
+    public static void main( String[] args ) throws IOException, InterruptedException {
+        if ( args.length < 4 ) {
+            System.err.println( USAGE );
+            System.exit( 2 );
+        }
+        int workerCount = defaultWorkerCount();
+        Set<CalculationResultExporter.Format> formats = EnumSet.of( CalculationResultExporter.Format.XLSX );
+        boolean gzipTextFormats = false;
+        Path ledgerDirectory = null;
+        AgentContract contract = AgentContract.STANDARD;
+        Path spoolRoot = Path.of( System.getProperty( "java.io.tmpdir" ) );
+        List<String> workerJvmOptions = new ArrayList<>();
+        for ( String option : Arrays.asList( args ).subList( 4, args.length ) ) {
+            String value = option.substring( option.indexOf( '=' ) + 1 );
+            if ( option.startsWith( "--workers=" ) ) {
+                workerCount = Integer.parseInt( value );
+            } else if ( option.startsWith( "--formats=" ) ) {
+                formats = EnumSet.noneOf( CalculationResultExporter.Format.class );
+                for ( String format : value.split( "," ) ) {
+                    formats.add( CalculationResultExporter.Format.valueOf( format.trim().toUpperCase() ) );
+                }
+            } else if ( option.equals( "--gzip" ) ) {
+                gzipTextFormats = true;
+            } else if ( option.startsWith( "--ledger=" ) ) {
+                ledgerDirectory = Path.of( value );
+            } else if ( option.startsWith( "--contract=" ) ) {
+                contract = AgentContractLoader.findAvailable( value );
+            } else if ( option.startsWith( "--spool=" ) ) {
+                spoolRoot = Path.of( value );
+            } else if ( option.startsWith( "--jvm=" ) ) {
+                workerJvmOptions.add( value );
+            } else {
+                System.err.println( "无法识别的选项：" + option );
+                System.err.println( USAGE );
+                System.exit( 2 );
+            }
+        }
+
+        Job job = new Job( Path.of( args[0] ), Path.of( args[1] ), LocalDate.parse( args[2] ), Path.of( args[3] ),
+                formats, gzipTextFormats, ledgerDirectory, contract );
+        BatchRunSummary summary = run( job, spoolRoot, workerCount, workerJvmOptions );
+        System.out.printf( "%d笔完成（其中%d笔沿用上次结果），%d笔失败，%d个工作进程，总耗时%dms，汇总报告：%s%n",
+                summary.completedOrders().size(), summary.resumedOrderCount(), summary.failedOrders().size(),
+                summary.workerCount(), summary.elapsedMillis(), job.outputDirectory().resolve( SUMMARY_REPORT_FILE ) );
+        for ( BatchOrderFailure failed : summary.failedOrders() ) {
+            System.out.printf( "订单%s失败：%s%n", failed.orderId(), failed.reason() );
+        }
+        System.exit( summary.failedOrders().isEmpty() ? 0 : 1 );
+    }
+
+    /**
+     * 默认工作进程数：CPU核数的一半（每个进程导出时另有写文件的线程）
+     */
+    public static int defaultWorkerCount() {
+        return Math.max( 1, Runtime.getRuntime().availableProcessors() / 2 );
+    }
+
+    /**
+     * 运行批量任务并等待全部工作进程结束
+     * 输出目录中的检查点日志记录了此前已完成的订单，输入没有变化且导出文件仍在的订单直接沿用上次的结果，
+     * 中途失败（某个文件格式有误、进程内存不足等）后重新运行同一任务即从断点继续
+     * @param job 批量任务参数
+     * @param spoolRoot 缓冲目录所在的目录（应在本机磁盘上），每次运行在其下新建子目录，全部成功后删除
+     * @param workerCount 工作进程数（超过待处理订单数时按待处理订单数）
+     * @param workerJvmOptions 工作进程的JVM参数，如 -Xmx4g、-XX:+UseParallelGC
+     * @return 合并后的汇总（汇总报告同时写到输出目录）
+     */
+    public static BatchRunSummary run( Job job, Path spoolRoot, int workerCount, List<String> workerJvmOptions )
+            throws IOException, InterruptedException {
+        long startNanos = System.nanoTime();
+        List<OrderBookEntry> entries = OrderBookLoader.readEntries( job.orderBookPath() );
+        if ( entries.isEmpty() ) {
+            throw new IllegalArgumentException( "订单清单中没有订单！" );
+        }
+        // 分发前先确认每种货币在计算日期都有汇率，避免工作进程逐个失败
+        FxRateStore fxRateStore = FxRateStore.importCsv( job.fxRatesPath() );
+        // 合同公式有误时在分发前报错
+        ContractFormula.compile( job.contract() );
+        String[] runParameters = new String[entries.size()];
+        for ( int sequence = 0; sequence < entries.size(); sequence++ ) {
+            runParameters[sequence] = runParameters( job,
+                    fxRateStore.rateOn( entries.get( sequence ).currency(), job.valuationDate() ) );
+        }
+        Files.createDirectories( job.outputDirectory() );
+
+        // 对照检查点日志找出可以沿用的订单
+        String[] inputHashes = inputHashes( entries, runParameters );
+        Map<BatchJournal.Key, BatchJournal.Entry> journaled =
+                new BatchJournal( job.outputDirectory().resolve( JOURNAL_FILE ) ).read();
+        BatchOrderResult[] resumed = new BatchOrderResult[entries.size()];
+        List<Integer> pending = pendingSequences( entries, inputHashes, journaled, resumed );
+        if ( pending.isEmpty() ) {
+            return merge( entries, resumed, null, new int[0], startNanos, job.outputDirectory() );
+        }
+
+        int workers = Math.min( workerCount, pending.size() );
+        Files.createDirectories( spoolRoot );
+        BatchSpool spool = BatchSpool.create( Files.createTempDirectory( spoolRoot, "batch-" ), workers );
+        spool.writeJob( toProperties( job ) );
+        // 按清单顺序分成连续的段，窃取时从段尾取，尽量不与队列主人争同一个任务
+        for ( int worker = 0; worker < workers; worker++ ) {
+            int from = (int) ( (long) pending.size() * worker / workers );
+            int to = (int) ( (long) pending.size() * ( worker + 1 ) / workers );
+            for ( int sequence : pending.subList( from, to ) ) {
+                spool.enqueue( worker, sequence, entries.get( sequence ) );
+            }
+        }
+
+        List<Process> processes = new ArrayList<>( workers );
+        try {
+            for ( int worker = 0; worker < workers; worker++ ) {
+                processes.add( startWorker( spool, worker, workerJvmOptions ) );
+            }
+            int[] exitCodes = new int[workers];
+            for ( int worker = 0; worker < workers; worker++ ) {
+                exitCodes[worker] = processes.get( worker ).waitFor();
+            }
+            BatchRunSummary summary = merge( entries, resumed, spool, exitCodes, startNanos, job.outputDirectory() );
+            if ( summary.failedOrders().isEmpty() ) {
+                spool.delete();
+            }
+            return summary;
+        } finally {
+            // 协调器被中断或出错时不留下孤儿进程
+            for ( Process process : processes ) {
+                process.destroy();
+            }
+        }
+    }
+
+    /**
+     * 对照检查点日志找出本次需要处理的订单：日志中有同一序号、同一订单编号的记录，输入哈希相同且导出文件都还在的订单沿用上次的结果，
+     * 其余订单（包括上次运行中工作进程异常退出时正在处理、没有写入日志的订单）重新处理
+     * @param resumed 按清单序号填入沿用的结果
+     * @return 需要处理的订单序号（升序）
+     */
+    static List<Integer> pendingSequences( List<OrderBookEntry> entries, String[] inputHashes,
+                                           Map<BatchJournal.Key, BatchJournal.Entry> journaled,
+                                           BatchOrderResult[] resumed ) {
+        List<Integer> pending = new ArrayList<>();
+        for ( int sequence = 0; sequence < entries.size(); sequence++ ) {
+            BatchJournal.Entry entry = journaled.get( new BatchJournal.Key( sequence, entries.get( sequence ).orderId() ) );
+            if ( entry != null && entry.inputHash().equals( inputHashes[sequence] )
+                    && entry.result().outputFiles().stream().allMatch( file -> Files.exists( Path.of( file ) ) ) ) {
+                resumed[sequence] = entry.result();
+            } else {
+                pending.add( sequence );
+            }
+        }
+        return pending;
+    }
+
+    /**
+     * 一笔订单影响计算结果的运行参数（计入输入哈希）：计算日期、汇率、导出格式和合同公式，改用其他合同时各订单都重新计算
+     * 协调进程和工作进程各自计算，两边必须一致
+     */
+    static String runParameters( Job job, BigDecimal exchangeRate ) {
+        return String.join( "|", job.valuationDate().toString(), exchangeRate.toPlainString(),
+                job.formats().toString(), Boolean.toString( job.gzipTextFormats() ),
+                job.contract().invoiceAmountFormula(), job.contract().taxRebateFormula(),
+                job.contract().agentProfitFormula() );
+    }
+
+    /**
+     * 并行计算各订单的输入哈希（读取全部工厂数据文件，比解析这些文件快得多）
+     */
+    private static String[] inputHashes( List<OrderBookEntry> entries, String[] runParameters ) throws IOException {
+        String[] inputHashes = new String[entries.size()];
+        try {
+            IntStream.range( 0, entries.size() ).parallel().forEach( sequence -> {
+                try {
+                    inputHashes[sequence] = BatchJournal.inputHash( entries.get( sequence ), runParameters[sequence] );
+                } catch ( IOException e ) {
+                    throw new UncheckedIOException( e );
+                }
+            } );
+        } catch ( UncheckedIOException e ) {
+            throw e.getCause();
+        }
+        return inputHashes;
+    }
+
+    private static Process startWorker( BatchSpool spool, int workerIndex, List<String> workerJvmOptions )
+            throws IOException {
+        List<String> command = new ArrayList<>();
+        command.add( Path.of( System.getProperty( "java.home" ), "bin", "java" ).toString() );
+        // 日志文件固定用UTF-8，不随系统区域设置变化
+        command.add( "-Dstdout.encoding=UTF-8" );
+        command.add( "-Dstderr.encoding=UTF-8" );
+        command.addAll( workerJvmOptions );
+        command.add( "-cp" );
+        command.add( System.getProperty( "java.class.path" ) );
+        command.add( BatchWorker.class.getName() );
+        command.add( spool.directory().toAbsolutePath().toString() );
+        command.add( Integer.toString( workerIndex ) );
+
+        return new ProcessBuilder( command )
+                .redirectErrorStream( true )
+                .redirectOutput( spool.logFile( workerIndex ).toFile() )
+                .start();
+    }
+
+    /**
+     * 按订单清单顺序合并沿用的结果、本次各订单的结果和失败原因，并写出汇总报告
+     * @param spool 本次运行的缓冲目录（全部沿用时为null）
+     */
+    private static BatchRunSummary merge( List<OrderBookEntry> entries, BatchOrderResult[] resumed, BatchSpool spool,
+                                          int[] exitCodes, long startNanos, Path outputDirectory ) throws IOException {
+        Map<String, BatchOrderResult> done = new HashMap<>();
+        Map<String, String> failureByTaskName = new HashMap<>();
+        if ( spool != null ) {
+            done.putAll( spool.readResults() );
+            for ( BatchSpool.FailedTask failed : spool.readFailures() ) {
+                failureByTaskName.put( failed.taskName(), failed.workerName() + "：" + failed.message() );
+            }
+            for ( BatchSpool.UnfinishedTask unfinished : spool.unfinishedTasks() ) {
+                failureByTaskName.put( unfinished.taskName(), unfinished.running() ?
+                        String.format( "%s异常退出（退出码%d），详见 %s", BatchSpool.workerName( unfinished.workerIndex() ),
+                                exitCodes[unfinished.workerIndex()], spool.logFile( unfinished.workerIndex() ) ) :
+                        "全部工作进程已退出，未被处理" );
+            }
+        }
+
+        List<BatchOrderResult> completed = new ArrayList<>();
+        List<BatchOrderFailure> failedOrders = new ArrayList<>();
+        int resumedOrderCount = 0;
+        BigDecimal totalInvoiceAmount = BigDecimal.ZERO;
+        BigDecimal totalTaxRebateAmount = BigDecimal.ZERO;
+        BigDecimal totalAgentProfit = BigDecimal.ZERO;
+        BigDecimal yourTotalNetProfit = BigDecimal.ZERO;
+        for ( int sequence = 0; sequence < entries.size(); sequence++ ) {
+            String taskName = BatchSpool.taskName( sequence );
+            BatchOrderResult result = resumed[sequence] != null ? resumed[sequence] : done.get( taskName );
+            if ( result == null ) {
+                failedOrders.add( new BatchOrderFailure( sequence, entries.get( sequence ).orderId(),
+                        failureByTaskName.getOrDefault( taskName, "没有处理结果" ) ) );
+                continue;
+            }
+            if ( result.resumed() ) {
+                resumedOrderCount++;
+            }
+            completed.add( result );
+            totalInvoiceAmount = totalInvoiceAmount.add( result.totalInvoiceAmount() );
+            totalTaxRebateAmount = totalTaxRebateAmount.add( result.totalTaxRebateAmount() );
+            totalAgentProfit = totalAgentProfit.add( result.totalAgentProfit() );
+            yourTotalNetProfit = yourTotalNetProfit.add( result.yourNetProfit() );
+        }
+
+        BatchRunSummary summary = new BatchRunSummary( completed, resumedOrderCount, failedOrders, totalInvoiceAmount,
+                totalTaxRebateAmount, totalAgentProfit, yourTotalNetProfit, spool == null ? 0 : spool.workerCount(),
+                ( System.nanoTime() - startNanos ) / 1_000_000 );
+        CalculationResultExporter.exportBatchSummary( outputDirectory.resolve( SUMMARY_REPORT_FILE ), summary );
+        return summary;
+    }
+
+    static Properties toProperties( Job job ) {
+        Properties properties = new Properties();
+        properties.setProperty( JOB_FX_RATES, job.fxRatesPath().toAbsolutePath().toString() );
+        properties.setProperty( JOB_VALUATION_DATE, job.valuationDate().toString() );
+        properties.setProperty( JOB_OUTPUT_DIRECTORY, job.outputDirectory().toAbsolutePath().toString() );
+        properties.setProperty( JOB_FORMATS, job.formats().stream()
+                .map( Enum::name ).collect( Collectors.joining( "," ) ) );
+        properties.setProperty( JOB_GZIP_TEXT_FORMATS, Boolean.toString( job.gzipTextFormats() ) );
+        if ( job.ledgerDirectory() != null ) {
+            properties.setProperty( JOB_LEDGER_DIRECTORY, job.ledgerDirectory().toAbsolutePath().toString() );
+        }
+        properties.setProperty( JOB_CONTRACT_NAME, job.contract().name() );
+        properties.setProperty( JOB_CONTRACT_INVOICE, job.contract().invoiceAmountFormula() );
+        properties.setProperty( JOB_CONTRACT_TAX_REBATE, job.contract().taxRebateFormula() );
+        properties.setProperty( JOB_CONTRACT_AGENT_PROFIT, job.contract().agentProfitFormula() );
+        return properties;
+    }
+
+    /**
+     * 工作进程读取的任务参数（不含订单清单路径，订单已逐个写入任务文件）
+     */
+    static Job fromProperties( Properties properties ) {
+        Set<CalculationResultExporter.Format> formats = EnumSet.noneOf( CalculationResultExporter.Format.class );
+        for ( String format : properties.getProperty( JOB_FORMATS ).split( "," ) ) {
+            formats.add( CalculationResultExporter.Format.valueOf( format ) );
+        }
+        String ledgerDirectory = properties.getProperty( JOB_LEDGER_DIRECTORY );
+        return new Job( null, Path.of( properties.getProperty( JOB_FX_RATES ) ),
+                LocalDate.parse( properties.getProperty( JOB_VALUATION_DATE ) ),
+                Path.of( properties.getProperty( JOB_OUTPUT_DIRECTORY ) ), formats,
+                Boolean.parseBoolean( properties.getProperty( JOB_GZIP_TEXT_FORMATS ) ),
+                ledgerDirectory == null ? null : Path.of( ledgerDirectory ),
+                new AgentContract( properties.getProperty( JOB_CONTRACT_NAME ),
+                        properties.getProperty( JOB_CONTRACT_INVOICE ),
+                        properties.getProperty( JOB_CONTRACT_TAX_REBATE ),
+                        properties.getProperty( JOB_CONTRACT_AGENT_PROFIT ) ) );
+    }
+}
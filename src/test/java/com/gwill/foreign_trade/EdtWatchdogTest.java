@@ -0,0 +1,61 @@
+package com.gwill.foreign_trade;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class EdtWatchdogTest {
+
+    /**
+     * 1-100ms各一次：中位数取第50个，P95取第95个，各档按上限（含）计数
+     */
+    @Test
+    void snapshotReportsMedianP95AndBuckets() {
+        EdtWatchdog.RollingLatencyHistogram histogram = new EdtWatchdog.RollingLatencyHistogram();
+        assertNull(histogram.snapshot(EdtWatchdog.UiAction.CALCULATE));
+        // 乱序加入，统计时排序
+        for (long elapsedMillis = 100; elapsedMillis >= 1; elapsedMillis -= 2) {
+            histogram.add(elapsedMillis);
+        }
+        for (long elapsedMillis = 1; elapsedMillis <= 99; elapsedMillis += 2) {
+            histogram.add(elapsedMillis);
+        }
+
+        EdtWatchdog.LatencyStats stats = histogram.snapshot(EdtWatchdog.UiAction.CALCULATE);
+        assertEquals(EdtWatchdog.UiAction.CALCULATE, stats.action());
+        assertEquals(100, stats.count());
+        assertEquals(50, stats.medianMillis());
+        assertEquals(95, stats.p95Millis());
+        assertEquals(100, stats.maxMillis());
+        // ≤1 ≤2 ≤4 ≤8 ≤16 ≤32 ≤64 ≤128，其余各档为0
+        int[] expected = new int[15];
+        int[] counts = {1, 1, 2, 4, 8, 16, 32, 36};
+        System.arraycopy(counts, 0, expected, 0, counts.length);
+        assertEquals(Arrays.toString(expected), Arrays.toString(stats.bucketCounts()));
+    }
+
+    /**
+     * 只保留最近512次：更早的耗时被覆盖；超过最后一档上限的耗时计入不设上限的一档
+     */
+    @Test
+    void snapshotKeepsOnlyRecentSamples() {
+        EdtWatchdog.RollingLatencyHistogram histogram = new EdtWatchdog.RollingLatencyHistogram();
+        for (int i = 0; i < 600; i++) {
+            histogram.add(3);
+        }
+        for (int i = 0; i < 500; i++) {
+            histogram.add(20_000);
+        }
+
+        EdtWatchdog.LatencyStats stats = histogram.snapshot(EdtWatchdog.UiAction.LOAD);
+        assertEquals(512, stats.count());
+        assertEquals(20_000, stats.medianMillis());
+        assertEquals(20_000, stats.p95Millis());
+        int[] bucketCounts = stats.bucketCounts();
+        assertEquals(12, bucketCounts[2]);
+        assertEquals(500, bucketCounts[bucketCounts.length - 1]);
+    }
+}
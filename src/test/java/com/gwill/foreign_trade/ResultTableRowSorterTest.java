@@ -0,0 +1,90 @@
+package com.gwill.foreign_trade;
+
+import org.junit.jupiter.api.Test;
+
+import javax.swing.RowSorter;
+import javax.swing.SortOrder;
+import javax.swing.table.DefaultTableModel;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class ResultTableRowSorterTest {
+
+    private static final String[] FACTORY_NAMES = {"华东机械厂", "华东五金厂", "华南五金厂", "华北铸造厂"};
+    private static final String[] PRODUCT_NAMES = {"球笼", "球阀", "轴承", "法兰"};
+
+    /**
+     * 逐行修改数值和名称后，就地更新的索引排出的顺序和前缀筛选结果都应与重新建立的索引一致
+     */
+    @Test
+    void editedRowsKeepRankOrderAndPrefixFilter() {
+        Random random = new Random(20251019L);
+        DefaultTableModel model = model();
+        for (int row = 0; row < 200; row++) {
+            model.addRow(new Object[] {pick(random, FACTORY_NAMES), pick(random, PRODUCT_NAMES),
+                    amount(random), amount(random)});
+        }
+        ResultTableRowSorter sorter = sorter(model, 2, "华东");
+        assertEquals(viewOrder(sorter(model, 2, "华东")), viewOrder(sorter));
+
+        for (int edit = 0; edit < 300; edit++) {
+            int row = random.nextInt(model.getRowCount());
+            int column = random.nextInt(model.getColumnCount());
+            Object value = switch (column) {
+                case 0 -> pick(random, FACTORY_NAMES);
+                case 1 -> pick(random, PRODUCT_NAMES);
+                default -> random.nextInt(10) == 0 ? null : amount(random);
+            };
+            model.setValueAt(value, row, column);
+            if (random.nextBoolean()) {
+                sorter.rowsUpdated(row, row, column);
+            } else {
+                sorter.rowsUpdated(row, row);
+            }
+            int sortColumn = 2 + edit % 2;
+            if (sorter.getSortKeys().get(0).getColumn() != sortColumn) {
+                sorter.setSortKeys(List.of(new RowSorter.SortKey(sortColumn, SortOrder.ASCENDING)));
+            }
+            String prefix = edit % 3 == 0 ? "华" : "华东";
+            sorter.setNamePrefixFilter(prefix);
+            assertEquals(viewOrder(sorter(model, sortColumn, prefix)), viewOrder(sorter), "第" + edit + "次修改后");
+        }
+    }
+
+    private static DefaultTableModel model() {
+        return new DefaultTableModel(new Object[] {"工厂名称", "产品名称", "实际货值", "开票金额"}, 0) {
+            @Override
+            public Class<?> getColumnClass(int column) {
+                return column < 2 ? String.class : BigDecimal.class;
+            }
+        };
+    }
+
+    private static ResultTableRowSorter sorter(DefaultTableModel model, int sortColumn, String prefix) {
+        ResultTableRowSorter sorter = new ResultTableRowSorter(model, 0, 1);
+        sorter.setSortKeys(List.of(new RowSorter.SortKey(sortColumn, SortOrder.ASCENDING)));
+        sorter.setNamePrefixFilter(prefix);
+        return sorter;
+    }
+
+    private static List<Integer> viewOrder(ResultTableRowSorter sorter) {
+        List<Integer> rows = new ArrayList<>(sorter.getViewRowCount());
+        for (int viewRow = 0; viewRow < sorter.getViewRowCount(); viewRow++) {
+            rows.add(sorter.convertRowIndexToModel(viewRow));
+        }
+        return rows;
+    }
+
+    private static String pick(Random random, String[] names) {
+        return names[random.nextInt(names.length)];
+    }
+
+    private static BigDecimal amount(Random random) {
+        // 取值范围小，保证有大量相等的值
+        return BigDecimal.valueOf(random.nextInt(50) * 100L, 2);
+    }
+}
@@ -0,0 +1,110 @@
+package com.gwill.foreign_trade.io;
+
+import com.gwill.foreign_trade.model.BatchOrderResult;
+import com.gwill.foreign_trade.model.OrderBookEntry;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BatchJournalTest {
+
+    /**
+     * 进程在写一行时被中断留下的不完整行在读取时忽略，此前完整写入的订单照常沿用
+     */
+    @Test
+    void incompleteLastLineIsIgnored() throws IOException {
+        Path directory = Files.createTempDirectory( "batch-journal-test" );
+        try {
+            BatchJournal journal = new BatchJournal( directory.resolve( "batch_journal.tsv" ) );
+            journal.append( 0, "h0", result( "PO-0", "1000.01" ) );
+            journal.append( 1, "h1", result( "PO-1", "2000.02" ) );
+            Files.writeString( journal.file(), "2\tPO-2\th2\tUSD\t7.1\t1\t710", StandardCharsets.UTF_8,
+                    StandardOpenOption.APPEND );
+
+            Map<BatchJournal.Key, BatchJournal.Entry> entries = journal.read();
+            assertEquals( Set.of( new BatchJournal.Key( 0, "PO-0" ), new BatchJournal.Key( 1, "PO-1" ) ),
+                    entries.keySet() );
+            BatchJournal.Entry entry = entries.get( new BatchJournal.Key( 1, "PO-1" ) );
+            assertEquals( "h1", entry.inputHash() );
+            assertEquals( new BigDecimal( "2000.02" ), entry.result().yourNetProfit() );
+            assertTrue( entry.result().resumed() );
+        } finally {
+            deleteRecursively( directory );
+        }
+    }
+
+    /**
+     * 同一订单编号出现在清单的不同位置时分别记录；同一（序号, 订单编号）出现多次时以最后一次为准
+     */
+    @Test
+    void entriesAreKeyedBySequenceAndOrderId() throws IOException {
+        Path directory = Files.createTempDirectory( "batch-journal-test" );
+        try {
+            BatchJournal journal = new BatchJournal( directory.resolve( "batch_journal.tsv" ) );
+            journal.append( 0, "h0", result( "PO-1", "1000.01" ) );
+            journal.append( 1, "h1", result( "PO-1", "2000.02" ) );
+            journal.append( 0, "h0-rerun", result( "PO-1", "3000.03" ) );
+
+            Map<BatchJournal.Key, BatchJournal.Entry> entries = journal.read();
+            assertEquals( 2, entries.size() );
+            BatchJournal.Entry first = entries.get( new BatchJournal.Key( 0, "PO-1" ) );
+            assertEquals( "h0-rerun", first.inputHash() );
+            assertEquals( new BigDecimal( "3000.03" ), first.result().yourNetProfit() );
+            assertEquals( "h1", entries.get( new BatchJournal.Key( 1, "PO-1" ) ).inputHash() );
+        } finally {
+            deleteRecursively( directory );
+        }
+    }
+
+    /**
+     * 工厂数据文件的内容或运行参数变化时输入哈希随之变化；按文件和按已读入的字节计算的哈希相同
+     */
+    @Test
+    void inputHashFollowsFileContentAndRunParameters() throws IOException {
+        Path directory = Files.createTempDirectory( "batch-journal-test" );
+        try {
+            Path situationFile = directory.resolve( "factory.csv" );
+            Files.writeString( situationFile, "华东机械厂,球笼,13%,10000,100000,0,3%,是,否", StandardCharsets.UTF_8 );
+            OrderBookEntry entry = new OrderBookEntry( 2L, "PO-1", "USD", new BigDecimal( "10000" ),
+                    new BigDecimal( "0.5" ), List.of( situationFile ) );
+
+            String hash = BatchJournal.inputHash( entry, "2025-10-19|7.1" );
+            assertEquals( hash, BatchJournal.inputHash( entry, "2025-10-19|7.1",
+                    List.of( Files.readAllBytes( situationFile ) ) ) );
+            assertNotEquals( hash, BatchJournal.inputHash( entry, "2025-10-20|7.2" ) );
+
+            Files.writeString( situationFile, "华东机械厂,球笼,13%,10000,100001,0,3%,是,否", StandardCharsets.UTF_8 );
+            assertNotEquals( hash, BatchJournal.inputHash( entry, "2025-10-19|7.1" ) );
+        } finally {
+            deleteRecursively( directory );
+        }
+    }
+
+    private static BatchOrderResult result( String orderId, String yourNetProfit ) {
+        return new BatchOrderResult( orderId, "USD", new BigDecimal( "7.1" ), 1, new BigDecimal( "71000" ),
+                new BigDecimal( "8168.14" ), new BigDecimal( "4084.07" ), new BigDecimal( "4084.07" ),
+                new BigDecimal( yourNetProfit ), List.of( "/output/" + orderId + ".xlsx" ), "worker-00", 5L, false );
+    }
+
+    private static void deleteRecursively( Path directory ) throws IOException {
+        try ( Stream<Path> files = Files.walk( directory ) ) {
+            for ( Path file : files.sorted( Comparator.reverseOrder() ).toList() ) {
+                Files.delete( file );
+            }
+        }
+    }
+}
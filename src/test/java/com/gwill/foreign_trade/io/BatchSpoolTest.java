@@ -0,0 +1,176 @@
+package com.gwill.foreign_trade.io;
+
+import com.gwill.foreign_trade.model.BatchOrderResult;
+import com.gwill.foreign_trade.model.OrderBookEntry;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BatchSpoolTest {
+
+    /**
+     * 工作进程先按清单顺序取自己队列中的任务，任务文件中的订单与放入时相同
+     */
+    @Test
+    void claimTakesOwnQueueInOrderBookOrder() throws IOException {
+        Path directory = Files.createTempDirectory( "batch-spool-test" );
+        try {
+            BatchSpool spool = BatchSpool.create( directory.resolve( "spool" ), 2 );
+            for ( int sequence = 0; sequence < 4; sequence++ ) {
+                spool.enqueue( sequence / 2, sequence, entry( sequence ) );
+            }
+
+            for ( int sequence = 0; sequence < 2; sequence++ ) {
+                BatchSpool.ClaimedTask task = spool.claim( 0 ).orElseThrow();
+                assertEquals( sequence, task.sequence() );
+                assertEquals( entry( sequence ), task.entry() );
+                assertFalse( task.stolen() );
+            }
+            BatchSpool.ClaimedTask task = spool.claim( 1 ).orElseThrow();
+            assertEquals( 2, task.sequence() );
+            assertFalse( task.stolen() );
+        } finally {
+            deleteRecursively( directory );
+        }
+    }
+
+    /**
+     * 自己的队列取空后从剩余任务最多的队列尾部窃取，全部取完后返回空
+     */
+    @Test
+    void idleWorkerStealsFromTailOfLongestQueue() throws IOException {
+        Path directory = Files.createTempDirectory( "batch-spool-test" );
+        try {
+            BatchSpool spool = BatchSpool.create( directory.resolve( "spool" ), 3 );
+            spool.enqueue( 0, 0, entry( 0 ) );
+            for ( int sequence = 1; sequence < 5; sequence++ ) {
+                spool.enqueue( 1, sequence, entry( sequence ) );
+            }
+
+            BatchSpool.ClaimedTask stolen = spool.claim( 2 ).orElseThrow();
+            assertEquals( 4, stolen.sequence() );
+            assertTrue( stolen.stolen() );
+            assertEquals( 1, spool.claim( 1 ).orElseThrow().sequence() );
+
+            // 队列1仍比队列0长，先从它的尾部取
+            assertEquals( 3, spool.claim( 2 ).orElseThrow().sequence() );
+            Set<Integer> claimed = new HashSet<>();
+            for ( Optional<BatchSpool.ClaimedTask> task = spool.claim( 2 ); task.isPresent(); task = spool.claim( 2 ) ) {
+                assertTrue( task.get().stolen() );
+                claimed.add( task.get().sequence() );
+            }
+            assertEquals( Set.of( 0, 2 ), claimed );
+            assertEquals( Optional.empty(), spool.claim( 0 ) );
+        } finally {
+            deleteRecursively( directory );
+        }
+    }
+
+    /**
+     * 多个工作进程同时从同一个队列取任务时，原子改名保证每个任务恰好被一个进程取走
+     */
+    @Test
+    void concurrentClaimsTakeEveryTaskExactlyOnce() throws Exception {
+        Path directory = Files.createTempDirectory( "batch-spool-test" );
+        int workerCount = 4;
+        int taskCount = 200;
+        ExecutorService executor = Executors.newFixedThreadPool( workerCount );
+        try {
+            BatchSpool spool = BatchSpool.create( directory.resolve( "spool" ), workerCount );
+            // 全部任务都在第一个工作进程的队列中，其余进程只能窃取
+            for ( int sequence = 0; sequence < taskCount; sequence++ ) {
+                spool.enqueue( 0, sequence, entry( sequence ) );
+            }
+
+            List<Future<List<Integer>>> futures = new ArrayList<>();
+            for ( int worker = 0; worker < workerCount; worker++ ) {
+                int workerIndex = worker;
+                futures.add( executor.submit( () -> {
+                    List<Integer> claimed = new ArrayList<>();
+                    for ( Optional<BatchSpool.ClaimedTask> task = spool.claim( workerIndex ); task.isPresent();
+                          task = spool.claim( workerIndex ) ) {
+                        claimed.add( task.get().sequence() );
+                    }
+                    return claimed;
+                } ) );
+            }
+            List<Integer> claimed = new ArrayList<>();
+            for ( Future<List<Integer>> future : futures ) {
+                claimed.addAll( future.get() );
+            }
+
+            assertEquals( taskCount, claimed.size() );
+            Set<Integer> distinct = new HashSet<>( claimed );
+            assertEquals( taskCount, distinct.size() );
+            assertEquals( 0, (int) Collections.min( distinct ) );
+            assertEquals( taskCount - 1, (int) Collections.max( distinct ) );
+        } finally {
+            executor.shutdownNow();
+            deleteRecursively( directory );
+        }
+    }
+
+    /**
+     * 工作进程取走任务后异常退出：其余进程照常处理剩余任务（包括它队列中的），它正在处理的任务报告为未完成
+     */
+    @Test
+    void taskOfDeadWorkerIsReportedAsRunning() throws IOException {
+        Path directory = Files.createTempDirectory( "batch-spool-test" );
+        try {
+            BatchSpool spool = BatchSpool.create( directory.resolve( "spool" ), 2 );
+            for ( int sequence = 0; sequence < 4; sequence++ ) {
+                spool.enqueue( sequence / 2, sequence, entry( sequence ) );
+            }
+            // 工作进程0取到第一个任务后退出，既不写结果也不写错误
+            BatchSpool.ClaimedTask abandoned = spool.claim( 0 ).orElseThrow();
+
+            for ( Optional<BatchSpool.ClaimedTask> task = spool.claim( 1 ); task.isPresent(); task = spool.claim( 1 ) ) {
+                spool.complete( task.get(), result( task.get().entry() ) );
+            }
+
+            assertEquals( List.of( "00000001", "00000002", "00000003" ), List.copyOf( spool.readResults().keySet() ) );
+            assertEquals( List.of(), spool.readFailures() );
+            assertEquals( List.of( new BatchSpool.UnfinishedTask( abandoned.taskName(), "PO-0", 0, true ) ),
+                    spool.unfinishedTasks() );
+        } finally {
+            deleteRecursively( directory );
+        }
+    }
+
+    private static OrderBookEntry entry( int sequence ) {
+        return new OrderBookEntry( sequence + 2L, "PO-" + sequence, "USD", new BigDecimal( "10000.50" ),
+                new BigDecimal( "0.5" ), List.of( Path.of( "/data/factory-" + sequence + ".csv" ) ) );
+    }
+
+    private static BatchOrderResult result( OrderBookEntry entry ) {
+        return new BatchOrderResult( entry.orderId(), entry.currency(), new BigDecimal( "7.1" ), 1,
+                new BigDecimal( "71003.55" ), new BigDecimal( "8168.64" ), new BigDecimal( "4084.32" ),
+                new BigDecimal( "4084.32" ), new BigDecimal( "1234.56" ), List.of(), "worker-01", 5L, false );
+    }
+
+    private static void deleteRecursively( Path directory ) throws IOException {
+        try ( Stream<Path> files = Files.walk( directory ) ) {
+            for ( Path file : files.sorted( Comparator.reverseOrder() ).toList() ) {
+                Files.delete( file );
+            }
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package com.gwill.foreign_trade.model;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class NameDictionaryTest {
+
+    /**
+     * 查询未登记的名称不应登记新编号，各字典的编号互不影响
+     */
+    @Test
+    void findDoesNotRegisterNames() {
+        NameDictionary names = new NameDictionary();
+        int factoryId = names.idOf( "华东机械厂" );
+
+        assertEquals( factoryId, names.find( "华东机械厂" ) );
+        assertEquals( -1, names.find( "华南五金厂" ) );
+        assertEquals( 1, names.size() );
+        assertEquals( -1, new NameDictionary().find( "华东机械厂" ) );
+    }
+}
@@ -0,0 +1,45 @@
+package com.gwill.foreign_trade.model;
+
+import org.junit.jupiter.api.Test;
+
+import java.math.BigDecimal;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class ProductTableTest {
+
+    /**
+     * 不超过 ScaledDecimals.SCALE 位有效小数的数值按原值保存（尾随零不计）
+     */
+    @Test
+    void storesValuesWithinScaleExactly() {
+        ProductTable table = new ProductTable( 1 );
+        table.add( situation( "0.1300000000", "1234.567891", "99.999999" ) );
+
+        ProductSituation stored = table.situation( 0 );
+        assertEquals( new BigDecimal( "0.13" ), stored.taxRebateRate() );
+        assertEquals( new BigDecimal( "1234.567891" ), stored.actualPurchaseAmount() );
+        assertEquals( new BigDecimal( "99.999999" ), stored.prepaidAmount() );
+    }
+
+    /**
+     * Excel公式单元格和double换算带来的多余小数位不应被悄悄舍入，否则结果与BigDecimal计算不同
+     */
+    @Test
+    void rejectsValuesBeyondScale() {
+        ProductTable table = new ProductTable( 1 );
+        assertThrows( IllegalArgumentException.class, () ->
+                table.add( situation( "0.13", "1234.5600000001", "0" ) ) );
+        assertThrows( IllegalArgumentException.class, () ->
+                table.add( situation( "0.1300000000001", "1234.56", "0" ) ) );
+        assertEquals( 0, table.size() );
+    }
+
+    private static ProductSituation situation( String taxRebateRate, String actualPurchaseAmount,
+                                               String prepaidAmount ) {
+        return new ProductSituation( "华东机械厂", "球笼", new BigDecimal( taxRebateRate ), new BigDecimal( "10000" ),
+                new BigDecimal( actualPurchaseAmount ), new BigDecimal( prepaidAmount ), new BigDecimal( "0.03" ),
+                true, true );
+    }
+}
@@ -0,0 +1,119 @@
+package com.gwill.foreign_trade.service;
+
+import com.gwill.foreign_trade.model.CashFlowProjection;
+import com.gwill.foreign_trade.model.OrderRevaluation;
+import com.gwill.foreign_trade.model.OrderSnapshot;
+import com.gwill.foreign_trade.model.OrderTimeline;
+import com.gwill.foreign_trade.model.ProductCalculationDetail;
+import com.gwill.foreign_trade.model.ProductSituation;
+import org.junit.jupiter.api.Test;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CashFlowTimelineSimulatorTest {
+
+    private static final BigDecimal EXCHANGE_RATE = new BigDecimal( "7.1" );
+    private static final LocalDate FIRST_DAY = LocalDate.of( 2025, 1, 1 );
+
+    /**
+     * 全部步骤完成后各方头寸轧平：您为该订单的净利润，代理公司为代理公司利润，各工厂为实际货值加扣税金额
+     */
+    @Test
+    void everyPartyEndsAtItsProfit() {
+        OrderSnapshot order = new OrderSnapshot( "PI-001", "USD", new BigDecimal( "30000" ), new BigDecimal( "0.4" ),
+                List.of( new ProductSituation( "华东机械厂", "球笼", new BigDecimal( "0.13" ), new BigDecimal( "12000" ),
+                                new BigDecimal( "70000" ), new BigDecimal( "20000" ), new BigDecimal( "0.03" ), true, true ),
+                        new ProductSituation( "华南五金厂", "轴承", new BigDecimal( "0.09" ), new BigDecimal( "10000" ),
+                                new BigDecimal( "60000" ), BigDecimal.ZERO, new BigDecimal( "0.02" ), true, false ),
+                        new ProductSituation( "华北铸造厂", "法兰", new BigDecimal( "0.13" ), new BigDecimal( "8000" ),
+                                new BigDecimal( "45000" ), new BigDecimal( "5000" ), new BigDecimal( "0.03" ), false, false ) ) );
+        OrderRevaluation revaluation = OrderRevaluationService.revalue( order, EXCHANGE_RATE, FIRST_DAY );
+        OrderTimeline timeline = timeline( order.orderId(), 0 );
+        CashFlowTimelineSimulator simulator = new CashFlowTimelineSimulator();
+        simulator.putOrder( order, revaluation, timeline );
+
+        LocalDate lastDay = timeline.factoryRefundDate();
+        CashFlowProjection projection = simulator.project( FIRST_DAY, lastDay );
+
+        assertEquals( cents( revaluation.yourNetProfit() ), projection.positionOn( CashFlowTimelineSimulator.YOU, lastDay ) );
+        assertEquals( cents( revaluation.calculationResult().totalAgentProfit() ),
+                projection.positionOn( CashFlowTimelineSimulator.AGENT, lastDay ) );
+        for ( ProductCalculationDetail detail : revaluation.calculationResult().productCalculationDetails() ) {
+            assertEquals( cents( detail.actualPurchaseAmount().add( detail.overpriceTax() ) ),
+                    projection.positionOn( detail.factoryName(), lastDay ), detail.factoryName() );
+        }
+        // 中途您垫付了定金和押金
+        assertTrue( projection.lowestPosition( CashFlowTimelineSimulator.YOU ).signum() < 0 );
+    }
+
+    /**
+     * 数百笔在手订单的全年预测，以及改动一笔订单日期后的重新预测，都应远低于1秒
+     */
+    @Test
+    void openOrderBookProjectsWellUnderASecond() {
+        Random random = new Random( 48L );
+        CashFlowTimelineSimulator simulator = new CashFlowTimelineSimulator();
+        BigDecimal yourNetProfit = BigDecimal.ZERO;
+        List<OrderTimeline> timelines = new ArrayList<>();
+        for ( int i = 0; i < 500; i++ ) {
+            List<ProductSituation> situations = new ArrayList<>();
+            for ( int product = 0; product < 10; product++ ) {
+                situations.add( new ProductSituation( "工厂" + random.nextInt( 40 ), "产品" + product,
+                        new BigDecimal( "0.13" ), new BigDecimal( "1000" ),
+                        BigDecimal.valueOf( 5000 + random.nextInt( 1000 ) ), BigDecimal.valueOf( random.nextInt( 1000 ) ),
+                        new BigDecimal( "0.03" ), random.nextInt( 5 ) > 0, random.nextBoolean() ) );
+            }
+            OrderSnapshot order = new OrderSnapshot( "PI-" + i, "USD", new BigDecimal( "12000" ), new BigDecimal( "0.5" ),
+                    situations );
+            OrderRevaluation revaluation = OrderRevaluationService.revalue( order, EXCHANGE_RATE, FIRST_DAY );
+            OrderTimeline timeline = timeline( order.orderId(), random.nextInt( 180 ) );
+            simulator.putOrder( order, revaluation, timeline );
+            timelines.add( timeline );
+            yourNetProfit = yourNetProfit.add( revaluation.yourNetProfit() );
+        }
+        LocalDate lastDay = FIRST_DAY.plusDays( 364 );
+
+        // 预热
+        simulator.project( FIRST_DAY, lastDay );
+        long startNanos = System.nanoTime();
+        CashFlowProjection projection = simulator.project( FIRST_DAY, lastDay );
+        long projectMillis = ( System.nanoTime() - startNanos ) / 1_000_000;
+        startNanos = System.nanoTime();
+        OrderTimeline moved = timelines.get( 250 );
+        simulator.reschedule( new OrderTimeline( moved.orderId(), moved.prepaymentDate().plusDays( 7 ),
+                moved.depositDate().plusDays( 7 ), moved.shipmentDate().plusDays( 7 ), moved.fxReceiptDate().plusDays( 7 ),
+                moved.rebateReceiptDate().plusDays( 7 ), moved.factoryRefundDate().plusDays( 7 ) ) );
+        CashFlowProjection rescheduled = simulator.project( FIRST_DAY, lastDay );
+        long rescheduleMillis = ( System.nanoTime() - startNanos ) / 1_000_000;
+
+        assertTrue( projectMillis < 500, "全年预测耗时" + projectMillis + "ms" );
+        assertTrue( rescheduleMillis < 500, "改期后重新预测耗时" + rescheduleMillis + "ms" );
+        assertEquals( 500, simulator.orderCount() );
+        // 全部订单都在预测范围内完成，您的期末头寸为各订单净利润之和
+        assertEquals( cents( yourNetProfit ),
+                projection.positionOn( CashFlowTimelineSimulator.YOU, lastDay ) );
+        assertEquals( projection.positionOn( CashFlowTimelineSimulator.YOU, lastDay ),
+                rescheduled.positionOn( CashFlowTimelineSimulator.YOU, lastDay ) );
+    }
+
+    /**
+     * 从 FIRST_DAY 之后 offset 天开始的资金流转日期
+     */
+    private static OrderTimeline timeline( String orderId, int offset ) {
+        LocalDate start = FIRST_DAY.plusDays( offset );
+        return new OrderTimeline( orderId, start, start.plusDays( 10 ), start.plusDays( 30 ), start.plusDays( 75 ),
+                start.plusDays( 120 ), start.plusDays( 135 ) );
+    }
+
+    private static BigDecimal cents( BigDecimal amount ) {
+        return amount.setScale( 2, RoundingMode.HALF_UP );
+    }
+}
@@ -0,0 +1,105 @@
+package com.gwill.foreign_trade.service;
+
+import com.gwill.foreign_trade.model.AgentContract;
+import com.gwill.foreign_trade.model.InvoiceBatchResult;
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ColumnarInvoiceKernelTest {
+
+    // 不是SIMD通道数的整数倍，尾部由标量实现计算
+    private static final int ROW_COUNT = 1003;
+    private static final double EXCHANGE_RATE = 7.1;
+    private static final double AGENT_RELATIVE_RATIO = 0.5;
+    private static final double[] TAX_REBATE_RATES = { 0.05, 0.09, 0.13 };
+
+    /**
+     * SIMD实现（以 -Pvector 构建并加载孵化模块时）与标量实现的结果应逐位相同
+     */
+    @Test
+    void vectorizedAndScalarResultsAreIdentical() {
+        Columns columns = new Columns( new Random( 40L ) );
+        InvoiceBatchResult result = ColumnarInvoiceKernel.calculate( columns.salesAmounts, columns.taxRebateRates,
+                columns.actualPurchaseAmounts, columns.taxPoints, EXCHANGE_RATE, AGENT_RELATIVE_RATIO,
+                ContractFormula.STANDARD );
+        InvoiceBatchResult scalar = InvoiceBatchResult.allocate( ROW_COUNT );
+        ColumnarInvoiceKernel.calculateScalar( columns.salesAmounts, columns.taxRebateRates,
+                columns.actualPurchaseAmounts, columns.taxPoints, EXCHANGE_RATE, AGENT_RELATIVE_RATIO, 0, ROW_COUNT,
+                scalar.invoiceAmounts(), scalar.taxRebateAmounts(), scalar.agentProfits(), scalar.overpriceTaxes() );
+
+        for ( int i = 0; i < ROW_COUNT; i++ ) {
+            assertEquals( scalar.invoiceAmounts()[i], result.invoiceAmounts()[i], "第" + i + "行开票金额" );
+            assertEquals( scalar.taxRebateAmounts()[i], result.taxRebateAmounts()[i], "第" + i + "行退税金额" );
+            assertEquals( scalar.agentProfits()[i], result.agentProfits()[i], "第" + i + "行代理利润" );
+            assertEquals( scalar.overpriceTaxes()[i], result.overpriceTaxes()[i], "第" + i + "行扣税金额" );
+        }
+    }
+
+    /**
+     * 逐行核对时误差在一分钱以内；结果被改动超过一分钱时核对报错
+     */
+    @Test
+    void crossCheckAcceptsKernelResultsAndRejectsCentDeviations() {
+        Columns columns = new Columns( new Random( 41L ) );
+        InvoiceBatchResult result = ColumnarInvoiceKernel.calculate( columns.salesAmounts, columns.taxRebateRates,
+                columns.actualPurchaseAmounts, columns.taxPoints, EXCHANGE_RATE, AGENT_RELATIVE_RATIO,
+                ContractFormula.STANDARD );
+
+        double maxDeviation = ColumnarInvoiceKernel.crossCheck( columns.salesAmounts, columns.taxRebateRates,
+                columns.actualPurchaseAmounts, columns.taxPoints, EXCHANGE_RATE, AGENT_RELATIVE_RATIO,
+                ContractFormula.STANDARD, ROW_COUNT, result, 1 );
+        assertTrue( maxDeviation < ColumnarInvoiceKernel.CENT_TOLERANCE, "最大误差" + maxDeviation );
+
+        result.taxRebateAmounts()[ROW_COUNT / 2] += 2 * ColumnarInvoiceKernel.CENT_TOLERANCE;
+        assertThrows( IllegalStateException.class, () -> ColumnarInvoiceKernel.crossCheck( columns.salesAmounts,
+                columns.taxRebateRates, columns.actualPurchaseAmounts, columns.taxPoints, EXCHANGE_RATE,
+                AGENT_RELATIVE_RATIO, ContractFormula.STANDARD, ROW_COUNT, result, 1 ) );
+    }
+
+    /**
+     * 非标准合同按该合同的公式计算，不套用标准公式
+     */
+    @Test
+    void nonStandardContractFollowsItsFormula() {
+        ContractFormula formula = ContractFormula.compile( new AgentContract( "退税九折", "S * E",
+                "X * R / (1 + R) * 90%", "T * A" ) );
+        Columns columns = new Columns( new Random( 42L ) );
+        InvoiceBatchResult result = ColumnarInvoiceKernel.calculate( columns.salesAmounts, columns.taxRebateRates,
+                columns.actualPurchaseAmounts, columns.taxPoints, EXCHANGE_RATE, AGENT_RELATIVE_RATIO, formula );
+        InvoiceBatchResult standard = ColumnarInvoiceKernel.calculate( columns.salesAmounts, columns.taxRebateRates,
+                columns.actualPurchaseAmounts, columns.taxPoints, EXCHANGE_RATE, AGENT_RELATIVE_RATIO,
+                ContractFormula.STANDARD );
+
+        ColumnarInvoiceKernel.crossCheck( columns.salesAmounts, columns.taxRebateRates, columns.actualPurchaseAmounts,
+                columns.taxPoints, EXCHANGE_RATE, AGENT_RELATIVE_RATIO, formula, ROW_COUNT, result, 1 );
+        for ( int i = 0; i < ROW_COUNT; i++ ) {
+            assertTrue( Math.abs( result.invoiceAmounts()[i] - standard.invoiceAmounts()[i] ) > 1,
+                    "第" + i + "行仍按标准公式计算" );
+        }
+    }
+
+    /**
+     * 随机生成的各列数据（外币金额带两位小数）
+     */
+    private static final class Columns {
+
+        final double[] salesAmounts = new double[ROW_COUNT];
+        final double[] taxRebateRates = new double[ROW_COUNT];
+        final double[] actualPurchaseAmounts = new double[ROW_COUNT];
+        final double[] taxPoints = new double[ROW_COUNT];
+
+        Columns( Random random ) {
+            for ( int i = 0; i < ROW_COUNT; i++ ) {
+                salesAmounts[i] = ( 100_000 + random.nextInt( 100_000_000 ) ) / 100.0;
+                taxRebateRates[i] = TAX_REBATE_RATES[random.nextInt( TAX_REBATE_RATES.length )];
+                actualPurchaseAmounts[i] = salesAmounts[i] * EXCHANGE_RATE * 0.9;
+                taxPoints[i] = 0.03;
+            }
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package com.gwill.foreign_trade.service;
+
+import com.gwill.foreign_trade.io.DataValidationException;
+import com.gwill.foreign_trade.model.ValidationProblem;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class ExternalMemoryMultiFactoryCalculationTest {
+
+    private static final String HEADER = "工厂名称,产品名称,退税率,PI外币销售金额,实际货值,已预付金额,税点,同意开票给代理公司,可超额开票";
+
+    /**
+     * 分在不同块中的重复工厂产品也应报告，按行号与其他问题排在一起，且不留下分块文件
+     */
+    @Test
+    void duplicatesAcrossChunksAreReportedInRowOrder() throws IOException {
+        Path directory = Files.createTempDirectory( "external-memory-test" );
+        try {
+            Path csv = directory.resolve( "situations.csv" );
+            Files.write( csv, List.of( HEADER,
+                    "华东机械厂,球笼,13%,10000,100000,0,3%,是,否",
+                    "华南五金厂,轴承,13%,8000,80000,0,3%,是,是",
+                    "华北铸造厂,法兰,13%,5000,50000,0,3%,是,是",
+                    "华东机械厂,球笼,13%,9000,90000,0,3%,是,否",
+                    "华北铸造厂,齿轮,13%,-5000,50000,0,3%,是,是",
+                    "华北铸造厂,法兰,13%,6000,60000,0,3%,是,是" ), StandardCharsets.UTF_8 );
+            Path spillDirectory = directory.resolve( "spill" );
+
+            DataValidationException e = assertThrows( DataValidationException.class, () ->
+                    ExternalMemoryMultiFactoryCalculation.partition( csv, spillDirectory, 2, new BigDecimal( "7.1" ),
+                            new BigDecimal( "0.5" ), ContractFormula.STANDARD ) );
+
+            List<ValidationProblem> problems = e.getProblems();
+            assertEquals( 3, problems.size() );
+            assertEquals( 5L, problems.get( 0 ).rowNumber() );
+            assertEquals( "工厂“华东机械厂”的产品“球笼”与第2行重复", problems.get( 0 ).message() );
+            assertEquals( 6L, problems.get( 1 ).rowNumber() );
+            assertEquals( 7L, problems.get( 2 ).rowNumber() );
+            assertEquals( "工厂“华北铸造厂”的产品“法兰”与第4行重复", problems.get( 2 ).message() );
+            try ( Stream<Path> files = Files.list( spillDirectory ) ) {
+                assertEquals( 0L, files.count() );
+            }
+        } finally {
+            try ( Stream<Path> files = Files.walk( directory ) ) {
+                for ( Path file : files.sorted( Comparator.reverseOrder() ).toList() ) {
+                    Files.delete( file );
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package com.gwill.foreign_trade.service;
+
+import com.gwill.foreign_trade.model.MultiProductCalculationResult;
+import com.gwill.foreign_trade.model.ProductSituation;
+import org.junit.jupiter.api.Test;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class IncrementalMultiFactoryCalculationTest {
+
+    private static final BigDecimal TOTAL_INVOICE_AMOUNT = new BigDecimal( "260000" );
+    private static final BigDecimal EXCHANGE_RATE = new BigDecimal( "7.1" );
+    private static final BigDecimal AGENT_RELATIVE_RATIO = new BigDecimal( "0.5" );
+
+    /**
+     * 重算失败的修改不应留在增量计算中，之后的修改结果仍与完整重算一致
+     */
+    @Test
+    void failedUpdateLeavesStateUnchanged() {
+        List<ProductSituation> situations = new ArrayList<>( List.of(
+                situation( "华东机械厂", "球笼", "100000", false ),
+                situation( "华南五金厂", "轴承", "80000", true ),
+                situation( "华北铸造厂", "法兰", "0", true ) ) );
+        IncrementalMultiFactoryCalculation calculation = new IncrementalMultiFactoryCalculation( TOTAL_INVOICE_AMOUNT,
+                situations, EXCHANGE_RATE, AGENT_RELATIVE_RATIO, AllocationMode.PROPORTIONAL );
+        MultiProductCalculationResult before = calculation.result();
+
+        ProductSituation rejected = situations.get( 1 ).withAmounts( BigDecimal.ZERO, BigDecimal.ZERO,
+                situations.get( 1 ).taxPoint() );
+        assertThrows( IllegalArgumentException.class, () -> calculation.updateRow( 1, rejected ) );
+        assertEquals( before, calculation.result() );
+        assertEquals( situations, calculation.productSituations() );
+
+        ProductSituation accepted = situations.get( 1 ).withAmounts( new BigDecimal( "90000" ), BigDecimal.ZERO,
+                situations.get( 1 ).taxPoint() );
+        calculation.updateRow( 1, accepted );
+        situations.set( 1, accepted );
+        assertEquals( MultiFactoryInvoiceCalculationService.calculateMultiProductsData( TOTAL_INVOICE_AMOUNT,
+                situations, EXCHANGE_RATE, AGENT_RELATIVE_RATIO ).productCalculationDetails(),
+                calculation.result().productCalculationDetails() );
+    }
+
+    private static ProductSituation situation( String factoryName, String productName, String actualPurchaseAmount,
+                                               boolean ableToInvoiceWithOverprice ) {
+        return new ProductSituation( factoryName, productName, new BigDecimal( "0.13" ), new BigDecimal( "10000" ),
+                new BigDecimal( actualPurchaseAmount ), BigDecimal.ZERO, new BigDecimal( "0.03" ), true,
+                ableToInvoiceWithOverprice );
+    }
+}
@@ -0,0 +1,128 @@
+package com.gwill.foreign_trade.service;
+
+import com.gwill.foreign_trade.model.MonteCarloSettings;
+import com.gwill.foreign_trade.model.NetProfitDistribution;
+import com.gwill.foreign_trade.model.OrderSnapshot;
+import com.gwill.foreign_trade.model.ProductSituation;
+import org.junit.jupiter.api.Test;
+
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MonteCarloRiskSimulatorTest {
+
+    private static final OrderSnapshot ORDER = new OrderSnapshot( "PI-001", "USD", new BigDecimal( "30000" ),
+            new BigDecimal( "0.4" ),
+            List.of( new ProductSituation( "华东机械厂", "球笼", new BigDecimal( "0.13" ), new BigDecimal( "12000" ),
+                            new BigDecimal( "70000" ), new BigDecimal( "20000" ), new BigDecimal( "0.03" ), true, true ),
+                    new ProductSituation( "华南五金厂", "轴承", new BigDecimal( "0.09" ), new BigDecimal( "10000" ),
+                            new BigDecimal( "60000" ), BigDecimal.ZERO, new BigDecimal( "0.02" ), true, false ),
+                    new ProductSituation( "华北铸造厂", "法兰", new BigDecimal( "0.13" ), new BigDecimal( "8000" ),
+                            new BigDecimal( "45000" ), new BigDecimal( "5000" ), new BigDecimal( "0.03" ), true, true ) ) );
+
+    /**
+     * 相同种子在单线程和多线程下得到完全相同的抽样结果
+     */
+    @Test
+    void sameSeedGivesSameSamplesOnAnyThreadCount() throws Exception {
+        MonteCarloSettings settings = settings( 40_000, new BigDecimal( "7.1" ), 0.08 );
+
+        NetProfitDistribution singleThread = simulateIn( new ForkJoinPool( 1 ), settings );
+        NetProfitDistribution fourThreads = simulateIn( new ForkJoinPool( 4 ), settings );
+
+        assertTrue( Arrays.equals( singleThread.sortedNetProfits(), fourThreads.sortedNetProfits() ) );
+        assertEquals( singleThread.mean(), fourThreads.mean() );
+        assertEquals( singleThread.lossProbability(), fourThreads.lossProbability() );
+    }
+
+    /**
+     * 统计结果与排好序的抽样一致：最小、最大、中位数、插值分位数、平均值和亏损概率
+     */
+    @Test
+    void statisticsMatchSortedSamples() {
+        // 远低于当前汇率的抽样会出现亏损
+        NetProfitDistribution distribution = MonteCarloRiskSimulator.simulate( ORDER,
+                settings( 1_001, new BigDecimal( "7.1" ), 0.60 ) );
+        double[] samples = distribution.sortedNetProfits();
+
+        assertEquals( 1_001, distribution.sampleCount() );
+        for ( int i = 1; i < samples.length; i++ ) {
+            assertTrue( samples[i - 1] <= samples[i] );
+        }
+        assertEquals( samples[0], distribution.min() );
+        assertEquals( samples[1_000], distribution.max() );
+        assertEquals( samples[0], distribution.percentile( 0 ) );
+        assertEquals( samples[500], distribution.percentile( 50 ) );
+        assertEquals( samples[1_000], distribution.percentile( 100 ) );
+        // 第5百分位位于第50个样本，第2.55百分位位于第25.5个样本
+        assertEquals( samples[50], distribution.percentile( 5 ) );
+        assertEquals( ( samples[25] + samples[26] ) / 2, distribution.percentile( 2.55 ), 1e-9 );
+
+        double sum = 0;
+        int lossCount = 0;
+        for ( double sample : samples ) {
+            sum += sample;
+            lossCount += sample < 0 ? 1 : 0;
+        }
+        assertEquals( sum / samples.length, distribution.mean(), 1e-6 );
+        assertEquals( (double) lossCount / samples.length, distribution.lossProbability() );
+        assertTrue( lossCount > 0 && lossCount < samples.length, "亏损抽样" + lossCount + "次" );
+    }
+
+    /**
+     * 波动率、漂移率和资金成本都为0时每次抽样的汇率都是当前汇率，double计算与BigDecimal精确计算相差不超过1分；
+     * 开票上限走BigDecimal精确计算，结果同样一致
+     */
+    @Test
+    void doubleKernelMatchesExactCalculation() {
+        OrderSnapshot capped = new OrderSnapshot( "PI-002", "USD", new BigDecimal( "30000" ), new BigDecimal( "0.4" ),
+                List.of( new ProductSituation( "华东机械厂", "球笼", new BigDecimal( "0.13" ), new BigDecimal( "12000" ),
+                                new BigDecimal( "70000" ), new BigDecimal( "20000" ), new BigDecimal( "0.03" ), true, true,
+                                new BigDecimal( "80000" ), null ),
+                        ORDER.productSituations().get( 1 ), ORDER.productSituations().get( 2 ) ) );
+        for ( OrderSnapshot order : List.of( ORDER, capped ) ) {
+            for ( String spotRate : new String[] { "6.35", "7.1", "7.2345", "8.05" } ) {
+                NetProfitDistribution distribution = MonteCarloRiskSimulator.simulate( order,
+                        settings( 100, new BigDecimal( spotRate ), 0 ) );
+                double exact = distribution.netProfitAtSpot().doubleValue();
+                assertEquals( exact, distribution.min(), ColumnarInvoiceKernel.CENT_TOLERANCE,
+                        order.orderId() + "@" + spotRate );
+                assertEquals( exact, distribution.max(), ColumnarInvoiceKernel.CENT_TOLERANCE,
+                        order.orderId() + "@" + spotRate );
+            }
+        }
+    }
+
+    /**
+     * 三家工厂的订单100万次抽样在数秒内完成（宽松上限，避免在负载较高的构建机上误报）
+     */
+    @Test
+    void millionSamplesFinishWithinSeconds() {
+        // 预热
+        MonteCarloRiskSimulator.simulate( ORDER, settings( 200_000, new BigDecimal( "7.1" ), 0.08 ) );
+        NetProfitDistribution distribution = MonteCarloRiskSimulator.simulate( ORDER,
+                settings( 1_000_000, new BigDecimal( "7.1" ), 0.08 ) );
+
+        assertEquals( 1_000_000, distribution.sampleCount() );
+        assertTrue( distribution.elapsedMillis() < 5_000, "100万次抽样耗时" + distribution.elapsedMillis() + "ms" );
+    }
+
+    private static MonteCarloSettings settings( int sampleCount, BigDecimal spotRate, double annualVolatility ) {
+        boolean stochastic = annualVolatility > 0;
+        return new MonteCarloSettings( sampleCount, 49L, spotRate, 0, annualVolatility, 90,
+                stochastic ? 30 : 0, stochastic ? 90 : 0, stochastic ? 0.04 : 0 );
+    }
+
+    private static NetProfitDistribution simulateIn( ForkJoinPool pool, MonteCarloSettings settings ) throws Exception {
+        try {
+            return pool.submit( () -> MonteCarloRiskSimulator.simulate( ORDER, settings ) ).get();
+        } finally {
+            pool.shutdown();
+        }
+    }
+}
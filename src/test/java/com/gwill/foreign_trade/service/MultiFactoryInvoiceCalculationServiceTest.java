@@ -0,0 +1,158 @@
+package com.gwill.foreign_trade.service;
+
+import com.gwill.foreign_trade.model.AgentContract;
+import com.gwill.foreign_trade.model.FactoryAllocation;
+import com.gwill.foreign_trade.model.InvoiceLimit;
+import com.gwill.foreign_trade.model.ProductSituation;
+import org.junit.jupiter.api.Test;
+
+import java.math.BigDecimal;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class MultiFactoryInvoiceCalculationServiceTest {
+
+    /**
+     * 全部工厂均为固定开票金额、总开票金额仍有差额时，按最大余数法分配到分不应越界，结果与按货值比例分配一致
+     */
+    @Test
+    void largestRemainderFenWithOnlyFixedFactoriesMatchesProportional() {
+        List<ProductSituation> situations = List.of(
+                situation( "华东机械厂", "球笼", "100000", true, false ),
+                situation( "华南五金厂", "轴承", "55555.55", false, true ) );
+        BigDecimal totalInvoiceAmount = new BigDecimal( "160000.037" );
+
+        List<FactoryAllocation> toFen = MultiFactoryInvoiceCalculationService.calculateFactoryAllocations(
+                totalInvoiceAmount, situations, AllocationMode.LARGEST_REMAINDER_FEN );
+        List<FactoryAllocation> proportional = MultiFactoryInvoiceCalculationService.calculateFactoryAllocations(
+                totalInvoiceAmount, situations, AllocationMode.PROPORTIONAL );
+
+        assertEquals( situations.size(), toFen.size() );
+        for ( int i = 0; i < situations.size(); i++ ) {
+            assertEquals( 0, situations.get( i ).actualPurchaseAmount()
+                    .compareTo( toFen.get( i ).allocatedInvoiceAmount() ) );
+            assertEquals( 0, proportional.get( i ).allocatedInvoiceAmount()
+                    .compareTo( toFen.get( i ).allocatedInvoiceAmount() ) );
+        }
+    }
+
+    /**
+     * 同一税点组内货值为0且设了上限的工厂不应超出上限，本组容纳不下的金额转给下一税点组
+     */
+    @Test
+    void taxMinimizingPassesZeroWeightOverflowToNextTaxPointGroup() {
+        List<ProductSituation> situations = List.of(
+                situation( "华东机械厂", "球笼", "100", "0.01" ),
+                situation( "华东机械厂", "样品", "0", "0.01" ),
+                situation( "华南五金厂", "轴承", "100", "0.05" ) );
+        Map<String, InvoiceLimit> limits = Map.of(
+                "球笼", new InvoiceLimit( null, new BigDecimal( "110" ) ),
+                "样品", new InvoiceLimit( null, new BigDecimal( "5" ) ),
+                "轴承", InvoiceLimit.NONE );
+
+        List<FactoryAllocation> allocations = MultiFactoryInvoiceCalculationService.calculateTaxMinimizingAllocations(
+                new BigDecimal( "250" ), situations, prodSituation -> limits.get( prodSituation.productName() ) );
+
+        assertEquals( 0, new BigDecimal( "110" ).compareTo( allocations.get( 0 ).allocatedInvoiceAmount() ) );
+        assertEquals( 0, new BigDecimal( "5" ).compareTo( allocations.get( 1 ).allocatedInvoiceAmount() ) );
+        assertEquals( 0, new BigDecimal( "135" ).compareTo( allocations.get( 2 ).allocatedInvoiceAmount() ) );
+    }
+
+    /**
+     * 上限不是整分时，按最大余数法补的分不应使该工厂超出上限
+     */
+    @Test
+    void largestRemainderFenSkipsRowsAtFractionalCap() {
+        List<ProductSituation> situations = List.of(
+                new ProductSituation( "华东机械厂", "球笼", new BigDecimal( "0.13" ), new BigDecimal( "10000" ),
+                        new BigDecimal( "1000" ), BigDecimal.ZERO, new BigDecimal( "0.03" ), true, true,
+                        null, new BigDecimal( "0.000005" ) ),
+                situation( "华南五金厂", "轴承", "1000", "0.03" ) );
+
+        List<FactoryAllocation> allocations = MultiFactoryInvoiceCalculationService.calculateFactoryAllocations(
+                new BigDecimal( "2100" ), situations, AllocationMode.LARGEST_REMAINDER_FEN );
+
+        assertEquals( 0, new BigDecimal( "1000.00" ).compareTo( allocations.get( 0 ).allocatedInvoiceAmount() ) );
+        assertEquals( 0, new BigDecimal( "1100.00" ).compareTo( allocations.get( 1 ).allocatedInvoiceAmount() ) );
+    }
+
+    /**
+     * 指定合同公式时，各分配方式下工厂分配结果中的退税金额都按该合同的退税公式计算
+     */
+    @Test
+    void allocationTaxRebateFollowsContractFormula() {
+        ContractFormula formula = ContractFormula.compile( new AgentContract( "退税九折", "S * E",
+                "X * R / (1 + R) * 90%", "T * A" ) );
+        BigDecimal agentRelativeRatio = new BigDecimal( "0.5" );
+        List<ProductSituation> situations = List.of(
+                situation( "华东机械厂", "球笼", "100000", true, false ),
+                situation( "华南五金厂", "轴承", "55555.55", true, true ) );
+
+        for ( AllocationMode allocationMode : AllocationMode.values() ) {
+            List<FactoryAllocation> allocations = MultiFactoryInvoiceCalculationService.calculateFactoryAllocations(
+                    new BigDecimal( "170000" ), situations, allocationMode, formula, agentRelativeRatio );
+            for ( int i = 0; i < situations.size(); i++ ) {
+                BigDecimal expected = formula.taxRebateAmount( allocations.get( i ).allocatedInvoiceAmount(),
+                        situations.get( i ).taxRebateRate(), agentRelativeRatio );
+                assertEquals( 0, expected.compareTo( allocations.get( i ).taxRebateAmount() ),
+                        allocationMode + "：" + situations.get( i ).productName() );
+            }
+        }
+    }
+
+    /**
+     * 全部工厂均为固定开票金额时，各分配方式都按实际货值开票，不因总开票金额有差额而报错
+     */
+    @Test
+    void everyModeAcceptsOrdersWithOnlyFixedFactories() {
+        List<ProductSituation> situations = List.of(
+                situation( "华东机械厂", "球笼", "100000", true, false ),
+                situation( "华南五金厂", "轴承", "55555.55", false, true ) );
+
+        for ( AllocationMode allocationMode : AllocationMode.values() ) {
+            List<FactoryAllocation> allocations = MultiFactoryInvoiceCalculationService.calculateFactoryAllocations(
+                    new BigDecimal( "160000" ), situations, allocationMode );
+            for ( int i = 0; i < situations.size(); i++ ) {
+                assertEquals( 0, situations.get( i ).actualPurchaseAmount()
+                        .compareTo( allocations.get( i ).allocatedInvoiceAmount() ),
+                        allocationMode + "：" + situations.get( i ).productName() );
+            }
+        }
+    }
+
+    /**
+     * 未经加载器校验的产品信息直接交给计算服务时，退税率为-100%（否则除以0）或已预付金额大于实际货值都应报错
+     */
+    @Test
+    void calculationRejectsInvalidRowsFromDirectCallers() {
+        ProductSituation valid = situation( "华东机械厂", "球笼", "100000", true, true );
+        ProductSituation divisionByZero = new ProductSituation( "华南五金厂", "轴承", new BigDecimal( "-1" ),
+                new BigDecimal( "10000" ), new BigDecimal( "80000" ), BigDecimal.ZERO, new BigDecimal( "0.03" ),
+                true, true );
+        ProductSituation overpaid = new ProductSituation( "华南五金厂", "轴承", new BigDecimal( "0.13" ),
+                new BigDecimal( "10000" ), new BigDecimal( "80000" ), new BigDecimal( "90000" ),
+                new BigDecimal( "0.03" ), true, true );
+
+        for ( ProductSituation invalid : List.of( divisionByZero, overpaid ) ) {
+            assertThrows( IllegalArgumentException.class, () -> MultiFactoryInvoiceCalculationService
+                    .calculateMultiFactoryOrder( List.of( valid, invalid ), new BigDecimal( "7.1" ),
+                            new BigDecimal( "0.5" ) ) );
+        }
+    }
+
+    private static ProductSituation situation( String factoryName, String productName, String actualPurchaseAmount,
+                                               String taxPoint ) {
+        return new ProductSituation( factoryName, productName, new BigDecimal( "0.13" ), new BigDecimal( "10000" ),
+                new BigDecimal( actualPurchaseAmount ), BigDecimal.ZERO, new BigDecimal( taxPoint ), true, true );
+    }
+
+    private static ProductSituation situation( String factoryName, String productName, String actualPurchaseAmount,
+                                               boolean agreeToInvoiceToAgent, boolean ableToInvoiceWithOverprice ) {
+        return new ProductSituation( factoryName, productName, new BigDecimal( "0.13" ), new BigDecimal( "10000" ),
+                new BigDecimal( actualPurchaseAmount ), BigDecimal.ZERO, new BigDecimal( "0.03" ),
+                agreeToInvoiceToAgent, ableToInvoiceWithOverprice );
+    }
+}
@@ -0,0 +1,46 @@
+package com.gwill.foreign_trade.service;
+
+import com.gwill.foreign_trade.model.MultiProductCalculationResult;
+import com.gwill.foreign_trade.model.OrderSnapshot;
+import com.gwill.foreign_trade.model.ProductCalculationDetail;
+import com.gwill.foreign_trade.model.ProductSituation;
+import org.junit.jupiter.api.Test;
+
+import java.math.BigDecimal;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class OrderRevaluationServiceTest {
+
+    /**
+     * 重估结果按列保存后，退税、代理利润和您的退税分成合计应等于保存的各行之和
+     */
+    @Test
+    void compactedTotalsMatchStoredRows() {
+        List<ProductSituation> situations = List.of(
+                situation( "华东机械厂", "球笼", "33333.33" ),
+                situation( "华南五金厂", "轴承", "22222.22" ),
+                situation( "华北铸造厂", "法兰", "11111.11" ) );
+        OrderSnapshot order = new OrderSnapshot( "PI-001", "USD", new BigDecimal( "12345.67" ),
+                new BigDecimal( "0.37" ), situations );
+
+        MultiProductCalculationResult result = OrderRevaluationService.revalue( order, new BigDecimal( "7.123457" ),
+                null ).calculationResult();
+
+        BigDecimal taxRebate = BigDecimal.ZERO;
+        BigDecimal agentProfit = BigDecimal.ZERO;
+        for ( ProductCalculationDetail detail : result.productCalculationDetails() ) {
+            taxRebate = taxRebate.add( detail.taxRebateAmount() );
+            agentProfit = agentProfit.add( detail.agentProfit() );
+        }
+        assertEquals( 0, taxRebate.compareTo( result.totalTaxRebateAmount() ) );
+        assertEquals( 0, agentProfit.compareTo( result.totalAgentProfit() ) );
+        assertEquals( 0, taxRebate.subtract( agentProfit ).compareTo( result.yourTotalTaxRebateShareAmount() ) );
+    }
+
+    private static ProductSituation situation( String factoryName, String productName, String actualPurchaseAmount ) {
+        return new ProductSituation( factoryName, productName, new BigDecimal( "0.13" ), new BigDecimal( "4115.22" ),
+                new BigDecimal( actualPurchaseAmount ), BigDecimal.ZERO, new BigDecimal( "0.03" ), true, true );
+    }
+}
@@ -0,0 +1,252 @@
+package com.gwill.foreign_trade.service;
+
+import com.gwill.foreign_trade.model.LedgerRollup;
+import com.gwill.foreign_trade.model.ProductCalculationDetail;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RunLedgerTest {
+
+    /**
+     * 每次记录只合并所在月份的增量，按年、按月和按产品的汇总都与逐笔相加一致
+     */
+    @Test
+    void rollupsFollowIncrementalRecords() throws IOException {
+        Path directory = Files.createTempDirectory( "run-ledger-test" );
+        try {
+            RunLedger ledger = RunLedger.open( directory );
+            ledger.recordRun( "PO-1", LocalDate.of( 2024, 1, 15 ), "测试", List.of(
+                    detail( "华东机械厂", "球笼", "1000" ), detail( "华南五金厂", "轴承", "2000" ) ) );
+            ledger.recordRun( "PO-2", LocalDate.of( 2024, 2, 3 ), "测试", List.of( detail( "华东机械厂", "球笼", "300" ) ) );
+            assertEquals( List.of( total( "华东机械厂", null, "2024", 2, 2, "1300" ),
+                            total( "华南五金厂", null, "2024", 1, 1, "2000" ) ),
+                    totals( ledger.rollup( false, RunLedger.Period.YEAR, null, null, null ) ) );
+
+            ledger.recordRun( "PO-3", LocalDate.of( 2025, 2, 1 ), "测试", List.of(
+                    detail( "华东机械厂", "球笼", "50" ), detail( "华东机械厂", "法兰", "70" ) ) );
+            assertEquals( List.of( total( "华东机械厂", "法兰", "2025-02", 1, 1, "70" ),
+                            total( "华东机械厂", "球笼", "2024-01", 1, 1, "1000" ),
+                            total( "华东机械厂", "球笼", "2024-02", 1, 1, "300" ),
+                            total( "华东机械厂", "球笼", "2025-02", 1, 1, "50" ) ),
+                    totals( ledger.rollup( true, RunLedger.Period.MONTH, null, null, "华东机械厂" ) ) );
+            assertEquals( List.of( total( "华东机械厂", null, null, 2, 3, "420" ) ),
+                    totals( ledger.rollup( false, RunLedger.Period.ALL, YearMonth.of( 2024, 2 ), null, "华东机械厂" ) ) );
+            assertEquals( List.of(), ledger.rollup( false, RunLedger.Period.ALL, null, null, "华北铸造厂" ) );
+
+            // 重新打开的台账从月份文件读出同样的汇总
+            assertEquals( totals( ledger.rollup( true, RunLedger.Period.MONTH, null, null, null ) ),
+                    totals( RunLedger.open( directory ).rollup( true, RunLedger.Period.MONTH, null, null, null ) ) );
+        } finally {
+            deleteRecursively( directory );
+        }
+    }
+
+    /**
+     * 同一计算编号只记录一次；同一份NDJSON运行记录重复补录时忽略
+     */
+    @Test
+    void repeatedRunsAndImportsAreIgnored() throws IOException {
+        Path directory = Files.createTempDirectory( "run-ledger-test" );
+        try {
+            RunLedger ledger = RunLedger.open( directory.resolve( "ledger" ) );
+            assertTrue( ledger.recordRun( "PO-1", LocalDate.of( 2024, 1, 15 ), "测试",
+                    List.of( detail( "华东机械厂", "球笼", "1000" ) ) ) );
+            // 同一编号记到其他月份也忽略
+            assertFalse( ledger.recordRun( "PO-1", LocalDate.of( 2024, 3, 1 ), "测试",
+                    List.of( detail( "华东机械厂", "球笼", "1000" ) ) ) );
+
+            Path ndjson = directory.resolve( "PO-2.ndjson" );
+            Files.writeString( ndjson, ndjsonLine( "华南五金厂", "轴承", "2000" ) + "\n", StandardCharsets.UTF_8 );
+            assertTrue( ledger.importNdjson( ndjson, LocalDate.of( 2024, 1, 20 ) ) );
+            assertFalse( ledger.importNdjson( ndjson, LocalDate.of( 2024, 1, 20 ) ) );
+
+            assertEquals( 2, ledger.runCount() );
+            assertEquals( List.of( total( "华东机械厂", null, null, 1, 1, "1000" ),
+                            total( "华南五金厂", null, null, 1, 1, "2000" ) ),
+                    totals( ledger.rollup( false, RunLedger.Period.ALL, null, null, null ) ) );
+        } finally {
+            deleteRecursively( directory );
+        }
+    }
+
+    /**
+     * 补录的NDJSON记录缺少金额或金额为null时报错，不按0计入台账
+     */
+    @Test
+    void importRejectsMissingAmounts() throws IOException {
+        Path directory = Files.createTempDirectory( "run-ledger-test" );
+        try {
+            RunLedger ledger = RunLedger.open( directory.resolve( "ledger" ) );
+            String complete = ndjsonLine( "华南五金厂", "轴承", "2000" );
+            Path nullAmount = directory.resolve( "null.ndjson" );
+            Files.writeString( nullAmount, complete.replace( "\"overpriceTax\":60", "\"overpriceTax\":null" ),
+                    StandardCharsets.UTF_8 );
+            Path missingAmount = directory.resolve( "missing.ndjson" );
+            Files.writeString( missingAmount, complete.replace( ",\"overpriceTax\":60", "" ), StandardCharsets.UTF_8 );
+
+            for ( Path ndjson : List.of( nullAmount, missingAmount ) ) {
+                IllegalArgumentException e = assertThrows( IllegalArgumentException.class, () ->
+                        ledger.importNdjson( ndjson, LocalDate.of( 2024, 1, 20 ) ) );
+                assertTrue( e.getMessage().contains( "缺少字段overpriceTax" ), e.getMessage() );
+            }
+            assertEquals( 0, ledger.runCount() );
+        } finally {
+            deleteRecursively( directory );
+        }
+    }
+
+    /**
+     * 其他实例记录后只重新加载代数变化的月份：未改动月份的文件被破坏（首行代数不变）也不会被重新读取
+     */
+    @Test
+    void refreshReloadsOnlyChangedPartitions() throws IOException {
+        Path directory = Files.createTempDirectory( "run-ledger-test" );
+        try {
+            RunLedger writer = RunLedger.open( directory );
+            writer.recordRun( "PO-1", LocalDate.of( 2024, 1, 15 ), "测试", List.of( detail( "华东机械厂", "球笼", "1000" ) ) );
+            writer.recordRun( "PO-2", LocalDate.of( 2024, 2, 15 ), "测试", List.of( detail( "华东机械厂", "球笼", "300" ) ) );
+            RunLedger reader = RunLedger.open( directory );
+
+            Path january = directory.resolve( "rollup" ).resolve( "2024-01.tsv" );
+            String generationLine = Files.readAllLines( january, StandardCharsets.UTF_8 ).get( 0 );
+            Files.writeString( january, generationLine + "\n无法解析的行\n", StandardCharsets.UTF_8 );
+            writer.recordRun( "PO-3", LocalDate.of( 2024, 2, 20 ), "测试", List.of( detail( "华东机械厂", "球笼", "20" ) ) );
+
+            assertEquals( List.of( total( "华东机械厂", null, "2024-01", 1, 1, "1000" ),
+                            total( "华东机械厂", null, "2024-02", 2, 2, "320" ) ),
+                    totals( reader.rollup( false, RunLedger.Period.MONTH, null, null, null ) ) );
+            // 新打开的台账要读取全部月份文件
+            assertThrows( RuntimeException.class, () -> RunLedger.open( directory ) );
+        } finally {
+            deleteRecursively( directory );
+        }
+    }
+
+    /**
+     * 汇总目录中的临时文件和其他无关文件不当作月份读取
+     */
+    @Test
+    void strayFilesInRollupDirectoryAreSkipped() throws IOException {
+        Path directory = Files.createTempDirectory( "run-ledger-test" );
+        try {
+            RunLedger.open( directory ).recordRun( "PO-1", LocalDate.of( 2024, 1, 15 ), "测试",
+                    List.of( detail( "华东机械厂", "球笼", "1000" ) ) );
+            Path rollupDirectory = directory.resolve( "rollup" );
+            for ( String fileName : List.of( ".2024-01.tsv12345.tmp", "2024-13.tsv", "2024-01.tsv.bak", "notes.txt" ) ) {
+                Files.writeString( rollupDirectory.resolve( fileName ), "无法解析的行\n", StandardCharsets.UTF_8 );
+            }
+
+            RunLedger ledger = RunLedger.open( directory );
+            assertEquals( 1, ledger.runCount() );
+            assertEquals( List.of( total( "华东机械厂", null, "2024", 1, 1, "1000" ) ),
+                    totals( ledger.rollup( false, RunLedger.Period.YEAR, null, null, null ) ) );
+        } finally {
+            deleteRecursively( directory );
+        }
+    }
+
+    /**
+     * 同一JVM中打开同一目录的多个实例同时记录时依次等待锁，不抛出 OverlappingFileLockException，也不丢失记录
+     */
+    @Test
+    void instancesInOneJvmWaitForTheLock() throws Exception {
+        Path directory = Files.createTempDirectory( "run-ledger-test" );
+        int threadCount = 4;
+        int runsPerThread = 25;
+        ExecutorService executor = Executors.newFixedThreadPool( threadCount );
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for ( int thread = 0; thread < threadCount; thread++ ) {
+                int threadIndex = thread;
+                // 相对路径和绝对路径指向同一目录
+                Path ledgerDirectory = thread % 2 == 0 ? directory : directory.resolve( "." );
+                futures.add( executor.submit( () -> {
+                    RunLedger ledger = RunLedger.open( ledgerDirectory );
+                    for ( int run = 0; run < runsPerThread; run++ ) {
+                        ledger.recordRun( "PO-" + threadIndex + "-" + run, LocalDate.of( 2024, 1 + run % 3, 1 ), "测试",
+                                List.of( detail( "华东机械厂", "球笼", "10" ) ) );
+                    }
+                    return null;
+                } ) );
+            }
+            for ( Future<?> future : futures ) {
+                future.get();
+            }
+
+            RunLedger ledger = RunLedger.open( directory );
+            assertEquals( threadCount * runsPerThread, ledger.runCount() );
+            assertEquals( List.of( total( "华东机械厂", null, null, threadCount * runsPerThread,
+                            threadCount * runsPerThread, "1000" ) ),
+                    totals( ledger.rollup( false, RunLedger.Period.ALL, null, null, null ) ) );
+        } finally {
+            executor.shutdownNow();
+            deleteRecursively( directory );
+        }
+    }
+
+    /**
+     * 开票金额为 invoiceAmount 的产品结果，其余金额按开票金额的固定比例
+     */
+    private static ProductCalculationDetail detail( String factoryName, String productName, String invoiceAmount ) {
+        BigDecimal amount = new BigDecimal( invoiceAmount );
+        return new ProductCalculationDetail( factoryName, productName, amount, amount,
+                amount.multiply( new BigDecimal( "0.1" ) ), amount.multiply( new BigDecimal( "0.05" ) ), amount,
+                BigDecimal.ZERO, amount.multiply( new BigDecimal( "0.03" ) ), BigDecimal.ZERO, BigDecimal.ZERO );
+    }
+
+    private static String ndjsonLine( String factoryName, String productName, String invoiceAmount ) {
+        ProductCalculationDetail detail = detail( factoryName, productName, invoiceAmount );
+        return String.format( "{\"factoryName\":\"%s\",\"productName\":\"%s\",\"actualPurchaseAmount\":%s,"
+                        + "\"invoiceAmount\":%s,\"taxRebateAmount\":%s,\"agentProfit\":%s,"
+                        + "\"agentBalanceToFactoryBeforeShipment\":%s,\"agentBalanceToFactoryAfterRebating\":%s,"
+                        + "\"overpriceTax\":%s,\"prepaymentRefundAmount\":%s,\"overpriceRefundFromFactory\":%s}",
+                factoryName, productName, detail.actualPurchaseAmount(), detail.invoiceAmount(),
+                detail.taxRebateAmount().stripTrailingZeros().toPlainString(),
+                detail.agentProfit().stripTrailingZeros().toPlainString(),
+                detail.agentBalanceToFactoryBeforeShipment(), detail.agentBalanceToFactoryAfterRebating(),
+                detail.overpriceTax().stripTrailingZeros().toPlainString(), detail.prepaymentRefundAmount(),
+                detail.overpriceRefundFromFactory() );
+    }
+
+    /**
+     * 汇总行中用于比较的部分：分组、计算次数、行数和开票金额
+     */
+    private static List<String> totals( List<LedgerRollup> rollups ) {
+        return rollups.stream().map( rollup -> total( rollup.factoryName(), rollup.productName(), rollup.period(),
+                rollup.runCount(), rollup.rowCount(), rollup.totalInvoiceAmount().stripTrailingZeros().toPlainString() ) )
+                .toList();
+    }
+
+    private static String total( String factoryName, String productName, String period, int runCount, long rowCount,
+                                 String invoiceAmount ) {
+        return String.join( "|", factoryName, String.valueOf( productName ), String.valueOf( period ),
+                Integer.toString( runCount ), Long.toString( rowCount ), invoiceAmount );
+    }
+
+    private static void deleteRecursively( Path directory ) throws IOException {
+        try ( Stream<Path> files = Files.walk( directory ) ) {
+            for ( Path file : files.sorted( Comparator.reverseOrder() ).toList() ) {
+                Files.delete( file );
+            }
+        }
+    }
+}
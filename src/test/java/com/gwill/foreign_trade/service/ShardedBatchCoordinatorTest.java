@@ -0,0 +1,107 @@
+package com.gwill.foreign_trade.service;
+
+import com.gwill.foreign_trade.io.BatchJournal;
+import com.gwill.foreign_trade.model.BatchOrderResult;
+import com.gwill.foreign_trade.model.OrderBookEntry;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ShardedBatchCoordinatorTest {
+
+    /**
+     * 工作进程异常退出时正在处理的订单没有写入检查点日志，重新运行时只处理这笔订单，其余沿用上次的结果
+     */
+    @Test
+    void orderLeftByDeadWorkerIsProcessedOnRerun() throws IOException {
+        Path directory = Files.createTempDirectory( "sharded-batch-test" );
+        try {
+            List<OrderBookEntry> entries = entries( 4 );
+            String[] inputHashes = { "h0", "h1", "h2", "h3" };
+            BatchJournal journal = new BatchJournal( directory.resolve( ShardedBatchCoordinator.JOURNAL_FILE ) );
+            for ( int sequence : new int[] { 0, 1, 3 } ) {
+                journal.append( sequence, inputHashes[sequence], result( entries.get( sequence ), directory ) );
+            }
+
+            BatchOrderResult[] resumed = new BatchOrderResult[entries.size()];
+            List<Integer> pending = ShardedBatchCoordinator.pendingSequences( entries, inputHashes, journal.read(),
+                    resumed );
+
+            assertEquals( List.of( 2 ), pending );
+            assertNull( resumed[2] );
+            for ( int sequence : new int[] { 0, 1, 3 } ) {
+                assertEquals( entries.get( sequence ).orderId(), resumed[sequence].orderId() );
+                assertTrue( resumed[sequence].resumed() );
+            }
+        } finally {
+            deleteRecursively( directory );
+        }
+    }
+
+    /**
+     * 输入哈希有变化、导出文件已被删除或订单在清单中换了位置时都不沿用上次的结果
+     */
+    @Test
+    void changedOrMovedOrdersAreNotResumed() throws IOException {
+        Path directory = Files.createTempDirectory( "sharded-batch-test" );
+        try {
+            List<OrderBookEntry> entries = entries( 4 );
+            BatchJournal journal = new BatchJournal( directory.resolve( ShardedBatchCoordinator.JOURNAL_FILE ) );
+            journal.append( 0, "h0", result( entries.get( 0 ), directory ) );
+            journal.append( 1, "h1-before-edit", result( entries.get( 1 ), directory ) );
+            BatchOrderResult deleted = result( entries.get( 2 ), directory );
+            Files.delete( Path.of( deleted.outputFiles().get( 0 ) ) );
+            journal.append( 2, "h2", deleted );
+            // 上次运行时PO-3排在第1位
+            journal.append( 1, "h3", result( entries.get( 3 ), directory ) );
+
+            BatchOrderResult[] resumed = new BatchOrderResult[entries.size()];
+            List<Integer> pending = ShardedBatchCoordinator.pendingSequences( entries,
+                    new String[] { "h0", "h1", "h2", "h3" }, journal.read(), resumed );
+
+            assertEquals( List.of( 1, 2, 3 ), pending );
+            assertEquals( "PO-0", resumed[0].orderId() );
+        } finally {
+            deleteRecursively( directory );
+        }
+    }
+
+    private static List<OrderBookEntry> entries( int count ) {
+        List<OrderBookEntry> entries = new ArrayList<>( count );
+        for ( int sequence = 0; sequence < count; sequence++ ) {
+            entries.add( new OrderBookEntry( sequence + 2L, "PO-" + sequence, "USD", new BigDecimal( "10000" ),
+                    new BigDecimal( "0.5" ), List.of( Path.of( "factory-" + sequence + ".csv" ) ) ) );
+        }
+        return entries;
+    }
+
+    /**
+     * 一笔已完成订单的结果，导出文件在目录中真实存在
+     */
+    private static BatchOrderResult result( OrderBookEntry entry, Path directory ) throws IOException {
+        Path outputFile = Files.writeString( directory.resolve( entry.orderId() + ".csv" ), entry.orderId() );
+        return new BatchOrderResult( entry.orderId(), entry.currency(), new BigDecimal( "7.1" ), 1,
+                new BigDecimal( "71000" ), new BigDecimal( "8168.14" ), new BigDecimal( "4084.07" ),
+                new BigDecimal( "4084.07" ), new BigDecimal( "1234.56" ), List.of( outputFile.toString() ),
+                "worker-00", 5L, false );
+    }
+
+    private static void deleteRecursively( Path directory ) throws IOException {
+        try ( Stream<Path> files = Files.walk( directory ) ) {
+            for ( Path file : files.sorted( Comparator.reverseOrder() ).toList() ) {
+                Files.delete( file );
+            }
+        }
+    }
+}